@@ -76,15 +76,28 @@ public class BqsConverter {
 
   private boolean removeSourceLibrary;
 
+  private BqsFilterCache filterCache;
+
   private static final Logger LOGGER = LoggerFactory.getLogger(BqsConverter.class);
 
   public BqsConverter(FilterBuilder filterBuilder, boolean removeSourceLibrary) {
+    this(filterBuilder, removeSourceLibrary, null);
+  }
+
+  /**
+   * @param filterBuilder - builder used to create the filters
+   * @param removeSourceLibrary - whether source library terms are removed from queries
+   * @param filterCache - cache of previously parsed filters, or null to parse every query
+   */
+  public BqsConverter(
+      FilterBuilder filterBuilder, boolean removeSourceLibrary, BqsFilterCache filterCache) {
     if (filterBuilder == null) {
       throw new IllegalArgumentException("FilterBuilder must be set");
     }
 
     this.removeSourceLibrary = removeSourceLibrary;
     this.filterBuilder = filterBuilder;
+    this.filterCache = filterCache;
   }
 
   public Filter convertBQSToDDF(Query query) {
@@ -93,6 +106,13 @@ public class BqsConverter {
   }
 
   public Filter convertBQSToDDF(String query) {
+    if (filterCache != null) {
+      return filterCache.getFilter(query, removeSourceLibrary, this::parseBQS);
+    }
+    return parseBQS(query);
+  }
+
+  private Filter parseBQS(String query) {
     query = query.trim();
 
     LOGGER.debug("Original Query: {}", query);
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.common;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.lang.management.ManagementFactory;
+import java.util.function.Function;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import org.opengis.filter.Filter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size bounded LRU cache of the filters parsed from BQS queries. Clients tend to send the same
+ * few queries over and over, so sharing one cache between all {@link BqsConverter}s saves running
+ * the BQS parser on every request. Queries are keyed by their text with whitespace outside quoted
+ * strings collapsed, and by whether the source library is removed while parsing.
+ */
+public class BqsFilterCache implements BqsFilterCacheMBean {
+
+  public static final int DEFAULT_MAX_SIZE = 500;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BqsFilterCache.class);
+
+  private final Cache<String, Filter> filters;
+
+  private ObjectName objectName;
+
+  private MBeanServer mBeanServer;
+
+  /** @param maxSize - maximum number of filters to keep */
+  public BqsFilterCache(int maxSize) {
+    this.filters =
+        CacheBuilder.newBuilder().maximumSize(Math.max(0, maxSize)).recordStats().build();
+  }
+
+  /**
+   * Returns the filter for a BQS query, parsing the query only if its filter is not cached.
+   *
+   * @param bqsQuery - the BQS query text
+   * @param removeSourceLibrary - whether the parser removes the source library from the query
+   * @param parser - parses the query text into a filter
+   * @return the filter for the query
+   */
+  Filter getFilter(String bqsQuery, boolean removeSourceLibrary, Function<String, Filter> parser) {
+    String key = removeSourceLibrary + "|" + normalize(bqsQuery);
+    Filter filter = filters.getIfPresent(key);
+    if (filter == null) {
+      filter = parser.apply(bqsQuery);
+      if (filter != null) {
+        filters.put(key, filter);
+      }
+    }
+    return filter;
+  }
+
+  static String normalize(String bqsQuery) {
+    String trimmedQuery = bqsQuery.trim();
+    StringBuilder normalized = new StringBuilder(trimmedQuery.length());
+    boolean quoted = false;
+    boolean whitespace = false;
+    for (char c : trimmedQuery.toCharArray()) {
+      if (!quoted && Character.isWhitespace(c)) {
+        whitespace = true;
+        continue;
+      }
+
+      if (whitespace) {
+        normalized.append(' ');
+        whitespace = false;
+      }
+
+      // An escaped quote inside a string is doubled, so toggling on each quote still works
+      if (c == '\'') {
+        quoted = !quoted;
+      }
+      normalized.append(c);
+    }
+    return normalized.toString();
+  }
+
+  @Override
+  public long getHitCount() {
+    return filters.stats().hitCount();
+  }
+
+  @Override
+  public long getMissCount() {
+    return filters.stats().missCount();
+  }
+
+  @Override
+  public double getHitRate() {
+    return filters.stats().hitRate();
+  }
+
+  @Override
+  public long getEvictionCount() {
+    return filters.stats().evictionCount();
+  }
+
+  @Override
+  public long getSize() {
+    return filters.size();
+  }
+
+  @Override
+  public void clear() {
+    filters.invalidateAll();
+  }
+
+  public void registerMbean() {
+    try {
+      objectName = new ObjectName(BqsFilterCache.class.getName() + ":service=cache");
+      mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    } catch (MalformedObjectNameException e) {
+      LOGGER.info("Unable to create BQS Filter Cache MBean.", e);
+    }
+    if (mBeanServer == null) {
+      return;
+    }
+    try {
+      try {
+        mBeanServer.registerMBean(this, objectName);
+        LOGGER.debug("Registered BQS Filter Cache MBean under object name: {}", objectName);
+      } catch (InstanceAlreadyExistsException e) {
+        mBeanServer.unregisterMBean(objectName);
+        mBeanServer.registerMBean(this, objectName);
+        LOGGER.debug("Re-registered BQS Filter Cache MBean");
+      }
+    } catch (MBeanRegistrationException
+        | InstanceNotFoundException
+        | InstanceAlreadyExistsException
+        | NotCompliantMBeanException e) {
+      LOGGER.info("Could not register MBean [{}].", objectName, e);
+    }
+  }
+
+  public void unregisterMbean() {
+    try {
+      if (objectName != null && mBeanServer != null && mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (MBeanRegistrationException | InstanceNotFoundException e) {
+      LOGGER.debug("Exception unregistering MBean: ", e);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.common;
+
+public interface BqsFilterCacheMBean {
+
+  /** @return number of BQS queries whose filter was found in the cache */
+  long getHitCount();
+
+  /** @return number of BQS queries that had to be parsed */
+  long getMissCount();
+
+  /** @return ratio of hits to lookups, 1.0 when there have been no lookups */
+  double getHitRate();
+
+  /** @return number of filters removed from the cache to keep it within its size limit */
+  long getEvictionCount();
+
+  /** @return number of filters currently cached */
+  long getSize();
+
+  /** Removes all cached filters. */
+  void clear();
+}
@@ -13,25 +13,41 @@
  */
 package org.codice.alliance.nsili.common;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.Set;
+import java.util.WeakHashMap;
 import org.codice.alliance.nsili.common.UCO.AbsTime;
 import org.codice.alliance.nsili.common.UCO.AbsTimeHelper;
 import org.joda.time.DateTime;
 import org.joda.time.IllegalFieldValueException;
 import org.omg.CORBA.Any;
 import org.omg.CORBA.BAD_INV_ORDER;
+import org.omg.CORBA.Policy;
 import org.omg.CORBA.TCKind;
 import org.omg.CORBA.TypeCodePackage.BadKind;
+import org.omg.PortableServer.IdAssignmentPolicyValue;
+import org.omg.PortableServer.LifespanPolicyValue;
 import org.omg.PortableServer.POA;
+import org.omg.PortableServer.POAPackage.AdapterAlreadyExists;
+import org.omg.PortableServer.POAPackage.AdapterNonExistent;
+import org.omg.PortableServer.POAPackage.InvalidPolicy;
 import org.omg.PortableServer.POAPackage.ObjectNotActive;
 import org.omg.PortableServer.POAPackage.WrongPolicy;
+import org.omg.PortableServer.RequestProcessingPolicyValue;
+import org.omg.PortableServer.ServantRetentionPolicyValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class CorbaUtils {
 
+  public static final String PRODUCT_POA_NAME = "NsiliProducts";
+
   private static final Logger LOGGER = LoggerFactory.getLogger(CorbaUtils.class);
 
+  private static final Set<POA> DEFAULT_SERVANT_POAS =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
   public static boolean isIdActive(POA poa, byte[] oid) {
     boolean idActive = false;
     try {
@@ -43,6 +59,49 @@ public class CorbaUtils {
     return idActive;
   }
 
+  /**
+   * Checks whether the POA dispatches every object id to a single default servant, in which case
+   * objects do not need to be activated before references to them are handed out. This is known
+   * when the POA is created by {@link #createProductPoa(POA)}, so nothing is looked up per call.
+   */
+  public static boolean usesDefaultServant(POA poa) {
+    return DEFAULT_SERVANT_POAS.contains(poa);
+  }
+
+  /**
+   * Creates the POA that product references are created in. Products have no state of their own,
+   * so one shared {@link ProductImpl} serves every product id and nothing is activated or retained
+   * per product. If the POA already exists it is reused.
+   *
+   * @param parent - the POA the product POA is created under, usually the root POA
+   * @return the product POA, using the parent's POA manager
+   */
+  public static POA createProductPoa(POA parent)
+      throws InvalidPolicy, AdapterNonExistent, WrongPolicy {
+    Policy[] policies = {
+      parent.create_id_assignment_policy(IdAssignmentPolicyValue.USER_ID),
+      parent.create_lifespan_policy(LifespanPolicyValue.TRANSIENT),
+      parent.create_servant_retention_policy(ServantRetentionPolicyValue.NON_RETAIN),
+      parent.create_request_processing_policy(RequestProcessingPolicyValue.USE_DEFAULT_SERVANT)
+    };
+
+    POA productPoa;
+    try {
+      productPoa = parent.create_POA(PRODUCT_POA_NAME, parent.the_POAManager(), policies);
+    } catch (AdapterAlreadyExists e) {
+      LOGGER.debug("Product POA already exists, reusing it");
+      productPoa = parent.find_POA(PRODUCT_POA_NAME, false);
+    } finally {
+      for (Policy policy : policies) {
+        policy.destroy();
+      }
+    }
+
+    productPoa.set_servant(new ProductImpl());
+    DEFAULT_SERVANT_POAS.add(productPoa);
+    return productPoa;
+  }
+
   public static String getNodeValue(Any any) {
     String value = null;
     if (any.type().kind() == TCKind.tk_wstring) {
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.common;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The result attributes requested by a client, compiled once per request for the checks made while
+ * results are converted to DAGs. An attribute is included if its fully scoped name (for example
+ * NSIL_PRODUCT:NSIL_CARD.identifier), its entity scoped name (NSIL_CARD.identifier) or its bare
+ * name (identifier) was requested. If no attributes were requested every attribute is included.
+ */
+public class ResultAttributeProjection {
+
+  public static final ResultAttributeProjection ALL = new ResultAttributeProjection(null);
+
+  private final Set<String> requestedAttributes = new HashSet<>();
+
+  private final Set<String> requestedEntities = new HashSet<>();
+
+  private final boolean bareNamesRequested;
+
+  private final Map<String, Boolean> includedAttributes = new ConcurrentHashMap<>();
+
+  private ResultAttributeProjection(Collection<String> resultAttributes) {
+    boolean bareNames = false;
+    if (resultAttributes != null) {
+      for (String resultAttribute : resultAttributes) {
+        requestedAttributes.add(resultAttribute);
+
+        int lastDot = resultAttribute.lastIndexOf('.');
+        if (lastDot == -1) {
+          bareNames = true;
+        } else {
+          String scope = resultAttribute.substring(0, lastDot);
+          requestedEntities.add(scope.substring(scope.lastIndexOf(':') + 1));
+        }
+      }
+    }
+    this.bareNamesRequested = bareNames;
+  }
+
+  /**
+   * @param resultAttributes - the result attributes requested by the client, null or empty to
+   *     include every attribute
+   */
+  public static ResultAttributeProjection compile(Collection<String> resultAttributes) {
+    if (resultAttributes == null || resultAttributes.isEmpty()) {
+      return ALL;
+    }
+    return new ResultAttributeProjection(resultAttributes);
+  }
+
+  public boolean includesAll() {
+    return requestedAttributes.isEmpty();
+  }
+
+  /**
+   * @param attributeName - the fully scoped name of the attribute
+   * @return true if the attribute should be added to the result
+   */
+  public boolean includes(String attributeName) {
+    if (includesAll()) {
+      return true;
+    }
+    // The same attribute names come up for every result, so each one is only resolved once
+    return includedAttributes.computeIfAbsent(attributeName, this::isRequested);
+  }
+
+  /**
+   * Returns false only if none of the attributes of the entity can be included, so the entity can
+   * be left out of the result entirely. Any requested bare name could belong to the entity.
+   *
+   * @param entityName - name of the entity, for example NSIL_CARD
+   */
+  public boolean includesEntity(String entityName) {
+    return includesAll() || bareNamesRequested || requestedEntities.contains(entityName);
+  }
+
+  private boolean isRequested(String attributeName) {
+    if (requestedAttributes.contains(attributeName)) {
+      return true;
+    }
+
+    int lastColon = attributeName.lastIndexOf(':');
+    if (lastColon != -1 && requestedAttributes.contains(attributeName.substring(lastColon + 1))) {
+      return true;
+    }
+
+    int lastDot = attributeName.lastIndexOf('.');
+    return lastDot != -1 && requestedAttributes.contains(attributeName.substring(lastDot + 1));
+  }
+}
@@ -35,6 +35,7 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -127,20 +128,35 @@ public class ResultDAGConverter {
       ORB orb,
       POA poa,
       List<String> resultAttributes,
-      Map<String, List<String>> mandatoryAttributes)
+      Map<String, Set<String>> mandatoryAttributes)
+      throws DagParsingException {
+    return convertResult(
+        result, orb, poa, ResultAttributeProjection.compile(resultAttributes), mandatoryAttributes);
+  }
+
+  /**
+   * Converts a catalog result to a DAG. Callers converting many results for the same request
+   * should compile the requested attributes once and use this method.
+   */
+  public static DAG convertResult(
+      Result result,
+      ORB orb,
+      POA poa,
+      ResultAttributeProjection resultAttributes,
+      Map<String, Set<String>> mandatoryAttributes)
       throws DagParsingException {
     Metacard metacard = result.getMetacard();
 
     DAG dag = new DAG();
     DirectedAcyclicGraph<Node, Edge> graph = new DirectedAcyclicGraph<>(Edge.class);
 
-    ProductImpl productImpl = new ProductImpl();
-
     String id = result.getMetacard().getId();
+    byte[] oid = id.getBytes(Charset.forName(ENCODING));
 
-    if (!CorbaUtils.isIdActive(poa, id.getBytes(Charset.forName(ENCODING)))) {
+    // A product POA with a default servant needs nothing activated behind the reference
+    if (!CorbaUtils.usesDefaultServant(poa) && !CorbaUtils.isIdActive(poa, oid)) {
       try {
-        poa.activate_object_with_id(id.getBytes(Charset.forName(ENCODING)), productImpl);
+        poa.activate_object_with_id(oid, new ProductImpl());
       } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
         LOGGER.debug(
             "Convert DAG : Unable to activate product impl object ({}): {}",
@@ -149,8 +165,7 @@ public class ResultDAGConverter {
       }
     }
 
-    org.omg.CORBA.Object obj =
-        poa.create_reference_with_id(id.getBytes(Charset.forName(ENCODING)), ProductHelper.id());
+    org.omg.CORBA.Object obj = poa.create_reference_with_id(oid, ProductHelper.id());
     Product product = ProductHelper.narrow(obj);
 
     Node productNode = createRootNode(orb);
@@ -187,7 +202,7 @@ public class ResultDAGConverter {
     if (mandatoryAttributes != null && !mandatoryAttributes.isEmpty()) {
       final ThreadLocal<Boolean> dataIsValid = new ThreadLocal<>();
       dataIsValid.set(true);
-      Map<String, List<String>> addedAttrMap = getAttrMap(addedAttributes);
+      Map<String, Set<String>> addedAttrMap = getAttrMap(addedAttributes);
       addedAttrMap
           .entrySet()
           .forEach(
@@ -221,9 +236,12 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
 
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_CARD)) {
+      return addedAttributes;
+    }
     Any any = orb.create_any();
     Node cardNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_CARD, any);
     graph.addVertex(cardNode);
@@ -274,7 +292,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node cardNode,
       String attribute) {
@@ -301,7 +319,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node cardNode,
       String attribute) {
@@ -331,9 +349,12 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
 
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_FILE)) {
+      return addedAttributes;
+    }
 
     Attribute downloadUrlAttr = metacard.getAttribute(Core.RESOURCE_DOWNLOAD_URL);
 
@@ -429,7 +450,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node fileNode,
       String attribute) {
@@ -457,7 +478,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node fileNode,
       String attribute) {
@@ -482,7 +503,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node fileNode,
       String attribute) {
@@ -503,8 +524,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_SECURITY)) {
+      return addedAttributes;
+    }
     Any any = orb.create_any();
     Node securityNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_SECURITY, any);
     graph.addVertex(securityNode);
@@ -558,7 +582,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node securityNode,
       String attribute) {
@@ -587,8 +611,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_METADATA_SECURITY)) {
+      return addedAttributes;
+    }
     Any any = orb.create_any();
     Node metadataSecurityNode =
         new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_METADATA_SECURITY, any);
@@ -623,7 +650,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node metadataSecurityNode,
       String attribute) {
@@ -651,7 +678,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node metadataSecurityNode,
       String attribute) {
@@ -686,7 +713,7 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes)
+      ResultAttributeProjection resultAttributes)
       throws DagParsingException {
     List<String> addedAttributes = new ArrayList<>();
     Any any = orb.create_any();
@@ -756,8 +783,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_IMAGERY)) {
+      return addedAttributes;
+    }
     Any imageryAny = orb.create_any();
     Node imageryNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_IMAGERY, imageryAny);
     graph.addVertex(imageryNode);
@@ -844,7 +874,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node imageryNode,
       String attribute) {
@@ -876,7 +906,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node node,
       String attribute,
@@ -902,7 +932,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node imageryNode,
       String attribute) {
@@ -926,7 +956,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node imageryNode,
       String attribute) {
@@ -965,8 +995,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_VIDEO)) {
+      return addedAttributes;
+    }
     Any videoAny = orb.create_any();
     Node videoNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_VIDEO, videoAny);
     graph.addVertex(videoNode);
@@ -1050,7 +1083,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node videoNode,
       String attribute) {
@@ -1081,7 +1114,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node videoNode,
       String attribute) {
@@ -1103,8 +1136,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_TDL)) {
+      return addedAttributes;
+    }
     Any tdlAny = orb.create_any();
     Node tdlNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_TDL, tdlAny);
     graph.addVertex(tdlNode);
@@ -1161,8 +1197,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_GMTI)) {
+      return addedAttributes;
+    }
     Any gmtiAny = orb.create_any();
     Node gmtiNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_GMTI, gmtiAny);
     graph.addVertex(gmtiNode);
@@ -1199,7 +1238,7 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
     Any reportAny = orb.create_any();
     Node reportNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_REPORT, reportAny);
@@ -1247,7 +1286,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node reportNode,
       String attribute) {
@@ -1267,7 +1306,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node reportNode,
       String attribute) {
@@ -1287,7 +1326,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Attribute attr,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node node,
       String attribute,
@@ -1305,7 +1344,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Attribute attr,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node node,
       String attribute,
@@ -1324,7 +1363,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Attribute attr,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node node,
       String attribute,
@@ -1342,7 +1381,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Attribute attr,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node node,
       String attribute,
@@ -1360,7 +1399,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Attribute attr,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node node,
       String attribute,
@@ -1380,8 +1419,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_RFI)) {
+      return addedAttributes;
+    }
     Any rfiAny = orb.create_any();
     Node rfiNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_RFI, rfiAny);
     graph.addVertex(rfiNode);
@@ -1431,7 +1473,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node rfiNode,
       String attribute) {
@@ -1453,7 +1495,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node rfiNode,
       String attribute) {
@@ -1475,8 +1517,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_TASK)) {
+      return addedAttributes;
+    }
     Any taskAny = orb.create_any();
     Node taskNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_TASK, taskAny);
     graph.addVertex(taskNode);
@@ -1514,8 +1559,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_CBRN)) {
+      return addedAttributes;
+    }
     Any cbrnAny = orb.create_any();
     Node cbrnNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_CBRN, cbrnAny);
     graph.addVertex(cbrnNode);
@@ -1581,7 +1629,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node cbrnNode,
       String attribute) {
@@ -1602,7 +1650,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node cbrnNode,
       String attribute) {
@@ -1625,8 +1673,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_INTREP)) {
+      return addedAttributes;
+    }
     Any intRepAny = orb.create_any();
     Node intRepNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_INTREP, intRepAny);
     graph.addVertex(intRepNode);
@@ -1659,8 +1710,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_ENTITY)) {
+      return addedAttributes;
+    }
     Any entityAny = orb.create_any();
     Node entityPartNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_ENTITY, entityAny);
     graph.addVertex(entityPartNode);
@@ -1713,8 +1767,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_EXPLOITATION_INFO)) {
+      return addedAttributes;
+    }
     Any exploitationInfoAny = orb.create_any();
     Node exploitationInfoNode =
         new Node(
@@ -1752,7 +1809,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node exploitationInfoNode,
       String attribute) {
@@ -1773,7 +1830,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       Node exploitationInfoNode,
       String attribute) {
@@ -1797,8 +1854,11 @@ public class ResultDAGConverter {
       String type,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_COMMON)) {
+      return addedAttributes;
+    }
     Any any = orb.create_any();
     Node commonNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_COMMON, any);
     graph.addVertex(commonNode);
@@ -1899,8 +1959,11 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
+    if (!resultAttributes.includesEntity(NsiliConstants.NSIL_COVERAGE)) {
+      return addedAttributes;
+    }
     Any any = orb.create_any();
 
     String attribute = parentAttrName + NsiliConstants.NSIL_COVERAGE;
@@ -1945,7 +2008,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       String attribute,
       Node coverageNode) {
@@ -1976,7 +2039,7 @@ public class ResultDAGConverter {
       DirectedAcyclicGraph<Node, Edge> graph,
       Metacard metacard,
       ORB orb,
-      List<String> resultAttributes,
+      ResultAttributeProjection resultAttributes,
       List<String> addedAttributes,
       String attribute,
       Node coverageNode) {
@@ -2004,7 +2067,7 @@ public class ResultDAGConverter {
       Metacard metacard,
       ORB orb,
       String parentAttrName,
-      List<String> resultAttributes) {
+      ResultAttributeProjection resultAttributes) {
     List<String> addedAttributes = new ArrayList<>();
     Any any = orb.create_any();
     Node relatedFileNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_RELATED_FILE, any);
@@ -2326,33 +2389,9 @@ public class ResultDAGConverter {
     return uuid;
   }
 
-  private static boolean shouldAdd(String attributeName, List<String> resultAttributes) {
-    boolean shouldAddAttribute = false;
-
-    if (resultAttributes != null && !resultAttributes.isEmpty()) {
-      if (resultAttributes.contains(attributeName)) {
-        shouldAddAttribute = true;
-      } else {
-        if (attributeName.lastIndexOf(':') != -1) {
-          String nonScopeAttr = attributeName.substring(attributeName.lastIndexOf(':') + 1);
-          if (resultAttributes.contains(nonScopeAttr)) {
-            shouldAddAttribute = true;
-          }
-        }
-
-        if (!shouldAddAttribute) {
-          int lastDot = attributeName.lastIndexOf('.');
-          if (lastDot != -1) {
-            String simpleAttrName = attributeName.substring(lastDot + 1);
-            if (resultAttributes.contains(simpleAttrName)) {
-              shouldAddAttribute = true;
-            }
-          }
-        }
-      }
-    } else {
-      shouldAddAttribute = true;
-    }
+  private static boolean shouldAdd(
+      String attributeName, ResultAttributeProjection resultAttributes) {
+    boolean shouldAddAttribute = resultAttributes.includes(attributeName);
 
     if (!shouldAddAttribute) {
       LOGGER.trace("Attribute is not supported in destination data model: {}", attributeName);
@@ -2365,18 +2404,18 @@ public class ResultDAGConverter {
     return parentAttr + "." + attribute;
   }
 
-  private static Map<String, List<String>> getAttrMap(List<String> attributes) {
+  private static Map<String, Set<String>> getAttrMap(List<String> attributes) {
     return attributes
         .stream()
         .map(ATTRIBUTE_PATTERN::matcher)
         .filter(Matcher::matches)
         .collect(
             Collectors.groupingBy(
-                m -> m.group(2), Collectors.mapping(m -> m.group(3), Collectors.toList())));
+                m -> m.group(2), Collectors.mapping(m -> m.group(3), Collectors.toSet())));
   }
 
   private static boolean processEntry(
-      String entryName, List<String> requiredAttrs, List<String> parsedAttrs) {
+      String entryName, Set<String> requiredAttrs, Set<String> parsedAttrs) {
     final ThreadLocal<Boolean> dataIsValid = new ThreadLocal<>();
     dataIsValid.set(true);
 
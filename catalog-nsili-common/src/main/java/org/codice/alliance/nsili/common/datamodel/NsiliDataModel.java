@@ -15,10 +15,13 @@ package org.codice.alliance.nsili.common.datamodel;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
@@ -34,6 +37,11 @@ import org.codice.alliance.nsili.common.UCO.EntityRelationship;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The NSILI data model served by the endpoint: the entity graph of each view, the alias
+ * categories, the conceptual attributes and the associations. Building the model is expensive, so
+ * a single instance is built on first use and shared; it is not modified after construction.
+ */
 public class NsiliDataModel {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(NsiliDataModel.class);
@@ -42,6 +50,8 @@ public class NsiliDataModel {
 
   private static final String OSTAID = "OSTAID";
 
+  private static final NsiliDataModel INSTANCE = new NsiliDataModel();
+
   private EntityNode productNode = new EntityNode(0, NsiliConstants.NSIL_PRODUCT);
 
   private EntityNode cardNode = new EntityNode(1, NsiliConstants.NSIL_CARD);
@@ -299,12 +309,16 @@ public class NsiliDataModel {
 
   private List<Association> associations = new ArrayList<>();
 
-  private Map<String, Map<String, List<String>>> requiredAttrMap = new HashMap<>();
+  private Map<String, Map<String, Set<String>>> requiredAttrMap = new HashMap<>();
 
-  public NsiliDataModel() {
+  private NsiliDataModel() {
     init();
   }
 
+  public static NsiliDataModel getInstance() {
+    return INSTANCE;
+  }
+
   private void init() {
     initAllViewGraph();
     initImageryViewGraph();
@@ -1335,19 +1349,27 @@ public class NsiliDataModel {
   }
 
   public List<Pair<ConceptualAttributeType, String>> getConceptualAttrsForView(String viewName) {
-    return conceptualAttrMap.get(viewName);
+    List<Pair<ConceptualAttributeType, String>> conceptualAttrs = conceptualAttrMap.get(viewName);
+    return conceptualAttrs == null ? null : Collections.unmodifiableList(conceptualAttrs);
   }
 
   public List<Association> getAssociations() {
-    return associations;
+    return Collections.unmodifiableList(associations);
   }
 
-  public Map<String, List<String>> getRequiredAttrsForView(String viewName) {
+  /**
+   * Returns the mandatory attributes of a view.
+   *
+   * @param viewName - name of the view
+   * @return the names of the mandatory attributes keyed by the name of their node, or null if the
+   *     view does not exist
+   */
+  public Map<String, Set<String>> getRequiredAttrsForView(String viewName) {
     return requiredAttrMap.get(viewName);
   }
 
   private void updateMandatoryAttrs(String viewName, EntityNode[] viewNodes) {
-    Map<String, List<String>> attrMap = new HashMap<>();
+    Map<String, Set<String>> attrMap = new HashMap<>();
 
     List<AttributeInformation> nodeAttrs =
         Arrays.stream(viewNodes)
@@ -1363,15 +1385,11 @@ public class NsiliDataModel {
         if (attrNameArr.length == 2) {
           String parentNode = attrNameArr[0];
           String attrName = attrNameArr[1];
-          List<String> attrs = attrMap.get(parentNode);
-          if (attrs == null) {
-            attrs = new ArrayList<>(4);
-            attrMap.put(parentNode, attrs);
-          }
-          attrs.add(attrName);
+          attrMap.computeIfAbsent(parentNode, k -> new HashSet<>(4)).add(attrName);
         }
       }
     }
-    requiredAttrMap.put(viewName, attrMap);
+    attrMap.replaceAll((parentNode, attrs) -> Collections.unmodifiableSet(attrs));
+    requiredAttrMap.put(viewName, Collections.unmodifiableMap(attrMap));
   }
 }
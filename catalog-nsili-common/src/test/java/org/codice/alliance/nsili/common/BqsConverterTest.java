@@ -18,6 +18,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.sameInstance;
 
 import ddf.catalog.filter.proxy.builder.GeotoolsFilterBuilder;
 import org.junit.Test;
@@ -372,4 +373,47 @@ public class BqsConverterTest {
     assertThat(filter, notNullValue());
     assertThat(filter.toString(), containsString("anyText = *"));
   }
+
+  @Test
+  public void testCachedFilterIsReused() {
+    BqsFilterCache filterCache = new BqsFilterCache(BqsFilterCache.DEFAULT_MAX_SIZE);
+    BqsConverter bqsConverter = new BqsConverter(new GeotoolsFilterBuilder(), true, filterCache);
+    BqsConverter otherBqsConverter =
+        new BqsConverter(new GeotoolsFilterBuilder(), true, filterCache);
+
+    Filter filter = bqsConverter.convertBQSToDDF(BASIC_BQS_OR_QUERY);
+    Filter cachedFilter =
+        otherBqsConverter.convertBQSToDDF("  " + BASIC_BQS_OR_QUERY.replace(" or ", "\n or  "));
+
+    assertThat(cachedFilter, sameInstance(filter));
+    assertThat(filterCache.getMissCount(), is(1L));
+    assertThat(filterCache.getHitCount(), is(1L));
+    assertThat(filterCache.getSize(), is(1L));
+  }
+
+  @Test
+  public void testQuotedWhitespaceIsNotNormalized() {
+    BqsFilterCache filterCache = new BqsFilterCache(BqsFilterCache.DEFAULT_MAX_SIZE);
+    BqsConverter bqsConverter = new BqsConverter(new GeotoolsFilterBuilder(), true, filterCache);
+
+    Filter filter = bqsConverter.convertBQSToDDF("NSIL_COMMON.identifierUUID like 'Te st'");
+    Filter otherFilter = bqsConverter.convertBQSToDDF("NSIL_COMMON.identifierUUID like 'Te  st'");
+
+    assertThat(otherFilter, not(sameInstance(filter)));
+    assertThat(filterCache.getMissCount(), is(2L));
+  }
+
+  @Test
+  public void testRemoveSourceLibraryIsPartOfCacheKey() {
+    BqsFilterCache filterCache = new BqsFilterCache(BqsFilterCache.DEFAULT_MAX_SIZE);
+    BqsConverter bqsConverter = new BqsConverter(new GeotoolsFilterBuilder(), true, filterCache);
+    BqsConverter keepSourceConverter =
+        new BqsConverter(new GeotoolsFilterBuilder(), false, filterCache);
+
+    Filter filter = bqsConverter.convertBQSToDDF(BQS_ONLY_SOURCE_LIBRARY);
+    Filter keepSourceFilter = keepSourceConverter.convertBQSToDDF(BQS_ONLY_SOURCE_LIBRARY);
+
+    assertThat(keepSourceFilter, not(sameInstance(filter)));
+    assertThat(filterCache.getHitCount(), is(0L));
+  }
 }
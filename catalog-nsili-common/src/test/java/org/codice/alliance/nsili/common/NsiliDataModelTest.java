@@ -16,9 +16,11 @@ package org.codice.alliance.nsili.common;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.apache.commons.lang3.tuple.Pair;
 import org.codice.alliance.nsili.common.GIAS.Association;
 import org.codice.alliance.nsili.common.GIAS.AttributeInformation;
@@ -28,7 +30,7 @@ import org.junit.Test;
 
 public class NsiliDataModelTest {
 
-  protected NsiliDataModel nsiliDataModel = new NsiliDataModel();
+  protected NsiliDataModel nsiliDataModel = NsiliDataModel.getInstance();
 
   @Test
   public void testAliasCategories() {
@@ -101,13 +103,26 @@ public class NsiliDataModelTest {
 
   @Test
   public void testNsiliMandatoryAttrs() {
-    Map<String, List<String>> mandatoryAttrs =
+    Map<String, Set<String>> mandatoryAttrs =
         nsiliDataModel.getRequiredAttrsForView(NsiliConstants.NSIL_ALL_VIEW);
-    List<String> commonAttrs = mandatoryAttrs.get(NsiliConstants.NSIL_COMMON);
+    Set<String> commonAttrs = mandatoryAttrs.get(NsiliConstants.NSIL_COMMON);
     assertThat(commonAttrs, notNullValue());
     assertThat(commonAttrs.size(), is(2));
   }
 
+  @Test
+  public void testSharedInstance() {
+    assertThat(NsiliDataModel.getInstance(), sameInstance(nsiliDataModel));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testMandatoryAttrsAreImmutable() {
+    nsiliDataModel
+        .getRequiredAttrsForView(NsiliConstants.NSIL_ALL_VIEW)
+        .get(NsiliConstants.NSIL_COMMON)
+        .add(NsiliConstants.IDENTIFIER_MISSION);
+  }
+
   @Test
   public void testNsiliAmd2Attributes() {
     List<AttributeInformation> attributesForView =
@@ -13,7 +13,9 @@
  */
 package org.codice.alliance.nsili.common;
 
+import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
@@ -24,6 +26,7 @@ import ddf.catalog.data.impl.MetacardImpl;
 import ddf.catalog.data.impl.ResultImpl;
 import ddf.catalog.data.types.Core;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -31,9 +34,13 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 import org.codice.alliance.catalog.core.api.types.Isr;
 import org.codice.alliance.nsili.common.UCO.DAG;
+import org.codice.alliance.nsili.common.UID.Product;
+import org.codice.alliance.nsili.common.UID.ProductHelper;
 import org.junit.Before;
 import org.junit.Test;
 import org.omg.CORBA.ORB;
@@ -108,6 +115,68 @@ public class ResultDAGConverterTest {
     assertThat(checkDagContains(oneAttrDAG, sourceAttr), is(false));
   }
 
+  @Test
+  public void testUnrequestedEntitiesAreSkipped() throws Exception {
+    ResultImpl result = new ResultImpl();
+    result.setMetacard(metacard);
+
+    List<String> cardAttrList =
+        Collections.singletonList(NsiliConstants.NSIL_CARD + "." + NsiliConstants.IDENTIFIER);
+    DAG dag = ResultDAGConverter.convertResult(result, orb, rootPOA, cardAttrList, new HashMap<>());
+
+    List<String> nodeNames =
+        Arrays.stream(dag.nodes).map(node -> node.attribute_name).collect(Collectors.toList());
+    assertThat(nodeNames, hasItem(NsiliConstants.NSIL_CARD));
+    assertThat(nodeNames, not(hasItem(NsiliConstants.NSIL_SECURITY)));
+    assertThat(nodeNames, not(hasItem(NsiliConstants.NSIL_COMMON)));
+  }
+
+  @Test
+  public void testResultAttributeProjection() {
+    String cardIdentifier =
+        NsiliConstants.NSIL_PRODUCT
+            + ":"
+            + NsiliConstants.NSIL_CARD
+            + "."
+            + NsiliConstants.IDENTIFIER;
+    String fileTitle =
+        NsiliConstants.NSIL_PRODUCT + ":" + NsiliConstants.NSIL_FILE + "." + NsiliConstants.TITLE;
+
+    ResultAttributeProjection scoped =
+        ResultAttributeProjection.compile(
+            Collections.singletonList(NsiliConstants.NSIL_FILE + "." + NsiliConstants.TITLE));
+    assertThat(scoped.includes(fileTitle), is(true));
+    assertThat(scoped.includes(cardIdentifier), is(false));
+    assertThat(scoped.includesEntity(NsiliConstants.NSIL_FILE), is(true));
+    assertThat(scoped.includesEntity(NsiliConstants.NSIL_CARD), is(false));
+
+    ResultAttributeProjection bare =
+        ResultAttributeProjection.compile(Collections.singletonList(NsiliConstants.IDENTIFIER));
+    assertThat(bare.includes(cardIdentifier), is(true));
+    assertThat(bare.includes(fileTitle), is(false));
+    assertThat(bare.includesEntity(NsiliConstants.NSIL_CARD), is(true));
+
+    assertThat(ResultAttributeProjection.compile(new ArrayList<>()).includes(fileTitle), is(true));
+  }
+
+  @Test
+  public void testProductReferencesUseDefaultServant() throws Exception {
+    POA productPoa = CorbaUtils.createProductPoa(rootPOA);
+    ResultImpl result = new ResultImpl();
+    result.setMetacard(metacard);
+
+    DAG dag =
+        ResultDAGConverter.convertResult(
+            result, orb, productPoa, new ArrayList<>(), new HashMap<>());
+    Product product = ProductHelper.extract(dag.nodes[0].value);
+    byte[] productId = productPoa.reference_to_id(product);
+
+    assertThat(new String(productId, StandardCharsets.UTF_8), is(metacard.getId()));
+    assertThat(CorbaUtils.usesDefaultServant(productPoa), is(true));
+    assertThat(CorbaUtils.usesDefaultServant(rootPOA), is(false));
+    assertThat(CorbaUtils.isIdActive(rootPOA, productId), is(false));
+  }
+
   @Test
   public void testAdvancedGeospatial() throws Exception {
     metacard.setAttribute(new AttributeImpl(Core.LOCATION, "POLYGON((1 1,1 2,2 2,2 1,1 1))"));
@@ -144,9 +213,9 @@ public class ResultDAGConverterTest {
     ResultImpl result = new ResultImpl();
     result.setMetacard(metacard);
 
-    Map<String, List<String>> mandatoryAttrs = new HashMap<>();
+    Map<String, Set<String>> mandatoryAttrs = new HashMap<>();
     mandatoryAttrs.put(
-        NsiliConstants.NSIL_COMMON, Collections.singletonList(NsiliConstants.IDENTIFIER_MISSION));
+        NsiliConstants.NSIL_COMMON, Collections.singleton(NsiliConstants.IDENTIFIER_MISSION));
     ResultDAGConverter.convertResult(result, orb, rootPOA, new ArrayList<>(), mandatoryAttrs);
   }
 
@@ -157,9 +226,8 @@ public class ResultDAGConverterTest {
     ResultImpl result = new ResultImpl();
     result.setMetacard(metacard);
 
-    Map<String, List<String>> mandatoryAttrs = new HashMap<>();
-    mandatoryAttrs.put(
-        NsiliConstants.NSIL_CARD, Collections.singletonList(NsiliConstants.IDENTIFIER));
+    Map<String, Set<String>> mandatoryAttrs = new HashMap<>();
+    mandatoryAttrs.put(NsiliConstants.NSIL_CARD, Collections.singleton(NsiliConstants.IDENTIFIER));
     DAG dag =
         ResultDAGConverter.convertResult(result, orb, rootPOA, new ArrayList<>(), mandatoryAttrs);
     assertThat(dag, notNullValue());
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.opengis.filter.Filter;
+
+/**
+ * Short-lived cache of the catalog queries built from BQS queries. Clients normally ask for the
+ * hit count of a query and then submit the same query, so the catalog filter and the hit count
+ * are kept for a few seconds and shared by both requests. Entries are keyed by the BQS query and
+ * the sources it is run against. Pages of results are not cached, since clients ask for pages of
+ * different sizes and orders.
+ */
+public class CatalogQueryCache {
+
+  public static final long DEFAULT_EXPIRATION_SEC = 10;
+
+  private static final int MAX_CACHED_QUERIES = 100;
+
+  private final boolean enabled;
+
+  private final Cache<String, CatalogQuery> queries;
+
+  /** @param expirationSec - how long a query is kept after it is built, 0 disables the cache */
+  public CatalogQueryCache(long expirationSec) {
+    this.enabled = expirationSec > 0;
+    this.queries =
+        CacheBuilder.newBuilder()
+            .maximumSize(enabled ? MAX_CACHED_QUERIES : 0)
+            .expireAfterWrite(Math.max(0, expirationSec), TimeUnit.SECONDS)
+            .build();
+  }
+
+  /**
+   * Returns the cached catalog query for the BQS query, building its filter if it is not cached.
+   *
+   * @param bqsQuery - the BQS query text
+   * @param querySources - the sources the query is run against, empty for the local catalog
+   * @param filterFactory - builds the catalog filter for the BQS query
+   * @return the catalog query, never null
+   */
+  public CatalogQuery getQuery(
+      String bqsQuery, Set<String> querySources, Supplier<Filter> filterFactory) {
+    if (!enabled) {
+      return new CatalogQuery(filterFactory.get());
+    }
+
+    return queries
+        .asMap()
+        .computeIfAbsent(
+            getKey(bqsQuery, querySources), key -> new CatalogQuery(filterFactory.get()));
+  }
+
+  public void invalidateAll() {
+    queries.invalidateAll();
+  }
+
+  private static String getKey(String bqsQuery, Set<String> querySources) {
+    Set<String> sortedSources = new TreeSet<>();
+    if (querySources != null) {
+      sortedSources.addAll(querySources);
+    }
+    return bqsQuery.trim() + "|" + String.join(",", sortedSources);
+  }
+
+  /** The catalog filter built for a BQS query and the number of results it matches. */
+  public static class CatalogQuery {
+
+    private final Filter filter;
+
+    private Long hitCount;
+
+    CatalogQuery(Filter filter) {
+      this.filter = filter;
+    }
+
+    public Filter getFilter() {
+      return filter;
+    }
+
+    /**
+     * Returns the number of results the query matches. The catalog is only counted if no count
+     * was retrieved before, and concurrent callers wait for that single count.
+     *
+     * @param counter - counts the results in the catalog, returns null if the count failed
+     * @return the hit count, or null if the count failed
+     */
+    public synchronized Long getHitCount(Supplier<Long> counter) {
+      if (hitCount == null) {
+        hitCount = counter.get();
+      }
+      return hitCount;
+    }
+  }
+}
@@ -16,20 +16,25 @@ package org.codice.alliance.nsili.endpoint;
 import static org.apache.commons.lang3.Validate.notNull;
 
 import ddf.catalog.CatalogFramework;
+import ddf.catalog.data.Metacard;
 import ddf.catalog.data.Result;
 import ddf.catalog.filter.FilterBuilder;
+import ddf.catalog.filter.impl.SortByImpl;
 import ddf.security.service.SecurityManager;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import org.apache.commons.lang3.StringUtils;
-import org.codice.alliance.nsili.common.CorbaUtils;
+import org.codice.alliance.nsili.common.BqsFilterCache;
 import org.codice.alliance.nsili.common.GIAS.AccessCriteria;
 import org.codice.alliance.nsili.common.GIAS.CatalogMgrHelper;
 import org.codice.alliance.nsili.common.GIAS.CreationMgrHelper;
@@ -39,8 +44,11 @@ import org.codice.alliance.nsili.common.GIAS.LibraryManager;
 import org.codice.alliance.nsili.common.GIAS.LibraryManagerHelper;
 import org.codice.alliance.nsili.common.GIAS.LibraryPOA;
 import org.codice.alliance.nsili.common.GIAS.OrderMgrHelper;
+import org.codice.alliance.nsili.common.GIAS.Polarity;
 import org.codice.alliance.nsili.common.GIAS.ProductMgrHelper;
+import org.codice.alliance.nsili.common.GIAS.SortAttribute;
 import org.codice.alliance.nsili.common.GIAS.StandingQueryMgrHelper;
+import org.codice.alliance.nsili.common.NsiliAttributeMap;
 import org.codice.alliance.nsili.common.NsiliConstants;
 import org.codice.alliance.nsili.common.NsiliManagerType;
 import org.codice.alliance.nsili.common.ResultDAGConverter;
@@ -63,6 +71,9 @@ import org.omg.PortableServer.POA;
 import org.omg.PortableServer.POAPackage.ObjectAlreadyActive;
 import org.omg.PortableServer.POAPackage.ServantAlreadyActive;
 import org.omg.PortableServer.POAPackage.WrongPolicy;
+import org.omg.PortableServer.Servant;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
 import org.slf4j.LoggerFactory;
 
 public class LibraryImpl extends LibraryPOA {
@@ -83,35 +94,70 @@ public class LibraryImpl extends LibraryPOA {
 
   private POA poa;
 
-  private CatalogFramework catalogFramework;
+  private volatile CatalogFramework catalogFramework;
 
-  private EmailConfiguration emailConfiguration;
+  private volatile EmailConfiguration emailConfiguration;
 
-  private FilterBuilder filterBuilder;
+  private volatile FilterBuilder filterBuilder;
 
-  private int maxNumResults = NsiliEndpoint.DEFAULT_MAX_NUM_RESULTS;
+  private volatile int maxNumResults = NsiliEndpoint.DEFAULT_MAX_NUM_RESULTS;
 
-  private long defaultUpdateFrequencyMsec;
+  private volatile long defaultUpdateFrequencyMsec;
 
-  private int maxPendingResults;
+  private volatile int maxPendingResults;
 
-  private boolean outgoingValidationEnabled;
+  private volatile boolean outgoingValidationEnabled;
 
-  private Set<String> querySources = new HashSet<>();
+  private volatile Set<String> querySources = new HashSet<>();
 
-  private Set<String> attributeOverrides = new HashSet<>();
+  private volatile Set<String> attributeOverrides = new HashSet<>();
 
-  private Set<String> attributeExclusions = new HashSet<>();
+  private volatile Set<String> attributeExclusions = new HashSet<>();
 
-  private String libraryVersion = "NSILI|3.2";
+  private volatile String libraryVersion = "NSILI|3.2";
 
-  private String libraryDescription;
+  private volatile String libraryDescription;
 
-  private boolean removeSourceLibrary = true;
+  private volatile boolean removeSourceLibrary = true;
 
-  private SecurityManager securityManager;
+  private volatile SecurityManager securityManager;
 
-  private long maxWaitToStartTimeMsecs;
+  private volatile long maxWaitToStartTimeMsecs;
+
+  private volatile Executor dagConversionExecutor;
+
+  private volatile ExecutorService prefetchExecutor;
+
+  private volatile CatalogQueryCache catalogQueryCache =
+      new CatalogQueryCache(CatalogQueryCache.DEFAULT_EXPIRATION_SEC);
+
+  private volatile BqsFilterCache bqsFilterCache;
+
+  private volatile RequestRegistry requestRegistry;
+
+  private volatile StandingQueryScheduler standingQueryScheduler;
+
+  private volatile boolean standingQueryMatchOnIngest;
+
+  private volatile int standingQueryMaxLongPolls = StandingQueryMgrImpl.DEFAULT_MAX_LONG_POLLS;
+
+  private volatile int standingQueryMaxResultsInMemory =
+      StandingQueryMgrImpl.DEFAULT_MAX_RESULTS_IN_MEMORY;
+
+  private volatile int standingQueryMaxTotalResultsInMemory =
+      StandingQueryMgrImpl.DEFAULT_MAX_TOTAL_RESULTS_IN_MEMORY;
+
+  private volatile POA productPoa;
+
+  private final Map<String, Object> managerReferences = new HashMap<>();
+
+  private CatalogMgrImpl catalogMgr;
+
+  private OrderMgrImpl orderMgr;
+
+  private ProductMgrImpl productMgr;
+
+  private StandingQueryMgrImpl standingQueryMgr;
 
   private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(LibraryImpl.class);
 
@@ -121,47 +167,52 @@ public class LibraryImpl extends LibraryPOA {
 
   public void setCatalogFramework(CatalogFramework catalogFramework) {
     this.catalogFramework = catalogFramework;
+    updateManagers();
   }
 
   public void setMaxNumResults(int maxNumResults) {
     this.maxNumResults = maxNumResults;
+    updateManagers();
   }
 
   public void setFilterBuilder(FilterBuilder filterBuilder) {
     this.filterBuilder = filterBuilder;
+    updateManagers();
   }
 
   public void setDefaultUpdateFrequencyMsec(long defaultUpdateFrequencyMsec) {
     this.defaultUpdateFrequencyMsec = defaultUpdateFrequencyMsec;
+    updateManagers();
   }
 
   public void setMaxPendingResults(int maxPendingResults) {
     this.maxPendingResults = maxPendingResults;
+    updateManagers();
   }
 
   public void setQuerySources(Set<String> querySources) {
-    this.querySources.clear();
-    if (querySources != null) {
-      this.querySources.addAll(querySources);
-    }
+    // Replaced rather than changed in place, dispatch threads may be reading the current set
+    this.querySources = querySources == null ? new HashSet<>() : new HashSet<>(querySources);
+    updateManagers();
   }
 
   public void setAttributeOverrides(Set<String> attributeOverrides) {
-    this.attributeOverrides.clear();
-    if (attributeOverrides != null) {
-      this.attributeOverrides.addAll(attributeOverrides);
-    }
+    this.attributeOverrides =
+        attributeOverrides == null ? new HashSet<>() : new HashSet<>(attributeOverrides);
+    updateManagers();
   }
 
   public void setAttributeExclusions(Set<String> attributeExclusions) {
-    this.attributeExclusions.clear();
-    if (attributeExclusions != null) {
-      this.attributeExclusions.addAll(attributeExclusions);
-    }
+    this.attributeExclusions =
+        attributeExclusions == null ? new HashSet<>() : new HashSet<>(attributeExclusions);
+    updateManagers();
   }
 
   public void setRemoveSourceLibrary(boolean removeSourceLibrary) {
     this.removeSourceLibrary = removeSourceLibrary;
+    // Cached filters were parsed with the previous setting
+    catalogQueryCache.invalidateAll();
+    updateManagers();
   }
 
   public void setLibraryVersion(String libraryVersion) {
@@ -178,10 +229,84 @@ public class LibraryImpl extends LibraryPOA {
 
   public void setOutgoingValidationEnabled(boolean outgoingValidationEnabled) {
     this.outgoingValidationEnabled = outgoingValidationEnabled;
+    updateManagers();
   }
 
   public void setMaxWaitToStartTimeMsecs(long maxWaitToStartTimeMsecs) {
     this.maxWaitToStartTimeMsecs = maxWaitToStartTimeMsecs;
+    updateManagers();
+  }
+
+  public void setDagConversionExecutor(Executor dagConversionExecutor) {
+    this.dagConversionExecutor = dagConversionExecutor;
+    updateManagers();
+  }
+
+  public void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+    this.prefetchExecutor = prefetchExecutor;
+    updateManagers();
+  }
+
+  public void setBqsFilterCache(BqsFilterCache bqsFilterCache) {
+    this.bqsFilterCache = bqsFilterCache;
+    updateManagers();
+  }
+
+  public void setRequestRegistry(RequestRegistry requestRegistry) {
+    this.requestRegistry = requestRegistry;
+    updateManagers();
+  }
+
+  public void setStandingQueryScheduler(StandingQueryScheduler standingQueryScheduler) {
+    this.standingQueryScheduler = standingQueryScheduler;
+    updateManagers();
+  }
+
+  public void setStandingQueryMatchOnIngest(boolean standingQueryMatchOnIngest) {
+    this.standingQueryMatchOnIngest = standingQueryMatchOnIngest;
+    updateManagers();
+  }
+
+  public void setStandingQueryMaxLongPolls(int standingQueryMaxLongPolls) {
+    this.standingQueryMaxLongPolls = standingQueryMaxLongPolls;
+    updateManagers();
+  }
+
+  public void setStandingQueryMaxResultsInMemory(int standingQueryMaxResultsInMemory) {
+    this.standingQueryMaxResultsInMemory = standingQueryMaxResultsInMemory;
+    updateManagers();
+  }
+
+  public void setStandingQueryMaxTotalResultsInMemory(int standingQueryMaxTotalResultsInMemory) {
+    this.standingQueryMaxTotalResultsInMemory = standingQueryMaxTotalResultsInMemory;
+    updateManagers();
+  }
+
+  public void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+    updateManagers();
+  }
+
+  /**
+   * Hands metacards ingested into the local catalog to the standing queries. Does nothing until a
+   * client has asked for the standing query manager.
+   *
+   * @param metacards - the created, updated and deleted metacards, with the version action set on
+   *     the updated and deleted ones
+   */
+  public void matchIngested(List<Metacard> metacards) {
+    StandingQueryMgrImpl mgr;
+    synchronized (managerReferences) {
+      mgr = standingQueryMgr;
+    }
+    if (mgr != null) {
+      mgr.matchIngested(metacards);
+    }
+  }
+
+  public void setCatalogQueryCacheExpirationSec(long catalogQueryCacheExpirationSec) {
+    this.catalogQueryCache = new CatalogQueryCache(catalogQueryCacheExpirationSec);
+    updateManagers();
   }
 
   @Override
@@ -194,21 +319,50 @@ public class LibraryImpl extends LibraryPOA {
   @Override
   public LibraryManager get_manager(String managerType, AccessCriteria accessCriteria)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    org.omg.CORBA.Object obj;
-    String managerId = UUID.randomUUID().toString();
+    Object obj;
+    synchronized (managerReferences) {
+      obj = managerReferences.get(managerType);
+      if (obj == null) {
+        obj = createManager(managerType);
+        if (obj != null) {
+          managerReferences.put(managerType, obj);
+        }
+      }
+    }
 
+    LibraryManager libraryManager = LibraryManagerHelper.narrow(obj);
+
+    LOGGER.trace("get_manager, type: {}", managerType);
+
+    return libraryManager;
+  }
+
+  /**
+   * Creates, configures and activates the manager of the given type. Managers are shared by all
+   * clients, so each type is only created once.
+   */
+  private Object createManager(String managerType) throws InvalidInputParameter {
     if (managerType.equals(NsiliManagerType.CATALOG_MGR.getSpecName())) {
-      obj = getCatalogMgrObject(managerId);
+      catalogMgr = new CatalogMgrImpl(poa, filterBuilder, querySources);
+      configureCatalogMgr();
+      return activateManager(catalogMgr, CatalogMgrHelper.id());
     } else if (managerType.equals(NsiliManagerType.ORDER_MGR.getSpecName())) {
-      obj = getOrderMgrObject(managerId);
+      orderMgr = new OrderMgrImpl();
+      configureOrderMgr();
+      return activateManager(orderMgr, OrderMgrHelper.id());
     } else if (managerType.equals(NsiliManagerType.PRODUCT_MGR.getSpecName())) {
-      obj = getProductObject(managerId);
+      productMgr = new ProductMgrImpl(querySources);
+      configureProductMgr();
+      return activateManager(productMgr, ProductMgrHelper.id());
     } else if (managerType.equals(NsiliManagerType.DATA_MODEL_MGR.getSpecName())) {
-      obj = getDataModelMgrObject(managerId);
+      return activateManager(new DataModelMgrImpl(), DataModelMgrHelper.id());
     } else if (managerType.equals(NsiliManagerType.CREATION_MGR.getSpecName())) {
-      obj = getCreationMgrObject(managerId);
+      return activateManager(new CreationMgrImpl(), CreationMgrHelper.id());
     } else if (managerType.equals(NsiliManagerType.STANDING_QUERY_MGR.getSpecName())) {
-      obj = getStandingQueryMgrObject(managerId);
+      standingQueryMgr =
+          new StandingQueryMgrImpl(querySources, attributeOverrides, attributeExclusions);
+      configureStandingQueryMgr();
+      return activateManager(standingQueryMgr, StandingQueryMgrHelper.id());
     } else {
       String[] badParams = {managerType};
       throw new InvalidInputParameter(
@@ -216,139 +370,93 @@ public class LibraryImpl extends LibraryPOA {
           new exception_details("UnknownMangerType", true, managerType),
           badParams);
     }
-
-    LibraryManager libraryManager = LibraryManagerHelper.narrow(obj);
-
-    LOGGER.trace("get_manager, type: {}, id: {}", managerType, managerId);
-
-    return libraryManager;
   }
 
-  private Object getStandingQueryMgrObject(String managerId) {
-    Object obj;
-    StandingQueryMgrImpl standingQueryMgr =
-        new StandingQueryMgrImpl(querySources, attributeOverrides, attributeExclusions);
-    standingQueryMgr.setCatalogFramework(catalogFramework);
-    standingQueryMgr.setFilterBuilder(filterBuilder);
-    standingQueryMgr.setDefaultUpdateFrequencyMsec(defaultUpdateFrequencyMsec);
-    standingQueryMgr.setMaxPendingResults(maxPendingResults);
-    standingQueryMgr.setRemoveSourceLibrary(removeSourceLibrary);
-    standingQueryMgr.setOutgoingValidationEnabled(outgoingValidationEnabled);
-    standingQueryMgr.setMaxWaitToStartTimeMsecs(maxWaitToStartTimeMsecs);
-    if (!CorbaUtils.isIdActive(poa, managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)))) {
-      try {
-        poa.activate_object_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), standingQueryMgr);
-      } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
-        LOGGER.info("Error activating StandingQueryMgr: ", e);
-      }
+  private Object activateManager(Servant manager, String repositoryId) {
+    String managerId = UUID.randomUUID().toString();
+    try {
+      poa.activate_object_with_id(
+          managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), manager);
+    } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
+      LOGGER.info("Error activating {}: ", repositoryId, e);
+      return null;
     }
 
-    obj =
-        poa.create_reference_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)),
-            StandingQueryMgrHelper.id());
-    return obj;
-  }
-
-  private Object getCreationMgrObject(String managerId) {
-    Object obj;
-    CreationMgrImpl creationMgr = new CreationMgrImpl();
-    if (!CorbaUtils.isIdActive(poa, managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)))) {
-      try {
-        poa.activate_object_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), creationMgr);
-      } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
-        LOGGER.info("Error activating CreationMgr: ", e);
-      }
-    }
+    LOGGER.trace("Activated manager {}, id: {}", repositoryId, managerId);
 
-    obj =
-        poa.create_reference_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), CreationMgrHelper.id());
-    return obj;
+    return poa.create_reference_with_id(
+        managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), repositoryId);
   }
 
-  private Object getDataModelMgrObject(String managerId) {
-    Object obj;
-    DataModelMgrImpl dataModelMgr = new DataModelMgrImpl();
-    if (!CorbaUtils.isIdActive(poa, managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)))) {
-      try {
-        poa.activate_object_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), dataModelMgr);
-      } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
-        LOGGER.info("Error activating DataModelMgr: ", e);
+  /** Pushes the current configuration to the managers that have already been created. */
+  private void updateManagers() {
+    synchronized (managerReferences) {
+      if (catalogMgr != null) {
+        configureCatalogMgr();
       }
-    }
-
-    obj =
-        poa.create_reference_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), DataModelMgrHelper.id());
-    return obj;
-  }
-
-  private Object getProductObject(String managerId) {
-    Object obj;
-    ProductMgrImpl productMgr = new ProductMgrImpl(querySources);
-    productMgr.setCatalogFramework(catalogFramework);
-    productMgr.setFilterBuilder(filterBuilder);
-    productMgr.setOutgoingValidationEnabled(outgoingValidationEnabled);
-    if (!CorbaUtils.isIdActive(poa, managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)))) {
-      try {
-        poa.activate_object_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), productMgr);
-      } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
-        LOGGER.info("Error activating ProductMgr: ", e);
+      if (orderMgr != null) {
+        configureOrderMgr();
+      }
+      if (productMgr != null) {
+        configureProductMgr();
+      }
+      if (standingQueryMgr != null) {
+        configureStandingQueryMgr();
       }
     }
+  }
 
-    obj =
-        poa.create_reference_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), ProductMgrHelper.id());
-    return obj;
+  private void configureCatalogMgr() {
+    catalogMgr.setCatalogFramework(catalogFramework);
+    catalogMgr.setFilterBuilder(filterBuilder);
+    catalogMgr.setQuerySources(querySources);
+    catalogMgr.setMaxNumResults(maxNumResults);
+    catalogMgr.setOutgoingValidationEnabled(outgoingValidationEnabled);
+    catalogMgr.setRemoveSourceLibrary(removeSourceLibrary);
+    catalogMgr.setDagConversionExecutor(dagConversionExecutor);
+    catalogMgr.setPrefetchExecutor(prefetchExecutor);
+    catalogMgr.setCatalogQueryCache(catalogQueryCache);
+    catalogMgr.setBqsFilterCache(bqsFilterCache);
+    catalogMgr.setRequestRegistry(requestRegistry);
+    catalogMgr.setProductPoa(productPoa);
   }
 
-  private Object getOrderMgrObject(String managerId) {
-    Object obj;
-    OrderMgrImpl orderMgr = new OrderMgrImpl();
+  private void configureOrderMgr() {
     orderMgr.setCatalogFramework(catalogFramework);
     orderMgr.setFilterBuilder(filterBuilder);
     orderMgr.setEmailConfiguration(emailConfiguration);
-
-    if (!CorbaUtils.isIdActive(poa, managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)))) {
-      try {
-        poa.activate_object_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), orderMgr);
-      } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
-        LOGGER.info("Error activating OrderMgr: ", e);
-      }
-    }
-
-    obj =
-        poa.create_reference_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), OrderMgrHelper.id());
-    return obj;
+    orderMgr.setRequestRegistry(requestRegistry);
+    orderMgr.setProductPoa(productPoa);
   }
 
-  private Object getCatalogMgrObject(String managerId) {
-    Object obj;
-    CatalogMgrImpl catalogMgr = new CatalogMgrImpl(poa, filterBuilder, querySources);
-    catalogMgr.setCatalogFramework(catalogFramework);
-    catalogMgr.setOutgoingValidationEnabled(outgoingValidationEnabled);
-    catalogMgr.setRemoveSourceLibrary(removeSourceLibrary);
-    if (!CorbaUtils.isIdActive(poa, managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)))) {
-      try {
-        poa.activate_object_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), catalogMgr);
-      } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
-        LOGGER.info("Error activating CatalogMgr: ", e);
-      }
-    }
+  private void configureProductMgr() {
+    productMgr.setCatalogFramework(catalogFramework);
+    productMgr.setFilterBuilder(filterBuilder);
+    productMgr.setQuerySources(querySources);
+    productMgr.setOutgoingValidationEnabled(outgoingValidationEnabled);
+    productMgr.setRequestRegistry(requestRegistry);
+    productMgr.setProductPoa(productPoa);
+  }
 
-    obj =
-        poa.create_reference_with_id(
-            managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), CatalogMgrHelper.id());
-    return obj;
+  private void configureStandingQueryMgr() {
+    standingQueryMgr.setCatalogFramework(catalogFramework);
+    standingQueryMgr.setFilterBuilder(filterBuilder);
+    standingQueryMgr.setQuerySources(querySources);
+    standingQueryMgr.setAttributeOverrides(attributeOverrides);
+    standingQueryMgr.setAttributeExclusions(attributeExclusions);
+    standingQueryMgr.setDefaultUpdateFrequencyMsec(defaultUpdateFrequencyMsec);
+    standingQueryMgr.setMaxPendingResults(maxPendingResults);
+    standingQueryMgr.setRemoveSourceLibrary(removeSourceLibrary);
+    standingQueryMgr.setBqsFilterCache(bqsFilterCache);
+    standingQueryMgr.setOutgoingValidationEnabled(outgoingValidationEnabled);
+    standingQueryMgr.setMaxWaitToStartTimeMsecs(maxWaitToStartTimeMsecs);
+    standingQueryMgr.setProductPoa(productPoa);
+    standingQueryMgr.setRequestRegistry(requestRegistry);
+    standingQueryMgr.setStandingQueryScheduler(standingQueryScheduler);
+    standingQueryMgr.setMatchOnIngest(standingQueryMatchOnIngest);
+    standingQueryMgr.setMaxLongPolls(standingQueryMaxLongPolls);
+    standingQueryMgr.setMaxResultsInMemory(standingQueryMaxResultsInMemory);
+    standingQueryMgr.setMaxTotalResultsInMemory(standingQueryMaxTotalResultsInMemory);
   }
 
   @Override
@@ -372,8 +480,12 @@ public class LibraryImpl extends LibraryPOA {
     throw new NO_IMPLEMENT();
   }
 
+  /**
+   * Keeps only the latest version of each metacard. The results stay in the order their metacards
+   * first appear in, so a sorted query stays sorted.
+   */
   public static List<Result> getLatestResults(List<Result> results) {
-    Map<String, Result> resultMap = new HashMap<>();
+    Map<String, Result> resultMap = new LinkedHashMap<>();
     if (results == null) {
       return new ArrayList<>(resultMap.values());
     }
@@ -401,6 +513,43 @@ public class LibraryImpl extends LibraryPOA {
     return new ArrayList<>(resultMap.values());
   }
 
+  /**
+   * Maps the sort attributes of a BQS query to the order of the catalog query. The catalog only
+   * sorts on a single attribute, so the first sort attribute that maps to a DDF attribute is used
+   * and the rest are ignored.
+   *
+   * @param sortAttributes - the sort attributes requested by the client, may be null
+   * @param removeSourceLibrary - whether NSIL_CARD.sourceLibrary is left out of the query
+   * @return the order of the catalog query, or null to use the catalog's default order
+   */
+  public static SortBy getSortBy(SortAttribute[] sortAttributes, boolean removeSourceLibrary) {
+    if (sortAttributes == null) {
+      return null;
+    }
+
+    for (SortAttribute sortAttribute : sortAttributes) {
+      if (sortAttribute == null || sortAttribute.attribute_name == null) {
+        continue;
+      }
+
+      String ddfAttribute =
+          NsiliAttributeMap.getDdfAttributeForNsili(
+              sortAttribute.attribute_name, removeSourceLibrary);
+      if (ddfAttribute == null) {
+        LOGGER.debug("Unable to sort on {}, ignoring it", sortAttribute.attribute_name);
+        continue;
+      }
+
+      SortOrder sortOrder =
+          sortAttribute.sort_polarity != null
+                  && sortAttribute.sort_polarity.value() == Polarity._DESCENDING
+              ? SortOrder.DESCENDING
+              : SortOrder.ASCENDING;
+      return new SortByImpl(ddfAttribute, sortOrder);
+    }
+    return null;
+  }
+
   public static boolean queryContainsStatus(String bqsQuery) {
     return bqsQuery.toLowerCase().contains(LibraryImpl.CARD_STATUS.toLowerCase());
   }
@@ -409,5 +558,6 @@ public class LibraryImpl extends LibraryPOA {
   public void setEmailConfiguration(EmailConfiguration emailConfiguration) {
     notNull(emailConfiguration, "emailConfiguration must be non-null");
     this.emailConfiguration = emailConfiguration;
+    updateManagers();
   }
 }
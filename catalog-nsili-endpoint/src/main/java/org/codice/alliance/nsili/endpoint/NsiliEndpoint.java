@@ -15,7 +15,9 @@ package org.codice.alliance.nsili.endpoint;
 
 import static org.apache.commons.lang3.Validate.notNull;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import ddf.catalog.CatalogFramework;
+import ddf.catalog.data.Metacard;
 import ddf.catalog.filter.FilterBuilder;
 import ddf.security.Subject;
 import ddf.security.service.SecurityManager;
@@ -24,13 +26,23 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import org.codice.alliance.core.email.EmailSender;
+import org.codice.alliance.nsili.common.BqsFilterCache;
+import org.codice.alliance.nsili.common.CorbaUtils;
 import org.codice.alliance.nsili.common.NsilCorbaExceptionUtil;
 import org.codice.alliance.nsili.common.ResultDAGConverter;
+import org.codice.alliance.nsili.common.datamodel.NsiliDataModel;
 import org.codice.alliance.nsili.endpoint.managers.EmailConfiguration;
+import org.codice.alliance.nsili.endpoint.managers.StandingQueryMgrImpl;
+import org.codice.alliance.nsili.endpoint.requests.DAGSpillFile;
 import org.codice.alliance.nsili.orb.api.CorbaOrb;
 import org.codice.alliance.nsili.orb.api.CorbaServiceListener;
 import org.codice.ddf.security.handler.api.GuestAuthenticationToken;
@@ -39,6 +51,8 @@ import org.omg.CORBA.ORBPackage.InvalidName;
 import org.omg.PortableServer.POA;
 import org.omg.PortableServer.POAHelper;
 import org.omg.PortableServer.POAManagerPackage.AdapterInactive;
+import org.omg.PortableServer.POAPackage.AdapterNonExistent;
+import org.omg.PortableServer.POAPackage.InvalidPolicy;
 import org.omg.PortableServer.POAPackage.ObjectNotActive;
 import org.omg.PortableServer.POAPackage.ServantNotActive;
 import org.omg.PortableServer.POAPackage.WrongAdapter;
@@ -53,6 +67,12 @@ public class NsiliEndpoint implements CorbaServiceListener, QuerySources {
 
   public static final int DEFAULT_MAX_NUM_RESULTS = 500;
 
+  public static final int DEFAULT_DAG_CONVERSION_THREADS = 4;
+
+  private static final int PREFETCH_THREADS = 2;
+
+  private static final int MAX_QUEUED_PREFETCHES = 16;
+
   private static final String DEFAULT_IP_ADDRESS = "127.0.0.1";
 
   private int maxNumResults = DEFAULT_MAX_NUM_RESULTS;
@@ -99,6 +119,37 @@ public class NsiliEndpoint implements CorbaServiceListener, QuerySources {
 
   private boolean removeSourceLibrary = true;
 
+  private int dagConversionThreads = DEFAULT_DAG_CONVERSION_THREADS;
+
+  private ExecutorService dagConversionExecutor =
+      Executors.newFixedThreadPool(DEFAULT_DAG_CONVERSION_THREADS);
+
+  private final ExecutorService prefetchExecutor = createPrefetchExecutor();
+
+  private StandingQueryScheduler standingQueryScheduler =
+      new StandingQueryScheduler(StandingQueryScheduler.DEFAULT_THREADS);
+
+  private volatile boolean standingQueryMatchOnIngest = false;
+
+  private int standingQueryMaxLongPolls = StandingQueryMgrImpl.DEFAULT_MAX_LONG_POLLS;
+
+  private int standingQueryMaxResultsInMemory = StandingQueryMgrImpl.DEFAULT_MAX_RESULTS_IN_MEMORY;
+
+  private int standingQueryMaxTotalResultsInMemory =
+      StandingQueryMgrImpl.DEFAULT_MAX_TOTAL_RESULTS_IN_MEMORY;
+
+  private long catalogQueryCacheExpirationSec = CatalogQueryCache.DEFAULT_EXPIRATION_SEC;
+
+  private int bqsFilterCacheSize = BqsFilterCache.DEFAULT_MAX_SIZE;
+
+  private BqsFilterCache bqsFilterCache = new BqsFilterCache(BqsFilterCache.DEFAULT_MAX_SIZE);
+
+  private long requestLifetimeSec = RequestRegistry.DEFAULT_REQUEST_LIFETIME_SEC;
+
+  private RequestRegistry requestRegistry;
+
+  private POA productPoa;
+
   private static Subject guestSubject = null;
 
   private static final Logger LOGGER = LoggerFactory.getLogger(NsiliEndpoint.class);
@@ -286,6 +337,176 @@ public class NsiliEndpoint implements CorbaServiceListener, QuerySources {
     }
   }
 
+  /**
+   * Sets the number of threads used to convert query results to DAGs. Conversion is done on the
+   * request thread when this is 1 or less.
+   *
+   * @param dagConversionThreads - number of conversion threads shared by all queries
+   */
+  public void setDagConversionThreads(int dagConversionThreads) {
+    if (dagConversionThreads == this.dagConversionThreads) {
+      return;
+    }
+
+    this.dagConversionThreads = dagConversionThreads;
+    shutdownDagConversionExecutor();
+    if (dagConversionThreads > 1) {
+      dagConversionExecutor = Executors.newFixedThreadPool(dagConversionThreads);
+    }
+
+    if (library != null) {
+      library.setDagConversionExecutor(dagConversionExecutor);
+    }
+  }
+
+  /**
+   * Sets the number of threads that run the standing queries. All standing queries share these
+   * threads, however many are submitted.
+   *
+   * @param standingQueryThreads - number of threads shared by all standing queries
+   */
+  public void setStandingQueryThreads(int standingQueryThreads) {
+    standingQueryScheduler.setThreads(standingQueryThreads);
+  }
+
+  /**
+   * Sets whether standing queries against the local catalog are matched against metacards as they
+   * are ingested, rather than by querying the catalog every update interval. Standing queries
+   * against other sources always poll.
+   *
+   * @param standingQueryMatchOnIngest - true to match standing queries on ingest
+   */
+  public void setStandingQueryMatchOnIngest(boolean standingQueryMatchOnIngest) {
+    this.standingQueryMatchOnIngest = standingQueryMatchOnIngest;
+    if (library != null) {
+      library.setStandingQueryMatchOnIngest(standingQueryMatchOnIngest);
+    }
+  }
+
+  /**
+   * Sets how many clients can wait for standing query results at once. A client asking for the
+   * results of a standing query that has none waits until results arrive or an update interval
+   * has passed, holding an ORB dispatch thread while it does. Beyond this many waiting clients the
+   * call returns right away instead.
+   *
+   * @param standingQueryMaxLongPolls - maximum number of waiting clients, 0 to never wait
+   */
+  public void setStandingQueryMaxLongPolls(int standingQueryMaxLongPolls) {
+    this.standingQueryMaxLongPolls = standingQueryMaxLongPolls;
+    if (library != null) {
+      library.setStandingQueryMaxLongPolls(standingQueryMaxLongPolls);
+    }
+  }
+
+  /**
+   * Sets how many pending results each standing query keeps in memory. Results a client has not
+   * retrieved yet beyond this are spilled to a temporary file and read back when it asks for them.
+   *
+   * @param standingQueryMaxResultsInMemory - maximum number of results in memory per standing query
+   */
+  public void setStandingQueryMaxResultsInMemory(int standingQueryMaxResultsInMemory) {
+    this.standingQueryMaxResultsInMemory = standingQueryMaxResultsInMemory;
+    if (library != null) {
+      library.setStandingQueryMaxResultsInMemory(standingQueryMaxResultsInMemory);
+    }
+  }
+
+  /**
+   * Sets how many pending results all standing queries together keep in memory before spilling
+   * new results to disk.
+   *
+   * @param standingQueryMaxTotalResultsInMemory - maximum number of results in memory in total
+   */
+  public void setStandingQueryMaxTotalResultsInMemory(int standingQueryMaxTotalResultsInMemory) {
+    this.standingQueryMaxTotalResultsInMemory = standingQueryMaxTotalResultsInMemory;
+    if (library != null) {
+      library.setStandingQueryMaxTotalResultsInMemory(standingQueryMaxTotalResultsInMemory);
+    }
+  }
+
+  /**
+   * Hands metacards ingested into the local catalog to the standing queries that match on ingest.
+   *
+   * @param metacards - the created, updated and deleted metacards, with the version action set on
+   *     the updated and deleted ones
+   */
+  public void matchIngested(List<Metacard> metacards) {
+    LibraryImpl currentLibrary = library;
+    if (standingQueryMatchOnIngest && currentLibrary != null) {
+      currentLibrary.matchIngested(metacards);
+    }
+  }
+
+  /**
+   * Sets how long the filter and hit count of a query are kept for the hit count and submit_query
+   * requests that follow. 0 disables the cache.
+   *
+   * @param catalogQueryCacheExpirationSec - cache expiration in seconds
+   */
+  public void setCatalogQueryCacheExpirationSec(long catalogQueryCacheExpirationSec) {
+    this.catalogQueryCacheExpirationSec = catalogQueryCacheExpirationSec;
+    if (library != null) {
+      library.setCatalogQueryCacheExpirationSec(catalogQueryCacheExpirationSec);
+    }
+  }
+
+  /**
+   * Sets the number of parsed BQS queries kept for reuse. The cache statistics are available
+   * through JMX.
+   *
+   * @param bqsFilterCacheSize - maximum number of cached filters
+   */
+  public void setBqsFilterCacheSize(int bqsFilterCacheSize) {
+    if (bqsFilterCacheSize == this.bqsFilterCacheSize) {
+      return;
+    }
+
+    this.bqsFilterCacheSize = bqsFilterCacheSize;
+    bqsFilterCache.unregisterMbean();
+    bqsFilterCache = new BqsFilterCache(bqsFilterCacheSize);
+    bqsFilterCache.registerMbean();
+    if (library != null) {
+      library.setBqsFilterCache(bqsFilterCache);
+    }
+  }
+
+  /**
+   * Sets how long query, hit count, parameter, related file and order requests stay active after
+   * they are created, unless the client changes it with set_timeout. Requests are deactivated when
+   * their lifetime runs out or when the client deletes them. A negative lifetime keeps requests
+   * until they are deleted.
+   *
+   * @param requestLifetimeSec - request lifetime in seconds
+   */
+  public void setRequestLifetimeSec(long requestLifetimeSec) {
+    this.requestLifetimeSec = requestLifetimeSec;
+    if (requestRegistry != null) {
+      requestRegistry.setRequestLifetimeSec(requestLifetimeSec);
+    }
+  }
+
+  /**
+   * Next pages are prefetched on their own few threads, so paging clients can't take the DAG
+   * conversion threads from the queries being answered. Prefetches that don't fit in the queue are
+   * skipped and the page is fetched when the client asks for it.
+   */
+  private static ExecutorService createPrefetchExecutor() {
+    return new ThreadPoolExecutor(
+        PREFETCH_THREADS,
+        PREFETCH_THREADS,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(MAX_QUEUED_PREFETCHES),
+        new ThreadFactoryBuilder().setNameFormat("nsili-prefetch-%d").setDaemon(true).build());
+  }
+
+  private void shutdownDagConversionExecutor() {
+    if (dagConversionExecutor != null) {
+      dagConversionExecutor.shutdown();
+      dagConversionExecutor = null;
+    }
+  }
+
   public void setOrb(ORB orb) {
     this.orb = orb;
   }
@@ -348,6 +569,13 @@ public class NsiliEndpoint implements CorbaServiceListener, QuerySources {
     if (corbaOrb != null) {
       corbaOrb.removeCorbaServiceListener(this);
     }
+    shutdownDagConversionExecutor();
+    prefetchExecutor.shutdownNow();
+    shutdownRequestRegistry();
+    standingQueryScheduler.shutdown();
+    // Releasing the requests deletes their spill files, this catches any that were not registered
+    DAGSpillFile.closeAll();
+    bqsFilterCache.unregisterMbean();
     library = null;
     iorString = "";
   }
@@ -370,6 +598,7 @@ public class NsiliEndpoint implements CorbaServiceListener, QuerySources {
       } catch (ObjectNotActive | WrongPolicy | WrongAdapter e) {
         LOGGER.info("Unable to deactivate LibraryImpl", e);
       }
+      shutdownRequestRegistry();
       rootPOA.destroy(true, true);
     }
 
@@ -379,6 +608,7 @@ public class NsiliEndpoint implements CorbaServiceListener, QuerySources {
 
   public void init() {
     LOGGER.debug("Initializing NSILI Endpoint");
+    bqsFilterCache.registerMbean();
     try {
       initCorba();
     } catch (InvalidName | AdapterInactive | WrongPolicy | ServantNotActive e) {
@@ -399,18 +629,40 @@ public class NsiliEndpoint implements CorbaServiceListener, QuerySources {
 
     rootPOA.the_POAManager().activate();
 
+    shutdownRequestRegistry();
+    requestRegistry = createRequestRegistry();
+    requestRegistry.startReaping();
+    productPoa = createProductPoa();
+
+    // Build the shared data model now rather than during the first query
+    NsiliDataModel.getInstance();
+
     library = new LibraryImpl(rootPOA);
     library.setCatalogFramework(framework);
     library.setFilterBuilder(filterBuilder);
     library.setDefaultUpdateFrequencyMsec(TimeUnit.SECONDS.toMillis(defaultUpdateFrequencySec));
     library.setMaxPendingResults(maxPendingResults);
     library.setQuerySources(querySources);
+    library.setAttributeOverrides(attributeOverrides);
+    library.setAttributeExclusions(attributeExclusions);
+    library.setMaxNumResults(maxNumResults);
     library.setLibraryVersion(libraryVersion);
     library.setLibraryDescription(libraryDescription);
     library.setRemoveSourceLibrary(removeSourceLibrary);
     library.setOutgoingValidationEnabled(outgoingValidationEnabled);
     library.setMaxWaitToStartTimeMsecs(TimeUnit.SECONDS.toMillis(maxWaitToStartTimeSec));
     library.setEmailConfiguration(emailConfiguration);
+    library.setDagConversionExecutor(dagConversionExecutor);
+    library.setPrefetchExecutor(prefetchExecutor);
+    library.setCatalogQueryCacheExpirationSec(catalogQueryCacheExpirationSec);
+    library.setBqsFilterCache(bqsFilterCache);
+    library.setRequestRegistry(requestRegistry);
+    library.setStandingQueryScheduler(standingQueryScheduler);
+    library.setStandingQueryMatchOnIngest(standingQueryMatchOnIngest);
+    library.setStandingQueryMaxLongPolls(standingQueryMaxLongPolls);
+    library.setStandingQueryMaxResultsInMemory(standingQueryMaxResultsInMemory);
+    library.setStandingQueryMaxTotalResultsInMemory(standingQueryMaxTotalResultsInMemory);
+    library.setProductPoa(productPoa);
 
     libraryRef = rootPOA.servant_to_reference(library);
 
@@ -419,6 +671,33 @@ public class NsiliEndpoint implements CorbaServiceListener, QuerySources {
     LOGGER.debug("Initialized NSILI Endpoint with IOR: {}", iorString);
   }
 
+  private RequestRegistry createRequestRegistry() {
+    try {
+      return RequestRegistry.create(rootPOA, requestLifetimeSec);
+    } catch (InvalidPolicy | AdapterNonExistent e) {
+      LOGGER.info(
+          "Unable to create the request POA, requests will be activated in the root POA", e);
+      return new RequestRegistry(rootPOA, requestLifetimeSec);
+    }
+  }
+
+  private POA createProductPoa() {
+    try {
+      return CorbaUtils.createProductPoa(rootPOA);
+    } catch (InvalidPolicy | AdapterNonExistent | WrongPolicy e) {
+      LOGGER.info(
+          "Unable to create the product POA, products will be activated in the root POA", e);
+      return rootPOA;
+    }
+  }
+
+  private void shutdownRequestRegistry() {
+    if (requestRegistry != null) {
+      requestRegistry.destroy();
+      requestRegistry = null;
+    }
+  }
+
   public static synchronized Subject getGuestSubject() throws SecurityServiceException {
     if (guestSubject == null) {
 
@@ -0,0 +1,322 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.codice.alliance.nsili.common.NsilCorbaExceptionUtil;
+import org.omg.CORBA.Policy;
+import org.omg.CORBA.SystemException;
+import org.omg.PortableServer.IdAssignmentPolicyValue;
+import org.omg.PortableServer.LifespanPolicyValue;
+import org.omg.PortableServer.POA;
+import org.omg.PortableServer.POAPackage.AdapterAlreadyExists;
+import org.omg.PortableServer.POAPackage.AdapterNonExistent;
+import org.omg.PortableServer.POAPackage.InvalidPolicy;
+import org.omg.PortableServer.POAPackage.ObjectAlreadyActive;
+import org.omg.PortableServer.POAPackage.ObjectNotActive;
+import org.omg.PortableServer.POAPackage.ServantAlreadyActive;
+import org.omg.PortableServer.POAPackage.WrongAdapter;
+import org.omg.PortableServer.POAPackage.WrongPolicy;
+import org.omg.PortableServer.Servant;
+import org.omg.PortableServer.ServantRetentionPolicyValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the request servants handed out by the managers. Each request is activated with
+ * a lifetime and is deactivated when the client deletes it or when its lifetime runs out, so the
+ * servants and their results do not stay in the POA for the life of the endpoint. A negative
+ * lifetime means the request is only deactivated when it is deleted. Requests that implement
+ * {@link Releasable} are released when they are deactivated.
+ */
+public class RequestRegistry {
+
+  public static final String REQUEST_POA_NAME = "NsiliRequests";
+
+  public static final long DEFAULT_REQUEST_LIFETIME_SEC = TimeUnit.HOURS.toSeconds(1);
+
+  private static final long REAP_INTERVAL_SEC = 30;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RequestRegistry.class);
+
+  private final POA poa;
+
+  private final boolean ownsPoa;
+
+  private final Map<String, Long> expirationTimes = new ConcurrentHashMap<>();
+
+  private volatile long requestLifetimeSec;
+
+  private ScheduledExecutorService reaper;
+
+  /**
+   * Creates a registry that activates requests directly in the given POA. The POA is not
+   * destroyed with the registry.
+   *
+   * @param poa - the POA to activate requests in
+   * @param requestLifetimeSec - lifetime of new requests, negative for no lifetime
+   */
+  public RequestRegistry(POA poa, long requestLifetimeSec) {
+    this(poa, requestLifetimeSec, false);
+  }
+
+  private RequestRegistry(POA poa, long requestLifetimeSec, boolean ownsPoa) {
+    this.poa = poa;
+    this.requestLifetimeSec = requestLifetimeSec;
+    this.ownsPoa = ownsPoa;
+  }
+
+  /**
+   * Creates a registry with its own child POA of the parent, so all of the outstanding requests
+   * can be deactivated at once by {@link #destroy()}.
+   *
+   * @param parent - the POA the request POA is created under, usually the root POA
+   * @param requestLifetimeSec - lifetime of new requests, negative for no lifetime
+   */
+  public static RequestRegistry create(POA parent, long requestLifetimeSec)
+      throws InvalidPolicy, AdapterNonExistent {
+    Policy[] policies = {
+      parent.create_id_assignment_policy(IdAssignmentPolicyValue.USER_ID),
+      parent.create_lifespan_policy(LifespanPolicyValue.TRANSIENT),
+      parent.create_servant_retention_policy(ServantRetentionPolicyValue.RETAIN)
+    };
+
+    POA requestPoa;
+    try {
+      requestPoa = parent.create_POA(REQUEST_POA_NAME, parent.the_POAManager(), policies);
+    } catch (AdapterAlreadyExists e) {
+      LOGGER.debug("Request POA already exists, reusing it");
+      requestPoa = parent.find_POA(REQUEST_POA_NAME, false);
+    } finally {
+      for (Policy policy : policies) {
+        policy.destroy();
+      }
+    }
+
+    return new RequestRegistry(requestPoa, requestLifetimeSec, true);
+  }
+
+  public POA getPoa() {
+    return poa;
+  }
+
+  public void setRequestLifetimeSec(long requestLifetimeSec) {
+    this.requestLifetimeSec = requestLifetimeSec;
+  }
+
+  public long getRequestLifetimeSec() {
+    return requestLifetimeSec;
+  }
+
+  /** Starts deactivating expired requests in the background. */
+  public synchronized void startReaping() {
+    if (reaper == null) {
+      reaper =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setNameFormat("nsili-request-reaper-%d")
+                  .setDaemon(true)
+                  .build());
+      reaper.scheduleWithFixedDelay(
+          this::reapExpiredRequests, REAP_INTERVAL_SEC, REAP_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Activates a request servant.
+   *
+   * @param servant - the request servant
+   * @param repositoryId - repository id of the request interface, from its helper
+   * @return the reference to the request, to be narrowed by the caller
+   */
+  public org.omg.CORBA.Object register(Servant servant, String repositoryId)
+      throws ServantAlreadyActive, ObjectAlreadyActive, WrongPolicy {
+    return register(servant, repositoryId, requestLifetimeSec);
+  }
+
+  /**
+   * Activates a request servant with its own lifetime instead of the registry's.
+   *
+   * @param servant - the request servant
+   * @param repositoryId - repository id of the request interface, from its helper
+   * @param lifetimeSec - lifetime of the request, negative for no lifetime
+   * @return the reference to the request, to be narrowed by the caller
+   */
+  public org.omg.CORBA.Object register(Servant servant, String repositoryId, long lifetimeSec)
+      throws ServantAlreadyActive, ObjectAlreadyActive, WrongPolicy {
+    String id = UUID.randomUUID().toString();
+    byte[] oid = id.getBytes(Charset.forName(NsiliEndpoint.ENCODING));
+
+    poa.activate_object_with_id(oid, servant);
+    expirationTimes.put(id, getExpirationTime(lifetimeSec));
+
+    return poa.create_reference_with_id(oid, repositoryId);
+  }
+
+  /**
+   * Deactivates a request.
+   *
+   * @param request - reference to the request
+   * @return true if the request was registered here and has been deactivated
+   */
+  public boolean remove(org.omg.CORBA.Object request) {
+    String id = getId(request);
+    if (id == null || expirationTimes.remove(id) == null) {
+      return false;
+    }
+
+    deactivate(id);
+    return true;
+  }
+
+  /**
+   * Changes the lifetime of a request, counted from now.
+   *
+   * @param request - reference to the request
+   * @param lifetimeSec - the new lifetime, negative for no lifetime
+   * @return true if the request is registered here
+   */
+  public boolean setLifetime(org.omg.CORBA.Object request, long lifetimeSec) {
+    String id = getId(request);
+    return id != null
+        && expirationTimes.computeIfPresent(id, (key, time) -> getExpirationTime(lifetimeSec))
+            != null;
+  }
+
+  /**
+   * Returns the remaining lifetime of a request.
+   *
+   * @param request - reference to the request
+   * @return the remaining lifetime in seconds, -1 if the request has no lifetime, or null if the
+   *     request is not registered here
+   */
+  public Long getRemainingLifetime(org.omg.CORBA.Object request) {
+    String id = getId(request);
+    Long expirationTime = id == null ? null : expirationTimes.get(id);
+    if (expirationTime == null) {
+      return null;
+    }
+    if (expirationTime < 0) {
+      return -1L;
+    }
+    long remainingMsec = expirationTime - System.currentTimeMillis();
+    return TimeUnit.MILLISECONDS.toSeconds(Math.max(0, remainingMsec));
+  }
+
+  public int size() {
+    return expirationTimes.size();
+  }
+
+  /** Deactivates every request whose lifetime has run out. */
+  public void reapExpiredRequests() {
+    long now = System.currentTimeMillis();
+    int reaped = 0;
+    for (Map.Entry<String, Long> entry : expirationTimes.entrySet()) {
+      long expirationTime = entry.getValue();
+      if (expirationTime >= 0
+          && expirationTime <= now
+          && expirationTimes.remove(entry.getKey(), expirationTime)) {
+        deactivate(entry.getKey());
+        reaped++;
+      }
+    }
+
+    if (reaped > 0) {
+      LOGGER.debug("Deactivated {} expired requests, {} remaining", reaped, size());
+    }
+  }
+
+  /**
+   * Stops reaping and deactivates all outstanding requests. If the registry created its own POA
+   * the POA is destroyed as well.
+   */
+  public void destroy() {
+    synchronized (this) {
+      if (reaper != null) {
+        reaper.shutdownNow();
+        reaper = null;
+      }
+    }
+
+    for (String id : expirationTimes.keySet()) {
+      if (expirationTimes.remove(id) != null) {
+        deactivate(id);
+      }
+    }
+
+    if (ownsPoa) {
+      try {
+        poa.destroy(true, false);
+      } catch (SystemException e) {
+        LOGGER.debug("Unable to destroy the request POA", e);
+      }
+    }
+  }
+
+  private void deactivate(String id) {
+    byte[] oid = id.getBytes(Charset.forName(NsiliEndpoint.ENCODING));
+    Servant servant = null;
+    try {
+      servant = poa.id_to_servant(oid);
+      poa.deactivate_object(oid);
+    } catch (ObjectNotActive | WrongPolicy e) {
+      LOGGER.debug(
+          "Unable to deactivate request {}: {}",
+          id,
+          NsilCorbaExceptionUtil.getExceptionDetails(e),
+          e);
+    }
+
+    // Released even if it couldn't be deactivated, so it doesn't keep its resources
+    if (servant instanceof Releasable) {
+      ((Releasable) servant).release();
+    }
+  }
+
+  private String getId(org.omg.CORBA.Object request) {
+    if (request == null) {
+      return null;
+    }
+
+    try {
+      return new String(poa.reference_to_id(request), Charset.forName(NsiliEndpoint.ENCODING));
+    } catch (WrongAdapter | WrongPolicy e) {
+      LOGGER.trace("Request was not activated by the request registry", e);
+      return null;
+    }
+  }
+
+  private static long getExpirationTime(long lifetimeSec) {
+    if (lifetimeSec < 0) {
+      return -1;
+    }
+    return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(lifetimeSec);
+  }
+
+  /**
+   * Implemented by requests that hold on to resources, such as prefetched results, which should be
+   * freed as soon as the request is deleted or expires.
+   */
+  public interface Releasable {
+
+    void release();
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint;
+
+import ddf.catalog.core.versioning.MetacardVersion;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.impl.AttributeImpl;
+import ddf.catalog.data.impl.MetacardImpl;
+import ddf.catalog.operation.CreateResponse;
+import ddf.catalog.operation.DeleteResponse;
+import ddf.catalog.operation.Update;
+import ddf.catalog.operation.UpdateResponse;
+import ddf.catalog.plugin.PostIngestPlugin;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the resource metacards created, updated and deleted in the local catalog to the standing
+ * queries of the endpoint, so the ones that match on ingest don't have to poll the catalog for
+ * them. Updated and deleted metacards are marked with the version action and tag, the same as the
+ * history metacards a poll would return for them, and untagged metacards are tagged as resources,
+ * so they match the filter the catalog is polled with. The ingest itself is never changed or
+ * failed.
+ */
+public class StandingQueryIngestPlugin implements PostIngestPlugin {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StandingQueryIngestPlugin.class);
+
+  private NsiliEndpoint nsiliEndpoint;
+
+  public StandingQueryIngestPlugin(NsiliEndpoint nsiliEndpoint) {
+    this.nsiliEndpoint = nsiliEndpoint;
+  }
+
+  public void setNsiliEndpoint(NsiliEndpoint nsiliEndpoint) {
+    this.nsiliEndpoint = nsiliEndpoint;
+  }
+
+  @Override
+  public CreateResponse process(CreateResponse input) {
+    if (input.getCreatedMetacards() != null) {
+      matchIngested(input.getCreatedMetacards().stream(), null);
+    }
+    return input;
+  }
+
+  @Override
+  public UpdateResponse process(UpdateResponse input) {
+    if (input.getUpdatedMetacards() != null) {
+      matchIngested(
+          input.getUpdatedMetacards().stream().map(Update::getNewMetacard),
+          MetacardVersion.Action.VERSIONED);
+    }
+    return input;
+  }
+
+  @Override
+  public DeleteResponse process(DeleteResponse input) {
+    if (input.getDeletedMetacards() != null) {
+      matchIngested(input.getDeletedMetacards().stream(), MetacardVersion.Action.DELETED);
+    }
+    return input;
+  }
+
+  private void matchIngested(Stream<Metacard> metacards, MetacardVersion.Action action) {
+    Date versionedOn = new Date();
+    List<Metacard> resources =
+        metacards
+            .filter(StandingQueryIngestPlugin::isResource)
+            .map(metacard -> markIngested(metacard, action, versionedOn))
+            .collect(Collectors.toList());
+    if (resources.isEmpty()) {
+      return;
+    }
+
+    try {
+      nsiliEndpoint.matchIngested(resources);
+    } catch (RuntimeException e) {
+      LOGGER.info("Unable to match ingested metacards against the standing queries", e);
+    }
+  }
+
+  private static boolean isResource(Metacard metacard) {
+    if (metacard == null) {
+      return false;
+    }
+    Set<String> tags = metacard.getTags();
+    return tags == null || tags.isEmpty() || tags.contains(Metacard.DEFAULT_TAG);
+  }
+
+  /** @param action - the version action, or null if the metacard was created */
+  private static Metacard markIngested(
+      Metacard metacard, MetacardVersion.Action action, Date versionedOn) {
+    boolean untagged = metacard.getTags() == null || metacard.getTags().isEmpty();
+    if (action == null && !untagged) {
+      return metacard;
+    }
+
+    Set<String> tags = new HashSet<>();
+    tags.add(Metacard.DEFAULT_TAG);
+    if (!untagged) {
+      tags.addAll(metacard.getTags());
+    }
+    MetacardImpl markedMetacard = new MetacardImpl(metacard);
+    if (action != null) {
+      tags.add(MetacardVersion.VERSION_TAG);
+      markedMetacard.setAttribute(new AttributeImpl(MetacardVersion.ACTION, action.getKey()));
+      markedMetacard.setAttribute(new AttributeImpl(MetacardVersion.VERSIONED_ON, versionedOn));
+    }
+    markedMetacard.setTags(tags);
+    return markedMetacard;
+  }
+}
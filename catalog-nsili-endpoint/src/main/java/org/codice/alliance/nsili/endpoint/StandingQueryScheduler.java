@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the catalog polls of all standing queries on a fixed pool of worker threads. Polls are
+ * dispatched in deadline order, so a poll that asks to run again right away waits behind the polls
+ * that are already due. A poll that takes longer than its period is not run again immediately; its
+ * next run is pushed back a full period from when it finished, so slow queries can't keep the
+ * workers from the others.
+ */
+public class StandingQueryScheduler {
+
+  public static final int DEFAULT_THREADS = 4;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StandingQueryScheduler.class);
+
+  private final ScheduledThreadPoolExecutor executor;
+
+  private final AtomicLong overrunCount = new AtomicLong();
+
+  /** @param threads - number of worker threads shared by all standing queries */
+  public StandingQueryScheduler(int threads) {
+    executor =
+        new ScheduledThreadPoolExecutor(
+            Math.max(1, threads),
+            new ThreadFactoryBuilder()
+                .setNameFormat("nsili-standing-query-%d")
+                .setDaemon(true)
+                .build());
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Starts running a poll.
+   *
+   * @param poll - the poll, run until it returns a negative period or is cancelled
+   * @param initialDelayMsec - delay before the first run
+   * @return the handle to pause, resume and cancel the poll with
+   */
+  public ScheduledPoll schedule(Poll poll, long initialDelayMsec) {
+    ScheduledPoll scheduledPoll = new ScheduledPoll(poll);
+    synchronized (scheduledPoll) {
+      scheduledPoll.scheduleAfter(initialDelayMsec);
+    }
+    return scheduledPoll;
+  }
+
+  /**
+   * Runs a task once on the workers, behind the polls that are already due.
+   *
+   * @throws RejectedExecutionException if the scheduler has been shut down
+   */
+  public void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  public void setThreads(int threads) {
+    executor.setCorePoolSize(Math.max(1, threads));
+  }
+
+  public int getThreadCount() {
+    return executor.getPoolSize();
+  }
+
+  /** @return the number of polls waiting for their next run */
+  public int getScheduledCount() {
+    return executor.getQueue().size();
+  }
+
+  /** @return the number of polls that took longer than their period */
+  public long getOverrunCount() {
+    return overrunCount.get();
+  }
+
+  /** Stops all polls. */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** A single run of a standing query. */
+  @FunctionalInterface
+  public interface Poll {
+
+    /**
+     * @return the period until the next run in milliseconds, counted from the start of this run; 0
+     *     to run again as soon as the polls that are already due have run; negative to stop
+     */
+    long poll();
+  }
+
+  /** Handle to a scheduled poll. */
+  public class ScheduledPoll implements Runnable {
+
+    private final Poll poll;
+
+    private ScheduledFuture<?> future;
+
+    private long nextExecutionTime;
+
+    private boolean running;
+
+    private boolean runAgain;
+
+    private boolean cancelled;
+
+    ScheduledPoll(Poll poll) {
+      this.poll = poll;
+    }
+
+    public synchronized long getNextExecutionTime() {
+      return nextExecutionTime;
+    }
+
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    /** Runs the poll as soon as a worker is free instead of at its next scheduled time. */
+    public synchronized void runNow() {
+      if (cancelled) {
+        return;
+      }
+
+      if (running) {
+        runAgain = true;
+      } else {
+        future.cancel(false);
+        scheduleAfter(0);
+      }
+    }
+
+    public synchronized void cancel() {
+      cancelled = true;
+      if (future != null) {
+        future.cancel(false);
+      }
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        running = true;
+        runAgain = false;
+      }
+
+      long startTime = System.currentTimeMillis();
+      long period = -1;
+      try {
+        period = poll.poll();
+      } catch (RuntimeException e) {
+        LOGGER.info("Standing query failed and will no longer be run", e);
+      }
+      long elapsed = System.currentTimeMillis() - startTime;
+
+      synchronized (this) {
+        running = false;
+        if (cancelled || period < 0) {
+          cancelled = true;
+          return;
+        }
+
+        long delay;
+        if (runAgain || period == 0) {
+          delay = 0;
+        } else if (elapsed > period) {
+          overrunCount.incrementAndGet();
+          LOGGER.debug(
+              "Standing query took {} ms, longer than its period of {} ms", elapsed, period);
+          delay = period;
+        } else {
+          delay = period - elapsed;
+        }
+        scheduleAfter(delay);
+      }
+    }
+
+    private void scheduleAfter(long delayMsec) {
+      nextExecutionTime = System.currentTimeMillis() + delayMsec;
+      try {
+        future = executor.schedule(this, delayMsec, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        LOGGER.debug("Standing query scheduler has been shut down", e);
+        cancelled = true;
+      }
+    }
+  }
+}
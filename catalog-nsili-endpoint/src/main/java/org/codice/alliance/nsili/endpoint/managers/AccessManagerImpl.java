@@ -42,6 +42,7 @@ import org.codice.alliance.nsili.common.UCO.ProcessingFault;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
 import org.codice.alliance.nsili.common.UID.Product;
 import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
+import org.omg.PortableServer.POA;
 import org.omg.PortableServer.POAPackage.WrongAdapter;
 import org.omg.PortableServer.POAPackage.WrongPolicy;
 import org.opengis.filter.Filter;
@@ -59,13 +60,15 @@ public class AccessManagerImpl extends AccessManagerPOA {
 
   private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(AccessManagerImpl.class);
 
-  private CatalogFramework catalogFramework;
+  private volatile CatalogFramework catalogFramework;
 
-  private FilterBuilder filterBuilder;
+  private volatile FilterBuilder filterBuilder;
 
-  private Set<String> querySources = new HashSet<>();
+  private volatile Set<String> querySources = new HashSet<>();
 
-  private int defaultTimeout = DEFAULT_TIMEOUT;
+  private volatile int defaultTimeout = DEFAULT_TIMEOUT;
+
+  private volatile POA productPoa;
 
   public void setCatalogFramework(CatalogFramework catalogFramework) {
     this.catalogFramework = catalogFramework;
@@ -75,11 +78,13 @@ public class AccessManagerImpl extends AccessManagerPOA {
     this.filterBuilder = filterBuilder;
   }
 
+  /** Sets the POA product references are created in. Defaults to this manager's POA. */
+  public void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+  }
+
   public void setQuerySources(Set<String> querySources) {
-    this.querySources.clear();
-    if (querySources != null) {
-      this.querySources.addAll(querySources);
-    }
+    this.querySources = querySources == null ? new HashSet<>() : new HashSet<>(querySources);
   }
 
   @Override
@@ -170,7 +175,8 @@ public class AccessManagerImpl extends AccessManagerPOA {
 
   public String getProductId(Product product)
       throws UnsupportedEncodingException, WrongPolicy, WrongAdapter {
-    byte[] productOidBytes = _poa().reference_to_id(product);
+    POA poa = productPoa != null ? productPoa : _poa();
+    byte[] productOidBytes = poa.reference_to_id(product);
     return new String(productOidBytes, NsiliEndpoint.ENCODING);
   }
 
@@ -20,12 +20,13 @@ import ddf.catalog.filter.FilterBuilder;
 import ddf.catalog.operation.QueryResponse;
 import ddf.catalog.operation.impl.QueryImpl;
 import ddf.catalog.operation.impl.QueryRequestImpl;
-import java.nio.charset.Charset;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import org.codice.alliance.nsili.common.BqsConverter;
+import org.codice.alliance.nsili.common.BqsFilterCache;
 import org.codice.alliance.nsili.common.GIAS.CatalogMgrPOA;
 import org.codice.alliance.nsili.common.GIAS.HitCountRequest;
 import org.codice.alliance.nsili.common.GIAS.HitCountRequestHelper;
@@ -39,8 +40,11 @@ import org.codice.alliance.nsili.common.UCO.InvalidInputParameter;
 import org.codice.alliance.nsili.common.UCO.NameValue;
 import org.codice.alliance.nsili.common.UCO.ProcessingFault;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
+import org.codice.alliance.nsili.endpoint.CatalogQueryCache;
+import org.codice.alliance.nsili.endpoint.CatalogQueryCache.CatalogQuery;
 import org.codice.alliance.nsili.endpoint.LibraryImpl;
 import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
+import org.codice.alliance.nsili.endpoint.RequestRegistry;
 import org.codice.alliance.nsili.endpoint.requests.HitCountRequestImpl;
 import org.codice.alliance.nsili.endpoint.requests.SubmitQueryRequestImpl;
 import org.omg.CORBA.NO_IMPLEMENT;
@@ -58,19 +62,31 @@ public class CatalogMgrImpl extends CatalogMgrPOA {
 
   private POA poa;
 
-  private CatalogFramework catalogFramework;
+  private volatile CatalogFramework catalogFramework;
 
-  private int maxNumResults = NsiliEndpoint.DEFAULT_MAX_NUM_RESULTS;
+  private volatile int maxNumResults = NsiliEndpoint.DEFAULT_MAX_NUM_RESULTS;
 
-  private long defaultTimeout = AccessManagerImpl.DEFAULT_TIMEOUT;
+  private volatile long defaultTimeout = AccessManagerImpl.DEFAULT_TIMEOUT;
 
-  private FilterBuilder filterBuilder;
+  private volatile FilterBuilder filterBuilder;
 
-  private boolean removeSourceLibrary = true;
+  private volatile boolean removeSourceLibrary = true;
 
-  private Set<String> querySources = new HashSet<>();
+  private volatile Set<String> querySources = new HashSet<>();
 
-  private boolean outgoingValidationEnabled;
+  private volatile boolean outgoingValidationEnabled;
+
+  private volatile Executor dagConversionExecutor;
+
+  private volatile ExecutorService prefetchExecutor;
+
+  private volatile CatalogQueryCache catalogQueryCache = new CatalogQueryCache(0);
+
+  private volatile BqsFilterCache bqsFilterCache;
+
+  private volatile RequestRegistry requestRegistry;
+
+  private volatile POA productPoa;
 
   public CatalogMgrImpl(POA poa, FilterBuilder filterBuilder, Set<String> querySources) {
     this.poa = poa;
@@ -84,6 +100,14 @@ public class CatalogMgrImpl extends CatalogMgrPOA {
     this.catalogFramework = catalogFramework;
   }
 
+  public void setFilterBuilder(FilterBuilder filterBuilder) {
+    this.filterBuilder = filterBuilder;
+  }
+
+  public void setQuerySources(Set<String> querySources) {
+    this.querySources = querySources == null ? new HashSet<>() : new HashSet<>(querySources);
+  }
+
   public void setMaxNumResults(int maxNumResults) {
     this.maxNumResults = maxNumResults;
   }
@@ -96,6 +120,31 @@ public class CatalogMgrImpl extends CatalogMgrPOA {
     this.outgoingValidationEnabled = outgoingValidationEnabled;
   }
 
+  public void setDagConversionExecutor(Executor dagConversionExecutor) {
+    this.dagConversionExecutor = dagConversionExecutor;
+  }
+
+  public void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+    this.prefetchExecutor = prefetchExecutor;
+  }
+
+  public void setCatalogQueryCache(CatalogQueryCache catalogQueryCache) {
+    this.catalogQueryCache = catalogQueryCache;
+  }
+
+  public void setBqsFilterCache(BqsFilterCache bqsFilterCache) {
+    this.bqsFilterCache = bqsFilterCache;
+  }
+
+  public void setRequestRegistry(RequestRegistry requestRegistry) {
+    this.requestRegistry = requestRegistry;
+  }
+
+  /** Sets the POA product references are created in. Defaults to the POA this manager was given. */
+  public void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+  }
+
   @Override
   public Request[] get_active_requests() throws ProcessingFault, SystemFault {
     return new Request[0];
@@ -115,19 +164,29 @@ public class CatalogMgrImpl extends CatalogMgrPOA {
   @Override
   public int get_timeout(Request aRequest)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    return (int) defaultTimeout;
+    // No request has been activated before the registry is created
+    Long remainingLifetime =
+        requestRegistry != null ? requestRegistry.getRemainingLifetime(aRequest) : null;
+    if (remainingLifetime == null) {
+      return (int) defaultTimeout;
+    }
+    return remainingLifetime.intValue();
   }
 
   @Override
   public void set_timeout(Request aRequest, int new_lifetime)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    // Nothing to do here, as the query has already executed
+    if (requestRegistry == null || !requestRegistry.setLifetime(aRequest, new_lifetime)) {
+      LOGGER.debug("set_timeout : Request is not active");
+    }
   }
 
   @Override
   public void delete_request(Request aRequest)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    // Nothing to do here, we don't keep a list of requests. We work them as they are submitted.
+    if (requestRegistry == null || !requestRegistry.remove(aRequest)) {
+      LOGGER.debug("delete_request : Request is not active");
+    }
   }
 
   @Override
@@ -137,54 +196,50 @@ public class CatalogMgrImpl extends CatalogMgrPOA {
       SortAttribute[] sort_attributes,
       NameValue[] properties)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    BqsConverter bqsConverter = new BqsConverter(filterBuilder, removeSourceLibrary);
+    BqsConverter bqsConverter =
+        new BqsConverter(filterBuilder, removeSourceLibrary, bqsFilterCache);
     SubmitQueryRequestImpl submitQueryRequest =
         new SubmitQueryRequestImpl(
             aQuery, filterBuilder, bqsConverter, catalogFramework, querySources);
     submitQueryRequest.set_number_of_hits(maxNumResults);
     submitQueryRequest.setTimeout(defaultTimeout);
     submitQueryRequest.setOutgoingValidationEnabled(outgoingValidationEnabled);
+    submitQueryRequest.setDagConversionExecutor(dagConversionExecutor);
+    submitQueryRequest.setPrefetchExecutor(prefetchExecutor);
+    submitQueryRequest.setCatalogQueryCache(catalogQueryCache);
+    submitQueryRequest.setProductPoa(productPoa != null ? productPoa : poa);
 
     submitQueryRequest.setResultAttributes(result_attributes);
+    submitQueryRequest.setSortBy(LibraryImpl.getSortBy(sort_attributes, removeSourceLibrary));
 
-    String queryId = UUID.randomUUID().toString();
+    SubmitQueryRequest queryRequest = null;
     try {
-      poa.activate_object_with_id(
-          queryId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), submitQueryRequest);
+      org.omg.CORBA.Object obj =
+          getRequestRegistry().register(submitQueryRequest, SubmitQueryRequestHelper.id());
+      queryRequest = SubmitQueryRequestHelper.narrow(obj);
     } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
       LOGGER.debug("submit_query : Unable to activate submitQueryRequest object.", e);
     }
-
-    org.omg.CORBA.Object obj =
-        poa.create_reference_with_id(
-            queryId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)),
-            SubmitQueryRequestHelper.id());
-    SubmitQueryRequest queryRequest = SubmitQueryRequestHelper.narrow(obj);
     return queryRequest;
   }
 
   @Override
   public HitCountRequest hit_count(Query aQuery, NameValue[] properties)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    // Force this to be an int per the NSILI API
-    int numResults = (int) getResultCount(aQuery);
-
-    HitCountRequestImpl hitCountRequest = new HitCountRequestImpl(numResults);
-
-    String id = UUID.randomUUID().toString();
+    // Counting is deferred until the client completes the request. Force this to be an int per
+    // the NSILI API
+    HitCountRequestImpl hitCountRequest =
+        new HitCountRequestImpl(() -> (int) getResultCount(aQuery));
 
+    HitCountRequest queryRequest = null;
     try {
-      poa.activate_object_with_id(
-          id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), hitCountRequest);
+      org.omg.CORBA.Object obj =
+          getRequestRegistry().register(hitCountRequest, HitCountRequestHelper.id());
+      queryRequest = HitCountRequestHelper.narrow(obj);
     } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
-      LOGGER.debug("hit_count : Unable to activate hitCountRequest object: {}", id, e);
+      LOGGER.debug("hit_count : Unable to activate hitCountRequest object.", e);
     }
 
-    org.omg.CORBA.Object obj =
-        poa.create_reference_with_id(
-            id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), HitCountRequestHelper.id());
-    HitCountRequest queryRequest = HitCountRequestHelper.narrow(obj);
-
     return queryRequest;
   }
 
@@ -207,10 +262,40 @@ public class CatalogMgrImpl extends CatalogMgrPOA {
     throw new NO_IMPLEMENT();
   }
 
+  /**
+   * Counts the results of a query. When the catalog query cache is enabled the filter and the count
+   * are shared with other hit counts and a following submit_query of the same query.
+   */
   protected long getResultCount(Query aQuery) {
-    long resultCount = 0;
+    CatalogQuery catalogQuery =
+        catalogQueryCache.getQuery(aQuery.bqs_query, querySources, () -> getCatalogFilter(aQuery));
 
-    BqsConverter bqsConverter = new BqsConverter(filterBuilder, removeSourceLibrary);
+    Long hitCount = catalogQuery.getHitCount(() -> countResults(catalogQuery.getFilter()));
+    if (hitCount == null) {
+      return 0;
+    }
+    return hitCount;
+  }
+
+  private Long countResults(Filter filter) {
+    QueryResponse queryResponse = queryCatalog(filter, 1);
+    if (queryResponse == null) {
+      return null;
+    }
+    return queryResponse.getHits();
+  }
+
+  private synchronized RequestRegistry getRequestRegistry() {
+    if (requestRegistry == null) {
+      requestRegistry = new RequestRegistry(poa, RequestRegistry.DEFAULT_REQUEST_LIFETIME_SEC);
+      requestRegistry.startReaping();
+    }
+    return requestRegistry;
+  }
+
+  private Filter getCatalogFilter(Query aQuery) {
+    BqsConverter bqsConverter =
+        new BqsConverter(filterBuilder, removeSourceLibrary, bqsFilterCache);
     Filter parsedFilter = bqsConverter.convertBQSToDDF(aQuery);
 
     // Always need to ask for the DEFAULT_TAG or we get non-resource metacards
@@ -242,13 +327,17 @@ public class CatalogMgrImpl extends CatalogMgrPOA {
                       .text(MetacardVersion.Action.DELETED.getKey())));
     }
 
-    QueryImpl catalogQuery = new QueryImpl(parsedFilter);
+    return parsedFilter;
+  }
+
+  private QueryResponse queryCatalog(Filter filter, int pageSize) {
+    QueryImpl catalogQuery = new QueryImpl(filter);
 
     if (defaultTimeout > 0) {
       catalogQuery.setTimeoutMillis(defaultTimeout * 1000);
     }
 
-    catalogQuery.setPageSize(1);
+    catalogQuery.setPageSize(pageSize);
 
     QueryRequestImpl catalogQueryRequest = null;
     if (querySources == null || querySources.isEmpty()) {
@@ -258,26 +347,25 @@ public class CatalogMgrImpl extends CatalogMgrPOA {
     }
 
     try {
-      QueryCountCallable queryCallable = new QueryCountCallable(catalogQueryRequest);
-      resultCount = NsiliEndpoint.getGuestSubject().execute(queryCallable);
+      CatalogQueryCallable queryCallable = new CatalogQueryCallable(catalogQueryRequest);
+      return NsiliEndpoint.getGuestSubject().execute(queryCallable);
     } catch (Exception e) {
       LOGGER.debug("Unable to query catalog", e);
     }
 
-    return resultCount;
+    return null;
   }
 
-  class QueryCountCallable implements Callable<Long> {
+  class CatalogQueryCallable implements Callable<QueryResponse> {
     QueryRequestImpl catalogQueryRequest;
 
-    public QueryCountCallable(QueryRequestImpl catalogQueryRequest) {
+    public CatalogQueryCallable(QueryRequestImpl catalogQueryRequest) {
       this.catalogQueryRequest = catalogQueryRequest;
     }
 
     @Override
-    public Long call() throws Exception {
-      QueryResponse queryResponse = catalogFramework.query(catalogQueryRequest);
-      return queryResponse.getHits();
+    public QueryResponse call() throws Exception {
+      return catalogFramework.query(catalogQueryRequest);
     }
   }
 }
@@ -48,9 +48,9 @@ public class CreationMgrImpl extends CreationMgrPOA {
 
   private AccessManagerImpl accessManager = null;
 
-  private CatalogFramework catalogFramework;
+  private volatile CatalogFramework catalogFramework;
 
-  private FilterBuilder filterBuilder;
+  private volatile FilterBuilder filterBuilder;
 
   public void setCatalogFramework(CatalogFramework catalogFramework) {
     this.catalogFramework = catalogFramework;
@@ -137,7 +137,7 @@ public class CreationMgrImpl extends CreationMgrPOA {
     // This method is not expected to be called
   }
 
-  private AccessManagerImpl getAccessManager() {
+  private synchronized AccessManagerImpl getAccessManager() {
     if (accessManager == null) {
       accessManager = new AccessManagerImpl();
       accessManager.setCatalogFramework(catalogFramework);
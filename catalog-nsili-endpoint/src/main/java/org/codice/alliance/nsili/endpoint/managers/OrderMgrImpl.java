@@ -41,9 +41,11 @@ import org.codice.alliance.nsili.common.UCO.ProcessingFault;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
 import org.codice.alliance.nsili.common.UID.Product;
 import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
+import org.codice.alliance.nsili.endpoint.RequestRegistry;
 import org.codice.alliance.nsili.endpoint.requests.OrderRequestImpl;
 import org.codice.alliance.nsili.transformer.DAGConverter;
 import org.omg.CORBA.NO_IMPLEMENT;
+import org.omg.PortableServer.POA;
 import org.omg.PortableServer.POAPackage.ObjectAlreadyActive;
 import org.omg.PortableServer.POAPackage.ServantAlreadyActive;
 import org.omg.PortableServer.POAPackage.WrongPolicy;
@@ -52,28 +54,49 @@ import org.slf4j.LoggerFactory;
 public class OrderMgrImpl extends OrderMgrPOA {
   private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(OrderMgrImpl.class);
 
-  private AccessManagerImpl accessManager = null;
+  private volatile AccessManagerImpl accessManager = null;
 
-  private CatalogFramework catalogFramework;
+  private volatile CatalogFramework catalogFramework;
 
-  private FilterBuilder filterBuilder;
+  private volatile FilterBuilder filterBuilder;
 
-  private Set<String> querySources = new HashSet<>();
+  private volatile Set<String> querySources = new HashSet<>();
 
-  private EmailConfiguration emailConfiguration;
+  private volatile EmailConfiguration emailConfiguration;
 
-  public void setCatalogFramework(CatalogFramework catalogFramework) {
+  private volatile RequestRegistry requestRegistry;
+
+  private volatile POA productPoa;
+
+  public synchronized void setCatalogFramework(CatalogFramework catalogFramework) {
     this.catalogFramework = catalogFramework;
+    if (accessManager != null) {
+      accessManager.setCatalogFramework(catalogFramework);
+    }
   }
 
-  public void setFilterBuilder(FilterBuilder filterBuilder) {
+  public synchronized void setFilterBuilder(FilterBuilder filterBuilder) {
     this.filterBuilder = filterBuilder;
+    if (accessManager != null) {
+      accessManager.setFilterBuilder(filterBuilder);
+    }
   }
 
-  public void setQuerySources(Set<String> querySources) {
-    this.querySources.clear();
-    if (querySources != null) {
-      this.querySources.addAll(querySources);
+  public synchronized void setQuerySources(Set<String> querySources) {
+    this.querySources = querySources == null ? new HashSet<>() : new HashSet<>(querySources);
+    if (accessManager != null) {
+      accessManager.setQuerySources(querySources);
+    }
+  }
+
+  public void setRequestRegistry(RequestRegistry requestRegistry) {
+    this.requestRegistry = requestRegistry;
+  }
+
+  public synchronized void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+    if (accessManager != null) {
+      accessManager.setProductPoa(productPoa);
     }
   }
 
@@ -113,22 +136,15 @@ public class OrderMgrImpl extends OrderMgrPOA {
         new OrderRequestImpl(
             order, protocol, port, getAccessManager(), catalogFramework, emailConfiguration);
 
-    String id = UUID.randomUUID().toString();
+    OrderRequest orderRequest = null;
     try {
-      _poa()
-          .activate_object_with_id(
-              id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), orderRequestImpl);
+      org.omg.CORBA.Object obj =
+          getRequestRegistry().register(orderRequestImpl, OrderRequestHelper.id());
+      orderRequest = OrderRequestHelper.narrow(obj);
     } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
       LOGGER.debug("order : Unable to activate orderRequest object.", e);
     }
 
-    org.omg.CORBA.Object obj =
-        _poa()
-            .create_reference_with_id(
-                id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), OrderRequestHelper.id());
-
-    OrderRequest orderRequest = OrderRequestHelper.narrow(obj);
-
     return orderRequest;
   }
 
@@ -186,19 +202,29 @@ public class OrderMgrImpl extends OrderMgrPOA {
   @Override
   public int get_timeout(Request aRequest)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    return getAccessManager().get_timeout(aRequest);
+    // No request has been activated before the registry is created
+    Long remainingLifetime =
+        requestRegistry != null ? requestRegistry.getRemainingLifetime(aRequest) : null;
+    if (remainingLifetime == null) {
+      return getAccessManager().get_timeout(aRequest);
+    }
+    return remainingLifetime.intValue();
   }
 
   @Override
   public void set_timeout(Request aRequest, int new_lifetime)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    // This method is not expected to be called
+    if (requestRegistry == null || !requestRegistry.setLifetime(aRequest, new_lifetime)) {
+      LOGGER.debug("set_timeout : Request is not active");
+    }
   }
 
   @Override
   public void delete_request(Request aRequest)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    // This method is not expected to be called
+    if (requestRegistry == null || !requestRegistry.remove(aRequest)) {
+      LOGGER.debug("delete_request : Request is not active");
+    }
   }
 
   // LibraryMgr
@@ -218,12 +244,21 @@ public class OrderMgrImpl extends OrderMgrPOA {
     throw new NO_IMPLEMENT();
   }
 
-  private AccessManagerImpl getAccessManager() {
+  private synchronized RequestRegistry getRequestRegistry() {
+    if (requestRegistry == null) {
+      requestRegistry = new RequestRegistry(_poa(), RequestRegistry.DEFAULT_REQUEST_LIFETIME_SEC);
+      requestRegistry.startReaping();
+    }
+    return requestRegistry;
+  }
+
+  private synchronized AccessManagerImpl getAccessManager() {
     if (accessManager == null) {
       accessManager = new AccessManagerImpl();
       accessManager.setCatalogFramework(catalogFramework);
       accessManager.setFilterBuilder(filterBuilder);
       accessManager.setQuerySources(querySources);
+      accessManager.setProductPoa(productPoa);
 
       String managerId = UUID.randomUUID().toString();
       if (!CorbaUtils.isIdActive(
@@ -43,9 +43,11 @@ import org.codice.alliance.nsili.common.UCO.ProcessingFault;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
 import org.codice.alliance.nsili.common.UID.Product;
 import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
+import org.codice.alliance.nsili.endpoint.RequestRegistry;
 import org.codice.alliance.nsili.endpoint.requests.GetParametersRequestImpl;
 import org.codice.alliance.nsili.endpoint.requests.GetRelatedFilesRequestImpl;
 import org.omg.CORBA.NO_IMPLEMENT;
+import org.omg.PortableServer.POA;
 import org.omg.PortableServer.POAPackage.ObjectAlreadyActive;
 import org.omg.PortableServer.POAPackage.ServantAlreadyActive;
 import org.omg.PortableServer.POAPackage.WrongAdapter;
@@ -64,15 +66,19 @@ public class ProductMgrImpl extends ProductMgrPOA {
 
   private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(ProductMgrImpl.class);
 
-  private CatalogFramework catalogFramework;
+  private volatile CatalogFramework catalogFramework;
 
-  private FilterBuilder filterBuilder;
+  private volatile FilterBuilder filterBuilder;
 
-  private Set<String> querySources;
+  private volatile Set<String> querySources;
 
-  private AccessManagerImpl accessManager;
+  private volatile AccessManagerImpl accessManager;
 
-  private boolean outgoingValidationEnabled;
+  private volatile boolean outgoingValidationEnabled;
+
+  private volatile RequestRegistry requestRegistry;
+
+  private volatile POA productPoa;
 
   public ProductMgrImpl(Set<String> querySources) {
     if (querySources != null) {
@@ -80,18 +86,42 @@ public class ProductMgrImpl extends ProductMgrPOA {
     }
   }
 
-  public void setCatalogFramework(CatalogFramework catalogFramework) {
+  public synchronized void setCatalogFramework(CatalogFramework catalogFramework) {
     this.catalogFramework = catalogFramework;
+    if (accessManager != null) {
+      accessManager.setCatalogFramework(catalogFramework);
+    }
   }
 
-  public void setFilterBuilder(FilterBuilder filterBuilder) {
+  public synchronized void setFilterBuilder(FilterBuilder filterBuilder) {
     this.filterBuilder = filterBuilder;
+    if (accessManager != null) {
+      accessManager.setFilterBuilder(filterBuilder);
+    }
+  }
+
+  public synchronized void setQuerySources(Set<String> querySources) {
+    this.querySources = querySources == null ? null : new HashSet<>(querySources);
+    if (accessManager != null) {
+      accessManager.setQuerySources(querySources);
+    }
   }
 
   public void setOutgoingValidationEnabled(boolean outgoingValidationEnabled) {
     this.outgoingValidationEnabled = outgoingValidationEnabled;
   }
 
+  public void setRequestRegistry(RequestRegistry requestRegistry) {
+    this.requestRegistry = requestRegistry;
+  }
+
+  public synchronized void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+    if (accessManager != null) {
+      accessManager.setProductPoa(productPoa);
+    }
+  }
+
   @Override
   public GetParametersRequest get_parameters(
       Product prod, String[] desired_parameters, NameValue[] properties)
@@ -99,8 +129,6 @@ public class ProductMgrImpl extends ProductMgrPOA {
 
     GetParametersRequest getParamRequest = null;
 
-    String id = UUID.randomUUID().toString();
-
     try {
       String productIdStr = getAccessManager().getProductId(prod);
 
@@ -112,15 +140,10 @@ public class ProductMgrImpl extends ProductMgrPOA {
               filterBuilder,
               querySources,
               outgoingValidationEnabled);
-      _poa()
-          .activate_object_with_id(
-              id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), getParametersRequest);
+      getParametersRequest.setProductPoa(productPoa != null ? productPoa : _poa());
 
       org.omg.CORBA.Object obj =
-          _poa()
-              .create_reference_with_id(
-                  id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)),
-                  GetParametersRequestHelper.id());
+          getRequestRegistry().register(getParametersRequest, GetParametersRequestHelper.id());
       getParamRequest = GetParametersRequestHelper.narrow(obj);
 
     } catch (WrongAdapter | WrongPolicy | UnsupportedEncodingException e) {
@@ -148,7 +171,7 @@ public class ProductMgrImpl extends ProductMgrPOA {
   public GetRelatedFilesRequest get_related_files(
       Product[] products, FileLocation location, String type, NameValue[] properties)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    String id = UUID.randomUUID().toString();
+    GetRelatedFilesRequest queryRequest = null;
 
     try {
       List<Metacard> metacards = new ArrayList<>();
@@ -163,9 +186,9 @@ public class ProductMgrImpl extends ProductMgrPOA {
       Integer port = getPort(properties);
       GetRelatedFilesRequestImpl getRelatedFilesRequest =
           new GetRelatedFilesRequestImpl(metacards, location, type, port);
-      _poa()
-          .activate_object_with_id(
-              id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), getRelatedFilesRequest);
+      org.omg.CORBA.Object obj =
+          getRequestRegistry().register(getRelatedFilesRequest, GetRelatedFilesRequestHelper.id());
+      queryRequest = GetRelatedFilesRequestHelper.narrow(obj);
     } catch (ServantAlreadyActive
         | ObjectAlreadyActive
         | WrongPolicy
@@ -174,13 +197,6 @@ public class ProductMgrImpl extends ProductMgrPOA {
       LOGGER.debug("get_related_files : Unable to activate getRelatedFilesRequest object.", e);
     }
 
-    org.omg.CORBA.Object obj =
-        _poa()
-            .create_reference_with_id(
-                id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)),
-                GetRelatedFilesRequestHelper.id());
-    GetRelatedFilesRequest queryRequest = GetRelatedFilesRequestHelper.narrow(obj);
-
     return queryRequest;
   }
 
@@ -238,19 +254,29 @@ public class ProductMgrImpl extends ProductMgrPOA {
   @Override
   public int get_timeout(Request aRequest)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    return TIMEOUT;
+    // No request has been activated before the registry is created
+    Long remainingLifetime =
+        requestRegistry != null ? requestRegistry.getRemainingLifetime(aRequest) : null;
+    if (remainingLifetime == null) {
+      return TIMEOUT;
+    }
+    return remainingLifetime.intValue();
   }
 
   @Override
   public void set_timeout(Request aRequest, int new_lifetime)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    // This method is not expected to be called
+    if (requestRegistry == null || !requestRegistry.setLifetime(aRequest, new_lifetime)) {
+      LOGGER.debug("set_timeout : Request is not active");
+    }
   }
 
   @Override
   public void delete_request(Request aRequest)
       throws ProcessingFault, InvalidInputParameter, SystemFault {
-    // This method is not expected to be called
+    if (requestRegistry == null || !requestRegistry.remove(aRequest)) {
+      LOGGER.debug("delete_request : Request is not active");
+    }
   }
 
   // LibraryMgr
@@ -286,12 +312,21 @@ public class ProductMgrImpl extends ProductMgrPOA {
     return port;
   }
 
-  private AccessManagerImpl getAccessManager() {
+  private synchronized RequestRegistry getRequestRegistry() {
+    if (requestRegistry == null) {
+      requestRegistry = new RequestRegistry(_poa(), RequestRegistry.DEFAULT_REQUEST_LIFETIME_SEC);
+      requestRegistry.startReaping();
+    }
+    return requestRegistry;
+  }
+
+  private synchronized AccessManagerImpl getAccessManager() {
     if (accessManager == null) {
       accessManager = new AccessManagerImpl();
       accessManager.setCatalogFramework(catalogFramework);
       accessManager.setFilterBuilder(filterBuilder);
       accessManager.setQuerySources(querySources);
+      accessManager.setProductPoa(productPoa);
 
       String managerId = UUID.randomUUID().toString();
       if (!CorbaUtils.isIdActive(
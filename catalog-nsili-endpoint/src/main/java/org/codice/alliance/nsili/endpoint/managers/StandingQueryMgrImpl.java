@@ -14,12 +14,23 @@
 package org.codice.alliance.nsili.endpoint.managers;
 
 import ddf.catalog.CatalogFramework;
+import ddf.catalog.data.Metacard;
 import ddf.catalog.filter.FilterBuilder;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.codice.alliance.nsili.common.BqsConverter;
+import org.codice.alliance.nsili.common.BqsFilterCache;
 import org.codice.alliance.nsili.common.GIAS.Event;
 import org.codice.alliance.nsili.common.GIAS.Library;
 import org.codice.alliance.nsili.common.GIAS.NamedEventType;
@@ -27,6 +38,7 @@ import org.codice.alliance.nsili.common.GIAS.Query;
 import org.codice.alliance.nsili.common.GIAS.QueryLifeSpan;
 import org.codice.alliance.nsili.common.GIAS.Request;
 import org.codice.alliance.nsili.common.GIAS.SortAttribute;
+import org.codice.alliance.nsili.common.GIAS.StandingQueryMgrHelper;
 import org.codice.alliance.nsili.common.GIAS.StandingQueryMgrPOA;
 import org.codice.alliance.nsili.common.GIAS.SubmitStandingQueryRequest;
 import org.codice.alliance.nsili.common.GIAS.SubmitStandingQueryRequestHelper;
@@ -35,9 +47,12 @@ import org.codice.alliance.nsili.common.UCO.NameValue;
 import org.codice.alliance.nsili.common.UCO.ProcessingFault;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
 import org.codice.alliance.nsili.common.UCO.exception_details;
-import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
+import org.codice.alliance.nsili.endpoint.RequestRegistry;
+import org.codice.alliance.nsili.endpoint.StandingQueryScheduler;
+import org.codice.alliance.nsili.endpoint.requests.StandingQueryGroup;
 import org.codice.alliance.nsili.endpoint.requests.SubmitStandingQueryRequestImpl;
 import org.omg.CORBA.NO_IMPLEMENT;
+import org.omg.PortableServer.POA;
 import org.omg.PortableServer.POAPackage.ObjectAlreadyActive;
 import org.omg.PortableServer.POAPackage.ServantAlreadyActive;
 import org.omg.PortableServer.POAPackage.WrongPolicy;
@@ -45,32 +60,65 @@ import org.slf4j.LoggerFactory;
 
 public class StandingQueryMgrImpl extends StandingQueryMgrPOA {
 
+  public static final int DEFAULT_MAX_LONG_POLLS = 16;
+
+  public static final int DEFAULT_MAX_RESULTS_IN_MEMORY = 1000;
+
+  public static final int DEFAULT_MAX_TOTAL_RESULTS_IN_MEMORY = 100000;
+
   private static final org.slf4j.Logger LOGGER =
       LoggerFactory.getLogger(StandingQueryMgrImpl.class);
 
   private Event[] eventTypes;
 
-  private CatalogFramework catalogFramework;
+  private volatile CatalogFramework catalogFramework;
+
+  private volatile FilterBuilder filterBuilder;
+
+  private volatile long defaultUpdateFrequencyMsec;
+
+  private volatile int maxPendingResults;
+
+  private volatile Set<String> querySources = new HashSet<>();
+
+  private volatile Set<String> attributeOverrides = new HashSet<>();
+
+  private volatile Set<String> attributeExclusions = new HashSet<>();
+
+  private volatile boolean removeSourceLibrary;
+
+  private volatile boolean outgoingValidationEnabled;
 
-  private FilterBuilder filterBuilder;
+  private volatile long maxWaitToStartTimeMsecs;
 
-  private long defaultUpdateFrequencyMsec;
+  private volatile long defaultTimeout = AccessManagerImpl.DEFAULT_TIMEOUT;
 
-  private int maxPendingResults;
+  private volatile BqsFilterCache bqsFilterCache;
 
-  private Set<String> querySources = new HashSet<>();
+  private volatile POA productPoa;
 
-  private Set<String> attributeOverrides = new HashSet<>();
+  private StandingQueryScheduler standingQueryScheduler;
 
-  private Set<String> attributeExclusions = new HashSet<>();
+  private volatile RequestRegistry requestRegistry;
 
-  private boolean removeSourceLibrary;
+  private volatile boolean matchOnIngest;
 
-  private boolean outgoingValidationEnabled;
+  private int maxLongPolls = DEFAULT_MAX_LONG_POLLS;
 
-  private long maxWaitToStartTimeMsecs;
+  private volatile Semaphore longPollPermits = new Semaphore(DEFAULT_MAX_LONG_POLLS);
 
-  private long defaultTimeout = AccessManagerImpl.DEFAULT_TIMEOUT;
+  private volatile int maxResultsInMemory = DEFAULT_MAX_RESULTS_IN_MEMORY;
+
+  private int maxTotalResultsInMemory = DEFAULT_MAX_TOTAL_RESULTS_IN_MEMORY;
+
+  private volatile Semaphore sharedResultBudget =
+      new Semaphore(DEFAULT_MAX_TOTAL_RESULTS_IN_MEMORY);
+
+  private final Map<String, StandingQueryGroup> standingQueryGroups = new HashMap<>();
+
+  private final Queue<IngestedBatch> ingestedBatches = new ConcurrentLinkedQueue<>();
+
+  private final AtomicBoolean matchingIngested = new AtomicBoolean();
 
   public StandingQueryMgrImpl(
       Set<String> querySources, Set<String> attributeOverrides, Set<String> attributeExclusions) {
@@ -94,6 +142,20 @@ public class StandingQueryMgrImpl extends StandingQueryMgrPOA {
     this.filterBuilder = filterBuilder;
   }
 
+  public void setQuerySources(Set<String> querySources) {
+    this.querySources = querySources == null ? new HashSet<>() : new HashSet<>(querySources);
+  }
+
+  public void setAttributeOverrides(Set<String> attributeOverrides) {
+    this.attributeOverrides =
+        attributeOverrides == null ? new HashSet<>() : new HashSet<>(attributeOverrides);
+  }
+
+  public void setAttributeExclusions(Set<String> attributeExclusions) {
+    this.attributeExclusions =
+        attributeExclusions == null ? new HashSet<>() : new HashSet<>(attributeExclusions);
+  }
+
   public void setDefaultUpdateFrequencyMsec(long defaultUpdateFrequencyMsec) {
     this.defaultUpdateFrequencyMsec = defaultUpdateFrequencyMsec;
   }
@@ -106,6 +168,18 @@ public class StandingQueryMgrImpl extends StandingQueryMgrPOA {
     this.removeSourceLibrary = removeSourceLibrary;
   }
 
+  public void setBqsFilterCache(BqsFilterCache bqsFilterCache) {
+    this.bqsFilterCache = bqsFilterCache;
+  }
+
+  public void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+  }
+
+  public void setRequestRegistry(RequestRegistry requestRegistry) {
+    this.requestRegistry = requestRegistry;
+  }
+
   public void setOutgoingValidationEnabled(boolean outgoingValidationEnabled) {
     this.outgoingValidationEnabled = outgoingValidationEnabled;
   }
@@ -114,6 +188,58 @@ public class StandingQueryMgrImpl extends StandingQueryMgrPOA {
     this.maxWaitToStartTimeMsecs = maxWaitToStartTimeMsecs;
   }
 
+  /**
+   * Sets the scheduler that runs the standing queries. One with the default number of threads is
+   * created if none is set.
+   */
+  public synchronized void setStandingQueryScheduler(
+      StandingQueryScheduler standingQueryScheduler) {
+    this.standingQueryScheduler = standingQueryScheduler;
+  }
+
+  /**
+   * Sets whether standing queries against the local catalog are matched against ingested
+   * metacards instead of polling the catalog every update interval. Only applies to standing
+   * queries submitted afterwards.
+   */
+  public void setMatchOnIngest(boolean matchOnIngest) {
+    this.matchOnIngest = matchOnIngest;
+  }
+
+  /**
+   * Sets how many clients can wait for results in complete_DAG_results at once, across all
+   * standing queries. Other clients get an immediate answer when there are no results, and
+   * get_remaining_delay tells them when to ask again.
+   *
+   * @param maxLongPolls - maximum number of waiting clients, 0 to never wait
+   */
+  public synchronized void setMaxLongPolls(int maxLongPolls) {
+    if (maxLongPolls != this.maxLongPolls) {
+      this.maxLongPolls = maxLongPolls;
+      longPollPermits = new Semaphore(Math.max(0, maxLongPolls));
+    }
+  }
+
+  /**
+   * Sets how many pending results each standing query keeps in memory. The rest are spilled to
+   * disk until the client retrieves them. Only applies to standing queries submitted afterwards.
+   */
+  public void setMaxResultsInMemory(int maxResultsInMemory) {
+    this.maxResultsInMemory = maxResultsInMemory;
+  }
+
+  /**
+   * Sets how many pending results all standing queries together keep in memory. Once it is
+   * reached, new results are spilled to disk even if a standing query is under its own limit.
+   * Only applies to standing queries submitted afterwards.
+   */
+  public synchronized void setMaxTotalResultsInMemory(int maxTotalResultsInMemory) {
+    if (maxTotalResultsInMemory != this.maxTotalResultsInMemory) {
+      this.maxTotalResultsInMemory = maxTotalResultsInMemory;
+      sharedResultBudget = new Semaphore(Math.max(0, maxTotalResultsInMemory));
+    }
+  }
+
   protected void init() {
     LOGGER.trace("StandingQueryMgrImpl.init() called");
     NamedEventType startEventType = NamedEventType.from_int(NamedEventType._START_EVENT);
@@ -171,6 +297,7 @@ public class StandingQueryMgrImpl extends StandingQueryMgrPOA {
 
     LOGGER.debug("Registering Standing Query View: {}, BQS: {}", aQuery.view, aQuery.bqs_query);
 
+    Set<String> sources = querySources;
     SubmitStandingQueryRequestImpl standingQueryRequest =
         new SubmitStandingQueryRequestImpl(
             aQuery,
@@ -181,34 +308,159 @@ public class StandingQueryMgrImpl extends StandingQueryMgrPOA {
             catalogFramework,
             filterBuilder,
             defaultUpdateFrequencyMsec,
-            querySources,
+            sources,
             maxPendingResults,
-            removeSourceLibrary,
+            new BqsConverter(filterBuilder, removeSourceLibrary, bqsFilterCache),
             outgoingValidationEnabled,
             maxWaitToStartTimeMsecs);
+    standingQueryRequest.setProductPoa(productPoa);
+    standingQueryRequest.setLongPollPermits(longPollPermits);
+    standingQueryRequest.setResultMemoryBudget(maxResultsInMemory, sharedResultBudget);
 
-    String id = UUID.randomUUID().toString();
+    standingQueryRequest.setRequestManager(StandingQueryMgrHelper.narrow(_this_object()));
+
+    SubmitStandingQueryRequest submitStandingQueryRequest;
     try {
-      _poa()
-          .activate_object_with_id(
-              id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), standingQueryRequest);
+      RequestRegistry registry = getRequestRegistry();
+      org.omg.CORBA.Object obj =
+          registry.register(
+              standingQueryRequest,
+              SubmitStandingQueryRequestHelper.id(),
+              getRequestLifetimeSec(standingQueryRequest, registry));
+      submitStandingQueryRequest = SubmitStandingQueryRequestHelper.narrow(obj);
     } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
       LOGGER.debug(
           "submit_standing_query : Unable to activate submitStandingQueryRequest object.", e);
+      return null;
     }
 
-    org.omg.CORBA.Object obj =
-        _poa()
-            .create_reference_with_id(
-                id.getBytes(Charset.forName(NsiliEndpoint.ENCODING)),
-                SubmitStandingQueryRequestHelper.id());
-
-    SubmitStandingQueryRequest submitStandingQueryRequest =
-        SubmitStandingQueryRequestHelper.narrow(obj);
+    // Only start polling once the request is active, its results are activated through it
+    addToStandingQueryGroup(
+        standingQueryRequest,
+        StandingQueryGroup.getKey(aQuery, updatedAttributes, sources, defaultUpdateFrequencyMsec),
+        matchOnIngest && (sources == null || sources.isEmpty()));
 
     return submitStandingQueryRequest;
   }
 
+  /** @return the number of groups the standing queries are polled in */
+  public int getStandingQueryGroupCount() {
+    synchronized (standingQueryGroups) {
+      return standingQueryGroups.size();
+    }
+  }
+
+  /**
+   * Hands metacards ingested into the local catalog to the standing queries that match on ingest.
+   * They are matched on the standing query scheduler rather than the ingesting thread, one batch at
+   * a time in the order they were ingested.
+   *
+   * @param metacards - the created, updated and deleted metacards, with the version action set on
+   *     the updated and deleted ones
+   */
+  public void matchIngested(List<Metacard> metacards) {
+    ingestedBatches.add(new IngestedBatch(metacards, System.currentTimeMillis()));
+    scheduleIngestMatching();
+  }
+
+  private void scheduleIngestMatching() {
+    if (ingestedBatches.isEmpty() || !matchingIngested.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      getStandingQueryScheduler().execute(this::matchIngestedBatches);
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Standing query scheduler has been shut down, ingested metacards are dropped");
+      ingestedBatches.clear();
+      matchingIngested.set(false);
+    }
+  }
+
+  private void matchIngestedBatches() {
+    try {
+      IngestedBatch batch;
+      while ((batch = ingestedBatches.poll()) != null) {
+        List<StandingQueryGroup> groups;
+        synchronized (standingQueryGroups) {
+          groups = new ArrayList<>(standingQueryGroups.values());
+        }
+        for (StandingQueryGroup group : groups) {
+          try {
+            group.matchIngested(batch.metacards, batch.ingestTime);
+          } catch (RuntimeException e) {
+            LOGGER.info("Unable to match ingested metacards against a standing query", e);
+          }
+        }
+      }
+    } finally {
+      matchingIngested.set(false);
+    }
+
+    // Batches added after the queue was drained but before the flag was cleared
+    scheduleIngestMatching();
+  }
+
+  /**
+   * Standing queries with the same view, BQS query, result attributes and sources are polled
+   * together, so the catalog is only queried once per interval for all of them.
+   */
+  private void addToStandingQueryGroup(
+      SubmitStandingQueryRequestImpl request, String key, boolean groupMatchesOnIngest) {
+    synchronized (standingQueryGroups) {
+      StandingQueryGroup group = standingQueryGroups.get(key);
+      if (group == null
+          || group.isMatchOnIngest() != groupMatchesOnIngest
+          || !group.subscribe(request)) {
+        group =
+            new StandingQueryGroup(
+                key,
+                getStandingQueryScheduler(),
+                defaultUpdateFrequencyMsec,
+                groupMatchesOnIngest,
+                this::removeStandingQueryGroup);
+        standingQueryGroups.put(key, group);
+        group.subscribe(request);
+      }
+    }
+  }
+
+  private void removeStandingQueryGroup(StandingQueryGroup group) {
+    synchronized (standingQueryGroups) {
+      standingQueryGroups.remove(group.getKey(), group);
+    }
+  }
+
+  /**
+   * Standing queries without an end run until they are deleted. The others are kept for a request
+   * lifetime past their end, so the client can still retrieve the last results.
+   */
+  private static long getRequestLifetimeSec(
+      SubmitStandingQueryRequestImpl request, RequestRegistry registry) {
+    long endTime = request.getEndTime();
+    long lifetimeSec = registry.getRequestLifetimeSec();
+    if (endTime < 0 || lifetimeSec < 0) {
+      return -1;
+    }
+    long remainingMsec = Math.max(0, endTime - System.currentTimeMillis());
+    return TimeUnit.MILLISECONDS.toSeconds(remainingMsec) + lifetimeSec;
+  }
+
+  private synchronized RequestRegistry getRequestRegistry() {
+    if (requestRegistry == null) {
+      requestRegistry = new RequestRegistry(_poa(), RequestRegistry.DEFAULT_REQUEST_LIFETIME_SEC);
+      requestRegistry.startReaping();
+    }
+    return requestRegistry;
+  }
+
+  private synchronized StandingQueryScheduler getStandingQueryScheduler() {
+    if (standingQueryScheduler == null) {
+      standingQueryScheduler = new StandingQueryScheduler(StandingQueryScheduler.DEFAULT_THREADS);
+    }
+    return standingQueryScheduler;
+  }
+
   @Override
   public String[] get_property_names() throws ProcessingFault, SystemFault {
     LOGGER.trace("get_property_names called - throwing NO_IMPLEMENT exception");
@@ -251,19 +503,45 @@ public class StandingQueryMgrImpl extends StandingQueryMgrPOA {
   @Override
   public int get_timeout(Request aRequest)
       throws InvalidInputParameter, ProcessingFault, SystemFault {
-    LOGGER.trace("get_timeout called - returning {}", defaultTimeout);
-    return (int) defaultTimeout;
+    LOGGER.trace("get_timeout called");
+    // No request has been activated before the registry is created
+    Long remainingLifetime =
+        requestRegistry != null ? requestRegistry.getRemainingLifetime(aRequest) : null;
+    if (remainingLifetime == null) {
+      return (int) defaultTimeout;
+    }
+    return remainingLifetime.intValue();
   }
 
   @Override
   public void set_timeout(Request aRequest, int new_lifetime)
       throws InvalidInputParameter, ProcessingFault, SystemFault {
-    LOGGER.trace("set_timeout called - this is a noop");
+    LOGGER.trace("set_timeout called with {}", new_lifetime);
+    if (requestRegistry == null || !requestRegistry.setLifetime(aRequest, new_lifetime)) {
+      LOGGER.debug("set_timeout : Request is not active");
+    }
   }
 
   @Override
   public void delete_request(Request aRequest)
       throws InvalidInputParameter, ProcessingFault, SystemFault {
-    LOGGER.trace("delete_request called - this is a noop");
+    LOGGER.trace("delete_request called");
+    // Releasing the request stops its standing query and frees its pending results
+    if (requestRegistry == null || !requestRegistry.remove(aRequest)) {
+      LOGGER.debug("delete_request : Request is not active");
+    }
+  }
+
+  /** Metacards ingested together and when they were handed to the manager. */
+  private static class IngestedBatch {
+
+    private final List<Metacard> metacards;
+
+    private final long ingestTime;
+
+    IngestedBatch(List<Metacard> metacards, long ingestTime) {
+      this.metacards = metacards;
+      this.ingestTime = ingestTime;
+    }
   }
 }
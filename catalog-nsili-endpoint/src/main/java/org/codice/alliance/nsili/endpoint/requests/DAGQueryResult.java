@@ -23,6 +23,8 @@ public class DAGQueryResult {
 
   private long timeOfResult;
 
+  private int spilledSize = 0;
+
   public DAGQueryResult(long timeOfResult, List<DAG> results) {
     if (results != null) {
       this.results.addAll(results);
@@ -30,10 +32,32 @@ public class DAGQueryResult {
     this.timeOfResult = timeOfResult;
   }
 
+  /** @return the results held in memory, empty if they have been spilled to disk */
   public List<DAG> getResults() {
     return results;
   }
 
+  /** @return the number of results, whether they are in memory or spilled to disk */
+  public int size() {
+    return isSpilled() ? spilledSize : results.size();
+  }
+
+  public boolean isSpilled() {
+    return spilledSize > 0;
+  }
+
+  /** Drops the results from memory once they have been written to disk. */
+  void spill() {
+    spilledSize = results.size();
+    results = new ArrayList<>();
+  }
+
+  /** Puts the results read back from disk in memory. */
+  void load(List<DAG> loadedResults) {
+    results = new ArrayList<>(loadedResults);
+    spilledSize = 0;
+  }
+
   public long getTimeOfResult() {
     return timeOfResult;
   }
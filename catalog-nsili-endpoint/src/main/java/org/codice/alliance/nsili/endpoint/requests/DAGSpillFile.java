@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint.requests;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.codice.alliance.nsili.common.UCO.DAG;
+import org.codice.alliance.nsili.common.UCO.DAGHelper;
+import org.omg.CORBA.Any;
+import org.omg.CORBA.ORB;
+import org.omg.CORBA.ORBPackage.InvalidName;
+import org.omg.CORBA.UserException;
+import org.omg.IOP.Codec;
+import org.omg.IOP.CodecFactory;
+import org.omg.IOP.CodecFactoryHelper;
+import org.omg.IOP.CodecFactoryPackage.UnknownEncoding;
+import org.omg.IOP.ENCODING_CDR_ENCAPS;
+import org.omg.IOP.Encoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only file of DAGs that did not fit in memory. DAGs are written as CDR encapsulations, so
+ * the object references in them survive the round trip, and are read back in the order they were
+ * written. The file is deleted when it is closed, and files that are still open when the endpoint
+ * is destroyed are deleted by {@link #closeAll()}.
+ */
+public class DAGSpillFile implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DAGSpillFile.class);
+
+  private static final Set<DAGSpillFile> OPEN_FILES = ConcurrentHashMap.newKeySet();
+
+  private final ORB orb;
+
+  private final Codec codec;
+
+  private final Path file;
+
+  private final DataOutputStream output;
+
+  private final DataInputStream input;
+
+  DAGSpillFile(ORB orb, Codec codec, Path file) throws IOException {
+    this.orb = orb;
+    this.codec = codec;
+    this.file = file;
+    this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+    this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+  }
+
+  /**
+   * Creates a spill file in the temporary directory.
+   *
+   * @param orb - the ORB the DAGs were built with, used to encode and decode them
+   */
+  public static DAGSpillFile create(ORB orb) throws IOException {
+    Codec codec;
+    try {
+      CodecFactory codecFactory =
+          CodecFactoryHelper.narrow(orb.resolve_initial_references("CodecFactory"));
+      codec =
+          codecFactory.create_codec(new Encoding(ENCODING_CDR_ENCAPS.value, (byte) 1, (byte) 2));
+    } catch (InvalidName | UnknownEncoding e) {
+      throw new IOException("Unable to create a codec for the DAGs", e);
+    }
+
+    Path file = Files.createTempFile("nsili-standing-query-", ".dags");
+    LOGGER.debug("Spilling standing query results to {}", file);
+    DAGSpillFile spillFile;
+    try {
+      spillFile = new DAGSpillFile(orb, codec, file);
+    } catch (IOException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+    OPEN_FILES.add(spillFile);
+    return spillFile;
+  }
+
+  /** Closes, and so deletes, all of the spill files that are still open. */
+  public static void closeAll() {
+    new ArrayList<>(OPEN_FILES).forEach(DAGSpillFile::close);
+  }
+
+  /**
+   * Appends the DAGs to the end of the file. Nothing is written if any of the DAGs can't be
+   * encoded.
+   */
+  public void append(List<DAG> dags) throws IOException {
+    List<byte[]> encodedDags = new ArrayList<>(dags.size());
+    for (DAG dag : dags) {
+      Any any = orb.create_any();
+      DAGHelper.insert(any, dag);
+      encodedDags.add(encode(any));
+    }
+
+    for (byte[] bytes : encodedDags) {
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+    output.flush();
+  }
+
+  /** Reads the next DAGs, in the order they were appended. */
+  public List<DAG> read(int count) throws IOException {
+    List<DAG> dags = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte[] bytes = new byte[input.readInt()];
+      input.readFully(bytes);
+      dags.add(DAGHelper.extract(decode(bytes)));
+    }
+    return dags;
+  }
+
+  /** Skips the next DAGs without decoding them. */
+  public void skip(int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      int length = input.readInt();
+      if (input.skipBytes(length) != length) {
+        throw new IOException("Spill file ended before the skipped DAGs");
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    OPEN_FILES.remove(this);
+    closeStream(output);
+    closeStream(input);
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOGGER.debug("Unable to delete spill file {}", file, e);
+    }
+  }
+
+  private void closeStream(Closeable stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to close spill file {}", file, e);
+    }
+  }
+
+  private byte[] encode(Any any) throws IOException {
+    try {
+      return codec.encode_value(any);
+    } catch (UserException e) {
+      throw new IOException("Unable to encode DAG", e);
+    }
+  }
+
+  private Any decode(byte[] bytes) throws IOException {
+    try {
+      return codec.decode_value(bytes, DAGHelper.type());
+    } catch (UserException e) {
+      throw new IOException("Unable to decode DAG", e);
+    }
+  }
+}
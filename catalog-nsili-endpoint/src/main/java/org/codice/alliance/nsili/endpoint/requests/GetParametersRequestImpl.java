@@ -53,6 +53,8 @@ import org.codice.alliance.nsili.common.UCO.SystemFault;
 import org.codice.alliance.nsili.common.datamodel.NsiliDataModel;
 import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
 import org.omg.CORBA.NO_IMPLEMENT;
+import org.omg.CORBA.ORB;
+import org.omg.PortableServer.POA;
 import org.opengis.filter.Filter;
 import org.slf4j.LoggerFactory;
 
@@ -73,6 +75,8 @@ public class GetParametersRequestImpl extends GetParametersRequestPOA {
 
   private boolean outgoingValidationEnabled;
 
+  private POA productPoa;
+
   public GetParametersRequestImpl(
       String productIdStr,
       String[] desiredParameters,
@@ -90,6 +94,11 @@ public class GetParametersRequestImpl extends GetParametersRequestPOA {
     this.outgoingValidationEnabled = outgoingValidationEnabled;
   }
 
+  /** Sets the POA the product is activated in. Defaults to the POA of this request. */
+  public void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+  }
+
   @Override
   public State complete(DAGHolder parameters) throws ProcessingFault, SystemFault {
     Filter filter = filterBuilder.attribute(Metacard.ID).is().equalTo().text(productIdStr);
@@ -100,18 +109,20 @@ public class GetParametersRequestImpl extends GetParametersRequestPOA {
       return State.COMPLETED;
     }
 
-    Map<String, List<String>> mandatoryAttributes = new HashMap<>();
+    Map<String, Set<String>> mandatoryAttributes = new HashMap<>();
 
     if (outgoingValidationEnabled) {
-      NsiliDataModel nsiliDataModel = new NsiliDataModel();
-      mandatoryAttributes = nsiliDataModel.getRequiredAttrsForView(NsiliConstants.NSIL_ALL_VIEW);
+      mandatoryAttributes =
+          NsiliDataModel.getInstance().getRequiredAttrsForView(NsiliConstants.NSIL_ALL_VIEW);
     }
+    ORB orb = _orb();
+    POA poa = productPoa != null ? productPoa : _poa();
     try {
       if (desiredParameters != null) {
         if (isParamContained(desiredParameters, "ALL")) {
           parameters.value =
               ResultDAGConverter.convertResult(
-                  result, _orb(), _poa(), new ArrayList<>(), mandatoryAttributes);
+                  result, orb, poa, new ArrayList<>(), mandatoryAttributes);
         } else if (isParamContained(desiredParameters, "CORE")) {
           throw new NO_IMPLEMENT("CORE desired_parameter not supported");
         } else if (isParamContained(desiredParameters, "ORDER")) {
@@ -119,13 +130,13 @@ public class GetParametersRequestImpl extends GetParametersRequestPOA {
         } else {
           parameters.value =
               ResultDAGConverter.convertResult(
-                  result, _orb(), _poa(), Arrays.asList(desiredParameters), mandatoryAttributes);
+                  result, orb, poa, Arrays.asList(desiredParameters), mandatoryAttributes);
         }
       } else {
         if (result != null) {
           parameters.value =
               ResultDAGConverter.convertResult(
-                  result, _orb(), _poa(), new ArrayList<>(), mandatoryAttributes);
+                  result, orb, poa, new ArrayList<>(), mandatoryAttributes);
         }
       }
     } catch (DagParsingException dpe) {
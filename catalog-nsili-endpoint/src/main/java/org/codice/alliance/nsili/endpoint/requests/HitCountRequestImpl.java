@@ -13,6 +13,7 @@
  */
 package org.codice.alliance.nsili.endpoint.requests;
 
+import java.util.function.IntSupplier;
 import org.codice.alliance.nsili.common.CB.Callback;
 import org.codice.alliance.nsili.common.GIAS.DelayEstimate;
 import org.codice.alliance.nsili.common.GIAS.HitCountRequestPOA;
@@ -29,13 +30,29 @@ public class HitCountRequestImpl extends HitCountRequestPOA {
 
   private int numberOfHits = 0;
 
+  private IntSupplier hitCounter;
+
   public HitCountRequestImpl(int numberOfHits) {
     this.numberOfHits = numberOfHits;
   }
 
+  /**
+   * Creates a request that counts the hits when it is first completed, so that no catalog query
+   * runs for requests that are never completed.
+   *
+   * @param hitCounter - counts the hits of the query
+   */
+  public HitCountRequestImpl(IntSupplier hitCounter) {
+    this.hitCounter = hitCounter;
+  }
+
   @Override
-  public State complete(org.omg.CORBA.IntHolder number_of_hits)
+  public synchronized State complete(org.omg.CORBA.IntHolder number_of_hits)
       throws ProcessingFault, SystemFault {
+    if (hitCounter != null) {
+      numberOfHits = hitCounter.getAsInt();
+      hitCounter = null;
+    }
     number_of_hits.value = numberOfHits;
     return State.COMPLETED;
   }
@@ -13,55 +13,126 @@
  */
 package org.codice.alliance.nsili.endpoint.requests;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
 import org.codice.alliance.nsili.common.UCO.DAG;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * The pending results of a standing query, in the order they were added. Only a limited number of
+ * results are kept in memory, counted against both this buffer's own limit and a budget shared by
+ * all standing queries. Results that don't fit are appended to a spill file and read back in when
+ * they are retrieved.
+ *
+ * <p>The spill file is only used under the spill lock, which is always taken before the data lock,
+ * so encoding and disk I/O never hold up callers that only need the data lock.
+ */
 public class StandingQueryData {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(StandingQueryData.class);
+
   private int totalSize = 0;
 
   private List<DAGQueryResult> resultOfResultsList = new ArrayList<>();
 
   private final Object dataLockObj = new Object();
 
+  private final Object spillLockObj = new Object();
+
+  private final int maxResultsInMemory;
+
+  private final Semaphore sharedResultBudget;
+
+  private final SpillFileFactory spillFileFactory;
+
+  private int resultsInMemory = 0;
+
+  private int sharedResultsReserved = 0;
+
+  private DAGSpillFile spillFile;
+
+  /** Creates a buffer that keeps all of its results in memory. */
+  public StandingQueryData() {
+    this(Integer.MAX_VALUE, null, null);
+  }
+
+  /**
+   * @param maxResultsInMemory - maximum number of results this buffer keeps in memory
+   * @param sharedResultBudget - permits for the results kept in memory by all standing queries,
+   *     null for no shared limit
+   * @param spillFileFactory - creates the file results are spilled to, null to keep all results
+   *     in memory
+   */
+  public StandingQueryData(
+      int maxResultsInMemory, Semaphore sharedResultBudget, SpillFileFactory spillFileFactory) {
+    this.maxResultsInMemory = maxResultsInMemory;
+    this.sharedResultBudget = sharedResultBudget;
+    this.spillFileFactory = spillFileFactory;
+  }
+
   public int size() {
     synchronized (dataLockObj) {
       return totalSize;
     }
   }
 
-  public void clearAll() {
+  /** @return the number of results held in memory */
+  public int getResultsInMemory() {
     synchronized (dataLockObj) {
-      resultOfResultsList.clear();
-      totalSize = 0;
+      return resultsInMemory;
+    }
+  }
+
+  /** Drops all of the results, giving back their memory and deleting the spill file. */
+  public void clearAll() {
+    synchronized (spillLockObj) {
+      synchronized (dataLockObj) {
+        resultOfResultsList.clear();
+        totalSize = 0;
+        releaseMemory(resultsInMemory);
+      }
+      closeSpillFile();
     }
   }
 
   public void clearIntervals(int num_intervals) {
-    synchronized (dataLockObj) {
-      Iterator<DAGQueryResult> resultListIT = resultOfResultsList.iterator();
-      int currItem = 0;
-      while (resultListIT.hasNext() && currItem < num_intervals) {
-        totalSize = totalSize - resultListIT.next().getResults().size();
-        resultListIT.remove();
-        currItem++;
+    synchronized (spillLockObj) {
+      int spilledCleared = 0;
+      synchronized (dataLockObj) {
+        Iterator<DAGQueryResult> resultListIT = resultOfResultsList.iterator();
+        int currItem = 0;
+        while (resultListIT.hasNext() && currItem < num_intervals) {
+          spilledCleared += remove(resultListIT.next());
+          resultListIT.remove();
+          currItem++;
+        }
       }
+      skipSpilled(spilledCleared);
     }
   }
 
   public void clearBefore(long time) {
-    synchronized (dataLockObj) {
-      long offsetTime = System.currentTimeMillis() - time;
-      Iterator<DAGQueryResult> resultIT = resultOfResultsList.iterator();
-      while (resultIT.hasNext()) {
-        DAGQueryResult result = resultIT.next();
-        if (result.getTimeOfResult() < offsetTime) {
-          totalSize = totalSize - resultIT.next().getResults().size();
+    synchronized (spillLockObj) {
+      int spilledCleared = 0;
+      synchronized (dataLockObj) {
+        long offsetTime = System.currentTimeMillis() - time;
+        Iterator<DAGQueryResult> resultIT = resultOfResultsList.iterator();
+        while (resultIT.hasNext()) {
+          DAGQueryResult result = resultIT.next();
+          // Results are added in time order, so only the oldest ones are cleared
+          if (result.getTimeOfResult() >= offsetTime) {
+            break;
+          }
+          spilledCleared += remove(result);
           resultIT.remove();
         }
       }
+      skipSpilled(spilledCleared);
     }
   }
 
@@ -73,8 +144,8 @@ public class StandingQueryData {
 
   public int getNumberOfHitsInInterval(int interval) {
     synchronized (dataLockObj) {
-      if (resultOfResultsList.size() >= interval) {
-        return resultOfResultsList.get(interval).getResults().size();
+      if (resultOfResultsList.size() > interval) {
+        return resultOfResultsList.get(interval).size();
       } else {
         return 0;
       }
@@ -82,45 +153,274 @@ public class StandingQueryData {
   }
 
   public void add(DAGQueryResult queryResult) {
+    int resultSize = queryResult.size();
     synchronized (dataLockObj) {
-      resultOfResultsList.add(queryResult);
-      totalSize += queryResult.getResults().size();
+      boolean reserved = reserveMemory(resultSize);
+      if (reserved || spillFileFactory == null) {
+        // Better to go over the budget than to lose the results
+        addResult(queryResult, !reserved);
+        return;
+      }
+    }
+
+    // Spilled results are added while holding the spill lock, so they are in the same order in
+    // the list as in the spill file
+    synchronized (spillLockObj) {
+      boolean spilled = spill(queryResult);
+      synchronized (dataLockObj) {
+        // Kept in memory over the budget if it couldn't be spilled
+        addResult(queryResult, !spilled);
+      }
     }
   }
 
-  public List<DAG> getResultData(int maxNumResults) {
+  /**
+   * Waits until results are available, the timeout runs out, or the waiter no longer wants to
+   * wait. Callers that change what keepWaiting returns need to call {@link #wakeWaiters()}.
+   *
+   * @param timeoutMsec - maximum time to wait
+   * @param keepWaiting - checked each time the waiter is woken up
+   * @return true if results are available
+   */
+  public boolean awaitResults(long timeoutMsec, BooleanSupplier keepWaiting)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMsec;
     synchronized (dataLockObj) {
-      List<DAG> dagResults = new ArrayList<>();
-      if (totalSize <= maxNumResults) {
-        for (DAGQueryResult result : resultOfResultsList) {
-          dagResults.addAll(result.getResults());
+      while (totalSize == 0 && keepWaiting.getAsBoolean()) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
         }
-        resultOfResultsList.clear();
-        totalSize = 0;
+        dataLockObj.wait(remaining);
+      }
+      return totalSize > 0;
+    }
+  }
+
+  /** Wakes up everyone waiting for results so they can check whether to keep waiting. */
+  public void wakeWaiters() {
+    synchronized (dataLockObj) {
+      dataLockObj.notifyAll();
+    }
+  }
+
+  public List<DAG> getResultData(int maxNumResults) {
+    List<DAG> dagResults = new ArrayList<>();
+    while (true) {
+      synchronized (dataLockObj) {
+        takeResultsInMemory(dagResults, maxNumResults);
+        if (dagResults.size() >= maxNumResults || resultOfResultsList.isEmpty()) {
+          return dagResults;
+        }
+      }
+      // The next result is spilled, read it back in without holding the data lock
+      loadNextSpilled();
+    }
+  }
+
+  /**
+   * Takes results from the front of the list until the next one is spilled or enough have been
+   * taken. Must hold the data lock.
+   */
+  private void takeResultsInMemory(List<DAG> dagResults, int maxNumResults) {
+    Iterator<DAGQueryResult> resultIT = resultOfResultsList.iterator();
+    while (resultIT.hasNext() && dagResults.size() < maxNumResults) {
+      DAGQueryResult result = resultIT.next();
+      if (result.isSpilled()) {
+        return;
+      }
+
+      List<DAG> results = result.getResults();
+      int remainingCountNeeded = maxNumResults - dagResults.size();
+      if (results.size() <= remainingCountNeeded) {
+        dagResults.addAll(results);
+        totalSize = totalSize - results.size();
+        releaseMemory(results.size());
+        resultIT.remove();
       } else {
-        int remainingCountNeeded = maxNumResults;
-        Iterator<DAGQueryResult> resultIT = resultOfResultsList.iterator();
-        while (resultIT.hasNext() && remainingCountNeeded > 0) {
-          DAGQueryResult result = resultIT.next();
-          List<DAG> results = result.getResults();
-          if (results.size() <= remainingCountNeeded) {
-            dagResults.addAll(result.getResults());
-            remainingCountNeeded = remainingCountNeeded - results.size();
-            totalSize = totalSize - results.size();
-            resultIT.remove();
-          } else {
-            Iterator<DAG> dagResultIT = result.getResults().iterator();
-            while (dagResultIT.hasNext() && remainingCountNeeded > 0) {
-              dagResults.add(dagResultIT.next());
-              dagResultIT.remove();
-              remainingCountNeeded--;
-              totalSize--;
-            }
-          }
+        Iterator<DAG> dagResultIT = results.iterator();
+        while (dagResultIT.hasNext() && dagResults.size() < maxNumResults) {
+          dagResults.add(dagResultIT.next());
+          dagResultIT.remove();
+          totalSize--;
+          releaseMemory(1);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a result that is either spilled, in memory within the budget, or in memory over the
+   * budget. Must hold the data lock.
+   */
+  private void addResult(DAGQueryResult queryResult, boolean overBudget) {
+    int resultSize = queryResult.size();
+    if (overBudget) {
+      resultsInMemory += resultSize;
+    }
+    resultOfResultsList.add(queryResult);
+    totalSize += resultSize;
+    if (totalSize > 0) {
+      dataLockObj.notifyAll();
+    }
+  }
+
+  /**
+   * Accounts for a result that is being cleared. Must hold the data lock.
+   *
+   * @return the number of cleared results that have to be skipped in the spill file
+   */
+  private int remove(DAGQueryResult result) {
+    totalSize = totalSize - result.size();
+    if (!result.isSpilled()) {
+      releaseMemory(result.size());
+      return 0;
+    }
+    return result.size();
+  }
+
+  /**
+   * Skips cleared results in the spill file. The cleared results are always the oldest ones
+   * spilled, so next in the file. Must hold the spill lock.
+   */
+  private void skipSpilled(int count) {
+    if (count > 0) {
+      try {
+        spillFile.skip(count);
+      } catch (IOException e) {
+        LOGGER.info("Unable to skip cleared results in the spill file", e);
+        dropSpilledResults();
+        return;
+      }
+    }
+    closeSpillFileIfUnused();
+  }
+
+  /** Must hold the data lock. */
+  private boolean reserveMemory(int resultSize) {
+    if (resultSize > maxResultsInMemory - resultsInMemory) {
+      return false;
+    }
+    if (sharedResultBudget != null) {
+      if (!sharedResultBudget.tryAcquire(resultSize)) {
+        return false;
+      }
+      sharedResultsReserved += resultSize;
+    }
+    resultsInMemory += resultSize;
+    return true;
+  }
+
+  /** Must hold the data lock. */
+  private void releaseMemory(int resultSize) {
+    resultsInMemory -= resultSize;
+    int sharedResultsReleased = Math.min(resultSize, sharedResultsReserved);
+    if (sharedResultBudget != null && sharedResultsReleased > 0) {
+      sharedResultBudget.release(sharedResultsReleased);
+      sharedResultsReserved -= sharedResultsReleased;
+    }
+  }
+
+  /** Must hold the spill lock, but not the data lock. */
+  private boolean spill(DAGQueryResult result) {
+    try {
+      if (spillFile == null) {
+        spillFile = spillFileFactory.create();
+      }
+      spillFile.append(result.getResults());
+    } catch (IOException | RuntimeException e) {
+      LOGGER.info("Unable to spill standing query results to disk, keeping them in memory", e);
+      return false;
+    }
+    result.spill();
+    LOGGER.trace("Spilled {} results to disk", result.size());
+    return true;
+  }
+
+  /**
+   * Reads the oldest spilled result back into memory. Only the spill lock is held while reading,
+   * and spilled results are only removed while holding it, so the result is still there to load.
+   */
+  private void loadNextSpilled() {
+    synchronized (spillLockObj) {
+      DAGQueryResult result;
+      synchronized (dataLockObj) {
+        result =
+            resultOfResultsList
+                .stream()
+                .filter(DAGQueryResult::isSpilled)
+                .findFirst()
+                .orElse(null);
+      }
+      if (result == null) {
+        // Another caller read it in first
+        return;
+      }
+
+      int resultSize = result.size();
+      List<DAG> dags;
+      try {
+        dags = spillFile.read(resultSize);
+      } catch (IOException | RuntimeException e) {
+        LOGGER.info("Unable to read standing query results back from disk, dropping them", e);
+        dropSpilledResults();
+        return;
+      }
+
+      synchronized (dataLockObj) {
+        result.load(dags);
+        // Results that are about to be retrieved are kept in memory even when over the budget
+        if (!reserveMemory(resultSize)) {
+          resultsInMemory += resultSize;
+        }
+      }
+      closeSpillFileIfUnused();
+    }
+  }
+
+  /**
+   * Drops the spilled results once the spill file can no longer be read. Must hold the spill lock.
+   */
+  private void dropSpilledResults() {
+    LOGGER.debug("Dropping the standing query results in the spill file");
+    synchronized (dataLockObj) {
+      Iterator<DAGQueryResult> resultIT = resultOfResultsList.iterator();
+      while (resultIT.hasNext()) {
+        DAGQueryResult result = resultIT.next();
+        if (result.isSpilled()) {
+          totalSize -= result.size();
+          resultIT.remove();
         }
       }
+    }
+    closeSpillFile();
+  }
+
+  /** Closes the spill file once none of the results are in it. Must hold the spill lock. */
+  private void closeSpillFileIfUnused() {
+    if (spillFile == null) {
+      return;
+    }
+    synchronized (dataLockObj) {
+      if (resultOfResultsList.stream().anyMatch(DAGQueryResult::isSpilled)) {
+        return;
+      }
+    }
+    closeSpillFile();
+  }
 
-      return dagResults;
+  /** Must hold the spill lock. */
+  private void closeSpillFile() {
+    if (spillFile != null) {
+      spillFile.close();
+      spillFile = null;
     }
   }
+
+  /** Creates the file results are spilled to the first time one is needed. */
+  @FunctionalInterface
+  public interface SpillFileFactory {
+
+    DAGSpillFile create() throws IOException;
+  }
 }
@@ -0,0 +1,449 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint.requests;
+
+import ddf.catalog.core.versioning.MetacardVersion;
+import ddf.catalog.data.Attribute;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.Result;
+import ddf.catalog.data.impl.ResultImpl;
+import ddf.catalog.operation.QueryResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.codice.alliance.nsili.common.GIAS.Query;
+import org.codice.alliance.nsili.common.UCO.DAG;
+import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
+import org.codice.alliance.nsili.endpoint.StandingQueryScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the catalog for all of the standing queries with the same view, BQS query, result
+ * attributes and sources, and hands the converted results to each of them. Every subscriber keeps
+ * its own watermark and lifespan: a new subscriber gets all of the matching results on the next
+ * poll while the others only get what changed since they last received results.
+ *
+ * <p>When matching on ingest, the group is given the metacards created, updated and deleted in the
+ * local catalog and hands the matching ones straight to its subscribers. The catalog is then only
+ * queried for new subscribers and for subscribers that could not take ingested results when they
+ * arrived, because they were paused, not started, full or being polled at the time.
+ */
+public class StandingQueryGroup implements StandingQueryScheduler.Poll {
+
+  /** Results changed this long before a watermark are returned again, as clocks may differ. */
+  private static final long WATERMARK_OVERLAP_MSEC = 1000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StandingQueryGroup.class);
+
+  private final String key;
+
+  private final long updateRateMsec;
+
+  private final boolean matchOnIngest;
+
+  private final Consumer<StandingQueryGroup> stopListener;
+
+  private final List<SubmitStandingQueryRequestImpl> subscribers = new CopyOnWriteArrayList<>();
+
+  private final StandingQueryScheduler.ScheduledPoll scheduledPoll;
+
+  private boolean stopped = false;
+
+  private final Object ingestLock = new Object();
+
+  /** Subscribers that missed ingested results, guarded by the ingest lock. */
+  private final Set<SubmitStandingQueryRequestImpl> behindSubscribers = new HashSet<>();
+
+  /** Subscribers the current poll is for, guarded by the ingest lock. */
+  private List<SubmitStandingQueryRequestImpl> pollSubscribers = Collections.emptyList();
+
+  private long pollStartTime;
+
+  private long queryTime;
+
+  private boolean moreResultsAvailOnLastQuery = false;
+
+  private int startIndex = 1;
+
+  private int pageSize = NsiliEndpoint.DEFAULT_MAX_NUM_RESULTS;
+
+  /**
+   * @param key - the key of the standing queries in the group, from {@link #getKey}
+   * @param scheduler - runs the group's polls
+   * @param updateRateMsec - time between polls
+   * @param matchOnIngest - true if the group is given the ingested metacards of the catalog it
+   *     queries, so it only polls for subscribers that need to catch up
+   * @param stopListener - called once the last subscriber has left and the group has stopped
+   */
+  public StandingQueryGroup(
+      String key,
+      StandingQueryScheduler scheduler,
+      long updateRateMsec,
+      boolean matchOnIngest,
+      Consumer<StandingQueryGroup> stopListener) {
+    this.key = key;
+    this.updateRateMsec = updateRateMsec;
+    this.matchOnIngest = matchOnIngest;
+    this.stopListener = stopListener;
+    this.scheduledPoll = scheduler.schedule(this, updateRateMsec);
+  }
+
+  /**
+   * Returns the key standing queries are grouped by. Whitespace outside of quoted literals is not
+   * significant in the BQS query, and the order of the result attributes and sources is not
+   * significant either.
+   */
+  public static String getKey(
+      Query query, String[] resultAttributes, Set<String> querySources, long updateRateMsec) {
+    return query.view
+        + "|"
+        + normalizeBqs(query.bqs_query)
+        + "|"
+        + sortedList(resultAttributes == null ? null : Arrays.asList(resultAttributes))
+        + "|"
+        + sortedList(querySources)
+        + "|"
+        + updateRateMsec;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public boolean isMatchOnIngest() {
+    return matchOnIngest;
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  public long getNextExecutionTime() {
+    return scheduledPoll.getNextExecutionTime();
+  }
+
+  /**
+   * Adds a standing query to the group. Its first poll is run right away rather than at the
+   * group's next interval.
+   *
+   * @return false if the group has already stopped, in which case the request needs a new group
+   */
+  public boolean subscribe(SubmitStandingQueryRequestImpl request) {
+    synchronized (this) {
+      if (stopped) {
+        return false;
+      }
+      subscribers.add(request);
+      request.setGroup(this);
+    }
+
+    LOGGER.debug(
+        "Standing query {} added to a group with {} subscribers",
+        request.getId(),
+        subscribers.size());
+    scheduledPoll.runNow();
+    return true;
+  }
+
+  /** Removes a standing query from the group, stopping the group if it was the last one. */
+  public void unsubscribe(SubmitStandingQueryRequestImpl request) {
+    synchronized (this) {
+      if (!subscribers.remove(request)) {
+        return;
+      }
+      synchronized (ingestLock) {
+        behindSubscribers.remove(request);
+      }
+      if (!subscribers.isEmpty()) {
+        return;
+      }
+      stopped = true;
+      scheduledPoll.cancel();
+    }
+
+    LOGGER.debug("Last standing query left the group, stopping it");
+    stopListener.accept(this);
+  }
+
+  /** Polls as soon as possible instead of at the next interval. */
+  public void runNow() {
+    scheduledPoll.runNow();
+  }
+
+  /**
+   * Hands the ingested metacards that match the group's query to the subscribers that are ready
+   * for them. Does nothing unless the group matches on ingest.
+   *
+   * @param metacards - the created, updated and deleted metacards, with the version action set on
+   *     the updated and deleted ones
+   * @param ingestTime - when the metacards were ingested, the watermark of the subscribers that are
+   *     handed them
+   */
+  public void matchIngested(List<Metacard> metacards, long ingestTime) {
+    SubmitStandingQueryRequestImpl matcher = subscribers.stream().findFirst().orElse(null);
+    if (!matchOnIngest || matcher == null) {
+      return;
+    }
+
+    List<Result> matches =
+        metacards
+            .stream()
+            .filter(matcher::matches)
+            .map(ResultImpl::new)
+            .collect(Collectors.toList());
+    if (matches.isEmpty()) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    List<SubmitStandingQueryRequestImpl> readySubscribers = getReadySubscribers(now);
+    List<SubmitStandingQueryRequestImpl> receivers = new ArrayList<>();
+    synchronized (ingestLock) {
+      for (SubmitStandingQueryRequestImpl subscriber : subscribers) {
+        if (readySubscribers.contains(subscriber) && isUpToDate(subscriber)) {
+          receivers.add(subscriber);
+        } else if (subscriber.isRunning()) {
+          // Picked up from the catalog by its next poll instead
+          behindSubscribers.add(subscriber);
+        }
+      }
+    }
+    LOGGER.debug(
+        "{} ingested metacards matched, handing them to {} of {} standing queries",
+        matches.size(),
+        receivers.size(),
+        subscribers.size());
+    if (receivers.isEmpty()) {
+      return;
+    }
+
+    List<DAG> dags = new ArrayList<>(matches.size());
+    for (Result result : matcher.massageResults(matches)) {
+      DAG dag = matcher.convertResult(result);
+      if (dag != null) {
+        dags.add(dag);
+      }
+    }
+    receivers.forEach(subscriber -> subscriber.addResults(dags));
+
+    // They have everything changed up to the ingest, so their next poll doesn't return it again
+    synchronized (ingestLock) {
+      receivers.forEach(
+          subscriber -> subscriber.setWatermark(Math.max(subscriber.getWatermark(), ingestTime)));
+    }
+  }
+
+  @Override
+  public long poll() {
+    // Don't want to change the subscribers or the query time until all of the results from the
+    // last query have been processed
+    if (!moreResultsAvailOnLastQuery) {
+      long now = System.currentTimeMillis();
+      List<SubmitStandingQueryRequestImpl> readySubscribers = getReadySubscribers(now);
+      synchronized (ingestLock) {
+        pollSubscribers =
+            readySubscribers
+                .stream()
+                .filter(subscriber -> !matchOnIngest || !isUpToDate(subscriber))
+                .collect(Collectors.toList());
+        behindSubscribers.removeAll(pollSubscribers);
+      }
+      if (pollSubscribers.isEmpty()) {
+        LOGGER.trace("No standing queries need results from the catalog");
+        return isStopped() ? -1 : updateRateMsec;
+      }
+
+      // A subscriber without a watermark needs all of the results, so the query is not limited
+      pollStartTime = now;
+      queryTime =
+          pollSubscribers
+                  .stream()
+                  .mapToLong(SubmitStandingQueryRequestImpl::getWatermark)
+                  .min()
+                  .orElse(0)
+              - WATERMARK_OVERLAP_MSEC;
+    }
+
+    List<ChangedResult> changedResults = getChangedResults(pollSubscribers.get(0));
+    if (changedResults == null) {
+      // Try again from the start next time, without moving any watermarks
+      moreResultsAvailOnLastQuery = false;
+      startIndex = 1;
+      endPoll(false);
+      return updateRateMsec;
+    }
+
+    for (SubmitStandingQueryRequestImpl subscriber : pollSubscribers) {
+      if (subscriber.isRunning()) {
+        long changedAfter = subscriber.getWatermark() - WATERMARK_OVERLAP_MSEC;
+        subscriber.addResults(
+            changedResults
+                .stream()
+                .filter(changedResult -> changedResult.isChangedAfter(changedAfter))
+                .map(changedResult -> changedResult.dag)
+                .collect(Collectors.toList()));
+      }
+    }
+
+    // Don't wait if more results available. Need clients to pick up results as fast
+    // as possible to catch up.
+    if (moreResultsAvailOnLastQuery) {
+      LOGGER.debug("More results available - continuing to process");
+      return 0;
+    }
+
+    endPoll(true);
+    LOGGER.debug("No more results available yet - waiting until next update");
+    return updateRateMsec;
+  }
+
+  private List<SubmitStandingQueryRequestImpl> getReadySubscribers(long now) {
+    return subscribers
+        .stream()
+        .filter(subscriber -> subscriber.isReadyForResults(now))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Returns true if the subscriber has all of the results so far and is not being polled, so
+   * ingested results can be handed straight to it. Must hold the ingest lock.
+   */
+  private boolean isUpToDate(SubmitStandingQueryRequestImpl subscriber) {
+    return subscriber.getWatermark() > 0
+        && !behindSubscribers.contains(subscriber)
+        && !pollSubscribers.contains(subscriber);
+  }
+
+  private void endPoll(boolean succeeded) {
+    synchronized (ingestLock) {
+      if (succeeded) {
+        pollSubscribers.forEach(subscriber -> subscriber.setWatermark(pollStartTime));
+      } else if (matchOnIngest) {
+        behindSubscribers.addAll(pollSubscribers);
+      }
+      pollSubscribers = Collections.emptyList();
+    }
+  }
+
+  private synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  /**
+   * Runs the next page of the query through one of the subscribers; they all build the same
+   * query and DAGs.
+   *
+   * @return the converted results, or null if the catalog could not be queried
+   */
+  private List<ChangedResult> getChangedResults(SubmitStandingQueryRequestImpl subscriber) {
+    QueryResponse queryResponse = subscriber.queryCatalog(queryTime, startIndex, pageSize);
+    if (queryResponse == null) {
+      return null;
+    }
+
+    int numHits = (int) queryResponse.getHits();
+    List<Result> results = queryResponse.getResults();
+    int origResultSize = results.size();
+    int accumResults = origResultSize + (startIndex - 1);
+    LOGGER.trace(
+        "Query returned {} results, total hits handled: {} of {}",
+        origResultSize,
+        accumResults,
+        numHits);
+
+    if (origResultSize > 0 && accumResults < numHits) {
+      moreResultsAvailOnLastQuery = true;
+      startIndex = accumResults + 1;
+    } else {
+      moreResultsAvailOnLastQuery = false;
+      startIndex = 1;
+    }
+    LOGGER.trace("Set startIndex to {}", startIndex);
+
+    List<Result> massagedResults = subscriber.massageResults(results);
+    LOGGER.debug("Converting {} results to DAG format", massagedResults.size());
+    List<ChangedResult> changedResults = new ArrayList<>(massagedResults.size());
+    for (Result result : massagedResults) {
+      DAG dag = subscriber.convertResult(result);
+      if (dag != null) {
+        changedResults.add(new ChangedResult(getChangeTime(result.getMetacard()), dag));
+      }
+    }
+    return changedResults;
+  }
+
+  private static Date getChangeTime(Metacard metacard) {
+    Attribute versionedOn = metacard.getAttribute(MetacardVersion.VERSIONED_ON);
+    if (versionedOn != null && versionedOn.getValue() instanceof Date) {
+      return (Date) versionedOn.getValue();
+    }
+    return metacard.getModifiedDate();
+  }
+
+  private static String normalizeBqs(String bqsQuery) {
+    StringBuilder normalized = new StringBuilder(bqsQuery.length());
+    boolean quoted = false;
+    boolean pendingSpace = false;
+    for (char c : bqsQuery.trim().toCharArray()) {
+      if (!quoted && Character.isWhitespace(c)) {
+        pendingSpace = true;
+        continue;
+      }
+      if (pendingSpace) {
+        normalized.append(' ');
+        pendingSpace = false;
+      }
+      if (c == '\'') {
+        quoted = !quoted;
+      }
+      normalized.append(c);
+    }
+    return normalized.toString();
+  }
+
+  private static String sortedList(Collection<String> values) {
+    Set<String> sortedValues = new TreeSet<>();
+    if (values != null) {
+      sortedValues.addAll(values);
+    }
+    return String.join(",", sortedValues);
+  }
+
+  /** A converted result and the time it was last changed, if known. */
+  private static class ChangedResult {
+
+    private final Date changeTime;
+
+    private final DAG dag;
+
+    ChangedResult(Date changeTime, DAG dag) {
+      this.changeTime = changeTime;
+      this.dag = dag;
+    }
+
+    boolean isChangedAfter(long time) {
+      return changeTime == null || changeTime.getTime() > time;
+    }
+  }
+}
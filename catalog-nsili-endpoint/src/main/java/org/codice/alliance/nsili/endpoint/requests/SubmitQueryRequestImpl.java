@@ -31,6 +31,13 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import org.apache.shiro.subject.ExecutionException;
 import org.codice.alliance.nsili.common.BqsConverter;
 import org.codice.alliance.nsili.common.CB.Callback;
@@ -42,6 +49,7 @@ import org.codice.alliance.nsili.common.GIAS.SubmitQueryRequestPOA;
 import org.codice.alliance.nsili.common.GIAS._RequestManagerStub;
 import org.codice.alliance.nsili.common.NsilCorbaExceptionUtil;
 import org.codice.alliance.nsili.common.NsiliConstants;
+import org.codice.alliance.nsili.common.ResultAttributeProjection;
 import org.codice.alliance.nsili.common.ResultDAGConverter;
 import org.codice.alliance.nsili.common.UCO.DAG;
 import org.codice.alliance.nsili.common.UCO.DAGListHolder;
@@ -53,14 +61,20 @@ import org.codice.alliance.nsili.common.UCO.Status;
 import org.codice.alliance.nsili.common.UCO.StringDAGListHolder;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
 import org.codice.alliance.nsili.common.datamodel.NsiliDataModel;
+import org.codice.alliance.nsili.endpoint.CatalogQueryCache;
 import org.codice.alliance.nsili.endpoint.LibraryImpl;
 import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
+import org.codice.alliance.nsili.endpoint.RequestRegistry;
 import org.omg.CORBA.NO_IMPLEMENT;
+import org.omg.CORBA.ORB;
+import org.omg.PortableServer.POA;
 import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA {
+public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA
+    implements RequestRegistry.Releasable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SubmitQueryRequestImpl.class);
 
@@ -82,10 +96,34 @@ public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA {
 
   private Map<String, Callback> callbacks = new HashMap<>();
 
-  private List<String> resultAttributes = new ArrayList<>();
+  private ResultAttributeProjection resultAttributes = ResultAttributeProjection.ALL;
 
   private boolean outgoingValidationEnabled;
 
+  private Executor dagConversionExecutor;
+
+  private CatalogQueryCache catalogQueryCache = new CatalogQueryCache(0);
+
+  private POA productPoa;
+
+  private SortBy sortBy;
+
+  private Filter catalogFilter;
+
+  private boolean morePagesAvailable;
+
+  private ExecutorService prefetchExecutor;
+
+  private int pagesRequested;
+
+  private Future<QueryResponse> nextPage;
+
+  private int nextPageOffset;
+
+  private int nextPageSize;
+
+  private boolean released;
+
   public SubmitQueryRequestImpl(
       Query query,
       FilterBuilder filterBuilder,
@@ -121,14 +159,51 @@ public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA {
 
   public void setResultAttributes(String[] resultAttributes) {
     if (resultAttributes != null) {
-      this.resultAttributes.addAll(Arrays.asList(resultAttributes));
+      this.resultAttributes = ResultAttributeProjection.compile(Arrays.asList(resultAttributes));
     }
   }
 
+  /** @param sortBy - the order to return results in, null for the catalog's default order */
+  public void setSortBy(SortBy sortBy) {
+    this.sortBy = sortBy;
+  }
+
   public void setOutgoingValidationEnabled(boolean outgoingValidationEnabled) {
     this.outgoingValidationEnabled = outgoingValidationEnabled;
   }
 
+  /**
+   * Sets the executor used to convert query results to DAGs. When no executor is set the results
+   * are converted on the calling thread.
+   *
+   * @param dagConversionExecutor - executor to convert results with, may be null
+   */
+  public void setDagConversionExecutor(Executor dagConversionExecutor) {
+    this.dagConversionExecutor = dagConversionExecutor;
+  }
+
+  /**
+   * Sets the executor the next page is fetched on while the client works through the current one.
+   * Nothing is prefetched when no executor is set.
+   *
+   * @param prefetchExecutor - executor to prefetch pages with, may be null
+   */
+  public void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+    this.prefetchExecutor = prefetchExecutor;
+  }
+
+  public void setCatalogQueryCache(CatalogQueryCache catalogQueryCache) {
+    this.catalogQueryCache = catalogQueryCache;
+  }
+
+  /**
+   * Sets the POA the products of the results are activated in. Defaults to the POA of this
+   * request, which only works if the request and the access managers share a POA.
+   */
+  public void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+  }
+
   @Override
   public State complete_DAG_results(DAGListHolder results) throws ProcessingFault, SystemFault {
     DAG[] noResults = new DAG[0];
@@ -136,33 +211,43 @@ public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA {
 
     List<DAG> dags = new ArrayList<>();
     int totalHits = 0;
+    pagesRequested++;
     List<Result> queryResults = getResults(query, totalHitsReturned);
 
     LOGGER.debug("Query: {} return NSILI results: {}", query.bqs_query, queryResults.size());
 
-    Map<String, List<String>> mandatoryAttributes = new HashMap<>();
+    Map<String, Set<String>> mandatoryAttributes = new HashMap<>();
     if (outgoingValidationEnabled) {
-      NsiliDataModel nsiliDataModel = new NsiliDataModel();
-      mandatoryAttributes = nsiliDataModel.getRequiredAttrsForView(NsiliConstants.NSIL_ALL_VIEW);
+      mandatoryAttributes =
+          NsiliDataModel.getInstance().getRequiredAttrsForView(NsiliConstants.NSIL_ALL_VIEW);
     }
-    for (Result result : queryResults) {
-      try {
-        DAG dag =
-            ResultDAGConverter.convertResult(
-                result, _orb(), _poa(), resultAttributes, mandatoryAttributes);
+    ORB orb = _orb();
+    POA poa = productPoa != null ? productPoa : _poa();
+    int nextResult = 0;
+    while (nextResult < queryResults.size() && totalHits < maxNumReturnedHits) {
+      // Only convert as many results as are still needed, so nothing past the cutoff is activated
+      int lastResult = Math.min(queryResults.size(), nextResult + maxNumReturnedHits - totalHits);
+      List<CompletableFuture<DAG>> conversions = new ArrayList<>();
+      for (Result result : queryResults.subList(nextResult, lastResult)) {
+        conversions.add(convertResult(result, orb, poa, mandatoryAttributes));
+      }
+
+      for (CompletableFuture<DAG> conversion : conversions) {
+        DAG dag = getConvertedDag(conversion);
         if (dag != null) {
           dags.add(dag);
           totalHits++;
           totalHitsReturned++;
         }
-      } catch (DagParsingException dpe) {
-        LOGGER.debug("DAG could not be parsed and will not be returned to caller:", dpe);
       }
+      nextResult = lastResult;
+    }
 
-      if (totalHits >= maxNumReturnedHits) {
-        break;
-      }
+    // Most clients only read the first page, only prefetch for the ones that are paging through
+    if (morePagesAvailable && pagesRequested > 1) {
+      prefetchPage(query, totalHitsReturned);
     }
+
     if (!dags.isEmpty()) {
       results.value = dags.toArray(new DAG[0]);
       LOGGER.debug(
@@ -248,9 +333,137 @@ public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA {
     }
   }
 
+  private CompletableFuture<DAG> convertResult(
+      Result result, ORB orb, POA poa, Map<String, Set<String>> mandatoryAttributes) {
+    Executor executor = dagConversionExecutor != null ? dagConversionExecutor : Runnable::run;
+    try {
+      return CompletableFuture.supplyAsync(
+          () -> convertResultToDag(result, orb, poa, mandatoryAttributes), executor);
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("DAG conversion executor is not accepting work, converting on this thread");
+      return CompletableFuture.supplyAsync(
+          () -> convertResultToDag(result, orb, poa, mandatoryAttributes), Runnable::run);
+    }
+  }
+
+  private DAG convertResultToDag(
+      Result result, ORB orb, POA poa, Map<String, Set<String>> mandatoryAttributes) {
+    try {
+      return ResultDAGConverter.convertResult(
+          result, orb, poa, resultAttributes, mandatoryAttributes);
+    } catch (DagParsingException dpe) {
+      LOGGER.debug("DAG could not be parsed and will not be returned to caller:", dpe);
+    }
+    return null;
+  }
+
+  private DAG getConvertedDag(CompletableFuture<DAG> conversion) {
+    try {
+      return conversion.join();
+    } catch (CompletionException e) {
+      LOGGER.debug("Unable to convert result to a DAG, it will not be returned to caller", e);
+    }
+    return null;
+  }
+
   protected List<Result> getResults(Query aQuery, int offset) {
     List<Result> results = new ArrayList<>();
 
+    QueryResponse queryResponse = getPage(aQuery, offset);
+
+    if (queryResponse != null && queryResponse.getResults() != null) {
+      morePagesAvailable = queryResponse.getResults().size() >= maxNumReturnedHits;
+      results.addAll(LibraryImpl.getLatestResults(queryResponse.getResults()));
+    } else {
+      morePagesAvailable = false;
+    }
+
+    return results;
+  }
+
+  @Override
+  public synchronized void release() {
+    released = true;
+    if (nextPage != null) {
+      nextPage.cancel(true);
+      nextPage = null;
+    }
+    catalogFilter = null;
+  }
+
+  /**
+   * Returns the page of results at the offset. The catalog filter is only built once per request,
+   * and the page fetched in the background after the previous call is used if it starts at the
+   * offset.
+   */
+  private synchronized QueryResponse getPage(Query aQuery, int offset) {
+    QueryResponse prefetchedPage = takePrefetchedPage(offset);
+    if (prefetchedPage != null) {
+      return prefetchedPage;
+    }
+
+    return queryCatalog(getRequestFilter(aQuery), maxNumReturnedHits, offset);
+  }
+
+  private Filter getRequestFilter(Query aQuery) {
+    if (catalogFilter == null) {
+      catalogFilter =
+          catalogQueryCache
+              .getQuery(aQuery.bqs_query, querySources, () -> getCatalogFilter(aQuery))
+              .getFilter();
+    }
+    return catalogFilter;
+  }
+
+  /**
+   * Starts fetching the page at the offset while the client works through the current one. A
+   * prefetch that is no longer needed is cancelled, which interrupts its query if it has started.
+   */
+  private synchronized void prefetchPage(Query aQuery, int offset) {
+    if (nextPage != null) {
+      nextPage.cancel(true);
+      nextPage = null;
+    }
+
+    if (released || prefetchExecutor == null) {
+      return;
+    }
+
+    Filter filter = getRequestFilter(aQuery);
+    int pageSize = maxNumReturnedHits;
+    try {
+      nextPage = prefetchExecutor.submit(() -> queryCatalog(filter, pageSize, offset));
+      nextPageOffset = offset;
+      nextPageSize = pageSize;
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Too many pages are being prefetched, the next page will be fetched on request");
+    }
+  }
+
+  private QueryResponse takePrefetchedPage(int offset) {
+    Future<QueryResponse> page = nextPage;
+    nextPage = null;
+    if (page == null) {
+      return null;
+    }
+
+    if (nextPageOffset != offset || nextPageSize != maxNumReturnedHits) {
+      page.cancel(true);
+      return null;
+    }
+
+    try {
+      return page.get();
+    } catch (java.util.concurrent.ExecutionException | CancellationException e) {
+      LOGGER.debug("Unable to prefetch the next page of results, querying again", e);
+    } catch (InterruptedException e) {
+      page.cancel(true);
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  private Filter getCatalogFilter(Query aQuery) {
     Filter parsedFilter = bqsConverter.convertBQSToDDF(aQuery);
 
     // Always need to ask for the DEFAULT_TAG or we get non-resource metacards
@@ -282,9 +495,17 @@ public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA {
                       .text(MetacardVersion.Action.DELETED.getKey())));
     }
 
-    QueryImpl catalogQuery = new QueryImpl(parsedFilter);
+    return parsedFilter;
+  }
+
+  private QueryResponse queryCatalog(Filter filter, int pageSize, int offset) {
+    QueryImpl catalogQuery = new QueryImpl(filter);
     catalogQuery.setRequestsTotalResultsCount(false);
-    catalogQuery.setPageSize(maxNumReturnedHits);
+    catalogQuery.setPageSize(pageSize);
+
+    if (sortBy != null) {
+      catalogQuery.setSortBy(sortBy);
+    }
 
     if (offset > 0) {
       catalogQuery.setStartIndex(offset);
@@ -303,18 +524,15 @@ public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA {
 
     try {
       QueryResultsCallable queryCallable = new QueryResultsCallable(catalogQueryRequest);
-      List<Result> queryResults =
-          LibraryImpl.getLatestResults(NsiliEndpoint.getGuestSubject().execute(queryCallable));
-      results.addAll(queryResults);
-
+      return NsiliEndpoint.getGuestSubject().execute(queryCallable);
     } catch (ExecutionException | SecurityServiceException e) {
       LOGGER.debug("Unable to query catalog", e);
     }
 
-    return results;
+    return null;
   }
 
-  class QueryResultsCallable implements Callable<List<Result>> {
+  class QueryResultsCallable implements Callable<QueryResponse> {
     QueryRequestImpl catalogQueryRequest;
 
     public QueryResultsCallable(QueryRequestImpl catalogQueryRequest) {
@@ -322,15 +540,9 @@ public class SubmitQueryRequestImpl extends SubmitQueryRequestPOA {
     }
 
     @Override
-    public List<Result> call() throws Exception {
-      List<Result> results = new ArrayList<>();
-
+    public QueryResponse call() throws Exception {
       try {
-        QueryResponse queryResponse = catalogFramework.query(catalogQueryRequest);
-        if (queryResponse.getResults() != null) {
-          results.addAll(queryResponse.getResults());
-        }
-        return results;
+        return catalogFramework.query(catalogQueryRequest);
       } catch (Exception e) {
         LOGGER.debug("Unable to query catalog: {}", catalogQueryRequest.getQuery(), e);
         throw e;
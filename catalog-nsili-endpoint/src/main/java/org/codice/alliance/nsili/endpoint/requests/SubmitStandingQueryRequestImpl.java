@@ -27,7 +27,6 @@ import ddf.catalog.operation.QueryResponse;
 import ddf.catalog.operation.impl.QueryImpl;
 import ddf.catalog.operation.impl.QueryRequestImpl;
 import ddf.security.service.SecurityServiceException;
-import java.nio.charset.Charset;
 import java.time.DayOfWeek;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
@@ -42,7 +41,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import org.apache.shiro.subject.ExecutionException;
 import org.codice.alliance.nsili.common.BqsConverter;
@@ -56,10 +57,11 @@ import org.codice.alliance.nsili.common.GIAS.LifeEventType;
 import org.codice.alliance.nsili.common.GIAS.Query;
 import org.codice.alliance.nsili.common.GIAS.QueryLifeSpan;
 import org.codice.alliance.nsili.common.GIAS.RequestManager;
-import org.codice.alliance.nsili.common.GIAS.RequestManagerHelper;
 import org.codice.alliance.nsili.common.GIAS.SortAttribute;
 import org.codice.alliance.nsili.common.GIAS.SubmitStandingQueryRequestPOA;
+import org.codice.alliance.nsili.common.GIAS._RequestManagerStub;
 import org.codice.alliance.nsili.common.NsiliConstants;
+import org.codice.alliance.nsili.common.ResultAttributeProjection;
 import org.codice.alliance.nsili.common.ResultDAGConverter;
 import org.codice.alliance.nsili.common.UCO.AbsTime;
 import org.codice.alliance.nsili.common.UCO.DAG;
@@ -76,35 +78,40 @@ import org.codice.alliance.nsili.common.UCO.Time;
 import org.codice.alliance.nsili.common.datamodel.NsiliDataModel;
 import org.codice.alliance.nsili.endpoint.LibraryImpl;
 import org.codice.alliance.nsili.endpoint.NsiliEndpoint;
-import org.codice.alliance.nsili.endpoint.managers.RequestManagerImpl;
+import org.codice.alliance.nsili.endpoint.RequestRegistry;
 import org.codice.alliance.nsili.transformer.DAGConverter;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.omg.CORBA.NO_IMPLEMENT;
 import org.omg.CORBA.StringHolder;
-import org.omg.PortableServer.POAPackage.ObjectAlreadyActive;
-import org.omg.PortableServer.POAPackage.ServantAlreadyActive;
-import org.omg.PortableServer.POAPackage.WrongPolicy;
+import org.omg.PortableServer.POA;
 import org.opengis.filter.Filter;
 import org.opengis.filter.sort.SortBy;
 import org.opengis.filter.sort.SortOrder;
 import org.slf4j.LoggerFactory;
 
-public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPOA {
-
-  private static final long DEFAULT_UPDATE_RATE = 60L * 1000L;
+public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPOA
+    implements RequestRegistry.Releasable {
 
   private static final int HOUR_MSEC = 60 * 60 * 1000;
 
   private static final int MINUTE_MSEC = 60 * 1000;
 
+  private static final String UNABLE_TO_NOTIFY_CALLBACK = "Unable to notify callback";
+
+  /**
+   * How long get_remaining_delay tells a client to wait before asking again after
+   * complete_DAG_results returned without waiting for results, so a client doesn't spin.
+   */
+  static final long MIN_RETRY_INTERVAL_MSEC = 1000;
+
   private String id;
 
   private Map<String, Callback> callbacks = new HashMap<>();
 
   private BqsConverter bqsConverter;
 
-  private List<String> resultAttributes = new ArrayList<>();
+  private ResultAttributeProjection resultAttributes = ResultAttributeProjection.ALL;
 
   private SortAttribute[] sortAttributes;
 
@@ -114,9 +121,17 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
 
   private String user = "alliance";
 
-  private boolean paused = false;
+  private volatile boolean paused = false;
 
-  private ExecutionThread executionThread;
+  private volatile boolean running = true;
+
+  private volatile StandingQueryGroup group;
+
+  private volatile long watermark = 0;
+
+  private volatile long lastCompletedExecutionTime = 0;
+
+  private long activationTime = 0;
 
   private int pageSize = NsiliEndpoint.DEFAULT_MAX_NUM_RESULTS;
 
@@ -132,9 +147,11 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
 
   private Filter bqsFilter = null;
 
+  private Filter ingestFilter;
+
   private Query query = null;
 
-  private StandingQueryData standingQueryData = new StandingQueryData();
+  private volatile StandingQueryData standingQueryData = new StandingQueryData();
 
   private final Object callbackLockObj = new Object();
 
@@ -148,6 +165,12 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
 
   private long maxWaitToStartTimeMsecs;
 
+  private volatile POA productPoa;
+
+  private volatile Semaphore longPollPermits;
+
+  private final AtomicLong retryAfterTime = new AtomicLong();
+
   private static final org.slf4j.Logger LOGGER =
       LoggerFactory.getLogger(SubmitStandingQueryRequestImpl.class);
 
@@ -162,13 +185,13 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
       long defaultUpdateFrequencyMsec,
       Set<String> querySources,
       int maxPendingResults,
-      boolean removeSourceLibrary,
+      BqsConverter bqsConverter,
       boolean outgoingValidationEnabled,
       long maxWaitToStartTimeMsecs) {
     id = UUID.randomUUID().toString();
     LOGGER.trace("SubmitStandingQueryRequestImpl created with id {}", id);
     if (resultAttributes != null) {
-      this.resultAttributes.addAll(Arrays.asList(resultAttributes));
+      this.resultAttributes = ResultAttributeProjection.compile(Arrays.asList(resultAttributes));
     }
     this.sortAttributes = sortAttributes;
     this.lifespan = lifespan;
@@ -176,7 +199,7 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
     this.catalogFramework = catalogFramework;
     this.filterBuilder = filterBuilder;
     this.maxPendingResults = maxPendingResults;
-    this.bqsConverter = new BqsConverter(filterBuilder, removeSourceLibrary);
+    this.bqsConverter = bqsConverter;
     this.query = aQuery;
     if (querySources != null) {
       this.querySources = new HashSet<>(querySources);
@@ -197,16 +220,59 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
 
     this.updateFrequencyMsec = defaultUpdateFrequencyMsec;
 
-    executionThread = new ExecutionThread();
-    executionThread.setUpdateRate(defaultUpdateFrequencyMsec);
-    LOGGER.trace("Starting standing query");
-    executionThread.start();
+    if (startDate != null && startDate.getTime() > System.currentTimeMillis()) {
+      long waitToStart = startDate.getTime() - System.currentTimeMillis();
+      LOGGER.debug(
+          "Start time for subscription is in the future, waiting {} seconds",
+          TimeUnit.MILLISECONDS.toSeconds(waitToStart));
+      activationTime =
+          System.currentTimeMillis() + Math.min(waitToStart, maxWaitToStartTimeMsecs);
+    }
   }
 
   public String getId() {
     return id;
   }
 
+  /** Sets the POA the products of the results are activated in. Defaults to this request's POA. */
+  public void setProductPoa(POA productPoa) {
+    this.productPoa = productPoa;
+  }
+
+  /** Sets the manager returned by get_request_manager, the one that created this request. */
+  public void setRequestManager(RequestManager requestManager) {
+    this.requestManager = requestManager;
+  }
+
+  /** @return the time the lifespan ends in milliseconds, or -1 if it runs until cancelled */
+  public long getEndTime() {
+    return endDate != null ? endDate.getTime() : -1;
+  }
+
+  /**
+   * Limits the number of pending results kept in memory; the rest are spilled to disk until the
+   * client retrieves them. Must be set before the request receives any results.
+   *
+   * @param maxResultsInMemory - maximum number of results this request keeps in memory
+   * @param sharedResultBudget - permits for the results kept in memory by all standing queries
+   */
+  public void setResultMemoryBudget(int maxResultsInMemory, Semaphore sharedResultBudget) {
+    standingQueryData =
+        new StandingQueryData(
+            maxResultsInMemory, sharedResultBudget, () -> DAGSpillFile.create(_orb()));
+  }
+
+  /**
+   * Sets the permits shared by all standing queries for waiting in complete_DAG_results. Without
+   * a permit the call returns IN_PROGRESS right away when there are no results, so idle
+   * subscribers can't hold all of the ORB's dispatch threads, and get_remaining_delay asks the
+   * client to wait at least {@link #MIN_RETRY_INTERVAL_MSEC} before calling again. Waiting is not
+   * limited if no permits are set.
+   */
+  public void setLongPollPermits(Semaphore longPollPermits) {
+    this.longPollPermits = longPollPermits;
+  }
+
   @Override
   public void set_number_of_hits(int hits)
       throws InvalidInputParameter, ProcessingFault, SystemFault {
@@ -264,25 +330,28 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
   public void pause() throws ProcessingFault, SystemFault {
     LOGGER.trace("puase invoked");
     this.paused = true;
+    standingQueryData.wakeWaiters();
   }
 
   @Override
   public void resume() throws ProcessingFault, SystemFault {
     this.paused = false;
     LOGGER.trace("resume invoked");
-    executionThread.interrupt();
+    if (group != null) {
+      group.runNow();
+    }
   }
 
   @Override
   public AbsTime get_time_last_executed() throws ProcessingFault, SystemFault {
-    long lastExecMillis = executionThread.getLastCompletedExecutionTime();
+    long lastExecMillis = lastCompletedExecutionTime;
     LOGGER.trace("get_time_last_executed invoked - returning {}", lastExecMillis);
     return ResultDAGConverter.getAbsTime(new Date(lastExecMillis));
   }
 
   @Override
   public AbsTime get_time_next_execution() throws ProcessingFault, SystemFault {
-    long nextExecMillis = executionThread.getNextExecutionTime();
+    long nextExecMillis = getNextExecutionTime();
     LOGGER.trace("get_time_next_execution invoked - returning {}", nextExecMillis);
     return ResultDAGConverter.getAbsTime(new Date(nextExecMillis));
   }
@@ -290,12 +359,8 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
   @Override
   public State complete_DAG_results(DAGListHolder results) throws ProcessingFault, SystemFault {
     LOGGER.trace("complete_dag_results invoked");
-    if (standingQueryData.size() == 0) {
-      try {
-        LOGGER.trace("no results available - sleeping for {} ms", updateFrequencyMsec);
-        Thread.sleep(updateFrequencyMsec);
-      } catch (Exception ignore) {
-      }
+    if (standingQueryData.size() == 0 && !waitForResults()) {
+      return answerWithoutResults(results);
     }
 
     List<DAG> returnData = standingQueryData.getResultData(pageSize);
@@ -343,7 +408,7 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
 
   @Override
   public Status get_status() throws ProcessingFault, SystemFault {
-    if (!executionThread.isRunning()) {
+    if (!running) {
       return new Status(State.CANCELED, false, "Request has been cancelled");
     }
     if (paused) {
@@ -358,15 +423,22 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
 
   @Override
   public DelayEstimate get_remaining_delay() throws ProcessingFault, SystemFault {
-    long delayUntilNextExec = executionThread.getNextExecutionTime() - System.currentTimeMillis();
-    int delayTimeSecs = (int) delayUntilNextExec / 1000;
+    long retryTime = Math.max(getNextExecutionTime(), retryAfterTime.get());
+    long delayUntilNextExec = retryTime - System.currentTimeMillis();
+    int delayTimeSecs = (int) Math.max(0, (delayUntilNextExec + 999) / 1000);
     return new DelayEstimate(delayTimeSecs, delayTimeSecs > 0);
   }
 
   @Override
   public void cancel() throws ProcessingFault, SystemFault {
     LOGGER.trace("cancel invoked");
-    executionThread.stopRunning();
+    release();
+  }
+
+  /** Stops the standing query when it is deleted or expires. */
+  @Override
+  public void release() {
+    stopRunning();
   }
 
   @Override
@@ -399,377 +471,363 @@ public class SubmitStandingQueryRequestImpl extends SubmitStandingQueryRequestPO
   public RequestManager get_request_manager() throws ProcessingFault, SystemFault {
     LOGGER.trace("get_request_manager invoked");
     if (requestManager == null) {
-      String requestManagerId = UUID.randomUUID().toString();
-      RequestManagerImpl requestManagerImpl = new RequestManagerImpl();
-
-      try {
-        _poa()
-            .activate_object_with_id(
-                requestManagerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)),
-                requestManagerImpl);
-      } catch (ServantAlreadyActive | ObjectAlreadyActive | WrongPolicy e) {
-        LOGGER.debug("Error activating RequestManager: ", e);
-      }
-
-      org.omg.CORBA.Object obj =
-          _poa()
-              .create_reference_with_id(
-                  requestManagerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)),
-                  RequestManagerHelper.id());
-
-      requestManager = RequestManagerHelper.narrow(obj);
+      return new _RequestManagerStub();
     }
     return requestManager;
   }
 
-  class ExecutionThread extends Thread {
-
-    private static final String UNABLE_TO_NOTIFY_CALLBACK = "Unable to notify callback";
-
-    private boolean running = true;
-
-    private long updateRate = DEFAULT_UPDATE_RATE;
+  /**
+   * Waits until results arrive, for at most an update interval and never past the end of the
+   * lifespan. Returns false right away if the request is paused or cancelled, or if no long poll
+   * permit is available.
+   */
+  private boolean waitForResults() {
+    if (!running || paused) {
+      return false;
+    }
 
-    private long lastExecutionTime = 0;
+    Semaphore permits = longPollPermits;
+    if (permits != null && !permits.tryAcquire()) {
+      LOGGER.trace("Too many clients waiting for results - returning right away");
+      return false;
+    }
 
-    private long lastCompletedExecutionTime = 0;
+    try {
+      long timeoutMsec = updateFrequencyMsec;
+      if (endDate != null) {
+        timeoutMsec = Math.min(timeoutMsec, endDate.getTime() - System.currentTimeMillis());
+      }
+      LOGGER.trace("no results available - waiting up to {} ms", timeoutMsec);
+      standingQueryData.awaitResults(timeoutMsec, () -> running && !paused);
+    } catch (InterruptedException e) {
+      LOGGER.debug("Interrupted while waiting for results", e);
+      Thread.currentThread().interrupt();
+    } finally {
+      if (permits != null) {
+        permits.release();
+      }
+    }
+    return true;
+  }
 
-    private boolean moreResultsAvailOnLastQuery = false;
+  /**
+   * Answers a call that could not wait for results. Paused and cancelled requests report the same
+   * state as get_status, and the client is asked to wait {@link #MIN_RETRY_INTERVAL_MSEC} before
+   * calling again.
+   */
+  private State answerWithoutResults(DAGListHolder results) {
+    retryAfterTime.accumulateAndGet(
+        System.currentTimeMillis() + MIN_RETRY_INTERVAL_MSEC, Math::max);
+    results.value = new DAG[0];
+    if (!running) {
+      LOGGER.trace("Returning CANCELED state");
+      return State.CANCELED;
+    }
+    if (paused) {
+      LOGGER.trace("Returning SUSPENDED state");
+      return State.SUSPENDED;
+    }
+    LOGGER.trace("Returning IN_PROGRESS state without waiting");
+    return State.IN_PROGRESS;
+  }
 
-    private int startIndex = 1;
+  private long getNextExecutionTime() {
+    StandingQueryGroup currentGroup = group;
+    return currentGroup != null ? currentGroup.getNextExecutionTime() : System.currentTimeMillis();
+  }
 
-    private QueryImpl catalogQuery = null;
+  void setGroup(StandingQueryGroup group) {
+    this.group = group;
+  }
 
-    public boolean hasMoreResultsAvailOnLastQuery() {
-      return moreResultsAvailOnLastQuery;
+  /**
+   * Returns true if this request takes the results of the group's next poll: it is running, not
+   * paused, has started, and has room for more results. The request is cancelled once its
+   * lifespan has ended.
+   */
+  boolean isReadyForResults(long now) {
+    if (!running || paused) {
+      return false;
     }
 
-    public void run() {
-      LOGGER.trace("starting execution thread");
-      while (running) {
-        long queryTime = lastExecutionTime - 1000;
+    if (endDate != null && now > endDate.getTime()) {
+      LOGGER.debug("Reached end of execution time -signalling complete");
+      stopRunning();
+      return false;
+    }
 
-        // Don't want to change the query time until we process all of the results from the
-        // last query
-        if (!moreResultsAvailOnLastQuery && !paused) {
-          lastExecutionTime = System.currentTimeMillis();
-          LOGGER.trace(
-              "No outstanding results to process - updating execution time to {}",
-              lastExecutionTime);
-        }
+    // Right now we don't produce the Association View
+    if (now < activationTime || query.view.equals(NsiliConstants.NSIL_ASSOCIATION_VIEW)) {
+      return false;
+    }
 
-        if (endDate != null && lastExecutionTime > endDate.getTime()) {
-          LOGGER.debug("Reached end of execution time -signalling complete");
-          running = false;
-          break;
-        }
+    if (standingQueryData.size() > maxPendingResults) {
+      LOGGER.trace(
+          "No room for more query results (current size: {} max size: {})",
+          standingQueryData.size(),
+          maxPendingResults);
+      return false;
+    }
+    return true;
+  }
 
-        if (startDate != null) {
-          long now = System.currentTimeMillis();
-          if (startDate.getTime() > now) {
-            long waitToStart = startDate.getTime() - now;
-            long waitSecs = TimeUnit.MILLISECONDS.toSeconds(waitToStart);
-            waitToStart = Math.min(waitToStart, maxWaitToStartTimeMsecs);
-            LOGGER.debug(
-                "Start time for subscription is in the future, waiting {} seconds", waitSecs);
-            try {
-              Thread.sleep(waitToStart);
-            } catch (InterruptedException exception) {
-              LOGGER.info("Standing query interrupted - aborting.");
-              Thread.currentThread().interrupt();
-            }
-          }
-        }
+  boolean isRunning() {
+    return running;
+  }
 
-        // Right now we don't produce the Association View
-        if (!query.view.equals(NsiliConstants.NSIL_ASSOCIATION_VIEW) && !paused) {
-          if (standingQueryData.size() <= maxPendingResults) {
-            LOGGER.trace(
-                "Room for more query results (current size: {} max size: {}",
-                standingQueryData.size(),
-                maxPendingResults);
-            DAGQueryResult queryResult = getData(queryTime);
-            if (queryResult != null
-                && queryResult.getResults() != null
-                && queryResult.getResults().size() > 0) {
-              LOGGER.trace(
-                  "Adding {} query results to standing query data structure",
-                  queryResult.getResults().size());
-              standingQueryData.add(queryResult);
-            } else {
-              LOGGER.trace("No data added to results");
-            }
-          }
+  /** @return the time of the last poll whose results were all added, 0 before the first one */
+  long getWatermark() {
+    return watermark;
+  }
 
-          LOGGER.trace("StandingQueryData size: {}", standingQueryData.size());
-          if (standingQueryData.size() > 0) {
-            List<Callback> failedCallbacks = new ArrayList<>();
-            LOGGER.trace("Iterating through {} callbacks to notify of results", callbacks.size());
-            for (Callback callback : callbacks.values()) {
-              try {
-                if (standingQueryData.size() > 0) {
-                  LOGGER.trace(
-                      "Notifying callback that {} results are available", standingQueryData.size());
-                  callback._notify(
-                      org.codice.alliance.nsili.common.UCO.State.RESULTS_AVAILABLE,
-                      get_request_description());
-                }
-              } catch (InvalidInputParameter | ProcessingFault | SystemFault fault) {
-                LOGGER.debug(UNABLE_TO_NOTIFY_CALLBACK, fault);
-              } catch (Exception e) {
-                LOGGER.debug("Unable to notify callback", e);
-                failedCallbacks.add(callback);
-              }
-            }
+  void setWatermark(long watermark) {
+    this.watermark = watermark;
+  }
 
-            LOGGER.trace("Freeing {} failed callbacks", failedCallbacks.size());
-            failedCallbacks.stream().forEach(SubmitStandingQueryRequestImpl.this::freeCallback);
-          }
-          lastCompletedExecutionTime = System.currentTimeMillis();
-        }
+  /** Adds the results of a poll and notifies the callbacks if results are available. */
+  void addResults(List<DAG> dags) {
+    if (!running) {
+      LOGGER.trace("Request has stopped, dropping {} query results", dags.size());
+      return;
+    }
 
-        // Don't sleep if more results available. Need client to pick up results as fast
-        // as possible to catch up.
-        if (!executionThread.hasMoreResultsAvailOnLastQuery()) {
-          try {
-            LOGGER.debug("No more results available yet - sleeping until next update");
-            Thread.sleep(updateRate);
-          } catch (Exception ignore) {
-            LOGGER.debug("Interrupted sleep");
-          }
-        } else {
-          LOGGER.debug("More results available - continuing to process");
-        }
+    if (!dags.isEmpty()) {
+      LOGGER.trace("Adding {} query results to standing query data structure", dags.size());
+      standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), dags));
+      if (!running) {
+        // Stopped while the results were being added, so they would never be released
+        standingQueryData.clearAll();
+        return;
       }
+    } else {
+      LOGGER.trace("No data added to results");
+    }
 
-      LOGGER.trace("Exiting execution thread run loop");
-      synchronized (callbackLockObj) {
-        LOGGER.debug("Clearing all callbacks");
-        callbacks.clear();
-      }
+    LOGGER.trace("StandingQueryData size: {}", standingQueryData.size());
+    if (standingQueryData.size() > 0) {
+      notifyCallbacks();
     }
+    lastCompletedExecutionTime = System.currentTimeMillis();
+  }
 
-    protected DAGQueryResult getData(long queryTime) {
-      DAGQueryResult result = null;
+  /**
+   * Queries the catalog for a page of the results changed after the query time.
+   *
+   * @param queryTime - only results changed after this time are returned, unless it is 0 or less
+   * @param startIndex - index of the first result, 1 for the first page
+   * @param pageSize - maximum number of results
+   * @return the catalog response, or null if the query failed
+   */
+  QueryResponse queryCatalog(long queryTime, int startIndex, int pageSize) {
+    LOGGER.trace("queryCatalog called with queryTime of {}", queryTime);
+    boolean nextPage = startIndex > 1;
+
+    QueryImpl catalogQuery = new QueryImpl(getFilter(queryTime, nextPage));
+    catalogQuery.setRequestsTotalResultsCount(true);
+    catalogQuery.setPageSize(pageSize);
+    SortBy sortBy = new SortByImpl(Core.CREATED, SortOrder.ASCENDING);
+    catalogQuery.setSortBy(sortBy);
+    if (nextPage) {
+      catalogQuery.setStartIndex(startIndex);
+    }
 
-      LOGGER.trace("getData called with queryTime of {}", queryTime);
-      List<Result> catalogResults = new ArrayList<>();
+    try {
+      LOGGER.debug("Executing query...");
+      QueryResponse queryResponse =
+          NsiliEndpoint.getGuestSubject()
+              .execute(new QueryResultsCallable(getQueryRequest(catalogQuery)));
+      LOGGER.trace("Hits received: {}", queryResponse.getHits());
+      return queryResponse;
+    } catch (SecurityServiceException e) {
+      LOGGER.debug("Unable to update subject on NSILI Library", e);
+    } catch (ExecutionException e) {
+      LOGGER.debug("Unable to query catalog", e);
+    }
+    return null;
+  }
 
-      Filter parsedFilter = getFilter(queryTime);
+  /**
+   * Returns true if an ingested metacard matches the request. It is matched with the filter the
+   * catalog is polled with, without the time constraint as ingested metacards have just changed.
+   *
+   * @param metacard - the ingested metacard, with the version action and version tag set if it was
+   *     updated or deleted
+   */
+  boolean matches(Metacard metacard) {
+    if (ingestFilter == null) {
+      ingestFilter = getChangesFilter(null);
+    }
+    return ingestFilter.evaluate(metacard);
+  }
 
-      catalogQuery = new QueryImpl(parsedFilter);
-      catalogQuery.setRequestsTotalResultsCount(true);
-      catalogQuery.setPageSize(pageSize);
-      SortBy sortBy = new SortByImpl(Core.CREATED, SortOrder.ASCENDING);
-      catalogQuery.setSortBy(sortBy);
-      if (moreResultsAvailOnLastQuery) {
-        catalogQuery.setStartIndex(startIndex);
-      }
+  /** @return the result as a DAG, or null if it could not be converted */
+  DAG convertResult(Result result) {
+    Map<String, Set<String>> mandatoryAttributes = new HashMap<>();
+    if (outgoingValidationEnabled) {
+      mandatoryAttributes =
+          NsiliDataModel.getInstance().getRequiredAttrsForView(NsiliConstants.NSIL_ALL_VIEW);
+    }
 
-      QueryRequestImpl catalogQueryRequest;
-      catalogQueryRequest = getQueryRequest(parsedFilter);
+    POA poa = productPoa != null ? productPoa : _poa();
+    try {
+      return ResultDAGConverter.convertResult(
+          result, _orb(), poa, resultAttributes, mandatoryAttributes);
+    } catch (DagParsingException dpe) {
+      LOGGER.debug("DAG could not be parsed and will not be returned to caller:", dpe);
+      return null;
+    }
+  }
 
+  private void notifyCallbacks() {
+    List<Callback> failedCallbacks = new ArrayList<>();
+    List<Callback> callbacksToNotify;
+    synchronized (callbackLockObj) {
+      callbacksToNotify = new ArrayList<>(callbacks.values());
+    }
+    LOGGER.trace("Iterating through {} callbacks to notify of results", callbacksToNotify.size());
+    for (Callback callback : callbacksToNotify) {
       try {
-        QueryResultsCallable queryCallable = new QueryResultsCallable(catalogQueryRequest);
-
-        try {
-          LOGGER.debug("Executing query...");
-          QueryResponse queryResponse = NsiliEndpoint.getGuestSubject().execute(queryCallable);
-          int numHits = (int) queryResponse.getHits();
-          LOGGER.trace("Hits received: {}", numHits);
-          List<Result> results = queryResponse.getResults();
-          int origResultSize = results.size();
-          LOGGER.trace("Query returned {} results", origResultSize);
-          results = massageResults(results);
-          int filteredResultSize = results.size();
-          catalogResults.addAll(results);
-          int accumResults = origResultSize + (startIndex - 1);
-
+        if (standingQueryData.size() > 0) {
           LOGGER.trace(
-              "Cleaned up results added to be processed: {}, total hits handled: {}",
-              filteredResultSize,
-              accumResults);
-
-          if (accumResults < numHits) {
-            moreResultsAvailOnLastQuery = true;
-            startIndex = accumResults + 1;
-          } else {
-            moreResultsAvailOnLastQuery = false;
-            startIndex = 1;
-          }
-
-          LOGGER.trace("Set startIndex to {}", startIndex);
-        } catch (SecurityServiceException e) {
-          LOGGER.debug("Unable to update subject on NSILI Library", e);
+              "Notifying callback that {} results are available", standingQueryData.size());
+          callback._notify(
+              org.codice.alliance.nsili.common.UCO.State.RESULTS_AVAILABLE,
+              get_request_description());
         }
-
-      } catch (ExecutionException e) {
-        LOGGER.debug("Unable to query catalog", e);
+      } catch (InvalidInputParameter | ProcessingFault | SystemFault fault) {
+        LOGGER.debug(UNABLE_TO_NOTIFY_CALLBACK, fault);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to notify callback", e);
+        failedCallbacks.add(callback);
       }
+    }
 
-      List<DAG> dags = new ArrayList<>();
-
-      Map<String, List<String>> mandatoryAttributes = new HashMap<>();
-      if (outgoingValidationEnabled) {
-        NsiliDataModel nsiliDataModel = new NsiliDataModel();
-        mandatoryAttributes = nsiliDataModel.getRequiredAttrsForView(NsiliConstants.NSIL_ALL_VIEW);
-      }
+    LOGGER.trace("Freeing {} failed callbacks", failedCallbacks.size());
+    failedCallbacks.stream().forEach(this::freeCallback);
+  }
 
-      LOGGER.debug("Converting {} results to DAG format", catalogResults.size());
-      for (Result catalogResult : catalogResults) {
-        try {
-          DAG dag =
-              ResultDAGConverter.convertResult(
-                  catalogResult, _orb(), _poa(), resultAttributes, mandatoryAttributes);
-          dags.add(dag);
-        } catch (DagParsingException dpe) {
-          LOGGER.debug("DAG could not be parsed and will not be returned to caller:", dpe);
-        }
+  private QueryRequestImpl getQueryRequest(QueryImpl catalogQuery) {
+    QueryRequestImpl catalogQueryRequest;
+    if (querySources == null || querySources.isEmpty()) {
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace(
+            "Query request will be local, no sources specified - CatalogQuery: {}",
+            catalogQuery.toString());
       }
-
-      if (!dags.isEmpty()) {
-        LOGGER.debug(
-            "Returning {} DAG results at time {}", dags.size(), System.currentTimeMillis());
-        result = new DAGQueryResult(System.currentTimeMillis(), dags);
+      catalogQueryRequest = new QueryRequestImpl(catalogQuery);
+    } else {
+      if (LOGGER.isTraceEnabled()) {
+        String sourceList = querySources.stream().sorted().collect(Collectors.joining(", "));
+        LOGGER.trace("Query will use the following sources: {}", sourceList);
       }
-      return result;
+      catalogQueryRequest = new QueryRequestImpl(catalogQuery, false, querySources, null);
     }
+    return catalogQueryRequest;
+  }
 
-    private QueryRequestImpl getQueryRequest(Filter parsedFilter) {
-      QueryRequestImpl catalogQueryRequest;
-      if (querySources == null || querySources.isEmpty()) {
-        if (LOGGER.isTraceEnabled()) {
-          LOGGER.trace(
-              "Query request will be local, no sources specified - CatalogQuery: {}",
-              catalogQuery.toString());
-        }
-        catalogQueryRequest = new QueryRequestImpl(catalogQuery);
-      } else {
-        if (LOGGER.isTraceEnabled()) {
-          String sourceList = querySources.stream().sorted().collect(Collectors.joining(", "));
-          LOGGER.trace("Query will use the following sources: {}", sourceList);
-        }
-        catalogQueryRequest = new QueryRequestImpl(catalogQuery, false, querySources, null);
-      }
-      return catalogQueryRequest;
+  private Filter getFilter(long queryTime, boolean nextPage) {
+    if (nextPage || queryTime <= 0) {
+      return bqsFilter;
     }
 
-    private Filter getFilter(long queryTime) {
-      /*
-       * Determine what types of records to query for. If the provided query has NSILI:CARD:status
-       * specified, we only need to make sure we are pulling resources - the BQSConverter has
-       * already handled the requested states.
-       */
-      boolean checkChanged = true;
-      boolean checkObsolete = true;
-      List<Filter> additionalChecks = new ArrayList<>();
-      if (LibraryImpl.queryContainsStatus(query.bqs_query)) {
-        checkChanged = false;
-        checkObsolete = false;
-      }
-
-      Filter parsedFilter = bqsFilter;
+    LOGGER.trace("Adding after modified time to BQS filter...");
+    return getChangesFilter(new Date(queryTime));
+  }
 
-      if (!moreResultsAvailOnLastQuery && queryTime > 0) {
-        LOGGER.trace("Adding after modified time to BQS filter...");
+  /**
+   * Returns the BQS filter limited to resources, along with the changed and deleted history
+   * metacards unless the query asks for a status itself.
+   *
+   * @param changedAfter - only changes after this time match, or null for changes at any time
+   */
+  private Filter getChangesFilter(Date changedAfter) {
+    /*
+     * Determine what types of records to query for. If the provided query has NSILI:CARD:status
+     * specified, we only need to make sure we are pulling resources - the BQSConverter has
+     * already handled the requested states.
+     */
+    boolean checkChanged = true;
+    boolean checkObsolete = true;
+    List<Filter> additionalChecks = new ArrayList<>();
+    if (LibraryImpl.queryContainsStatus(query.bqs_query)) {
+      checkChanged = false;
+      checkObsolete = false;
+    }
 
-        // add in the date/time constraint and the metacard-tags = resource constraint to
-        // eliminate non-resource cards
-        parsedFilter =
-            filterBuilder.allOf(
-                bqsFilter,
-                filterBuilder.attribute(Metacard.MODIFIED).is().after().date(new Date(queryTime)),
-                filterBuilder.attribute(Metacard.TAGS).is().like().text(Metacard.DEFAULT_TAG));
+    // add in the date/time constraint and the metacard-tags = resource constraint to
+    // eliminate non-resource cards
+    Filter parsedFilter =
+        filterBuilder.allOf(
+            bqsFilter,
+            getChangedAfterFilter(Metacard.MODIFIED, changedAfter),
+            filterBuilder.attribute(Metacard.TAGS).is().like().text(Metacard.DEFAULT_TAG));
+
+    // add in changed metacards if necessary
+    if (checkChanged) {
+      LOGGER.trace("Adding terms for changed metacards to BQS filter...");
+      additionalChecks.add(
+          filterBuilder.allOf(
+              filterBuilder.attribute(Metacard.TAGS).is().like().text(MetacardVersion.VERSION_TAG),
+              filterBuilder
+                  .attribute(MetacardVersion.ACTION)
+                  .is()
+                  .like()
+                  .text(MetacardVersion.Action.VERSIONED.getKey()),
+              getChangedAfterFilter(MetacardVersion.VERSIONED_ON, changedAfter)));
+    }
 
-        // add in changed metacards if necessary
-        if (checkChanged) {
-          LOGGER.trace("Adding terms for changed metacards to BQS filter...");
-          additionalChecks.add(
-              filterBuilder.allOf(
-                  filterBuilder
-                      .attribute(Metacard.TAGS)
-                      .is()
-                      .like()
-                      .text(MetacardVersion.VERSION_TAG),
+    // add in deleted metacards if necessary
+    if (checkObsolete) {
+      LOGGER.trace("Adding terms for obsolete/deleted metacards to BQS filter...");
+      additionalChecks.add(
+          filterBuilder.allOf(
+              filterBuilder.attribute(Metacard.TAGS).is().like().text(MetacardVersion.VERSION_TAG),
+              getChangedAfterFilter(MetacardVersion.VERSIONED_ON, changedAfter),
+              filterBuilder.anyOf(
                   filterBuilder
                       .attribute(MetacardVersion.ACTION)
                       .is()
                       .like()
-                      .text(MetacardVersion.Action.VERSIONED.getKey()),
-                  filterBuilder
-                      .attribute(MetacardVersion.VERSIONED_ON)
-                      .is()
-                      .after()
-                      .date(new Date(queryTime))));
-        }
-
-        // add in deleted metacards if necessary
-        if (checkObsolete) {
-          LOGGER.trace("Adding terms for obsolete/deleted metacards to BQS filter...");
-          additionalChecks.add(
-              filterBuilder.allOf(
+                      .text(MetacardVersion.Action.DELETED.getKey()),
                   filterBuilder
-                      .attribute(Metacard.TAGS)
+                      .attribute(MetacardVersion.ACTION)
                       .is()
                       .like()
-                      .text(MetacardVersion.VERSION_TAG),
-                  filterBuilder
-                      .attribute(MetacardVersion.VERSIONED_ON)
-                      .is()
-                      .after()
-                      .date(new Date(queryTime)),
-                  filterBuilder.anyOf(
-                      filterBuilder
-                          .attribute(MetacardVersion.ACTION)
-                          .is()
-                          .like()
-                          .text(MetacardVersion.Action.DELETED.getKey()),
-                      filterBuilder
-                          .attribute(MetacardVersion.ACTION)
-                          .is()
-                          .like()
-                          .text(MetacardVersion.Action.DELETED_CONTENT.getKey()))));
-        }
-
-        // OR in the changed and deleted if necessary
-        if (additionalChecks.size() == 1) {
-          parsedFilter = filterBuilder.anyOf(parsedFilter, additionalChecks.get(0));
-        } else if (additionalChecks.size() == 2) {
-          parsedFilter =
-              filterBuilder.anyOf(parsedFilter, additionalChecks.get(0), additionalChecks.get(1));
-        }
-      }
-      return parsedFilter;
+                      .text(MetacardVersion.Action.DELETED_CONTENT.getKey()))));
     }
 
-    public long getLastExecutionTime() {
-      return lastExecutionTime;
-    }
-
-    public long getLastCompletedExecutionTime() {
-      LOGGER.trace("getLastCompletedExecutionTime invoked");
-      return lastCompletedExecutionTime;
+    // OR in the changed and deleted if necessary
+    if (additionalChecks.size() == 1) {
+      parsedFilter = filterBuilder.anyOf(parsedFilter, additionalChecks.get(0));
+    } else if (additionalChecks.size() == 2) {
+      parsedFilter =
+          filterBuilder.anyOf(parsedFilter, additionalChecks.get(0), additionalChecks.get(1));
     }
+    return parsedFilter;
+  }
 
-    public long getNextExecutionTime() {
-      LOGGER.trace("getNextExecutionTime invoked");
-      return lastCompletedExecutionTime + updateRate;
+  private Filter getChangedAfterFilter(String attribute, Date changedAfter) {
+    if (changedAfter == null) {
+      return Filter.INCLUDE;
     }
+    return filterBuilder.attribute(attribute).is().after().date(changedAfter);
+  }
 
-    public void setUpdateRate(long updateRate) {
-      this.updateRate = updateRate;
-      interrupt();
+  private void stopRunning() {
+    LOGGER.trace("stopRunning invoked");
+    running = false;
+    standingQueryData.wakeWaiters();
+    if (group != null) {
+      group.unsubscribe(this);
     }
 
-    public boolean isRunning() {
-      return running;
+    synchronized (callbackLockObj) {
+      LOGGER.debug("Clearing all callbacks");
+      callbacks.clear();
     }
 
-    public void stopRunning() {
-      LOGGER.trace("stopRunning invoked");
-      this.running = false;
-      interrupt();
-    }
+    // The request is over, give back the memory and spill file of any results still pending
+    standingQueryData.clearAll();
   }
 
   /**
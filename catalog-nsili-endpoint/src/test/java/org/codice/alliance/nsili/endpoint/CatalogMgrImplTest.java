@@ -17,25 +17,44 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItems;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ddf.catalog.data.Result;
+import ddf.catalog.data.types.Core;
+import ddf.catalog.data.impl.MetacardImpl;
+import ddf.catalog.data.impl.ResultImpl;
 import ddf.catalog.filter.proxy.builder.GeotoolsFilterBuilder;
 import ddf.catalog.operation.QueryRequest;
 import ddf.catalog.operation.QueryResponse;
 import ddf.catalog.operation.impl.QueryResponseImpl;
 import ddf.security.service.SecurityServiceException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.codice.alliance.nsili.common.GIAS.HitCountRequest;
+import org.codice.alliance.nsili.common.GIAS.Polarity;
 import org.codice.alliance.nsili.common.GIAS.Query;
 import org.codice.alliance.nsili.common.GIAS.Request;
 import org.codice.alliance.nsili.common.GIAS.SortAttribute;
 import org.codice.alliance.nsili.common.GIAS.SubmitQueryRequest;
 import org.codice.alliance.nsili.common.NsiliConstants;
+import org.codice.alliance.nsili.common.ResultDAGConverter;
+import org.codice.alliance.nsili.common.UCO.DAG;
 import org.codice.alliance.nsili.common.UCO.DAGListHolder;
 import org.codice.alliance.nsili.common.UCO.InvalidInputParameter;
+import org.codice.alliance.nsili.common.UCO.Node;
 import org.codice.alliance.nsili.common.UCO.ProcessingFault;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
 import org.codice.alliance.nsili.endpoint.managers.AccessManagerImpl;
@@ -43,12 +62,15 @@ import org.codice.alliance.nsili.endpoint.managers.CatalogMgrImpl;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.omg.CORBA.IntHolder;
 import org.omg.CORBA.NO_IMPLEMENT;
 import org.omg.CORBA.ORBPackage.InvalidName;
 import org.omg.PortableServer.POAManagerPackage.AdapterInactive;
 import org.omg.PortableServer.POAPackage.ServantNotActive;
 import org.omg.PortableServer.POAPackage.WrongPolicy;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,6 +82,14 @@ public class CatalogMgrImplTest extends NsiliTestCommon {
 
   private String bqsQuery = "NSIL_CARD.identifier like '%'";
 
+  private static final String CARD_ID_PREFIX = "card";
+
+  private static final int NUM_CARDS = 40;
+
+  private static final int DAG_CONVERSION_THREADS = 4;
+
+  private static final long PREFETCH_TIMEOUT_MSEC = 5000;
+
   private static final Logger LOGGER = LoggerFactory.getLogger(CatalogMgrImplTest.class);
 
   @Before
@@ -123,6 +153,67 @@ public class CatalogMgrImplTest extends NsiliTestCommon {
     assertThat(hitHolder.value, greaterThan(0));
   }
 
+  @Test
+  public void testHitCountIsDeferredUntilComplete() throws Exception {
+    HitCountRequest hitCountRequest = catalogMgr.hit_count(testQuery, null);
+    verify(mockCatalogFramework, never()).query(any(QueryRequest.class));
+
+    IntHolder hitHolder = new IntHolder();
+    hitCountRequest.complete(hitHolder);
+    hitCountRequest.complete(hitHolder);
+
+    assertThat(hitHolder.value, greaterThan(0));
+    verify(mockCatalogFramework, times(1)).query(any(QueryRequest.class));
+  }
+
+  @Test
+  public void testHitCountSharesFilterAndCountWithSubmitQuery() throws Exception {
+    catalogMgr.setCatalogQueryCache(
+        new CatalogQueryCache(CatalogQueryCache.DEFAULT_EXPIRATION_SEC));
+
+    IntHolder hitHolder = new IntHolder();
+    catalogMgr.hit_count(testQuery, null).complete(hitHolder);
+    IntHolder repeatedHitHolder = new IntHolder();
+    catalogMgr.hit_count(testQuery, null).complete(repeatedHitHolder);
+
+    SubmitQueryRequest submitQueryRequest = catalogMgr.submit_query(testQuery, null, null, null);
+    DAGListHolder dagListHolder = new DAGListHolder();
+    submitQueryRequest.complete_DAG_results(dagListHolder);
+
+    assertThat(hitHolder.value, greaterThan(0));
+    assertThat(repeatedHitHolder.value, is(hitHolder.value));
+    assertThat(dagListHolder.value.length, is(2));
+
+    // One count and one page: the count only asks for a single result
+    ArgumentCaptor<QueryRequest> requestCaptor = ArgumentCaptor.forClass(QueryRequest.class);
+    verify(mockCatalogFramework, times(2)).query(requestCaptor.capture());
+    assertThat(requestCaptor.getAllValues().get(0).getQuery().getPageSize(), is(1));
+  }
+
+  @Test
+  public void testSortAttributesArePushedDown() throws Exception {
+    catalogMgr.setCatalogQueryCache(
+        new CatalogQueryCache(CatalogQueryCache.DEFAULT_EXPIRATION_SEC));
+    SortAttribute[] sortAttributes = {
+      new SortAttribute(NsiliConstants.NSIL_CARD + ".unknownAttribute", Polarity.ASCENDING),
+      new SortAttribute(
+          NsiliConstants.NSIL_CARD + "." + NsiliConstants.DATE_TIME_MODIFIED, Polarity.DESCENDING)
+    };
+
+    catalogMgr.hit_count(testQuery, null).complete(new IntHolder());
+    SubmitQueryRequest submitQueryRequest =
+        catalogMgr.submit_query(testQuery, null, sortAttributes, null);
+    submitQueryRequest.complete_DAG_results(new DAGListHolder());
+
+    // One query for the count and one for the sorted page
+    ArgumentCaptor<QueryRequest> requestCaptor = ArgumentCaptor.forClass(QueryRequest.class);
+    verify(mockCatalogFramework, times(2)).query(requestCaptor.capture());
+    SortBy sortBy = requestCaptor.getValue().getQuery().getSortBy();
+
+    assertThat(sortBy.getPropertyName().getPropertyName(), is(Core.METACARD_MODIFIED));
+    assertThat(sortBy.getSortOrder(), is(SortOrder.DESCENDING));
+  }
+
   @Test
   public void testQuery() throws InvalidInputParameter, SystemFault, ProcessingFault {
     String[] resultAttributes = null;
@@ -139,6 +230,92 @@ public class CatalogMgrImplTest extends NsiliTestCommon {
     assertThat(dagListHolder.value.length, is(2));
   }
 
+  @Test
+  public void testQueryWithDagConversionExecutor() throws Exception {
+    List<Result> results = new ArrayList<>();
+    for (int i = 0; i < NUM_CARDS; i++) {
+      MetacardImpl metacard = new MetacardImpl();
+      metacard.setId(CARD_ID_PREFIX + i);
+      metacard.setTitle("Test Metacard " + i);
+      results.add(new ResultImpl(metacard));
+    }
+    QueryResponse testResponse = new QueryResponseImpl(null, results, results.size());
+    when(mockCatalogFramework.query(any(QueryRequest.class))).thenReturn(testResponse);
+
+    int maxNumResults = NUM_CARDS / 2;
+    List<String> expectedIds =
+        LibraryImpl.getLatestResults(results)
+            .stream()
+            .limit(maxNumResults)
+            .map(result -> ResultDAGConverter.getMetacardId(result.getMetacard()))
+            .collect(Collectors.toList());
+
+    ExecutorService dagConversionExecutor = Executors.newFixedThreadPool(DAG_CONVERSION_THREADS);
+    try {
+      catalogMgr.setMaxNumResults(maxNumResults);
+      catalogMgr.setDagConversionExecutor(dagConversionExecutor);
+      SubmitQueryRequest submitQueryRequest = catalogMgr.submit_query(testQuery, null, null, null);
+
+      DAGListHolder dagListHolder = new DAGListHolder();
+      submitQueryRequest.complete_DAG_results(dagListHolder);
+
+      List<String> returnedIds = new ArrayList<>();
+      for (DAG dag : dagListHolder.value) {
+        returnedIds.add(getIdentifier(dag));
+      }
+      assertThat(returnedIds, is(expectedIds));
+    } finally {
+      dagConversionExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testNextPageIsPrefetched() throws Exception {
+    List<Result> results = new ArrayList<>();
+    for (int i = 0; i < NUM_CARDS; i++) {
+      MetacardImpl metacard = new MetacardImpl();
+      metacard.setId(CARD_ID_PREFIX + i);
+      metacard.setTitle("Test Metacard " + i);
+      results.add(new ResultImpl(metacard));
+    }
+    QueryResponse testResponse = new QueryResponseImpl(null, results, results.size());
+    when(mockCatalogFramework.query(any(QueryRequest.class))).thenReturn(testResponse);
+
+    int pageSize = NUM_CARDS / 4;
+    ThreadPoolExecutor prefetchExecutor =
+        new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    try {
+      catalogMgr.setMaxNumResults(pageSize);
+      catalogMgr.setPrefetchExecutor(prefetchExecutor);
+      SubmitQueryRequest submitQueryRequest = catalogMgr.submit_query(testQuery, null, null, null);
+
+      // Nothing is prefetched for clients that only read the first page
+      submitQueryRequest.complete_DAG_results(new DAGListHolder());
+      assertThat(prefetchExecutor.getTaskCount(), is(0L));
+
+      submitQueryRequest.complete_DAG_results(new DAGListHolder());
+      DAGListHolder dagListHolder = new DAGListHolder();
+      submitQueryRequest.complete_DAG_results(dagListHolder);
+
+      // The first two pages, the prefetched third page and the prefetch of the fourth page
+      ArgumentCaptor<QueryRequest> requestCaptor = ArgumentCaptor.forClass(QueryRequest.class);
+      verify(mockCatalogFramework, timeout(PREFETCH_TIMEOUT_MSEC).times(4))
+          .query(requestCaptor.capture());
+      List<Integer> startIndexes =
+          requestCaptor
+              .getAllValues()
+              .stream()
+              .map(request -> request.getQuery().getStartIndex())
+              .collect(Collectors.toList());
+
+      assertThat(dagListHolder.value.length, is(pageSize));
+      assertThat(prefetchExecutor.getTaskCount(), is(2L));
+      assertThat(startIndexes, hasItems(2 * pageSize, 3 * pageSize));
+    } finally {
+      prefetchExecutor.shutdownNow();
+    }
+  }
+
   @Test
   public void testGetDefaultTimeout() throws Exception {
     int defaultTimeout = catalogMgr.get_default_timeout();
@@ -166,6 +343,15 @@ public class CatalogMgrImplTest extends NsiliTestCommon {
     catalogMgr.get_libraries();
   }
 
+  private static String getIdentifier(DAG dag) {
+    for (Node node : dag.nodes) {
+      if (NsiliConstants.IDENTIFIER.equals(node.attribute_name)) {
+        return node.value.extract_string();
+      }
+    }
+    return null;
+  }
+
   private void setupCatalogMgrMocks() throws Exception {
     List<Result> results = getHistoryTestResults();
     QueryResponse testResponse = new QueryResponseImpl(null, results, results.size());
@@ -25,6 +25,7 @@ import ddf.security.service.SecurityServiceException;
 import java.io.IOException;
 import org.codice.alliance.core.email.EmailSender;
 import org.codice.alliance.nsili.common.GIAS.LibraryDescription;
+import org.codice.alliance.nsili.common.GIAS.LibraryManager;
 import org.codice.alliance.nsili.common.UCO.InvalidInputParameter;
 import org.codice.alliance.nsili.common.UCO.ProcessingFault;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
@@ -99,6 +100,20 @@ public class NsiliLibraryImplTest extends NsiliTestCommon {
     library.get_other_libraries(null);
   }
 
+  @Test
+  public void testManagersAreShared() throws ProcessingFault, SystemFault, InvalidInputParameter {
+    for (String managerType : library.get_manager_types()) {
+      LibraryManager first = library.get_manager(managerType, null);
+      LibraryManager second = library.get_manager(managerType, null);
+      assertThat(first._is_equivalent(second), is(true));
+    }
+  }
+
+  @Test(expected = InvalidInputParameter.class)
+  public void testUnknownManagerType() throws ProcessingFault, SystemFault, InvalidInputParameter {
+    library.get_manager("UnknownMgr", null);
+  }
+
   @Test
   public void testSetMaxResults() {
     library.setMaxNumResults(999);
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import ddf.catalog.data.Result;
+import ddf.catalog.filter.proxy.builder.GeotoolsFilterBuilder;
+import ddf.catalog.operation.QueryRequest;
+import ddf.catalog.operation.QueryResponse;
+import ddf.catalog.operation.impl.QueryResponseImpl;
+import java.util.List;
+import org.codice.alliance.nsili.common.CorbaUtils;
+import org.codice.alliance.nsili.common.GIAS.HitCountRequest;
+import org.codice.alliance.nsili.common.GIAS.Query;
+import org.codice.alliance.nsili.common.GIAS.SubmitQueryRequest;
+import org.codice.alliance.nsili.common.NsiliConstants;
+import org.codice.alliance.nsili.endpoint.managers.AccessManagerImpl;
+import org.codice.alliance.nsili.endpoint.managers.CatalogMgrImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.omg.CORBA.IntHolder;
+
+public class RequestRegistryTest extends NsiliTestCommon {
+
+  private static final int NUM_REQUESTS = 500;
+
+  private static final long REQUEST_LIFETIME_SEC = 600;
+
+  private RequestRegistry requestRegistry;
+
+  private CatalogMgrImpl catalogMgr;
+
+  private Query testQuery =
+      new Query(NsiliConstants.NSIL_ALL_VIEW, "NSIL_CARD.identifier like '%'");
+
+  @Before
+  public void setUp() throws Exception {
+    setupCommonMocks();
+    setupOrb();
+    orbRunThread = new Thread(() -> orb.run());
+    orbRunThread.start();
+
+    List<Result> results = getHistoryTestResults();
+    QueryResponse testResponse = new QueryResponseImpl(null, results, results.size());
+    when(mockCatalogFramework.query(any(QueryRequest.class))).thenReturn(testResponse);
+
+    requestRegistry = RequestRegistry.create(rootPOA, REQUEST_LIFETIME_SEC);
+    catalogMgr = new CatalogMgrImpl(rootPOA, new GeotoolsFilterBuilder(), null);
+    catalogMgr.setCatalogFramework(mockCatalogFramework);
+    catalogMgr.setRequestRegistry(requestRegistry);
+  }
+
+  @Test
+  public void testDeletedRequestsDoNotAccumulate() throws Exception {
+    int maxActiveRequests = 0;
+    HitCountRequest hitCountRequest = null;
+    for (int i = 0; i < NUM_REQUESTS; i++) {
+      hitCountRequest = catalogMgr.hit_count(testQuery, null);
+      SubmitQueryRequest submitQueryRequest = catalogMgr.submit_query(testQuery, null, null, null);
+      hitCountRequest.complete(new IntHolder());
+      maxActiveRequests = Math.max(maxActiveRequests, requestRegistry.size());
+
+      catalogMgr.delete_request(hitCountRequest);
+      catalogMgr.delete_request(submitQueryRequest);
+    }
+
+    assertThat(maxActiveRequests, is(2));
+    assertThat(requestRegistry.size(), is(0));
+    assertThat(
+        CorbaUtils.isIdActive(
+            requestRegistry.getPoa(), requestRegistry.getPoa().reference_to_id(hitCountRequest)),
+        is(false));
+  }
+
+  @Test
+  public void testExpiredRequestsAreReaped() throws Exception {
+    HitCountRequest expiredRequest = catalogMgr.hit_count(testQuery, null);
+    HitCountRequest activeRequest = catalogMgr.hit_count(testQuery, null);
+
+    catalogMgr.set_timeout(expiredRequest, 0);
+    requestRegistry.reapExpiredRequests();
+
+    assertThat(requestRegistry.size(), is(1));
+    assertThat(catalogMgr.get_timeout(expiredRequest), is(AccessManagerImpl.DEFAULT_TIMEOUT));
+    assertThat(catalogMgr.get_timeout(activeRequest), greaterThan(0));
+  }
+
+  @Test
+  public void testSetTimeout() throws Exception {
+    int lifetimeSec = 120;
+    HitCountRequest hitCountRequest = catalogMgr.hit_count(testQuery, null);
+
+    catalogMgr.set_timeout(hitCountRequest, lifetimeSec);
+
+    assertThat(catalogMgr.get_timeout(hitCountRequest), greaterThan(lifetimeSec - 5));
+    assertThat(catalogMgr.get_timeout(hitCountRequest), lessThanOrEqualTo(lifetimeSec));
+  }
+
+  @Test
+  public void testRequestWithoutLifetimeIsNotReaped() throws Exception {
+    HitCountRequest hitCountRequest = catalogMgr.hit_count(testQuery, null);
+
+    catalogMgr.set_timeout(hitCountRequest, -1);
+    requestRegistry.reapExpiredRequests();
+
+    assertThat(requestRegistry.size(), is(1));
+    assertThat(catalogMgr.get_timeout(hitCountRequest), is(-1));
+  }
+
+  @Test
+  public void testDestroyDeactivatesAllRequests() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      catalogMgr.hit_count(testQuery, null);
+    }
+    assertThat(requestRegistry.size(), is(10));
+
+    requestRegistry.destroy();
+
+    assertThat(requestRegistry.size(), is(0));
+  }
+
+  @After
+  public void tearDown() {
+    if (orbRunThread != null) {
+      orbRunThread.interrupt();
+      orbRunThread = null;
+    }
+
+    if (orb != null) {
+      orb.destroy();
+    }
+
+    orb = null;
+    library = null;
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import ddf.catalog.core.versioning.MetacardVersion;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.impl.MetacardImpl;
+import ddf.catalog.operation.CreateResponse;
+import ddf.catalog.operation.DeleteResponse;
+import ddf.catalog.operation.UpdateResponse;
+import ddf.catalog.operation.impl.CreateResponseImpl;
+import ddf.catalog.operation.impl.DeleteResponseImpl;
+import ddf.catalog.operation.impl.UpdateImpl;
+import ddf.catalog.operation.impl.UpdateResponseImpl;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class StandingQueryIngestPluginTest {
+
+  private NsiliEndpoint mockEndpoint = mock(NsiliEndpoint.class);
+
+  private StandingQueryIngestPlugin plugin = new StandingQueryIngestPlugin(mockEndpoint);
+
+  @Test
+  public void testCreatedMetacardsAreMatched() throws Exception {
+    Metacard metacard = getMetacard();
+    CreateResponse response =
+        new CreateResponseImpl(null, new HashMap<>(), Collections.singletonList(metacard));
+
+    assertThat(plugin.process(response), is(response));
+
+    Metacard matched = getMatchedMetacard();
+    assertThat(matched.getId(), is(metacard.getId()));
+    assertThat(matched.getAttribute(MetacardVersion.ACTION), nullValue());
+    assertThat(matched.getTags(), contains(Metacard.DEFAULT_TAG));
+  }
+
+  @Test
+  public void testUpdatedMetacardsAreMarkedVersioned() throws Exception {
+    Metacard metacard = getMetacard();
+    UpdateResponse response =
+        new UpdateResponseImpl(
+            null,
+            new HashMap<>(),
+            Collections.singletonList(new UpdateImpl(metacard, getMetacard())));
+
+    plugin.process(response);
+
+    Metacard matched = getMatchedMetacard();
+    assertThat(matched.getId(), is(metacard.getId()));
+    assertThat(
+        matched.getAttribute(MetacardVersion.ACTION).getValue(),
+        is(MetacardVersion.Action.VERSIONED.getKey()));
+    assertThat(matched.getAttribute(MetacardVersion.VERSIONED_ON), notNullValue());
+    assertThat(matched.getTags(), hasItems(Metacard.DEFAULT_TAG, MetacardVersion.VERSION_TAG));
+    assertThat(metacard.getAttribute(MetacardVersion.ACTION), nullValue());
+  }
+
+  @Test
+  public void testDeletedMetacardsAreMarkedDeleted() throws Exception {
+    DeleteResponse response =
+        new DeleteResponseImpl(null, new HashMap<>(), Collections.singletonList(getMetacard()));
+
+    plugin.process(response);
+
+    assertThat(
+        getMatchedMetacard().getAttribute(MetacardVersion.ACTION).getValue(),
+        is(MetacardVersion.Action.DELETED.getKey()));
+  }
+
+  @Test
+  public void testHistoryMetacardsAreSkipped() throws Exception {
+    MetacardImpl revision = getMetacard();
+    revision.setTags(Collections.singleton(MetacardVersion.VERSION_TAG));
+
+    plugin.process(
+        new CreateResponseImpl(null, new HashMap<>(), Collections.singletonList(revision)));
+
+    verify(mockEndpoint, never()).matchIngested(anyListOf(Metacard.class));
+  }
+
+  @Test
+  public void testMatchingFailureDoesNotFailIngest() throws Exception {
+    doThrow(new IllegalStateException("test"))
+        .when(mockEndpoint)
+        .matchIngested(anyListOf(Metacard.class));
+    CreateResponse response =
+        new CreateResponseImpl(null, new HashMap<>(), Collections.singletonList(getMetacard()));
+
+    assertThat(plugin.process(response), is(response));
+  }
+
+  @SuppressWarnings("unchecked")
+  private Metacard getMatchedMetacard() {
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(mockEndpoint).matchIngested(captor.capture());
+    List<Metacard> metacards = captor.getValue();
+    assertThat(metacards.size(), is(1));
+    return metacards.get(0);
+  }
+
+  private static MetacardImpl getMetacard() {
+    MetacardImpl metacard = new MetacardImpl();
+    metacard.setId("metacardId");
+    metacard.setTitle("Test Metacard");
+    return metacard;
+  }
+}
@@ -16,6 +16,7 @@ package org.codice.alliance.nsili.endpoint;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -135,22 +136,7 @@ public class StandingQueryMgrImplTest extends NsiliTestCommon {
   public void testSubmitStandingQuery() throws InvalidInputParameter, SystemFault, ProcessingFault {
     String[] resultAttributes = new String[0];
     SortAttribute[] sortAttributes = new SortAttribute[0];
-    LifeEvent start = new LifeEvent();
-    start.at(
-        LifeEventType.ABSOLUTE_TIME,
-        new AbsTime(
-            new Date((short) 2016, (short) 05, (short) 01),
-            new Time((short) 00, (short) 00, (short) 00)));
-    LifeEvent stop = new LifeEvent();
-    stop.at(
-        LifeEventType.ABSOLUTE_TIME,
-        new AbsTime(
-            new Date((short) 2050, (short) 05, (short) 01),
-            new Time((short) 00, (short) 00, (short) 00)));
-    LifeEvent frequency1 = new LifeEvent();
-    frequency1.rt(LifeEventType.RELATIVE_TIME, new Time((short) 00, (short) 01, (short) 00));
-    LifeEvent[] frequency = new LifeEvent[] {frequency1};
-    QueryLifeSpan lifeSpan = new QueryLifeSpan(start, stop, frequency);
+    QueryLifeSpan lifeSpan = getLifeSpan();
     Query query = new Query(NsiliConstants.NSIL_ALL_VIEW, bqsQuery);
     SubmitStandingQueryRequest request =
         standingQueryMgr.submit_standing_query(
@@ -158,6 +144,48 @@ public class StandingQueryMgrImplTest extends NsiliTestCommon {
     assertThat(request, notNullValue());
   }
 
+  @Test
+  public void testIdenticalStandingQueriesAreGrouped()
+      throws InvalidInputParameter, SystemFault, ProcessingFault {
+    Query query = new Query(NsiliConstants.NSIL_ALL_VIEW, bqsQuery);
+    Query reformattedQuery = new Query(NsiliConstants.NSIL_ALL_VIEW, "  " + bqsQuery + "  ");
+    Query otherQuery = new Query(NsiliConstants.NSIL_ALL_VIEW, "NSIL_CARD.identifier like 'a%'");
+
+    standingQueryMgr.submit_standing_query(
+        query, new String[0], new SortAttribute[0], getLifeSpan(), new NameValue[0]);
+    standingQueryMgr.submit_standing_query(
+        reformattedQuery, new String[0], new SortAttribute[0], getLifeSpan(), new NameValue[0]);
+    assertThat(standingQueryMgr.getStandingQueryGroupCount(), is(1));
+
+    standingQueryMgr.submit_standing_query(
+        otherQuery, new String[0], new SortAttribute[0], getLifeSpan(), new NameValue[0]);
+    assertThat(standingQueryMgr.getStandingQueryGroupCount(), is(2));
+  }
+
+  @Test
+  public void testDeletedStandingQueryIsReleased() throws Exception {
+    long requestLifetimeSec = 600;
+    RequestRegistry requestRegistry = RequestRegistry.create(rootPOA, requestLifetimeSec);
+    standingQueryMgr.setRequestRegistry(requestRegistry);
+    Query query = new Query(NsiliConstants.NSIL_ALL_VIEW, bqsQuery);
+
+    SubmitStandingQueryRequest request =
+        standingQueryMgr.submit_standing_query(
+            query, new String[0], new SortAttribute[0], getLifeSpan(), new NameValue[0]);
+
+    assertThat(requestRegistry.size(), is(1));
+    // Kept until a request lifetime past the end of its lifespan
+    assertThat(
+        (long) standingQueryMgr.get_timeout(request),
+        greaterThan(TimeUnit.DAYS.toSeconds(365) + requestLifetimeSec));
+
+    standingQueryMgr.delete_request(request);
+
+    assertThat(requestRegistry.size(), is(0));
+    assertThat(standingQueryMgr.getStandingQueryGroupCount(), is(0));
+    requestRegistry.destroy();
+  }
+
   @Test
   public void testGetTimeout() throws InvalidInputParameter, SystemFault, ProcessingFault {
     int timeout = standingQueryMgr.get_timeout(null);
@@ -191,6 +219,25 @@ public class StandingQueryMgrImplTest extends NsiliTestCommon {
     standingQueryMgr.get_libraries();
   }
 
+  private QueryLifeSpan getLifeSpan() {
+    LifeEvent start = new LifeEvent();
+    start.at(
+        LifeEventType.ABSOLUTE_TIME,
+        new AbsTime(
+            new Date((short) 2016, (short) 05, (short) 01),
+            new Time((short) 00, (short) 00, (short) 00)));
+    LifeEvent stop = new LifeEvent();
+    stop.at(
+        LifeEventType.ABSOLUTE_TIME,
+        new AbsTime(
+            new Date((short) 2050, (short) 05, (short) 01),
+            new Time((short) 00, (short) 00, (short) 00)));
+    LifeEvent frequency1 = new LifeEvent();
+    frequency1.rt(LifeEventType.RELATIVE_TIME, new Time((short) 00, (short) 01, (short) 00));
+    LifeEvent[] frequency = new LifeEvent[] {frequency1};
+    return new QueryLifeSpan(start, stop, frequency);
+  }
+
   private void setupStandingQueryMgrMocks()
       throws UnsupportedQueryException, SourceUnavailableException, FederationException {
     int testTotalHits = 5;
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class StandingQuerySchedulerTest {
+
+  private static final int NUM_THREADS = 4;
+
+  private static final int NUM_SUBSCRIPTIONS = 5000;
+
+  private static final long PERIOD_MSEC = 500;
+
+  private static final int RUNS_PER_SUBSCRIPTION = 4;
+
+  private static final long MAX_WAIT_SEC = 30;
+
+  private StandingQueryScheduler scheduler = new StandingQueryScheduler(NUM_THREADS);
+
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testManySubscriptionsShareThePool() throws Exception {
+    runManySubscriptions();
+
+    assertThat(scheduler.getThreadCount(), lessThanOrEqualTo(NUM_THREADS));
+  }
+
+  @Test
+  @Category(LoadTest.class)
+  public void testManySubscriptionsPollOnTime() throws Exception {
+    assertThat(runManySubscriptions(), lessThan(2 * PERIOD_MSEC));
+  }
+
+  @Test
+  public void testOverrunningPollIsPushedBack() throws Exception {
+    long pollMsec = 200;
+    long periodMsec = 50;
+    AtomicLongArray runTimes = new AtomicLongArray(2);
+    AtomicInteger runs = new AtomicInteger();
+    CountDownLatch secondRun = new CountDownLatch(2);
+
+    scheduler.schedule(
+        () -> {
+          int run = runs.getAndIncrement();
+          if (run < 2) {
+            runTimes.set(run, System.currentTimeMillis());
+            secondRun.countDown();
+          }
+          sleep(pollMsec);
+          return periodMsec;
+        },
+        0);
+
+    assertThat(secondRun.await(MAX_WAIT_SEC, TimeUnit.SECONDS), is(true));
+    assertThat(runTimes.get(1) - runTimes.get(0), greaterThanOrEqualTo(pollMsec + periodMsec));
+    assertThat(scheduler.getOverrunCount(), greaterThan(0L));
+  }
+
+  @Test
+  public void testRunNow() throws Exception {
+    CountDownLatch secondRun = new CountDownLatch(2);
+    StandingQueryScheduler.ScheduledPoll scheduledPoll =
+        scheduler.schedule(
+            () -> {
+              secondRun.countDown();
+              return TimeUnit.HOURS.toMillis(1);
+            },
+            0);
+
+    while (secondRun.getCount() > 1) {
+      sleep(10);
+    }
+    scheduledPoll.runNow();
+
+    assertThat(secondRun.await(MAX_WAIT_SEC, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void testPollStopsItself() throws Exception {
+    AtomicInteger runs = new AtomicInteger();
+    CountDownLatch firstRun = new CountDownLatch(1);
+    StandingQueryScheduler.ScheduledPoll scheduledPoll =
+        scheduler.schedule(
+            () -> {
+              runs.incrementAndGet();
+              firstRun.countDown();
+              return -1;
+            },
+            0);
+
+    assertThat(firstRun.await(MAX_WAIT_SEC, TimeUnit.SECONDS), is(true));
+    while (!scheduledPoll.isCancelled()) {
+      sleep(10);
+    }
+    scheduledPoll.runNow();
+    sleep(PERIOD_MSEC);
+
+    assertThat(runs.get(), is(1));
+    assertThat(scheduler.getScheduledCount(), is(0));
+  }
+
+  /**
+   * Schedules many subscriptions and waits for each of them to poll a few times.
+   *
+   * @return the longest time between two polls of the same subscription in milliseconds
+   */
+  private long runManySubscriptions() throws InterruptedException {
+    AtomicLongArray lastRunTimes = new AtomicLongArray(NUM_SUBSCRIPTIONS);
+    AtomicLongArray maxRunIntervals = new AtomicLongArray(NUM_SUBSCRIPTIONS);
+    CountDownLatch remainingRuns = new CountDownLatch(NUM_SUBSCRIPTIONS * RUNS_PER_SUBSCRIPTION);
+
+    for (int i = 0; i < NUM_SUBSCRIPTIONS; i++) {
+      int subscription = i;
+      scheduler.schedule(
+          () -> {
+            long now = System.currentTimeMillis();
+            long lastRunTime = lastRunTimes.getAndSet(subscription, now);
+            if (lastRunTime > 0) {
+              maxRunIntervals.accumulateAndGet(subscription, now - lastRunTime, Math::max);
+            }
+            remainingRuns.countDown();
+            return PERIOD_MSEC;
+          },
+          i % PERIOD_MSEC);
+    }
+
+    assertThat(remainingRuns.await(MAX_WAIT_SEC, TimeUnit.SECONDS), is(true));
+
+    long maxRunInterval = 0;
+    for (int i = 0; i < NUM_SUBSCRIPTIONS; i++) {
+      maxRunInterval = Math.max(maxRunInterval, maxRunIntervals.get(i));
+    }
+    return maxRunInterval;
+  }
+
+  private static void sleep(long msec) {
+    try {
+      Thread.sleep(msec);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -15,11 +15,15 @@ package org.codice.alliance.nsili.endpoint;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ddf.catalog.CatalogFramework;
@@ -27,6 +31,8 @@ import ddf.catalog.core.versioning.MetacardVersion;
 import ddf.catalog.data.Attribute;
 import ddf.catalog.data.Metacard;
 import ddf.catalog.data.Result;
+import ddf.catalog.data.impl.MetacardImpl;
+import ddf.catalog.data.impl.ResultImpl;
 import ddf.catalog.federation.FederationException;
 import ddf.catalog.filter.FilterBuilder;
 import ddf.catalog.filter.proxy.builder.GeotoolsFilterBuilder;
@@ -38,10 +44,19 @@ import ddf.catalog.operation.impl.QueryResponseImpl;
 import ddf.catalog.source.SourceUnavailableException;
 import ddf.catalog.source.UnsupportedQueryException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.codice.alliance.nsili.common.BqsConverter;
 import org.codice.alliance.nsili.common.CB.Callback;
 import org.codice.alliance.nsili.common.GIAS.CreationMgrHelper;
@@ -67,7 +82,9 @@ import org.codice.alliance.nsili.common.UCO.Status;
 import org.codice.alliance.nsili.common.UCO.StringDAGListHolder;
 import org.codice.alliance.nsili.common.UCO.SystemFault;
 import org.codice.alliance.nsili.common.UCO.Time;
+import org.codice.alliance.nsili.endpoint.requests.StandingQueryGroup;
 import org.codice.alliance.nsili.endpoint.requests.SubmitStandingQueryRequestImpl;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.omg.CORBA.NO_IMPLEMENT;
@@ -79,6 +96,11 @@ import org.opengis.filter.Filter;
 
 public class SubmitStandingQueryRequestImplTest extends NsiliTestCommon {
 
+  // Set artificially low for for test cases.
+  private static final long UPDATE_FREQUENCY_MSEC = 2000;
+
+  private static final long RESULTS_TIMEOUT_MSEC = 10000;
+
   private SubmitStandingQueryRequestImpl standingQueryRequest;
 
   private Callback mockCallback = mock(Callback.class);
@@ -89,6 +111,8 @@ public class SubmitStandingQueryRequestImplTest extends NsiliTestCommon {
 
   private FilterBuilder filterBuilder = new GeotoolsFilterBuilder();
 
+  private StandingQueryScheduler scheduler = new StandingQueryScheduler(1);
+
   @Before
   public void setUp() throws Exception {
     setupCommonMocks();
@@ -97,6 +121,11 @@ public class SubmitStandingQueryRequestImplTest extends NsiliTestCommon {
     setupStandingQueryRequest();
   }
 
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
   @Test
   public void testRegisterCallback() throws Exception {
     String callbackId = standingQueryRequest.register_callback(mockCallback);
@@ -303,6 +332,233 @@ public class SubmitStandingQueryRequestImplTest extends NsiliTestCommon {
     assertThat(delayEstimate, notNullValue());
   }
 
+  @Test
+  public void testGroupedRequestsShareResults() throws Exception {
+    AtomicBoolean groupStopped = new AtomicBoolean();
+    StandingQueryGroup group =
+        new StandingQueryGroup(
+            StandingQueryGroup.getKey(getQuery(), new String[0], null, UPDATE_FREQUENCY_MSEC),
+            scheduler,
+            UPDATE_FREQUENCY_MSEC,
+            false,
+            stoppedGroup -> groupStopped.set(true));
+    SubmitStandingQueryRequestImpl firstRequest = createStandingQueryRequest();
+    SubmitStandingQueryRequestImpl secondRequest = createStandingQueryRequest();
+    group.subscribe(firstRequest);
+    group.subscribe(secondRequest);
+
+    long timeout = System.currentTimeMillis() + RESULTS_TIMEOUT_MSEC;
+    while ((firstRequest.get_number_of_hits() == 0 || secondRequest.get_number_of_hits() == 0)
+        && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+
+    assertThat(group.getSubscriberCount(), is(2));
+    assertThat(firstRequest.get_number_of_hits(), greaterThan(0));
+    assertThat(secondRequest.get_number_of_hits(), greaterThan(0));
+
+    firstRequest.cancel();
+    assertThat(groupStopped.get(), is(false));
+    secondRequest.cancel();
+    assertThat(groupStopped.get(), is(true));
+    assertThat(group.subscribe(createStandingQueryRequest()), is(false));
+  }
+
+  @Test
+  public void testIngestedMetacardsAreMatched() throws Exception {
+    StandingQueryGroup group =
+        new StandingQueryGroup(
+            StandingQueryGroup.getKey(getQuery(), new String[0], null, UPDATE_FREQUENCY_MSEC),
+            scheduler,
+            TimeUnit.HOURS.toMillis(1),
+            true,
+            stoppedGroup -> {});
+    SubmitStandingQueryRequestImpl request = createStandingQueryRequest();
+    group.subscribe(request);
+
+    // Wait for the catalog poll that fills in the new subscriber to finish
+    long timeout = System.currentTimeMillis() + RESULTS_TIMEOUT_MSEC;
+    while ((request.get_number_of_hits() == 0
+            || group.getNextExecutionTime() < System.currentTimeMillis())
+        && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    int polledHits = request.get_number_of_hits();
+    assertThat(polledHits, greaterThan(0));
+
+    group.matchIngested(
+        Collections.singletonList(getIngestedMetacard()), System.currentTimeMillis());
+
+    assertThat(request.get_number_of_hits(), is(polledHits + 1));
+    request.cancel();
+  }
+
+  @Test
+  public void testIngestedResultsAreNotPolledAgain() throws Exception {
+    StandingQueryGroup group =
+        new StandingQueryGroup(
+            StandingQueryGroup.getKey(getQuery(), new String[0], null, UPDATE_FREQUENCY_MSEC),
+            scheduler,
+            TimeUnit.HOURS.toMillis(1),
+            true,
+            stoppedGroup -> {});
+    SubmitStandingQueryRequestImpl request =
+        createStandingQueryRequest(TimeUnit.HOURS.toMillis(1));
+    group.subscribe(request);
+    waitForPoll(group);
+    request.clear_all();
+
+    // Handed over well after it changed, so the watermark is past the overlap of the next poll
+    MetacardImpl ingestedMetacard = getIngestedMetacard();
+    long ingestTime = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(2);
+    group.matchIngested(Collections.singletonList(ingestedMetacard), ingestTime);
+    assertThat(request.get_number_of_hits(), is(1));
+
+    // Missing the next ingest while paused makes the request poll the catalog when resumed
+    List<Result> results = new ArrayList<>(getTestResults());
+    results.add(new ResultImpl(ingestedMetacard));
+    when(mockFramework.query(any(QueryRequest.class)))
+        .thenReturn(new QueryResponseImpl(null, results, results.size()));
+    request.pause();
+    group.matchIngested(Collections.singletonList(getIngestedMetacard()), ingestTime);
+    request.resume();
+    waitForPoll(group);
+
+    verify(mockFramework, times(2)).query(any(QueryRequest.class));
+    assertThat(request.get_number_of_hits(), is(1));
+    request.cancel();
+  }
+
+  @Test
+  public void testIdleSubscribersDoNotHoldDispatchThreads() throws Exception {
+    int maxLongPolls = 2;
+    int numClients = 6;
+    Semaphore longPollPermits = new Semaphore(maxLongPolls);
+    SubmitStandingQueryRequestImpl request =
+        createStandingQueryRequest(TimeUnit.HOURS.toMillis(1));
+    request.setLongPollPermits(longPollPermits);
+
+    ExecutorService dispatchThreads = Executors.newFixedThreadPool(numClients);
+    try {
+      CompletionService<State> completedCalls = new ExecutorCompletionService<>(dispatchThreads);
+      for (int i = 0; i < numClients; i++) {
+        completedCalls.submit(() -> request.complete_DAG_results(new DAGListHolder()));
+      }
+
+      // Only the clients holding a permit wait, the others are answered right away
+      for (int i = 0; i < numClients - maxLongPolls; i++) {
+        Future<State> call = completedCalls.poll(RESULTS_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+        assertThat(call, notNullValue());
+        assertThat(call.get(), is(State.IN_PROGRESS));
+      }
+      assertThat(completedCalls.poll(100, TimeUnit.MILLISECONDS), nullValue());
+
+      // Waiting clients are released as soon as the request is cancelled
+      request.cancel();
+      for (int i = 0; i < maxLongPolls; i++) {
+        assertThat(
+            completedCalls.poll(RESULTS_TIMEOUT_MSEC, TimeUnit.MILLISECONDS), notNullValue());
+      }
+      assertThat(longPollPermits.availablePermits(), is(maxLongPolls));
+    } finally {
+      dispatchThreads.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testClientWithoutPermitIsAskedToWait() throws Exception {
+    SubmitStandingQueryRequestImpl request =
+        createStandingQueryRequest(TimeUnit.HOURS.toMillis(1));
+    request.setLongPollPermits(new Semaphore(0));
+
+    DAGListHolder results = new DAGListHolder();
+    assertThat(request.complete_DAG_results(results), is(State.IN_PROGRESS));
+    assertThat(results.value.length, is(0));
+
+    DelayEstimate delayEstimate = request.get_remaining_delay();
+    assertThat(delayEstimate.valid_time_delay, is(true));
+    assertThat(delayEstimate.time_delay, greaterThan(0));
+    request.cancel();
+  }
+
+  @Test
+  public void testPausedRequestReportsSuspended() throws Exception {
+    SubmitStandingQueryRequestImpl request =
+        createStandingQueryRequest(TimeUnit.HOURS.toMillis(1));
+    request.pause();
+
+    DAGListHolder results = new DAGListHolder();
+    assertThat(request.complete_DAG_results(results), is(State.SUSPENDED));
+    assertThat(results.value.length, is(0));
+    assertThat(request.complete_DAG_results(new DAGListHolder()), is(State.SUSPENDED));
+
+    request.cancel();
+    assertThat(request.complete_DAG_results(new DAGListHolder()), is(State.CANCELED));
+  }
+
+  @Test
+  public void testWaitingClientGetsResultsWhenTheyArrive() throws Exception {
+    StandingQueryGroup group =
+        new StandingQueryGroup(
+            StandingQueryGroup.getKey(getQuery(), new String[0], null, UPDATE_FREQUENCY_MSEC),
+            scheduler,
+            TimeUnit.HOURS.toMillis(1),
+            true,
+            stoppedGroup -> {});
+    SubmitStandingQueryRequestImpl request =
+        createStandingQueryRequest(TimeUnit.HOURS.toMillis(1));
+    group.subscribe(request);
+
+    long timeout = System.currentTimeMillis() + RESULTS_TIMEOUT_MSEC;
+    while ((request.get_number_of_hits() == 0
+            || group.getNextExecutionTime() < System.currentTimeMillis())
+        && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    request.complete_DAG_results(new DAGListHolder());
+    assertThat(request.get_number_of_hits(), is(0));
+
+    ExecutorService dispatchThread = Executors.newSingleThreadExecutor();
+    try {
+      DAGListHolder results = new DAGListHolder();
+      Future<State> call = dispatchThread.submit(() -> request.complete_DAG_results(results));
+      Thread.sleep(100);
+      assertThat(call.isDone(), is(false));
+
+      group.matchIngested(
+          Collections.singletonList(getIngestedMetacard()), System.currentTimeMillis());
+
+      call.get(RESULTS_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+      assertThat(results.value.length, is(1));
+    } finally {
+      dispatchThread.shutdownNow();
+      request.cancel();
+    }
+  }
+
+  @Test
+  public void testGroupKey() {
+    Query query = getQuery();
+    Query reformattedQuery = new Query(query.view, "  NSIL_CARD.identifier   like '%'  ");
+    Query quotedSpaceQuery = new Query(query.view, "NSIL_CARD.identifier like '% '");
+    String[] attributes = {"NSIL_CARD.identifier", "NSIL_CARD.dateTimeModified"};
+    String[] reorderedAttributes = {"NSIL_CARD.dateTimeModified", "NSIL_CARD.identifier"};
+
+    String key = StandingQueryGroup.getKey(query, attributes, null, UPDATE_FREQUENCY_MSEC);
+
+    assertThat(
+        StandingQueryGroup.getKey(
+            reformattedQuery, reorderedAttributes, null, UPDATE_FREQUENCY_MSEC),
+        is(key));
+    assertThat(
+        StandingQueryGroup.getKey(quotedSpaceQuery, attributes, null, UPDATE_FREQUENCY_MSEC),
+        not(key));
+    assertThat(
+        StandingQueryGroup.getKey(
+            query, attributes, Collections.singleton("source"), UPDATE_FREQUENCY_MSEC),
+        not(key));
+  }
+
   @Test
   public void testGetId() {
     String id = standingQueryRequest.getId();
@@ -400,16 +656,35 @@ public class SubmitStandingQueryRequestImplTest extends NsiliTestCommon {
   private void setupStandingQueryRequest()
       throws InvalidInputParameter, SystemFault, ProcessingFault, WrongPolicy, ServantAlreadyActive,
           ObjectAlreadyActive {
+    standingQueryRequest = createStandingQueryRequest();
+    standingQueryRequest.register_callback(mockCallback2);
+    createStandingQueryGroup().subscribe(standingQueryRequest);
+  }
+
+  private StandingQueryGroup createStandingQueryGroup() {
+    return new StandingQueryGroup(
+        StandingQueryGroup.getKey(getQuery(), new String[0], null, UPDATE_FREQUENCY_MSEC),
+        scheduler,
+        UPDATE_FREQUENCY_MSEC,
+        false,
+        group -> {});
+  }
+
+  private SubmitStandingQueryRequestImpl createStandingQueryRequest()
+      throws WrongPolicy, ServantAlreadyActive, ObjectAlreadyActive {
+    return createStandingQueryRequest(UPDATE_FREQUENCY_MSEC);
+  }
+
+  private SubmitStandingQueryRequestImpl createStandingQueryRequest(long updateFrequencyMsec)
+      throws WrongPolicy, ServantAlreadyActive, ObjectAlreadyActive {
     Query query = getQuery();
     String[] resultAttributes = new String[0];
     SortAttribute[] sortAttributes = new SortAttribute[0];
     QueryLifeSpan lifespan = getEmptyLifespan();
     NameValue[] properties = new NameValue[0];
-    // Set artificially low for for test cases.
-    long defaultUpdateFrequencyMsec = 2000;
     int maxPendingResults = 10000;
     long maxWaitToStartTimeMsecs = TimeUnit.MINUTES.toMillis(5);
-    standingQueryRequest =
+    SubmitStandingQueryRequestImpl request =
         new SubmitStandingQueryRequestImpl(
             query,
             resultAttributes,
@@ -418,19 +693,38 @@ public class SubmitStandingQueryRequestImplTest extends NsiliTestCommon {
             properties,
             mockFramework,
             filterBuilder,
-            defaultUpdateFrequencyMsec,
+            updateFrequencyMsec,
             null,
             maxPendingResults,
-            true,
+            new BqsConverter(filterBuilder, true),
             false,
             maxWaitToStartTimeMsecs);
-    standingQueryRequest.register_callback(mockCallback2);
 
     String managerId = UUID.randomUUID().toString();
     rootPOA.activate_object_with_id(
-        managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), standingQueryRequest);
+        managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), request);
     rootPOA.create_reference_with_id(
         managerId.getBytes(Charset.forName(NsiliEndpoint.ENCODING)), CreationMgrHelper.id());
+    return request;
+  }
+
+  /** Waits for the group's current poll to finish, its next one is an update interval away. */
+  private static void waitForPoll(StandingQueryGroup group) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + RESULTS_TIMEOUT_MSEC;
+    while (group.getNextExecutionTime() <= System.currentTimeMillis()
+        && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static MetacardImpl getIngestedMetacard() {
+    MetacardImpl ingestedMetacard = new MetacardImpl();
+    ingestedMetacard.setId(UUID.randomUUID().toString().replaceAll("-", ""));
+    ingestedMetacard.setTitle("Ingested Metacard");
+    ingestedMetacard.setTags(Collections.singleton(Metacard.DEFAULT_TAG));
+    ingestedMetacard.setCreatedDate(new Date());
+    ingestedMetacard.setModifiedDate(new Date());
+    return ingestedMetacard;
   }
 
   private List<Result> getTestResults() {
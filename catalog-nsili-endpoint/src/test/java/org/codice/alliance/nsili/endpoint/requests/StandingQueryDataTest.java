@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.endpoint.requests;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import ddf.catalog.data.impl.MetacardImpl;
+import ddf.catalog.data.impl.ResultImpl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import org.codice.alliance.nsili.common.ResultDAGConverter;
+import org.codice.alliance.nsili.common.UCO.DAG;
+import org.codice.alliance.nsili.common.UCO.Node;
+import org.codice.alliance.nsili.common.UID.Product;
+import org.codice.alliance.nsili.common.UID.ProductHelper;
+import org.codice.alliance.nsili.endpoint.NsiliTestCommon;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.omg.CORBA.TCKind;
+
+public class StandingQueryDataTest extends NsiliTestCommon {
+
+  private static final int MAX_RESULTS_IN_MEMORY = 3;
+
+  private static final int MAX_TOTAL_RESULTS_IN_MEMORY = 5;
+
+  private Semaphore sharedResultBudget = new Semaphore(MAX_TOTAL_RESULTS_IN_MEMORY);
+
+  private LinkedList<DAG> spilledDags = new LinkedList<>();
+
+  private DAGSpillFile mockSpillFile = mock(DAGSpillFile.class);
+
+  private StandingQueryData standingQueryData;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    doAnswer(
+            invocation -> {
+              spilledDags.addAll((List<DAG>) invocation.getArguments()[0]);
+              return null;
+            })
+        .when(mockSpillFile)
+        .append(anyListOf(DAG.class));
+    doAnswer(invocation -> removeSpilled((int) invocation.getArguments()[0]))
+        .when(mockSpillFile)
+        .read(anyInt());
+    doAnswer(
+            invocation -> {
+              removeSpilled((int) invocation.getArguments()[0]);
+              return null;
+            })
+        .when(mockSpillFile)
+        .skip(anyInt());
+
+    standingQueryData =
+        new StandingQueryData(MAX_RESULTS_IN_MEMORY, sharedResultBudget, () -> mockSpillFile);
+  }
+
+  @After
+  public void tearDown() {
+    if (orb != null) {
+      orb.destroy();
+    }
+  }
+
+  @Test
+  public void testResultsBeyondBudgetAreSpilled() {
+    List<DAG> first = getDags(2);
+    List<DAG> second = getDags(2);
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), first));
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), second));
+
+    assertThat(standingQueryData.size(), is(4));
+    assertThat(standingQueryData.getResultsInMemory(), is(2));
+    assertThat(spilledDags, is(second));
+    assertThat(sharedResultBudget.availablePermits(), is(MAX_TOTAL_RESULTS_IN_MEMORY - 2));
+  }
+
+  @Test
+  public void testSpilledResultsAreRetrievedInOrder() {
+    List<DAG> dags = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      List<DAG> intervalDags = getDags(2);
+      dags.addAll(intervalDags);
+      standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), intervalDags));
+    }
+
+    List<DAG> retrieved = new ArrayList<>(standingQueryData.getResultData(3));
+    retrieved.addAll(standingQueryData.getResultData(10));
+
+    assertThat(retrieved, is(dags));
+    assertThat(standingQueryData.size(), is(0));
+    assertThat(standingQueryData.getResultsInMemory(), is(0));
+    assertThat(sharedResultBudget.availablePermits(), is(MAX_TOTAL_RESULTS_IN_MEMORY));
+    verify(mockSpillFile).close();
+  }
+
+  @Test
+  public void testSharedBudgetLimitsResultsInMemory() {
+    StandingQueryData otherData =
+        new StandingQueryData(MAX_RESULTS_IN_MEMORY, sharedResultBudget, () -> mockSpillFile);
+    otherData.add(new DAGQueryResult(System.currentTimeMillis(), getDags(3)));
+
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), getDags(3)));
+
+    assertThat(standingQueryData.getResultsInMemory(), is(0));
+    assertThat(spilledDags.size(), is(3));
+
+    otherData.clearAll();
+    standingQueryData.getResultData(3);
+    assertThat(sharedResultBudget.availablePermits(), is(MAX_TOTAL_RESULTS_IN_MEMORY));
+  }
+
+  @Test
+  public void testClearIntervalsSkipsSpilledResults() {
+    List<DAG> last = getDags(2);
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), getDags(3)));
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), getDags(2)));
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), last));
+
+    standingQueryData.clearIntervals(2);
+
+    assertThat(standingQueryData.getNumberOfIntervals(), is(1));
+    assertThat(standingQueryData.getResultData(10), is(last));
+    assertThat(sharedResultBudget.availablePermits(), is(MAX_TOTAL_RESULTS_IN_MEMORY));
+  }
+
+  @Test
+  public void testUnreadableSpillFileDropsSpilledResults() throws Exception {
+    List<DAG> inMemory = getDags(3);
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), inMemory));
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), getDags(2)));
+    doThrow(new IOException("test")).when(mockSpillFile).read(anyInt());
+
+    assertThat(standingQueryData.getResultData(10), is(inMemory));
+    assertThat(standingQueryData.size(), is(0));
+    verify(mockSpillFile).close();
+  }
+
+  @Test
+  public void testResultsStayInMemoryWhenSpillFails() {
+    standingQueryData =
+        new StandingQueryData(
+            MAX_RESULTS_IN_MEMORY,
+            sharedResultBudget,
+            () -> {
+              throw new IOException("test");
+            });
+    DAG[] dags = getDags(5).toArray(new DAG[0]);
+
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), Arrays.asList(dags)));
+
+    assertThat(standingQueryData.getResultsInMemory(), is(5));
+    assertThat(standingQueryData.getResultData(10), contains(dags));
+  }
+
+  @Test
+  public void testSpillFileRoundTripsDags() throws Exception {
+    setupOrb();
+    List<DAG> dags = getMetacardDags(5);
+
+    try (DAGSpillFile spillFile = DAGSpillFile.create(orb)) {
+      spillFile.append(dags.subList(0, 2));
+      List<DAG> readDags = new ArrayList<>(spillFile.read(1));
+
+      // Reading carries on where it left off while more DAGs are appended
+      spillFile.append(dags.subList(2, 5));
+      spillFile.skip(1);
+      readDags.addAll(spillFile.read(3));
+
+      assertThat(readDags.size(), is(4));
+      assertSameDag(readDags.get(0), dags.get(0));
+      for (int i = 1; i < readDags.size(); i++) {
+        assertSameDag(readDags.get(i), dags.get(i + 1));
+      }
+    }
+  }
+
+  @Test
+  public void testSpilledDagsAreReadBackFromDisk() throws Exception {
+    setupOrb();
+    standingQueryData =
+        new StandingQueryData(
+            MAX_RESULTS_IN_MEMORY, sharedResultBudget, () -> DAGSpillFile.create(orb));
+    List<DAG> dags = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      List<DAG> intervalDags = getMetacardDags(2);
+      dags.addAll(intervalDags);
+      standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), intervalDags));
+    }
+    assertThat(standingQueryData.getResultsInMemory(), is(2));
+
+    List<DAG> retrieved = new ArrayList<>(standingQueryData.getResultData(3));
+    standingQueryData.add(new DAGQueryResult(System.currentTimeMillis(), getMetacardDags(2)));
+    retrieved.addAll(standingQueryData.getResultData(3));
+
+    assertThat(retrieved.size(), is(dags.size()));
+    for (int i = 0; i < dags.size(); i++) {
+      assertSameDag(retrieved.get(i), dags.get(i));
+    }
+    assertThat(standingQueryData.size(), is(2));
+
+    standingQueryData.clearAll();
+    assertThat(sharedResultBudget.availablePermits(), is(MAX_TOTAL_RESULTS_IN_MEMORY));
+  }
+
+  private List<DAG> getMetacardDags(int count) throws Exception {
+    List<DAG> dags = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      MetacardImpl metacard = new MetacardImpl();
+      metacard.setId(UUID.randomUUID().toString());
+      metacard.setTitle("Spilled result " + i);
+      dags.add(
+          ResultDAGConverter.convertResult(
+              new ResultImpl(metacard), orb, rootPOA, new ArrayList<>(), new HashMap<>()));
+    }
+    return dags;
+  }
+
+  private static void assertSameDag(DAG actual, DAG expected) {
+    assertThat(actual.nodes.length, is(expected.nodes.length));
+    assertThat(actual.edges.length, is(expected.edges.length));
+
+    // The product node holds an object reference, which has to survive the round trip
+    Product product = ProductHelper.extract(actual.nodes[0].value);
+    assertThat(product._is_equivalent(ProductHelper.extract(expected.nodes[0].value)), is(true));
+
+    for (int i = 1; i < expected.nodes.length; i++) {
+      Node actualNode = actual.nodes[i];
+      Node expectedNode = expected.nodes[i];
+      assertThat(actualNode.attribute_name, is(expectedNode.attribute_name));
+      assertThat(actualNode.node_type, is(expectedNode.node_type));
+      assertThat(actualNode.value.type().equal(expectedNode.value.type()), is(true));
+      if (expectedNode.value.type().kind() == TCKind.tk_string) {
+        assertThat(actualNode.value.extract_string(), is(expectedNode.value.extract_string()));
+      }
+    }
+  }
+
+  private List<DAG> removeSpilled(int count) throws IOException {
+    if (spilledDags.size() < count) {
+      throw new IOException("Spill file ended");
+    }
+    List<DAG> dags = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      dags.add(spilledDags.removeFirst());
+    }
+    return dags;
+  }
+
+  private static List<DAG> getDags(int count) {
+    List<DAG> dags = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      dags.add(new DAG());
+    }
+    return dags;
+  }
+}
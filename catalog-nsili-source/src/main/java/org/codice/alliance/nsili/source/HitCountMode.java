@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.source;
+
+/**
+ * Controls how NsiliSource obtains the total hit count for a query.
+ *
+ * <ul>
+ *   <li>SEQUENTIAL - complete hit_count before submit_query (the STANAG 4559 default flow)
+ *   <li>CONCURRENT - issue hit_count alongside submit_query and join on it once the DAGs arrive
+ *   <li>SKIP - never call hit_count and report the number of DAGs returned as the hit count
+ *   <li>CACHED - call hit_count sequentially, but reuse the result for the same BQS for a short
+ *       time
+ * </ul>
+ */
+public enum HitCountMode {
+  SEQUENTIAL,
+  CONCURRENT,
+  SKIP,
+  CACHED;
+
+  public static HitCountMode fromString(String mode) {
+    if (mode != null) {
+      for (HitCountMode hitCountMode : values()) {
+        if (hitCountMode.name().equalsIgnoreCase(mode.trim())) {
+          return hitCountMode;
+        }
+      }
+    }
+    return SEQUENTIAL;
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.source;
+
+import org.codice.alliance.nsili.common.GIAS.AccessCriteria;
+import org.codice.alliance.nsili.common.GIAS.CatalogMgr;
+import org.codice.alliance.nsili.common.GIAS.CatalogMgrHelper;
+import org.codice.alliance.nsili.common.GIAS.DataModelMgr;
+import org.codice.alliance.nsili.common.GIAS.DataModelMgrHelper;
+import org.codice.alliance.nsili.common.GIAS.Library;
+import org.codice.alliance.nsili.common.GIAS.LibraryHelper;
+import org.codice.alliance.nsili.common.GIAS.OrderMgr;
+import org.codice.alliance.nsili.common.GIAS.OrderMgrHelper;
+import org.codice.alliance.nsili.common.GIAS.ProductMgr;
+import org.codice.alliance.nsili.common.GIAS.ProductMgrHelper;
+import org.codice.alliance.nsili.common.UCO.InvalidInputParameter;
+import org.codice.alliance.nsili.common.UCO.ProcessingFault;
+import org.codice.alliance.nsili.common.UCO.SystemFault;
+import org.omg.CORBA.ORB;
+
+/**
+ * The references a source holds to one STANAG 4559 library: the root Library interface and the
+ * mandatory managers obtained from it. A connection is immutable, so query threads can share it
+ * while the owning source reconnects by replacing it with a new connection.
+ */
+class LibraryConnection {
+
+  static final LibraryConnection DISCONNECTED =
+      new LibraryConnection(null, null, null, null, null);
+
+  private static final String CATALOG_MGR = "CatalogMgr";
+
+  private static final String ORDER_MGR = "OrderMgr";
+
+  private static final String PRODUCT_MGR = "ProductMgr";
+
+  private static final String DATA_MODEL_MGR = "DataModelMgr";
+
+  private final Library library;
+
+  private final CatalogMgr catalogMgr;
+
+  private final OrderMgr orderMgr;
+
+  private final ProductMgr productMgr;
+
+  private final DataModelMgr dataModelMgr;
+
+  LibraryConnection(
+      Library library,
+      CatalogMgr catalogMgr,
+      OrderMgr orderMgr,
+      ProductMgr productMgr,
+      DataModelMgr dataModelMgr) {
+    this.library = library;
+    this.catalogMgr = catalogMgr;
+    this.orderMgr = orderMgr;
+    this.productMgr = productMgr;
+    this.dataModelMgr = dataModelMgr;
+  }
+
+  /**
+   * Creates a connection to the library identified by the IOR. The connection has no managers
+   * until {@link #withManagers(AccessCriteria)} is called.
+   *
+   * @param orb - the ORB used to resolve the IOR
+   * @param iorString - the stringified IOR of the library
+   * @return the connection, with a null library if the IOR does not refer to a library
+   */
+  static LibraryConnection fromIor(ORB orb, String iorString) {
+    Library library = LibraryHelper.narrow(orb.string_to_object(iorString));
+    return new LibraryConnection(library, null, null, null, null);
+  }
+
+  /**
+   * Obtains the STANAG 4559 mandatory managers: CatalogMgr OrderMgr DataModelMgr ProductMgr
+   *
+   * @param accessCriteria - the access criteria presented to the library
+   * @return a connection to the same library with the mandatory managers
+   */
+  LibraryConnection withManagers(AccessCriteria accessCriteria)
+      throws ProcessingFault, SystemFault, InvalidInputParameter {
+    return new LibraryConnection(
+        library,
+        CatalogMgrHelper.narrow(library.get_manager(CATALOG_MGR, accessCriteria)),
+        OrderMgrHelper.narrow(library.get_manager(ORDER_MGR, accessCriteria)),
+        ProductMgrHelper.narrow(library.get_manager(PRODUCT_MGR, accessCriteria)),
+        DataModelMgrHelper.narrow(library.get_manager(DATA_MODEL_MGR, accessCriteria)));
+  }
+
+  LibraryConnection withCatalogMgr(CatalogMgr catalogMgr) {
+    return new LibraryConnection(library, catalogMgr, orderMgr, productMgr, dataModelMgr);
+  }
+
+  LibraryConnection withOrderMgr(OrderMgr orderMgr) {
+    return new LibraryConnection(library, catalogMgr, orderMgr, productMgr, dataModelMgr);
+  }
+
+  LibraryConnection withProductMgr(ProductMgr productMgr) {
+    return new LibraryConnection(library, catalogMgr, orderMgr, productMgr, dataModelMgr);
+  }
+
+  LibraryConnection withDataModelMgr(DataModelMgr dataModelMgr) {
+    return new LibraryConnection(library, catalogMgr, orderMgr, productMgr, dataModelMgr);
+  }
+
+  /**
+   * Checks that the library is still reachable. This is a CORBA _non_existent call, which the
+   * server's ORB answers without invoking the library servant.
+   *
+   * @return true if the library responds and still exists
+   */
+  boolean isAlive() {
+    return library != null && !library._non_existent();
+  }
+
+  boolean hasMandatoryManagers() {
+    return catalogMgr != null && orderMgr != null && productMgr != null && dataModelMgr != null;
+  }
+
+  Library getLibrary() {
+    return library;
+  }
+
+  CatalogMgr getCatalogMgr() {
+    return catalogMgr;
+  }
+
+  OrderMgr getOrderMgr() {
+    return orderMgr;
+  }
+
+  ProductMgr getProductMgr() {
+    return productMgr;
+  }
+
+  DataModelMgr getDataModelMgr() {
+    return dataModelMgr;
+  }
+}
@@ -13,10 +13,15 @@
  */
 package org.codice.alliance.nsili.source;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
 import ddf.catalog.data.ContentType;
 import ddf.catalog.data.Metacard;
 import ddf.catalog.data.MetacardType;
 import ddf.catalog.data.Result;
+import ddf.catalog.data.impl.MetacardImpl;
 import ddf.catalog.data.impl.ResultImpl;
 import ddf.catalog.filter.FilterAdapter;
 import ddf.catalog.operation.Query;
@@ -40,6 +45,7 @@ import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,16 +53,24 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.net.ftp.FTP;
@@ -65,19 +79,12 @@ import org.apache.cxf.helpers.IOUtils;
 import org.codice.alliance.nsili.common.GIAS.AccessCriteria;
 import org.codice.alliance.nsili.common.GIAS.AttributeInformation;
 import org.codice.alliance.nsili.common.GIAS.CatalogMgr;
-import org.codice.alliance.nsili.common.GIAS.CatalogMgrHelper;
 import org.codice.alliance.nsili.common.GIAS.DataModelMgr;
-import org.codice.alliance.nsili.common.GIAS.DataModelMgrHelper;
 import org.codice.alliance.nsili.common.GIAS.HitCountRequest;
-import org.codice.alliance.nsili.common.GIAS.Library;
 import org.codice.alliance.nsili.common.GIAS.LibraryDescription;
-import org.codice.alliance.nsili.common.GIAS.LibraryHelper;
-import org.codice.alliance.nsili.common.GIAS.LibraryManager;
 import org.codice.alliance.nsili.common.GIAS.OrderMgr;
-import org.codice.alliance.nsili.common.GIAS.OrderMgrHelper;
 import org.codice.alliance.nsili.common.GIAS.Polarity;
 import org.codice.alliance.nsili.common.GIAS.ProductMgr;
-import org.codice.alliance.nsili.common.GIAS.ProductMgrHelper;
 import org.codice.alliance.nsili.common.GIAS.RequirementMode;
 import org.codice.alliance.nsili.common.GIAS.SortAttribute;
 import org.codice.alliance.nsili.common.GIAS.SubmitQueryRequest;
@@ -132,6 +139,36 @@ public class NsiliSource extends MaskableImpl
 
   public static final String ACCESS_LICENSE_KEY = "accessLicenseKey";
 
+  public static final String MAX_CONCURRENT_QUERIES = "maxConcurrentQueries";
+
+  public static final String HIT_COUNT_MODE = "hitCountMode";
+
+  public static final String HIT_COUNT_CACHE_TTL = "hitCountCacheTtl";
+
+  public static final String ENABLE_PAGING = "enablePaging";
+
+  public static final String PAGING_SESSION_TIMEOUT = "pagingSessionTimeout";
+
+  public static final String ENABLE_RESULT_CACHE = "enableResultCache";
+
+  public static final String RESULT_CACHE_TTL = "resultCacheTtl";
+
+  public static final String RESULT_CACHE_SIZE = "resultCacheSize";
+
+  public static final String THUMBNAIL_TIMEOUT = "thumbnailTimeout";
+
+  public static final String THUMBNAIL_FETCH_THREADS = "thumbnailFetchThreads";
+
+  public static final String MAX_THUMBNAIL_FETCHES_PER_HOST = "maxThumbnailFetchesPerHost";
+
+  public static final String THUMBNAIL_CACHE_SIZE = "thumbnailCacheSize";
+
+  public static final String QUERY_LATENCY_PROPERTY = "nsili.query.latency.msec";
+
+  public static final String HIT_COUNT_LATENCY_PROPERTY = "nsili.hitcount.latency.msec";
+
+  public static final String RESULT_CACHE_HIT_PROPERTY = "nsili.result.cache.hit";
+
   private static final Logger LOGGER = LoggerFactory.getLogger(NsiliSource.class);
 
   private static final String DESCRIBABLE_PROPERTIES_FILE = "/describable.properties";
@@ -150,14 +187,6 @@ public class NsiliSource extends MaskableImpl
 
   private static final String ASC = "ASC";
 
-  private static final String CATALOG_MGR = "CatalogMgr";
-
-  private static final String ORDER_MGR = "OrderMgr";
-
-  private static final String PRODUCT_MGR = "ProductMgr";
-
-  private static final String DATA_MODEL_MGR = "DataModelMgr";
-
   private static final String DEFAULT_USER_INFO = "Alliance";
 
   private static final String HTTP_SCHEME = "http";
@@ -168,21 +197,34 @@ public class NsiliSource extends MaskableImpl
 
   private static final String FTP_SCHEME = "ftp";
 
-  private static Library library;
+  private static final int DEFAULT_MAX_CONCURRENT_QUERIES = 4;
 
-  private static Properties describableProperties = new Properties();
+  private static final int DEFAULT_HIT_COUNT_CACHE_TTL = 30;
+
+  private static final int HIT_COUNT_CACHE_SIZE = 500;
 
-  /* Mandatory STANAG 4559 Managers */
+  private static final int DEFAULT_PAGING_SESSION_TIMEOUT = 300;
 
-  private CatalogMgr catalogMgr;
+  private static final int MAX_PAGING_SESSIONS = 100;
 
-  private OrderMgr orderMgr;
+  private static final long PAGING_CLEANUP_INTERVAL = 30;
 
-  private ProductMgr productMgr;
+  private static final int DEFAULT_RESULT_CACHE_TTL = 30;
 
-  private DataModelMgr dataModelMgr;
+  private static final int DEFAULT_RESULT_CACHE_SIZE = 100;
 
-  /* ---------------------------  */
+  private static final int DEFAULT_THUMBNAIL_TIMEOUT = 2000;
+
+  private static final int DEFAULT_THUMBNAIL_FETCH_THREADS = 8;
+
+  private static final int DEFAULT_MAX_THUMBNAIL_FETCHES_PER_HOST = 4;
+
+  private static final int DEFAULT_THUMBNAIL_CACHE_SIZE = 500;
+
+  private static Properties describableProperties = new Properties();
+
+  /* Library and mandatory STANAG 4559 Managers, replaced as a whole when reconnecting */
+  private volatile LibraryConnection connection = LibraryConnection.DISCONNECTED;
 
   private AvailabilityTask availabilityTask;
 
@@ -210,6 +252,8 @@ public class NsiliSource extends MaskableImpl
 
   private ScheduledFuture<?> availabilityPollFuture;
 
+  private ScheduledFuture<?> pagingCleanupFuture;
+
   private ScheduledExecutorService scheduler;
 
   private Integer pollInterval;
@@ -218,6 +262,8 @@ public class NsiliSource extends MaskableImpl
 
   private SecureCxfClientFactory<Nsili> factory;
 
+  private volatile boolean clientFactoryChanged = true;
+
   private NsiliFilterDelegate nsiliFilterDelegate;
 
   private Set<ContentType> contentTypes = NsiliConstants.getContentTypes();
@@ -250,12 +296,67 @@ public class NsiliSource extends MaskableImpl
 
   private ExecutorService executorService;
 
+  private int numberWorkerThreads = 1;
+
   private CorbaOrb corbaOrb = null;
 
-  private Object queryLockObj = new Object();
+  private int maxConcurrentQueries = DEFAULT_MAX_CONCURRENT_QUERIES;
+
+  /*
+   * Bounds the number of in-flight queries against the remote library. The CORBA stubs are shared
+   * across threads, so this only limits load on the server rather than guarding client state.
+   */
+  private volatile Semaphore querySemaphore = new Semaphore(DEFAULT_MAX_CONCURRENT_QUERIES, true);
 
   private MetacardType nsiliMetacardType = null;
 
+  private HitCountMode hitCountMode = HitCountMode.SEQUENTIAL;
+
+  private int hitCountCacheTtl = DEFAULT_HIT_COUNT_CACHE_TTL;
+
+  private Cache<String, Integer> hitCountCache = buildHitCountCache(DEFAULT_HIT_COUNT_CACHE_TTL);
+
+  /*
+   * Runs concurrent hit counts. A hit count only runs while its query holds a permit, so there
+   * are never more than maxConcurrentQueries of them.
+   */
+  private volatile ExecutorService hitCountExecutor =
+      createHitCountExecutor(DEFAULT_MAX_CONCURRENT_QUERIES);
+
+  private final LongAdder completedQueries = new LongAdder();
+
+  private final LongAdder totalQueryLatency = new LongAdder();
+
+  private final LongAdder completedHitCounts = new LongAdder();
+
+  private final LongAdder totalHitCountLatency = new LongAdder();
+
+  private boolean pagingEnabled = false;
+
+  private int pagingSessionTimeout = DEFAULT_PAGING_SESSION_TIMEOUT;
+
+  private Cache<String, PagingSession> pagingSessions =
+      buildPagingSessionCache(DEFAULT_PAGING_SESSION_TIMEOUT);
+
+  private boolean resultCacheEnabled = false;
+
+  private int resultCacheTtl = DEFAULT_RESULT_CACHE_TTL;
+
+  private int resultCacheSize = DEFAULT_RESULT_CACHE_SIZE;
+
+  private volatile Cache<String, CachedResponse> resultCache =
+      buildResultCache(DEFAULT_RESULT_CACHE_TTL, DEFAULT_RESULT_CACHE_SIZE);
+
+  private int thumbnailTimeout = DEFAULT_THUMBNAIL_TIMEOUT;
+
+  private int thumbnailFetchThreads = DEFAULT_THUMBNAIL_FETCH_THREADS;
+
+  private int maxThumbnailFetchesPerHost = DEFAULT_MAX_THUMBNAIL_FETCHES_PER_HOST;
+
+  private int thumbnailCacheSize = DEFAULT_THUMBNAIL_CACHE_SIZE;
+
+  private volatile ThumbnailFetcher thumbnailFetcher;
+
   private ClientFactoryFactory clientFactoryFactory;
 
   static {
@@ -290,9 +391,13 @@ public class NsiliSource extends MaskableImpl
   }
 
   public void init() {
+    if (hitCountExecutor.isShutdown()) {
+      hitCountExecutor = createHitCountExecutor(maxConcurrentQueries);
+    }
     corbaOrb.addCorbaServiceListener(this);
     initCorbaClient();
     setupAvailabilityPoll();
+    setupPagingSessionCleanup();
   }
 
   @Override
@@ -308,6 +413,7 @@ public class NsiliSource extends MaskableImpl
   }
 
   private void createClientFactory() {
+    clientFactoryChanged = false;
     int timeoutMsec = clientTimeout * 1000;
     if (StringUtils.isNotBlank(serverUsername) && StringUtils.isNotBlank(serverPassword)) {
       factory =
@@ -338,6 +444,16 @@ public class NsiliSource extends MaskableImpl
     getIorString();
     if (iorString != null) {
       initLibrary();
+      initFromLibrary();
+    }
+  }
+
+  /**
+   * Gets the managers, views and attributes that the current library reference provides and
+   * configures the source from them.
+   */
+  private void initFromLibrary() {
+    if (connection.getLibrary() != null) {
       setSourceDescription();
       initMandatoryManagers();
       initServerViews();
@@ -389,7 +505,9 @@ public class NsiliSource extends MaskableImpl
 
   /** Uses the SecureClientCxfFactory to obtain the IOR string from the provided URL via HTTP(S). */
   private void getIorStringFromHttpSource() {
-    createClientFactory();
+    if (clientFactoryFactory != null && (factory == null || clientFactoryChanged)) {
+      createClientFactory();
+    }
     Nsili nsili = factory.getClient();
 
     try (InputStream inputStream = nsili.getIorFile()) {
@@ -446,10 +564,8 @@ public class NsiliSource extends MaskableImpl
   /** Initializes the Root STANAG 4559 Library Interface */
   private void initLibrary() {
     if (iorString != null) {
-      org.omg.CORBA.Object obj = orb.string_to_object(iorString);
-
-      library = LibraryHelper.narrow(obj);
-      if (library != null) {
+      connection = connectToLibrary(iorString);
+      if (connection.getLibrary() != null) {
         LOGGER.debug("{} : Initialized Library Interface", getId());
       } else {
         LOGGER.debug("{} : Unable to initialize the library interface.", getId());
@@ -457,28 +573,24 @@ public class NsiliSource extends MaskableImpl
     }
   }
 
+  /**
+   * Resolves the IOR to a connection to the library. Package-private so tests can supply the
+   * library without resolving a real IOR.
+   */
+  LibraryConnection connectToLibrary(String iorString) {
+    return LibraryConnection.fromIor(orb, iorString);
+  }
+
   /** Initializes all STANAG 4559 mandatory managers: CatalogMgr OrderMgr DataModelMgr ProductMgr */
   private void initMandatoryManagers() {
     try {
       accessCriteria = new AccessCriteria(accessUserId, accessPassword, accessLicenseKey);
-
-      LibraryManager libraryManager = library.get_manager(CATALOG_MGR, accessCriteria);
-      setCatalogMgr(CatalogMgrHelper.narrow(libraryManager));
-
-      libraryManager = library.get_manager(ORDER_MGR, accessCriteria);
-      setOrderMgr(OrderMgrHelper.narrow(libraryManager));
-
-      libraryManager = library.get_manager(PRODUCT_MGR, accessCriteria);
-      setProductMgr(ProductMgrHelper.narrow(libraryManager));
-
-      libraryManager = library.get_manager(DATA_MODEL_MGR, accessCriteria);
-      setDataModelMgr(DataModelMgrHelper.narrow(libraryManager));
-
+      connection = connection.withManagers(accessCriteria);
     } catch (ProcessingFault | SystemFault | InvalidInputParameter e) {
       LOGGER.debug("{} : Unable to retrieve mandatory managers.", sourceId, e);
     }
 
-    if (catalogMgr != null && orderMgr != null && productMgr != null && dataModelMgr != null) {
+    if (connection.hasMandatoryManagers()) {
       LOGGER.debug("{} : Initialized STANAG mandatory managers.", getId());
     } else {
       LOGGER.debug("{} : Unable to initialize mandatory mangers.", getId());
@@ -495,7 +607,7 @@ public class NsiliSource extends MaskableImpl
   private void initServerViews() {
     View[] views = null;
     try {
-      views = dataModelMgr.get_view_names(new NameValue[0]);
+      views = connection.getDataModelMgr().get_view_names(new NameValue[0]);
     } catch (ProcessingFault | SystemFault | InvalidInputParameter e) {
       LOGGER.debug("{} : Unable to retrieve views.", sourceId, e);
     }
@@ -519,6 +631,7 @@ public class NsiliSource extends MaskableImpl
     }
     HashMap<String, String[]> resultAttributesMap = new HashMap<>();
     HashMap<String, List<String>> sortableAttributesMap = new HashMap<>();
+    DataModelMgr dataModelMgr = connection.getDataModelMgr();
 
     try {
       for (int i = 0; i < views.length; i++) {
@@ -588,6 +701,7 @@ public class NsiliSource extends MaskableImpl
       return;
     }
     HashMap<String, List<AttributeInformation>> map = new HashMap<>();
+    DataModelMgr dataModelMgr = connection.getDataModelMgr();
 
     try {
       for (int i = 0; i < views.length; i++) {
@@ -617,7 +731,7 @@ public class NsiliSource extends MaskableImpl
   private void setSourceDescription() {
     StringBuilder stringBuilder = new StringBuilder();
     try {
-      LibraryDescription libraryDescription = library.get_library_description();
+      LibraryDescription libraryDescription = connection.getLibrary().get_library_description();
       stringBuilder.append(libraryDescription.library_name + " : ");
       stringBuilder.append(libraryDescription.library_description);
     } catch (ProcessingFault | SystemFault e) {
@@ -636,6 +750,12 @@ public class NsiliSource extends MaskableImpl
     }
     availabilityPollFuture.cancel(true);
     scheduler.shutdownNow();
+    hitCountExecutor.shutdownNow();
+    pagingSessions.invalidateAll();
+    resultCache.invalidateAll();
+    if (thumbnailFetcher != null) {
+      thumbnailFetcher.shutdown();
+    }
   }
 
   public void refresh(Map<String, Object> configuration) {
@@ -690,6 +810,56 @@ public class NsiliSource extends MaskableImpl
     if (StringUtils.isNotBlank(accessLicenseKey)) {
       setAccessLicenseKey(accessLicenseKey);
     }
+    String hitCountMode = (String) configuration.get(HIT_COUNT_MODE);
+    if (StringUtils.isNotBlank(hitCountMode)) {
+      setHitCountMode(hitCountMode);
+    }
+    Integer hitCountCacheTtl = (Integer) configuration.get(HIT_COUNT_CACHE_TTL);
+    if (hitCountCacheTtl != null && hitCountCacheTtl != this.hitCountCacheTtl) {
+      setHitCountCacheTtl(hitCountCacheTtl);
+    }
+    Boolean enablePaging = (Boolean) configuration.get(ENABLE_PAGING);
+    if (enablePaging != null) {
+      setEnablePaging(enablePaging);
+    }
+    Integer pagingSessionTimeout = (Integer) configuration.get(PAGING_SESSION_TIMEOUT);
+    if (pagingSessionTimeout != null && pagingSessionTimeout != this.pagingSessionTimeout) {
+      setPagingSessionTimeout(pagingSessionTimeout);
+    }
+    Integer maxConcurrentQueries = (Integer) configuration.get(MAX_CONCURRENT_QUERIES);
+    if (maxConcurrentQueries != null && maxConcurrentQueries != this.maxConcurrentQueries) {
+      setMaxConcurrentQueries(maxConcurrentQueries);
+    }
+    Boolean enableResultCache = (Boolean) configuration.get(ENABLE_RESULT_CACHE);
+    if (enableResultCache != null) {
+      setEnableResultCache(enableResultCache);
+    }
+    Integer resultCacheTtl = (Integer) configuration.get(RESULT_CACHE_TTL);
+    if (resultCacheTtl != null && resultCacheTtl != this.resultCacheTtl) {
+      setResultCacheTtl(resultCacheTtl);
+    }
+    Integer resultCacheSize = (Integer) configuration.get(RESULT_CACHE_SIZE);
+    if (resultCacheSize != null && resultCacheSize != this.resultCacheSize) {
+      setResultCacheSize(resultCacheSize);
+    }
+    Integer thumbnailTimeout = (Integer) configuration.get(THUMBNAIL_TIMEOUT);
+    if (thumbnailTimeout != null && thumbnailTimeout != this.thumbnailTimeout) {
+      setThumbnailTimeout(thumbnailTimeout);
+    }
+    Integer thumbnailFetchThreads = (Integer) configuration.get(THUMBNAIL_FETCH_THREADS);
+    if (thumbnailFetchThreads != null && thumbnailFetchThreads != this.thumbnailFetchThreads) {
+      setThumbnailFetchThreads(thumbnailFetchThreads);
+    }
+    Integer maxThumbnailFetchesPerHost =
+        (Integer) configuration.get(MAX_THUMBNAIL_FETCHES_PER_HOST);
+    if (maxThumbnailFetchesPerHost != null
+        && maxThumbnailFetchesPerHost != this.maxThumbnailFetchesPerHost) {
+      setMaxThumbnailFetchesPerHost(maxThumbnailFetchesPerHost);
+    }
+    Integer thumbnailCacheSize = (Integer) configuration.get(THUMBNAIL_CACHE_SIZE);
+    if (thumbnailCacheSize != null && thumbnailCacheSize != this.thumbnailCacheSize) {
+      setThumbnailCacheSize(thumbnailCacheSize);
+    }
     init();
   }
 
@@ -715,9 +885,46 @@ public class NsiliSource extends MaskableImpl
 
     SortAttribute[] sortAttributes = getSortAttributes(queryRequest.getQuery().getSortBy());
     NameValue[] propertiesList = getDefaultPropertyList();
+
+    String resultCacheKey = null;
+    if (resultCacheEnabled) {
+      resultCacheKey = getResultCacheKey(queryRequest.getQuery(), query, results, sortAttributes);
+      CachedResponse cachedResponse = resultCache.getIfPresent(resultCacheKey);
+      if (cachedResponse != null) {
+        LOGGER.debug("{} : Returning cached results for BQS query.", getId());
+        return cachedResponse.toSourceResponse(queryRequest);
+      }
+    }
+
     LOGGER.debug(
         "{} : Sending BQS query to source.\n Sort Attributes : {}", getId(), sortAttributes);
-    return submitQuery(queryRequest, query, results, sortAttributes, propertiesList);
+    AtomicBoolean complete = new AtomicBoolean(true);
+    SourceResponse sourceResponse =
+        submitQuery(queryRequest, query, results, sortAttributes, propertiesList, complete);
+    // Results dropped at the deadline, or missing thumbnails, would be served for the whole TTL
+    if (resultCacheKey != null && sourceResponse != null && complete.get()) {
+      resultCache.put(resultCacheKey, new CachedResponse(sourceResponse));
+    }
+    return sourceResponse;
+  }
+
+  /**
+   * Builds the result cache key. Besides the query itself the key includes the requested page
+   * when paging, or the max hit count otherwise, since either changes which results come back.
+   */
+  private String getResultCacheKey(
+      Query ddfQuery,
+      org.codice.alliance.nsili.common.GIAS.Query query,
+      String[] resultAttributes,
+      SortAttribute[] sortAttributes) {
+    StringBuilder key =
+        new StringBuilder(getQueryKey(query, resultAttributes, sortAttributes)).append('|');
+    if (pagingEnabled) {
+      key.append(Math.max(1, ddfQuery.getStartIndex())).append(':').append(getPageSize(ddfQuery));
+    } else {
+      key.append(maxHitCount);
+    }
+    return key.toString();
   }
 
   /**
@@ -739,32 +946,69 @@ public class NsiliSource extends MaskableImpl
   }
 
   /**
-   * Obtains the number of hits that the given query has received from the server.
+   * Obtains the number of hits that the given query has received from the server. Callers are
+   * expected to already hold a query permit.
    *
+   * @param catalogMgr - the catalog manager of the connection the query is running on
    * @param query - a BQS query
    * @param properties - a list of properties for the query
-   * @return - the hit count
+   * @param hitCountLatency - receives the time (msec) the hit count took
+   * @return - the hit count, or -1 if the server could not count the hits
    */
   private int getHitCount(
-      org.codice.alliance.nsili.common.GIAS.Query query, NameValue[] properties) {
+      CatalogMgr catalogMgr,
+      org.codice.alliance.nsili.common.GIAS.Query query,
+      NameValue[] properties,
+      AtomicLong hitCountLatency) {
     IntHolder intHolder = new IntHolder();
+    long start = System.currentTimeMillis();
     try {
-      synchronized (queryLockObj) {
-        HitCountRequest hitCountRequest = catalogMgr.hit_count(query, properties);
-        hitCountRequest.complete(intHolder);
-      }
+      HitCountRequest hitCountRequest = catalogMgr.hit_count(query, properties);
+      hitCountRequest.complete(intHolder);
     } catch (ProcessingFault | SystemFault | InvalidInputParameter e) {
       LOGGER.debug(
           "{} : Unable to get hit count for query. : {}",
           getId(),
           NsilCorbaExceptionUtil.getExceptionDetails(e),
           e);
+      return -1;
+    } finally {
+      recordHitCountLatency(hitCountLatency, System.currentTimeMillis() - start);
     }
 
     LOGGER.debug("{} :  Received {} hit(s) from query.", getId(), intHolder.value);
     return intHolder.value;
   }
 
+  /**
+   * Obtains the hit count for the query from the hit count cache, asking the server on a miss.
+   *
+   * @param catalogMgr - the catalog manager of the connection the query is running on
+   * @param query - a BQS query
+   * @param properties - a list of properties for the query
+   * @param hitCountLatency - receives the time (msec) the hit count took, 0 on a cache hit
+   * @return - the hit count, or -1 if the server could not count the hits
+   */
+  private int getCachedHitCount(
+      CatalogMgr catalogMgr,
+      org.codice.alliance.nsili.common.GIAS.Query query,
+      NameValue[] properties,
+      AtomicLong hitCountLatency) {
+    String cacheKey = query.view + ":" + query.bqs_query;
+    Integer hitCount = hitCountCache.getIfPresent(cacheKey);
+    if (hitCount != null) {
+      LOGGER.debug("{} : Using cached hit count of {} for query.", getId(), hitCount);
+      hitCountLatency.set(0);
+      return hitCount;
+    }
+
+    hitCount = getHitCount(catalogMgr, query, properties, hitCountLatency);
+    if (hitCount >= 0) {
+      hitCountCache.put(cacheKey, hitCount);
+    }
+    return hitCount;
+  }
+
   /**
    * Submits and completes a BQS Query to the STANAG 4559 server and returns the response.
    *
@@ -773,6 +1017,7 @@ public class NsiliSource extends MaskableImpl
    * @param resultAttributes - a list of desired result attributes
    * @param sortAttributes - a list of attributes to sort by
    * @param properties - a list of properties for the query
+   * @param complete - set to false if results or thumbnails were dropped at their deadline
    * @return - the server's response
    */
   private SourceResponse submitQuery(
@@ -780,100 +1025,172 @@ public class NsiliSource extends MaskableImpl
       org.codice.alliance.nsili.common.GIAS.Query query,
       String[] resultAttributes,
       SortAttribute[] sortAttributes,
-      NameValue[] properties) {
+      NameValue[] properties,
+      AtomicBoolean complete) {
+    // Use one connection for the whole query, even if the source reconnects part way through
+    CatalogMgr catalogMgr = connection.getCatalogMgr();
+    if (catalogMgr == null) {
+      LOGGER.debug("{} : Unable to query source, not connected to the library.", sourceId);
+      return null;
+    }
     DAGListHolder dagListHolder = new DAGListHolder();
 
     SourceResponseImpl sourceResponse = null;
 
-    long numHits = 0;
+    long numHits = -1;
+    long queryStart = System.currentTimeMillis();
+    // Written by the hit count thread in concurrent mode
+    AtomicLong hitCountLatency = new AtomicLong();
+    int startIndex = Math.max(1, queryRequest.getQuery().getStartIndex());
+    int pageSize = getPageSize(queryRequest.getQuery());
+    String pagingSessionKey = null;
+    // A paged server request that is not kept as a session, deleted once the query ends
+    SubmitQueryRequest unusedPagedRequest = null;
+    Future<Integer> pendingHitCount = null;
+    HitCountMode mode = hitCountMode;
+    Semaphore semaphore = querySemaphore;
     try {
-      synchronized (queryLockObj) {
+      semaphore.acquire();
+      try {
         LOGGER.debug("{} : Submit query: {}", sourceId, query.bqs_query);
         LOGGER.debug("{} : Requesting result attributes: {}", sourceId, resultAttributes);
         LOGGER.debug("{} : Sort Attributes: {}", sourceId, sortAttributes);
         LOGGER.debug("{} : Properties: {}", sourceId, properties);
-        HitCountRequest hitCountRequest = catalogMgr.hit_count(query, properties);
-        IntHolder hitHolder = new IntHolder();
-        hitCountRequest.complete(hitHolder);
-        numHits = hitHolder.value;
+        PagingSession pagingSession = null;
+        if (pagingEnabled) {
+          pagingSessionKey = getQueryKey(query, resultAttributes, sortAttributes);
+          pagingSession = pagingSessions.asMap().remove(pagingSessionKey);
+          if (pagingSession != null
+              && (pagingSession.nextIndex != startIndex - 1
+                  || pagingSession.catalogMgr != catalogMgr)) {
+            deleteRequest(pagingSession);
+            pagingSession = null;
+          }
+        }
+
         SubmitQueryRequest submitQueryRequest;
-        if (hitHolder.value > 1) {
+        if (pagingSession != null) {
+          LOGGER.debug("{} : Continuing paged query at index {}", sourceId, startIndex);
+          submitQueryRequest = pagingSession.submitQueryRequest;
+          numHits = pagingSession.numHits;
+        } else if (mode == HitCountMode.CONCURRENT || mode == HitCountMode.SKIP) {
+          if (mode == HitCountMode.CONCURRENT) {
+            try {
+              pendingHitCount =
+                  hitCountExecutor.submit(
+                      () -> getHitCount(catalogMgr, query, properties, hitCountLatency));
+            } catch (RejectedExecutionException e) {
+              LOGGER.debug("{} : Unable to start hit count, counting returned results.", sourceId);
+            }
+          }
           submitQueryRequest =
               catalogMgr.submit_query(query, resultAttributes, sortAttributes, properties);
         } else {
-          submitQueryRequest =
-              catalogMgr.submit_query(
-                  query, resultAttributes, new SortAttribute[0], new NameValue[0]);
+          long hitCountStart = System.currentTimeMillis();
+          if (mode == HitCountMode.CACHED) {
+            numHits = getCachedHitCount(catalogMgr, query, properties, hitCountLatency);
+          } else {
+            HitCountRequest hitCountRequest = catalogMgr.hit_count(query, properties);
+            IntHolder hitHolder = new IntHolder();
+            hitCountRequest.complete(hitHolder);
+            numHits = hitHolder.value;
+            recordHitCountLatency(hitCountLatency, System.currentTimeMillis() - hitCountStart);
+          }
+          if (numHits > 1) {
+            submitQueryRequest =
+                catalogMgr.submit_query(query, resultAttributes, sortAttributes, properties);
+          } else {
+            submitQueryRequest =
+                catalogMgr.submit_query(
+                    query, resultAttributes, new SortAttribute[0], new NameValue[0]);
+          }
+        }
+        if (pagingEnabled) {
+          unusedPagedRequest = submitQueryRequest;
+        }
+        if (pagingSession == null) {
+          submitQueryRequest.set_user_info(ddfOrgName);
+        }
+        if (pagingEnabled) {
+          if (pagingSession == null && startIndex > 1) {
+            // A new session that starts part way through has to skip the earlier results. GIAS
+            // can't skip results, so the server still converts and sends them, and they are only
+            // dropped here without being converted.
+            submitQueryRequest.set_number_of_hits(startIndex - 1);
+            submitQueryRequest.complete_DAG_results(new DAGListHolder());
+          }
+          submitQueryRequest.set_number_of_hits(pageSize);
+        } else {
+          submitQueryRequest.set_number_of_hits(maxHitCount);
         }
-        submitQueryRequest.set_user_info(ddfOrgName);
-        submitQueryRequest.set_number_of_hits(maxHitCount);
         submitQueryRequest.complete_DAG_results(dagListHolder);
+        if (pendingHitCount != null) {
+          numHits = pendingHitCount.get();
+        }
+        if (pagingEnabled && dagListHolder.value != null && dagListHolder.value.length > 0) {
+          pagingSessions.put(
+              pagingSessionKey,
+              new PagingSession(
+                  catalogMgr,
+                  submitQueryRequest,
+                  startIndex - 1 + dagListHolder.value.length,
+                  numHits));
+          unusedPagedRequest = null;
+        }
+      } finally {
+        semaphore.release();
       }
+    } catch (InterruptedException e) {
+      LOGGER.debug("{} : Interrupted waiting to query source.", sourceId);
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOGGER.debug("{} : Unable to get hit count for query.", sourceId, e);
     } catch (ProcessingFault | SystemFault | InvalidInputParameter e) {
       LOGGER.debug(
           "{} : Unable to query source. {}",
           sourceId,
           NsilCorbaExceptionUtil.getExceptionDetails(e),
           e);
+    } finally {
+      if (pendingHitCount != null) {
+        pendingHitCount.cancel(true);
+      }
+      if (unusedPagedRequest != null) {
+        // The query failed or ran out of results, so the server request won't be paged again
+        deleteRequest(catalogMgr, unusedPagedRequest);
+      }
     }
 
+    if (numHits < 0) {
+      numHits = dagListHolder.value != null ? dagListHolder.value.length : 0;
+    }
+    long queryLatency = System.currentTimeMillis() - queryStart;
+    completedQueries.increment();
+    totalQueryLatency.add(queryLatency);
+    LOGGER.debug(
+        "{} : Query completed in {} ms ({} hit count mode, hit count took {} ms)",
+        sourceId,
+        queryLatency,
+        mode,
+        hitCountLatency.get());
+
     if (dagListHolder.value != null) {
-      List<Result> results = new ArrayList<>();
-      String id = getId();
-      List<Future<Result>> futures = new ArrayList<>(dagListHolder.value.length);
-      CompletionService<Result> completionService =
-          new ExecutorCompletionService<Result>(executorService);
-
-      int count = 0;
-      for (DAG dag : dagListHolder.value) {
-        Callable<Result> convertRunner =
-            () -> {
-              DAGConverter dagConverter = new DAGConverter(resourceReader);
-              dagConverter.setNsiliMetacardType(nsiliMetacardType);
-              Metacard card = dagConverter.convertDAG(dag, swapCoordinates, id);
-              if (card != null) {
-                if (LOGGER.isTraceEnabled()) {
-                  DAGConverter.logMetacard(card, getId());
-                }
-                return new ResultImpl(card);
-              } else {
-                LOGGER.debug(
-                    "{} : Unable to convert DAG to metacard, returned card is null", getId());
-              }
-              return null;
-            };
-        LOGGER.debug("Submitting DAG convertor for processing - #{}", count++);
-        futures.add(completionService.submit(convertRunner));
-      }
-      LOGGER.debug("Total of {} futures submitted", count);
-
-      Future<Result> completedFuture;
-      count = 0;
-      while (!futures.isEmpty()) {
-        completedFuture = null;
-        try {
-          completedFuture = completionService.take();
-          LOGGER.debug("Successfully retrieved future #{}", count);
-        } catch (InterruptedException e) {
-          LOGGER.debug("Interrupted waiting for completed future.");
-          Thread.currentThread().interrupt();
-        }
-        if (completedFuture != null) {
-          try {
-            futures.remove(completedFuture);
-            results.add(completedFuture.get());
-            LOGGER.debug("Successfully retrieved result from future #{}", count);
-          } catch (ExecutionException e) {
-            LOGGER.debug("Unable to create result for future #{}.", count, e);
-          } catch (InterruptedException ignore) {
-            LOGGER.debug("Interrupted getting result from future #{}", count);
-            Thread.currentThread().interrupt();
-          }
-        }
-        count++;
+      ThumbnailFetcher fetcher = thumbnailFetcher;
+      List<Map.Entry<MetacardImpl, Future<byte[]>>> pendingThumbnails = new ArrayList<>();
+      long timeout = queryRequest.getQuery().getTimeoutMillis();
+      long deadline = timeout > 0 ? queryStart + timeout : Long.MAX_VALUE;
+      List<Result> results =
+          convertDAGs(dagListHolder.value, deadline, fetcher, pendingThumbnails, complete);
+
+      if (!attachThumbnails(pendingThumbnails)) {
+        complete.set(false);
       }
 
-      sourceResponse = new SourceResponseImpl(queryRequest, results, numHits);
+      Map<String, Serializable> responseProperties = new HashMap<>();
+      responseProperties.put(QUERY_LATENCY_PROPERTY, queryLatency);
+      responseProperties.put(HIT_COUNT_LATENCY_PROPERTY, hitCountLatency.get());
+      sourceResponse =
+          new SourceResponseImpl(queryRequest, responseProperties, results, numHits);
 
     } else {
       LOGGER.debug("{} : Source returned empty DAG list", getId());
@@ -882,6 +1199,233 @@ public class NsiliSource extends MaskableImpl
     return sourceResponse;
   }
 
+  /**
+   * Converts the DAGs returned by the server into results, keeping the order the server returned
+   * them in. The DAGs are split into one contiguous chunk per worker thread and each chunk reuses a
+   * single converter. Conversions that have not finished by the deadline are cancelled and left
+   * out of the results.
+   *
+   * @param dags - the DAGs returned by the server
+   * @param deadline - the time (msec since the epoch) after which conversions are dropped
+   * @param fetcher - the thumbnail fetcher, or null to retrieve thumbnails during conversion
+   * @param pendingThumbnails - receives the thumbnails being retrieved for the returned results,
+   *     once conversion has ended
+   * @param complete - set to false if conversions were dropped at the deadline
+   * @return the converted results in server order
+   */
+  private List<Result> convertDAGs(
+      DAG[] dags,
+      long deadline,
+      ThumbnailFetcher fetcher,
+      List<Map.Entry<MetacardImpl, Future<byte[]>>> pendingThumbnails,
+      AtomicBoolean complete) {
+    String id = getId();
+    AtomicReferenceArray<Result> converted = new AtomicReferenceArray<>(dags.length);
+    int chunkCount = Math.max(1, Math.min(numberWorkerThreads, dags.length));
+    int chunkSize = (dags.length + chunkCount - 1) / chunkCount;
+    List<Future<?>> futures = new ArrayList<>(chunkCount);
+    // Guarded by startedThumbnails, so no chunk stores a result or starts a fetch once the results
+    // are collected
+    List<Map.Entry<MetacardImpl, Future<byte[]>>> startedThumbnails = new ArrayList<>();
+    AtomicBoolean conversionEnded = new AtomicBoolean();
+
+    for (int chunkStart = 0; chunkStart < dags.length; chunkStart += chunkSize) {
+      int from = chunkStart;
+      int to = Math.min(dags.length, chunkStart + chunkSize);
+      futures.add(
+          executorService.submit(
+              () -> {
+                DAGConverter dagConverter = new DAGConverter(resourceReader);
+                dagConverter.setNsiliMetacardType(nsiliMetacardType);
+                dagConverter.setDeferThumbnailRetrieval(fetcher != null);
+                for (int i = from; i < to && !Thread.currentThread().isInterrupted(); i++) {
+                  MetacardImpl card = convertDAG(dagConverter, dags[i], id);
+                  if (card == null) {
+                    continue;
+                  }
+                  String thumbnailUrl = dagConverter.getThumbnailUrl();
+                  synchronized (startedThumbnails) {
+                    if (conversionEnded.get() || Thread.currentThread().isInterrupted()) {
+                      return;
+                    }
+                    converted.set(i, new ResultImpl(card));
+                    if (thumbnailUrl != null) {
+                      startedThumbnails.add(
+                          new AbstractMap.SimpleImmutableEntry<>(
+                              card, fetcher.fetch(thumbnailUrl)));
+                    }
+                  }
+                }
+              }));
+    }
+    LOGGER.debug("{} : Converting {} DAGs in {} chunks", id, dags.length, futures.size());
+
+    for (Future<?> future : futures) {
+      try {
+        if (deadline == Long.MAX_VALUE) {
+          future.get();
+        } else {
+          future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+      } catch (TimeoutException e) {
+        LOGGER.debug("{} : Query deadline passed, dropping unconverted results.", id);
+        future.cancel(true);
+        complete.set(false);
+      } catch (ExecutionException e) {
+        LOGGER.debug("{} : Unable to convert DAGs to results.", id, e);
+      } catch (InterruptedException e) {
+        LOGGER.debug("{} : Interrupted waiting for DAG conversion.", id);
+        futures.forEach(pending -> pending.cancel(true));
+        complete.set(false);
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    synchronized (startedThumbnails) {
+      conversionEnded.set(true);
+      pendingThumbnails.addAll(startedThumbnails);
+    }
+
+    List<Result> results = new ArrayList<>(dags.length);
+    for (int i = 0; i < dags.length; i++) {
+      Result result = converted.get(i);
+      if (result != null) {
+        results.add(result);
+      }
+    }
+    if (results.size() < dags.length) {
+      LOGGER.debug("{} : Converted {} of {} DAGs", id, results.size(), dags.length);
+    }
+    return results;
+  }
+
+  private MetacardImpl convertDAG(DAGConverter dagConverter, DAG dag, String id) {
+    try {
+      MetacardImpl card = dagConverter.convertDAG(dag, swapCoordinates, id);
+      if (card == null) {
+        LOGGER.debug("{} : Unable to convert DAG to metacard, returned card is null", id);
+      } else if (LOGGER.isTraceEnabled()) {
+        DAGConverter.logMetacard(card, id);
+      }
+      return card;
+    } catch (RuntimeException e) {
+      LOGGER.debug("{} : Unable to convert DAG to metacard.", id, e);
+      return null;
+    }
+  }
+
+  /**
+   * Waits up to the thumbnail timeout for pending thumbnails and attaches the ones that have
+   * arrived. Thumbnails that are still outstanding keep downloading in the background so they are
+   * cached for the next query that returns the same product.
+   *
+   * @return false if any thumbnail was still outstanding at the timeout
+   */
+  private boolean attachThumbnails(
+      List<Map.Entry<MetacardImpl, Future<byte[]>>> pendingThumbnails) {
+    long deadline = System.currentTimeMillis() + thumbnailTimeout;
+    int attached = 0;
+    boolean allArrived = true;
+    for (Map.Entry<MetacardImpl, Future<byte[]>> pendingThumbnail : pendingThumbnails) {
+      Future<byte[]> future = pendingThumbnail.getValue();
+      try {
+        long remaining = deadline - System.currentTimeMillis();
+        byte[] thumbnail =
+            remaining > 0 ? future.get(remaining, TimeUnit.MILLISECONDS) : getIfDone(future);
+        if (thumbnail != null) {
+          pendingThumbnail.getKey().setThumbnail(thumbnail);
+          attached++;
+        }
+      } catch (TimeoutException e) {
+        LOGGER.trace("{} : Thumbnail not retrieved before the timeout.", sourceId);
+        allArrived = false;
+      } catch (ExecutionException | CancellationException e) {
+        LOGGER.debug("{} : Unable to retrieve thumbnail.", sourceId, e);
+      } catch (InterruptedException e) {
+        LOGGER.debug("{} : Interrupted waiting for thumbnails.", sourceId);
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    LOGGER.debug(
+        "{} : Attached {} of {} thumbnails", sourceId, attached, pendingThumbnails.size());
+    return allArrived;
+  }
+
+  private static byte[] getIfDone(Future<byte[]> future)
+      throws ExecutionException, InterruptedException, TimeoutException {
+    if (!future.isDone()) {
+      throw new TimeoutException("Thumbnail not retrieved before the timeout");
+    }
+    return future.get();
+  }
+
+  /**
+   * Returns the number of results to request for a single page, which is the query page size
+   * capped at the configured max hit count.
+   */
+  private int getPageSize(Query query) {
+    int pageSize = query.getPageSize();
+    if (pageSize <= 0 || (maxHitCount != null && pageSize > maxHitCount)) {
+      return maxHitCount != null ? maxHitCount : 0;
+    }
+    return pageSize;
+  }
+
+  /**
+   * Builds the key that identifies a query sent to the server. Two requests are the same query
+   * when they send the same view, BQS, result attributes and sort attributes. This keys both paged
+   * query sessions and the result cache.
+   */
+  private String getQueryKey(
+      org.codice.alliance.nsili.common.GIAS.Query query,
+      String[] resultAttributes,
+      SortAttribute[] sortAttributes) {
+    StringBuilder key = new StringBuilder(query.view).append('|').append(query.bqs_query);
+    key.append('|');
+    if (resultAttributes != null) {
+      key.append(String.join(",", resultAttributes));
+    }
+    key.append('|');
+    if (sortAttributes != null) {
+      for (SortAttribute sortAttribute : sortAttributes) {
+        key.append(sortAttribute.attribute_name)
+            .append(':')
+            .append(sortAttribute.sort_polarity.value())
+            .append(',');
+      }
+    }
+    return key.toString();
+  }
+
+  /** Releases a server side query request that is no longer needed. */
+  private void deleteRequest(PagingSession pagingSession) {
+    deleteRequest(pagingSession.catalogMgr, pagingSession.submitQueryRequest);
+  }
+
+  private void deleteRequest(CatalogMgr catalogMgr, SubmitQueryRequest submitQueryRequest) {
+    try {
+      catalogMgr.delete_request(submitQueryRequest);
+    } catch (ProcessingFault | SystemFault | InvalidInputParameter | RuntimeException e) {
+      LOGGER.debug("{} : Unable to delete paged query request.", sourceId, e);
+    }
+  }
+
+  private Cache<String, PagingSession> buildPagingSessionCache(int timeoutSeconds) {
+    return CacheBuilder.newBuilder()
+        .maximumSize(MAX_PAGING_SESSIONS)
+        .expireAfterAccess(timeoutSeconds, TimeUnit.SECONDS)
+        .removalListener(
+            (RemovalNotification<String, PagingSession> notification) -> {
+              if (notification.getCause() != RemovalCause.EXPLICIT
+                  && notification.getValue() != null) {
+                LOGGER.debug("{} : Evicting paged query session", sourceId);
+                deleteRequest(notification.getValue());
+              }
+            })
+        .build();
+  }
+
   private void setFilterDelegate() {
     nsiliFilterDelegate =
         new NsiliFilterDelegate(queryableAttributes, NsiliConstants.NSIL_ALL_VIEW);
@@ -969,10 +1513,12 @@ public class NsiliSource extends MaskableImpl
 
   public void setServerUsername(String serverUsername) {
     this.serverUsername = serverUsername;
+    clientFactoryChanged = true;
   }
 
   public void setServerPassword(String serverPassword) {
     this.serverPassword = serverPassword;
+    clientFactoryChanged = true;
   }
 
   public Integer getClientTimeout() {
@@ -981,6 +1527,7 @@ public class NsiliSource extends MaskableImpl
 
   public void setClientTimeout(Integer clientTimeout) {
     this.clientTimeout = clientTimeout;
+    clientFactoryChanged = true;
   }
 
   public void setId(String id) {
@@ -991,6 +1538,7 @@ public class NsiliSource extends MaskableImpl
   public void setIorUrl(String iorUrl) {
     if (iorUrl != null) {
       this.iorUrl = iorUrl.trim();
+      clientFactoryChanged = true;
     }
   }
 
@@ -1073,6 +1621,7 @@ public class NsiliSource extends MaskableImpl
   }
 
   public void setNumberWorkerThreads(int numberWorkerThreads) {
+    this.numberWorkerThreads = numberWorkerThreads;
     List<Runnable> waitingTasks = null;
     if (executorService != null) {
       waitingTasks = executorService.shutdownNow();
@@ -1091,8 +1640,257 @@ public class NsiliSource extends MaskableImpl
     }
   }
 
+  public int getMaxConcurrentQueries() {
+    return maxConcurrentQueries;
+  }
+
+  /**
+   * Sets the maximum number of queries that may be outstanding against the source at one time.
+   * Queries already holding a permit complete against the previous limit.
+   *
+   * @param maxConcurrentQueries - the concurrency limit, values less than 1 are treated as 1
+   */
+  public void setMaxConcurrentQueries(int maxConcurrentQueries) {
+    this.maxConcurrentQueries = Math.max(1, maxConcurrentQueries);
+    querySemaphore = new Semaphore(this.maxConcurrentQueries, true);
+    ExecutorService previousHitCountExecutor = hitCountExecutor;
+    hitCountExecutor = createHitCountExecutor(this.maxConcurrentQueries);
+    // Hit counts already running finish on the previous executor
+    previousHitCountExecutor.shutdown();
+  }
+
+  private static ExecutorService createHitCountExecutor(int threads) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** @return the number of queries sent to the source */
+  public long getQueryCount() {
+    return completedQueries.sum();
+  }
+
+  /** @return the average time (msec) queries sent to the source took, 0 before the first one */
+  public long getAverageQueryLatency() {
+    long count = completedQueries.sum();
+    return count > 0 ? totalQueryLatency.sum() / count : 0;
+  }
+
+  /** @return the number of hit counts requested from the source */
+  public long getHitCountRequestCount() {
+    return completedHitCounts.sum();
+  }
+
+  /** @return the average time (msec) hit counts took, 0 before the first one */
+  public long getAverageHitCountLatency() {
+    long count = completedHitCounts.sum();
+    return count > 0 ? totalHitCountLatency.sum() / count : 0;
+  }
+
+  private void recordHitCountLatency(AtomicLong hitCountLatency, long latency) {
+    hitCountLatency.set(latency);
+    completedHitCounts.increment();
+    totalHitCountLatency.add(latency);
+  }
+
+  public String getHitCountMode() {
+    return hitCountMode.name();
+  }
+
+  public void setHitCountMode(String hitCountMode) {
+    this.hitCountMode = HitCountMode.fromString(hitCountMode);
+  }
+
+  public int getHitCountCacheTtl() {
+    return hitCountCacheTtl;
+  }
+
+  /**
+   * Sets how long (in seconds) a hit count is reused when running in {@link HitCountMode#CACHED}
+   * mode. Changing the TTL discards any cached hit counts.
+   *
+   * @param hitCountCacheTtl - the time to live in seconds
+   */
+  public void setHitCountCacheTtl(int hitCountCacheTtl) {
+    this.hitCountCacheTtl = Math.max(1, hitCountCacheTtl);
+    hitCountCache = buildHitCountCache(this.hitCountCacheTtl);
+  }
+
+  public boolean getEnablePaging() {
+    return pagingEnabled;
+  }
+
+  /**
+   * Enables paging mode. When enabled each query only asks for the requested page of results and
+   * keeps the server side request open so the following page can be pulled from it directly. A
+   * page that doesn't follow an open one starts a new server request, and the server converts and
+   * sends all of the results before it too.
+   *
+   * @param enablePaging - whether paging mode is enabled
+   */
+  public void setEnablePaging(boolean enablePaging) {
+    this.pagingEnabled = enablePaging;
+    if (!enablePaging) {
+      pagingSessions.invalidateAll();
+    }
+  }
+
+  public int getPagingSessionTimeout() {
+    return pagingSessionTimeout;
+  }
+
+  /**
+   * Sets how long (in seconds) an idle paged query session is kept before the server side request
+   * is deleted. Changing the timeout closes any open sessions.
+   *
+   * @param pagingSessionTimeout - the idle timeout in seconds
+   */
+  public void setPagingSessionTimeout(int pagingSessionTimeout) {
+    this.pagingSessionTimeout = Math.max(1, pagingSessionTimeout);
+    Cache<String, PagingSession> oldSessions = pagingSessions;
+    pagingSessions = buildPagingSessionCache(this.pagingSessionTimeout);
+    oldSessions.invalidateAll();
+  }
+
+  public boolean getEnableResultCache() {
+    return resultCacheEnabled;
+  }
+
+  /**
+   * Enables the result cache. When enabled, repeating a query within the result cache TTL returns
+   * the previously converted results without contacting the server.
+   *
+   * @param enableResultCache - whether the result cache is enabled
+   */
+  public void setEnableResultCache(boolean enableResultCache) {
+    this.resultCacheEnabled = enableResultCache;
+    if (!enableResultCache) {
+      resultCache.invalidateAll();
+    }
+  }
+
+  public int getResultCacheTtl() {
+    return resultCacheTtl;
+  }
+
+  /**
+   * Sets how long (in seconds) query results are served from the result cache. Changing the TTL
+   * discards any cached results.
+   *
+   * @param resultCacheTtl - the time to live in seconds
+   */
+  public void setResultCacheTtl(int resultCacheTtl) {
+    this.resultCacheTtl = Math.max(1, resultCacheTtl);
+    resultCache = buildResultCache(this.resultCacheTtl, resultCacheSize);
+  }
+
+  public int getResultCacheSize() {
+    return resultCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of query responses kept in the result cache. Changing the size
+   * discards any cached results.
+   *
+   * @param resultCacheSize - the maximum number of cached query responses
+   */
+  public void setResultCacheSize(int resultCacheSize) {
+    this.resultCacheSize = Math.max(1, resultCacheSize);
+    resultCache = buildResultCache(resultCacheTtl, this.resultCacheSize);
+  }
+
+  /** @return the number of queries answered from the result cache */
+  public long getResultCacheHitCount() {
+    return resultCache.stats().hitCount();
+  }
+
+  /** @return the number of queries that were not found in the result cache */
+  public long getResultCacheMissCount() {
+    return resultCache.stats().missCount();
+  }
+
+  /** @return the number of responses evicted from the result cache for size or age */
+  public long getResultCacheEvictionCount() {
+    return resultCache.stats().evictionCount();
+  }
+
+  private static Cache<String, CachedResponse> buildResultCache(int ttlSeconds, int size) {
+    return CacheBuilder.newBuilder()
+        .maximumSize(size)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+  }
+
+  private static Cache<String, Integer> buildHitCountCache(int ttlSeconds) {
+    return CacheBuilder.newBuilder()
+        .maximumSize(HIT_COUNT_CACHE_SIZE)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
   public void setResourceReader(ResourceReader resourceReader) {
     this.resourceReader = resourceReader;
+    resetThumbnailFetcher();
+  }
+
+  public int getThumbnailTimeout() {
+    return thumbnailTimeout;
+  }
+
+  /**
+   * Sets how long (in milliseconds) a query waits for thumbnails before returning. Thumbnails that
+   * have not arrived by then are left off the results. A timeout of 0 returns the results without
+   * waiting, only attaching thumbnails that are already cached.
+   *
+   * @param thumbnailTimeout - the time to wait for thumbnails in milliseconds
+   */
+  public void setThumbnailTimeout(int thumbnailTimeout) {
+    this.thumbnailTimeout = Math.max(0, thumbnailTimeout);
+  }
+
+  public int getThumbnailFetchThreads() {
+    return thumbnailFetchThreads;
+  }
+
+  public void setThumbnailFetchThreads(int thumbnailFetchThreads) {
+    this.thumbnailFetchThreads = Math.max(1, thumbnailFetchThreads);
+    resetThumbnailFetcher();
+  }
+
+  public int getMaxThumbnailFetchesPerHost() {
+    return maxThumbnailFetchesPerHost;
+  }
+
+  public void setMaxThumbnailFetchesPerHost(int maxThumbnailFetchesPerHost) {
+    this.maxThumbnailFetchesPerHost = Math.max(1, maxThumbnailFetchesPerHost);
+    resetThumbnailFetcher();
+  }
+
+  public int getThumbnailCacheSize() {
+    return thumbnailCacheSize;
+  }
+
+  public void setThumbnailCacheSize(int thumbnailCacheSize) {
+    this.thumbnailCacheSize = Math.max(0, thumbnailCacheSize);
+    resetThumbnailFetcher();
+  }
+
+  private void resetThumbnailFetcher() {
+    ThumbnailFetcher oldFetcher = thumbnailFetcher;
+    thumbnailFetcher =
+        resourceReader == null
+            ? null
+            : new ThumbnailFetcher(
+                resourceReader,
+                thumbnailFetchThreads,
+                maxThumbnailFetchesPerHost,
+                thumbnailCacheSize);
+    if (oldFetcher != null) {
+      oldFetcher.shutdown();
+    }
   }
 
   public void setPollInterval(Integer interval) {
@@ -1104,19 +1902,19 @@ public class NsiliSource extends MaskableImpl
   }
 
   public void setCatalogMgr(CatalogMgr catalogMgr) {
-    this.catalogMgr = catalogMgr;
+    connection = connection.withCatalogMgr(catalogMgr);
   }
 
   public void setOrderMgr(OrderMgr orderMgr) {
-    this.orderMgr = orderMgr;
+    connection = connection.withOrderMgr(orderMgr);
   }
 
   public void setDataModelMgr(DataModelMgr dataModelMgr) {
-    this.dataModelMgr = dataModelMgr;
+    connection = connection.withDataModelMgr(dataModelMgr);
   }
 
   public void setProductMgr(ProductMgr productMgr) {
-    this.productMgr = productMgr;
+    connection = connection.withProductMgr(productMgr);
   }
 
   public void setSortableAttributes(HashMap<String, List<String>> sortableAttributes) {
@@ -1157,6 +1955,18 @@ public class NsiliSource extends MaskableImpl
     }
   }
 
+  /** Periodically evicts idle paged query sessions so their server side requests are deleted. */
+  private void setupPagingSessionCleanup() {
+    if (pagingCleanupFuture == null || pagingCleanupFuture.isCancelled()) {
+      pagingCleanupFuture =
+          scheduler.scheduleWithFixedDelay(
+              () -> pagingSessions.cleanUp(),
+              PAGING_CLEANUP_INTERVAL,
+              PAGING_CLEANUP_INTERVAL,
+              TimeUnit.SECONDS);
+    }
+  }
+
   public void setNsiliMetacardType(MetacardType nsiliMetacardType) {
     this.nsiliMetacardType = nsiliMetacardType;
   }
@@ -1271,6 +2081,66 @@ public class NsiliSource extends MaskableImpl
     }
   }
 
+  /**
+   * Results of a query held in the result cache. Metacards are copied going in and coming out so
+   * that callers can't modify the cached results.
+   */
+  private static class CachedResponse {
+
+    private final List<Metacard> metacards;
+
+    private final long hits;
+
+    private final Map<String, Serializable> properties;
+
+    CachedResponse(SourceResponse sourceResponse) {
+      this.metacards =
+          sourceResponse
+              .getResults()
+              .stream()
+              .map(result -> (Metacard) new MetacardImpl(result.getMetacard()))
+              .collect(Collectors.toList());
+      this.hits = sourceResponse.getHits();
+      this.properties = new HashMap<>();
+      if (sourceResponse.getProperties() != null) {
+        properties.putAll(sourceResponse.getProperties());
+      }
+    }
+
+    SourceResponse toSourceResponse(QueryRequest queryRequest) {
+      List<Result> results = new ArrayList<>(metacards.size());
+      for (Metacard metacard : metacards) {
+        results.add(new ResultImpl(new MetacardImpl(metacard)));
+      }
+      Map<String, Serializable> responseProperties = new HashMap<>(properties);
+      responseProperties.put(RESULT_CACHE_HIT_PROPERTY, true);
+      return new SourceResponseImpl(queryRequest, responseProperties, results, hits);
+    }
+  }
+
+  /** An open server side query request and the position of the next result to pull from it. */
+  private static class PagingSession {
+
+    private final CatalogMgr catalogMgr;
+
+    private final SubmitQueryRequest submitQueryRequest;
+
+    private final int nextIndex;
+
+    private final long numHits;
+
+    PagingSession(
+        CatalogMgr catalogMgr,
+        SubmitQueryRequest submitQueryRequest,
+        int nextIndex,
+        long numHits) {
+      this.catalogMgr = catalogMgr;
+      this.submitQueryRequest = submitQueryRequest;
+      this.nextIndex = nextIndex;
+      this.numHits = numHits;
+    }
+  }
+
   /**
    * Callback class to check the Availability of the NsiliSource.
    *
@@ -1278,32 +2148,39 @@ public class NsiliSource extends MaskableImpl
    * have an AvailabilityTask that cached each Source's availability. Until that is done, allow the
    * command to handle the logic of managing availability.
    */
-  private class Stanag4559AvailabilityCommand implements AvailabilityCommand {
+  class Stanag4559AvailabilityCommand implements AvailabilityCommand {
 
     @Override
     public boolean isAvailable() {
       LOGGER.debug("Checking availability for source {} ", getId());
       boolean oldAvailability = NsiliSource.this.isAvailable();
-      String[] managers = null;
+      boolean alive = false;
+      boolean iorChanged = false;
 
-      // Refresh IOR String when polling for availability in case server conditions change
+      // Refresh IOR String when polling for availability in case server conditions change. The
+      // library reference is only rebuilt when the IOR is different from the one it was built from.
       try {
+        String previousIorString = iorString;
         getIorString();
-        initLibrary();
-        managers = library.get_manager_types();
+        iorChanged = !StringUtils.equals(previousIorString, iorString);
+        if (iorChanged || connection.getLibrary() == null) {
+          LOGGER.debug("{} : Building the library interface from a new IOR.", getId());
+          initLibrary();
+        }
+        alive = connection.isAlive();
       } catch (Exception e) {
         LOGGER.debug("{} : Connection Failure for source.", getId(), e);
       }
 
       // If the IOR string is not valid, or the source cannot communicate with the library, the
       // source is unavailable
-      boolean newAvailability = (managers != null && StringUtils.isNotBlank(iorString));
+      boolean newAvailability = alive && StringUtils.isNotBlank(iorString);
       if (oldAvailability != newAvailability) {
         availabilityChanged(newAvailability);
-        // If the source becomes available, configure it.
-        if (newAvailability) {
-          initCorbaClient();
-        }
+      }
+      // If the source becomes available or moved to a new IOR, configure it.
+      if (newAvailability && (!oldAvailability || iorChanged)) {
+        initFromLibrary();
       }
       return newAvailability;
     }
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.source;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import ddf.catalog.operation.ResourceResponse;
+import ddf.catalog.resource.ResourceNotFoundException;
+import ddf.catalog.resource.ResourceNotSupportedException;
+import ddf.catalog.resource.ResourceReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retrieves thumbnails for query results in the background so that result conversion does not
+ * wait on thumbnail downloads. Retrieved thumbnails are kept in a size bounded LRU cache keyed by
+ * URL, and the number of simultaneous downloads from any one host is limited. Retrievals from a
+ * host that is at its limit wait in that host's queue rather than on a fetch thread, so a slow
+ * host can't hold up the others.
+ */
+class ThumbnailFetcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailFetcher.class);
+
+  private static final String UNKNOWN_HOST = "";
+
+  private final ResourceReader resourceReader;
+
+  private final int maxFetchesPerHost;
+
+  private final ExecutorService executorService;
+
+  private final Cache<String, byte[]> thumbnailCache;
+
+  private final ConcurrentMap<String, Future<byte[]>> pendingFetches = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, HostFetches> hostFetches = new ConcurrentHashMap<>();
+
+  /**
+   * @param resourceReader - reader used to retrieve the thumbnails
+   * @param fetchThreads - number of threads used to retrieve thumbnails
+   * @param maxFetchesPerHost - maximum number of simultaneous retrievals from a single host
+   * @param cacheSize - maximum number of thumbnails to keep in the cache
+   */
+  ThumbnailFetcher(
+      ResourceReader resourceReader, int fetchThreads, int maxFetchesPerHost, int cacheSize) {
+    this.resourceReader = resourceReader;
+    this.maxFetchesPerHost = Math.max(1, maxFetchesPerHost);
+    this.executorService = Executors.newFixedThreadPool(Math.max(1, fetchThreads));
+    this.thumbnailCache = CacheBuilder.newBuilder().maximumSize(Math.max(0, cacheSize)).build();
+  }
+
+  /**
+   * Starts retrieving the thumbnail at the given URL. Thumbnails that are already cached are
+   * returned as a completed future, and a URL that is already being retrieved shares the pending
+   * retrieval.
+   *
+   * @param thumbnailUrl - URL of the thumbnail
+   * @return the thumbnail bytes, or null if the thumbnail could not be retrieved
+   */
+  Future<byte[]> fetch(String thumbnailUrl) {
+    byte[] thumbnail = thumbnailCache.getIfPresent(thumbnailUrl);
+    if (thumbnail != null) {
+      return CompletableFuture.completedFuture(thumbnail);
+    }
+    if (executorService.isShutdown()) {
+      LOGGER.debug("Thumbnail fetcher has been shut down, skipping {}", thumbnailUrl);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    CompletableFuture<byte[]> result = new CompletableFuture<>();
+    Future<byte[]> pendingFetch = pendingFetches.putIfAbsent(thumbnailUrl, result);
+    if (pendingFetch != null) {
+      return pendingFetch;
+    }
+    result.whenComplete((retrieved, e) -> pendingFetches.remove(thumbnailUrl, result));
+
+    URI thumbnailUri;
+    try {
+      thumbnailUri = new URI(thumbnailUrl);
+    } catch (URISyntaxException e) {
+      LOGGER.debug("Unable to get thumbnail from URL {}", thumbnailUrl, e);
+      result.complete(null);
+      return result;
+    }
+
+    String host = StringUtils.defaultString(thumbnailUri.getHost(), UNKNOWN_HOST);
+    HostFetches fetches =
+        hostFetches.computeIfAbsent(host, key -> new HostFetches(maxFetchesPerHost));
+    fetches.queue.add(new PendingFetch(thumbnailUri, result));
+    dispatch(fetches);
+    return result;
+  }
+
+  void shutdown() {
+    executorService.shutdownNow();
+    for (HostFetches fetches : hostFetches.values()) {
+      PendingFetch pendingFetch;
+      while ((pendingFetch = fetches.queue.poll()) != null) {
+        pendingFetch.result.complete(null);
+      }
+    }
+    pendingFetches.clear();
+    thumbnailCache.invalidateAll();
+  }
+
+  /** Starts queued retrievals for the host while it has permits left. */
+  private void dispatch(HostFetches fetches) {
+    while (fetches.permits.tryAcquire()) {
+      PendingFetch pendingFetch = fetches.queue.poll();
+      if (pendingFetch == null) {
+        fetches.permits.release();
+        // Another thread may have queued a retrieval before the permit was released
+        if (fetches.queue.isEmpty()) {
+          return;
+        }
+        continue;
+      }
+
+      try {
+        executorService.execute(
+            () -> {
+              try {
+                pendingFetch.result.complete(retrieve(pendingFetch.thumbnailUri));
+              } catch (RuntimeException e) {
+                pendingFetch.result.completeExceptionally(e);
+              } finally {
+                fetches.permits.release();
+                dispatch(fetches);
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        LOGGER.debug(
+            "Thumbnail fetcher has been shut down, skipping {}", pendingFetch.thumbnailUri);
+        pendingFetch.result.complete(null);
+        fetches.permits.release();
+      }
+    }
+  }
+
+  private byte[] retrieve(URI thumbnailUri) {
+    try {
+      ResourceResponse resourceResponse =
+          resourceReader.retrieveResource(thumbnailUri, new HashMap<>());
+      byte[] thumbnail = resourceResponse.getResource().getByteArray();
+      if (thumbnail != null) {
+        thumbnailCache.put(thumbnailUri.toString(), thumbnail);
+      }
+      return thumbnail;
+    } catch (ResourceNotSupportedException e) {
+      LOGGER.debug("Resource is not supported: {} ", thumbnailUri, e);
+    } catch (IOException | ResourceNotFoundException e) {
+      LOGGER.debug("Unable to get thumbnail from URL {}", thumbnailUri, e);
+    }
+    return null;
+  }
+
+  /** The retrievals waiting for a host and the permits for the ones running. */
+  private static class HostFetches {
+
+    private final Semaphore permits;
+
+    private final Queue<PendingFetch> queue = new ConcurrentLinkedQueue<>();
+
+    HostFetches(int maxFetches) {
+      this.permits = new Semaphore(maxFetches);
+    }
+  }
+
+  private static class PendingFetch {
+
+    private final URI thumbnailUri;
+
+    private final CompletableFuture<byte[]> result;
+
+    PendingFetch(URI thumbnailUri, CompletableFuture<byte[]> result) {
+      this.thumbnailUri = thumbnailUri;
+      this.result = result;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.source;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import org.codice.alliance.nsili.common.GIAS.AccessCriteria;
+import org.codice.alliance.nsili.common.GIAS.CatalogMgr;
+import org.codice.alliance.nsili.common.GIAS.DataModelMgr;
+import org.codice.alliance.nsili.common.GIAS.Library;
+import org.codice.alliance.nsili.common.GIAS.OrderMgr;
+import org.codice.alliance.nsili.common.GIAS.ProductMgr;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LibraryConnectionTest {
+
+  private Library library;
+
+  private CatalogMgr catalogMgr;
+
+  private OrderMgr orderMgr;
+
+  private ProductMgr productMgr;
+
+  private DataModelMgr dataModelMgr;
+
+  @Before
+  public void setUp() throws Exception {
+    library = mock(Library.class);
+    catalogMgr = mock(CatalogMgr.class);
+    orderMgr = mock(OrderMgr.class);
+    productMgr = mock(ProductMgr.class);
+    dataModelMgr = mock(DataModelMgr.class);
+
+    doReturn(catalogMgr).when(library).get_manager(eq("CatalogMgr"), any(AccessCriteria.class));
+    doReturn(orderMgr).when(library).get_manager(eq("OrderMgr"), any(AccessCriteria.class));
+    doReturn(productMgr).when(library).get_manager(eq("ProductMgr"), any(AccessCriteria.class));
+    doReturn(dataModelMgr)
+        .when(library)
+        .get_manager(eq("DataModelMgr"), any(AccessCriteria.class));
+  }
+
+  @Test
+  public void testWithManagers() throws Exception {
+    LibraryConnection connection = new LibraryConnection(library, null, null, null, null);
+
+    LibraryConnection connected = connection.withManagers(new AccessCriteria("", "", ""));
+
+    assertThat(connected.hasMandatoryManagers(), is(true));
+    assertThat(connected.getLibrary(), sameInstance(library));
+    assertThat(connected.getCatalogMgr(), sameInstance(catalogMgr));
+    assertThat(connected.getOrderMgr(), sameInstance(orderMgr));
+    assertThat(connected.getProductMgr(), sameInstance(productMgr));
+    assertThat(connected.getDataModelMgr(), sameInstance(dataModelMgr));
+    assertThat(connection.hasMandatoryManagers(), is(false));
+    assertThat(connection.getCatalogMgr(), nullValue());
+  }
+
+  @Test
+  public void testReplacingManagerKeepsOriginal() {
+    LibraryConnection connection =
+        new LibraryConnection(library, catalogMgr, orderMgr, productMgr, dataModelMgr);
+    CatalogMgr otherCatalogMgr = mock(CatalogMgr.class);
+
+    LibraryConnection updated = connection.withCatalogMgr(otherCatalogMgr);
+
+    assertThat(updated.getCatalogMgr(), sameInstance(otherCatalogMgr));
+    assertThat(updated.getDataModelMgr(), sameInstance(dataModelMgr));
+    assertThat(connection.getCatalogMgr(), sameInstance(catalogMgr));
+  }
+
+  @Test
+  public void testIsAlive() {
+    doReturn(false).when(library)._non_existent();
+
+    assertThat(new LibraryConnection(library, null, null, null, null).isAlive(), is(true));
+  }
+
+  @Test
+  public void testIsNotAliveWhenLibraryIsGone() {
+    doReturn(true).when(library)._non_existent();
+
+    assertThat(new LibraryConnection(library, null, null, null, null).isAlive(), is(false));
+  }
+
+  @Test
+  public void testDisconnectedIsNotAlive() {
+    assertThat(LibraryConnection.DISCONNECTED.isAlive(), is(false));
+    assertThat(LibraryConnection.DISCONNECTED.hasMandatoryManagers(), is(false));
+  }
+}
@@ -14,58 +14,94 @@
 package org.codice.alliance.nsili.source;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ddf.catalog.data.Metacard;
+import ddf.catalog.data.impl.MetacardImpl;
 import ddf.catalog.filter.impl.SortByImpl;
 import ddf.catalog.filter.proxy.adapter.GeotoolsFilterAdapterImpl;
 import ddf.catalog.filter.proxy.builder.GeotoolsFilterBuilder;
+import ddf.catalog.operation.ResourceResponse;
 import ddf.catalog.operation.SourceResponse;
 import ddf.catalog.operation.impl.QueryImpl;
 import ddf.catalog.operation.impl.QueryRequestImpl;
+import ddf.catalog.resource.Resource;
+import ddf.catalog.resource.ResourceReader;
 import ddf.catalog.source.UnsupportedQueryException;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import javax.ws.rs.core.Response;
+import org.codice.alliance.nsili.common.GIAS.AccessCriteria;
 import org.codice.alliance.nsili.common.GIAS.AttributeInformation;
 import org.codice.alliance.nsili.common.GIAS.AttributeType;
 import org.codice.alliance.nsili.common.GIAS.CatalogMgr;
 import org.codice.alliance.nsili.common.GIAS.DataModelMgr;
 import org.codice.alliance.nsili.common.GIAS.Domain;
 import org.codice.alliance.nsili.common.GIAS.HitCountRequest;
+import org.codice.alliance.nsili.common.GIAS.Library;
+import org.codice.alliance.nsili.common.GIAS.LibraryDescription;
+import org.codice.alliance.nsili.common.GIAS.OrderMgr;
 import org.codice.alliance.nsili.common.GIAS.Polarity;
+import org.codice.alliance.nsili.common.GIAS.ProductMgr;
 import org.codice.alliance.nsili.common.GIAS.Query;
 import org.codice.alliance.nsili.common.GIAS.RequirementMode;
 import org.codice.alliance.nsili.common.GIAS.SortAttribute;
 import org.codice.alliance.nsili.common.GIAS.SubmitQueryRequest;
 import org.codice.alliance.nsili.common.GIAS.View;
 import org.codice.alliance.nsili.common.Nsili;
+import org.codice.alliance.nsili.common.NsiliCommonUtils;
 import org.codice.alliance.nsili.common.NsiliConstants;
+import org.codice.alliance.nsili.common.ResultDAGConverter;
 import org.codice.alliance.nsili.common.UCO.DAG;
 import org.codice.alliance.nsili.common.UCO.DAGListHolder;
+import org.codice.alliance.nsili.common.UCO.Edge;
 import org.codice.alliance.nsili.common.UCO.NameValue;
+import org.codice.alliance.nsili.common.UCO.Node;
+import org.codice.alliance.nsili.common.UCO.NodeType;
+import org.codice.alliance.nsili.common.UCO.ProcessingFault;
 import org.codice.alliance.nsili.common.UCO.State;
 import org.codice.alliance.nsili.common.UCO.Status;
 import org.codice.ddf.cxf.client.SecureCxfClientFactory;
 import org.codice.ddf.spatial.ogc.catalog.common.AvailabilityTask;
+import org.jgrapht.experimental.dag.DirectedAcyclicGraph;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
+import org.omg.CORBA.Any;
 import org.omg.CORBA.IntHolder;
 import org.omg.CORBA.ORB;
+import org.omg.CORBA.TCKind;
 import org.opengis.filter.sort.SortBy;
 import org.opengis.filter.sort.SortOrder;
 
@@ -75,6 +111,12 @@ public class NsiliSourceTest {
 
   private static final String IOR_URL = "http://localhost:20002/data/ior.txt";
 
+  private static final String MOVED_IOR_URL = "http://localhost:20003/data/ior.txt";
+
+  private static final String IOR = "IOR:0001";
+
+  private static final String MOVED_IOR = "IOR:0002";
+
   private static final Integer POLL_INTERVAL = 1;
 
   private static final Integer MAX_HIT_COUNT = 250;
@@ -91,6 +133,22 @@ public class NsiliSourceTest {
 
   private static final long LONG = 12L;
 
+  private static final long SUBMIT_WAIT_MSEC = 100L;
+
+  private static final int PARALLEL_QUERIES = 4;
+
+  private static final int PAGE_SIZE = 2;
+
+  private static final String CARD_ID_PREFIX = "card-";
+
+  private static final String THUMBNAIL_URL = "http://localhost:20002/thumbnail.jpg";
+
+  private static final String LATE_THUMBNAIL_URL = "http://localhost:20002/late.jpg";
+
+  private static final byte[] THUMBNAIL = {1, 2, 3};
+
+  private static final long QUERY_TIMEOUT_MSEC = 1000L;
+
   private AvailabilityTask mockAvailabilityTask = mock(AvailabilityTask.class);
 
   private CatalogMgr catalogMgr = mock(CatalogMgr.class);
@@ -101,6 +159,8 @@ public class NsiliSourceTest {
 
   private AttributeInformation[] attributeInformations = new AttributeInformation[0];
 
+  private Nsili nsili;
+
   private ORB orb;
 
   private Thread orbRunThread;
@@ -137,6 +197,63 @@ public class NsiliSourceTest {
     assertThat(source.isAvailable(), is(true));
   }
 
+  @Test
+  public void testAvailabilityPollReusesLibraryReference() throws Exception {
+    Library library = getMockLibrary(false);
+    returnIor(IOR);
+    doReturn(new LibraryConnection(library, null, null, null, null))
+        .when(source)
+        .connectToLibrary(IOR);
+    NsiliSource.Stanag4559AvailabilityCommand command =
+        source.new Stanag4559AvailabilityCommand();
+
+    assertThat(command.isAvailable(), is(true));
+    assertThat(command.isAvailable(), is(true));
+
+    verify(source, times(1)).connectToLibrary(anyString());
+    verify(library, times(1)).get_library_description();
+    verify(library, times(2))._non_existent();
+  }
+
+  @Test
+  public void testAvailabilityPollRebuildsLibraryReferenceWhenIorUrlChanges() throws Exception {
+    Library library = getMockLibrary(false);
+    Library movedLibrary = getMockLibrary(false);
+    doReturn(new LibraryConnection(library, null, null, null, null))
+        .when(source)
+        .connectToLibrary(IOR);
+    doReturn(new LibraryConnection(movedLibrary, null, null, null, null))
+        .when(source)
+        .connectToLibrary(MOVED_IOR);
+    NsiliSource.Stanag4559AvailabilityCommand command =
+        source.new Stanag4559AvailabilityCommand();
+    returnIor(IOR);
+    assertThat(command.isAvailable(), is(true));
+
+    source.setIorUrl(MOVED_IOR_URL);
+    returnIor(MOVED_IOR);
+
+    assertThat(command.isAvailable(), is(true));
+    verify(source).connectToLibrary(MOVED_IOR);
+    verify(movedLibrary)._non_existent();
+    verify(movedLibrary).get_library_description();
+    verify(library, times(1))._non_existent();
+  }
+
+  @Test
+  public void testAvailabilityPollChecksLibraryWithNonExistent() throws Exception {
+    Library library = getMockLibrary(true);
+    returnIor(IOR);
+    doReturn(new LibraryConnection(library, null, null, null, null))
+        .when(source)
+        .connectToLibrary(IOR);
+
+    assertThat(source.new Stanag4559AvailabilityCommand().isAvailable(), is(false));
+
+    verify(library)._non_existent();
+    verify(library, never()).get_manager_types();
+  }
+
   @Test
   public void testQuerySupportedAscendingSorting() throws Exception {
     QueryImpl propertyIsLikeQuery =
@@ -309,6 +426,475 @@ public class NsiliSourceTest {
     source.query(new QueryRequestImpl(propertyIsLikeQuery));
   }
 
+  @Test
+  public void testQuerySkipHitCount() throws Exception {
+    source.setHitCountMode(HitCountMode.SKIP.name());
+    QueryImpl propertyIsLikeQuery =
+        new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+
+    SourceResponse sourceResponse = source.query(new QueryRequestImpl(propertyIsLikeQuery));
+
+    verify(catalogMgr, never()).hit_count(any(Query.class), any(NameValue[].class));
+    assertThat(sourceResponse.getHits(), is((long) getMockDAGArray().length));
+  }
+
+  @Test
+  public void testQueryConcurrentHitCount() throws Exception {
+    source.setHitCountMode(HitCountMode.CONCURRENT.name());
+    QueryImpl propertyIsLikeQuery =
+        new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+    propertyIsLikeQuery.setSortBy(new SortByImpl(Metacard.MODIFIED, SortOrder.ASCENDING));
+
+    SourceResponse sourceResponse = source.query(new QueryRequestImpl(propertyIsLikeQuery));
+    ArgumentCaptor<SortAttribute[]> argumentCaptor = ArgumentCaptor.forClass(SortAttribute[].class);
+    verify(catalogMgr)
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            argumentCaptor.capture(),
+            any(NameValue[].class));
+
+    assertThat(sourceResponse.getHits(), is(LONG));
+    assertThat(argumentCaptor.getValue().length, is(1));
+    assertThat(sourceResponse.getProperties(), hasKey(NsiliSource.QUERY_LATENCY_PROPERTY));
+    assertThat(sourceResponse.getProperties(), hasKey(NsiliSource.HIT_COUNT_LATENCY_PROPERTY));
+  }
+
+  @Test
+  public void testFailedConcurrentHitCountCountsReturnedResults() throws Exception {
+    int numResults = 3;
+    CatalogMgr failingCatalogMgr = mock(CatalogMgr.class);
+    getOrderedMockSubmitQueryRequest(failingCatalogMgr, numResults);
+    doThrow(new ProcessingFault())
+        .when(failingCatalogMgr)
+        .hit_count(any(Query.class), any(NameValue[].class));
+    source.setCatalogMgr(failingCatalogMgr);
+    source.setNsiliMetacardType(MetacardImpl.BASIC_METACARD);
+    source.setHitCountMode(HitCountMode.CONCURRENT.name());
+    QueryImpl propertyIsLikeQuery =
+        new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+
+    SourceResponse sourceResponse = source.query(new QueryRequestImpl(propertyIsLikeQuery));
+
+    assertThat(sourceResponse.getHits(), is((long) numResults));
+  }
+
+  @Test
+  public void testQueryLatencyIsAggregated() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      QueryImpl propertyIsLikeQuery =
+          new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+      source.query(new QueryRequestImpl(propertyIsLikeQuery));
+    }
+
+    assertThat(source.getQueryCount(), is(2L));
+    assertThat(source.getHitCountRequestCount(), is(2L));
+    assertThat(source.getAverageQueryLatency(), greaterThanOrEqualTo(0L));
+    assertThat(source.getAverageHitCountLatency(), greaterThanOrEqualTo(0L));
+  }
+
+  @Test
+  public void testQueryCachedHitCount() throws Exception {
+    source.setHitCountMode(HitCountMode.CACHED.name());
+    source.setHitCountCacheTtl(60);
+
+    SourceResponse sourceResponse = null;
+    for (int i = 0; i < 2; i++) {
+      QueryImpl propertyIsLikeQuery =
+          new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+      sourceResponse = source.query(new QueryRequestImpl(propertyIsLikeQuery));
+      assertThat(sourceResponse.getHits(), is(LONG));
+    }
+
+    verify(catalogMgr, times(1)).hit_count(any(Query.class), any(NameValue[].class));
+    assertThat(
+        (Long) sourceResponse.getProperties().get(NsiliSource.HIT_COUNT_LATENCY_PROPERTY),
+        is(0L));
+  }
+
+  @Test
+  public void testUnknownHitCountModeDefaultsToSequential() {
+    source.setHitCountMode("bogus");
+    assertThat(source.getHitCountMode(), is(HitCountMode.SEQUENTIAL.name()));
+  }
+
+  @Test
+  public void testPagedQueryReusesServerRequest() throws Exception {
+    CatalogMgr pagingCatalogMgr = mock(CatalogMgr.class);
+    SubmitQueryRequest submitQueryRequest = getPagingMockSubmitQueryRequest(pagingCatalogMgr);
+    source.setCatalogMgr(pagingCatalogMgr);
+    source.setEnablePaging(true);
+
+    SourceResponse firstPage = source.query(new QueryRequestImpl(getPagedQuery(1)));
+    SourceResponse secondPage = source.query(new QueryRequestImpl(getPagedQuery(1 + PAGE_SIZE)));
+
+    verify(pagingCatalogMgr, times(1))
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+    verify(submitQueryRequest, times(2)).set_number_of_hits(PAGE_SIZE);
+    verify(submitQueryRequest, times(2)).complete_DAG_results(any(DAGListHolder.class));
+    assertThat(firstPage.getResults().size(), is(PAGE_SIZE));
+    assertThat(secondPage.getResults().size(), is(PAGE_SIZE));
+    assertThat(secondPage.getHits(), is(LONG));
+  }
+
+  @Test
+  public void testPagedQueryOutOfOrderStartsNewRequest() throws Exception {
+    CatalogMgr pagingCatalogMgr = mock(CatalogMgr.class);
+    SubmitQueryRequest submitQueryRequest = getPagingMockSubmitQueryRequest(pagingCatalogMgr);
+    source.setCatalogMgr(pagingCatalogMgr);
+    source.setEnablePaging(true);
+
+    source.query(new QueryRequestImpl(getPagedQuery(1)));
+    source.query(new QueryRequestImpl(getPagedQuery(1 + 2 * PAGE_SIZE)));
+
+    verify(pagingCatalogMgr).delete_request(submitQueryRequest);
+    verify(pagingCatalogMgr, times(2))
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+    // The new request skips the results before the requested start index
+    verify(submitQueryRequest).set_number_of_hits(2 * PAGE_SIZE);
+  }
+
+  @Test
+  public void testFailedPageDeletesServerRequest() throws Exception {
+    CatalogMgr pagingCatalogMgr = mock(CatalogMgr.class);
+    SubmitQueryRequest submitQueryRequest = getPagingMockSubmitQueryRequest(pagingCatalogMgr);
+    source.setCatalogMgr(pagingCatalogMgr);
+    source.setEnablePaging(true);
+
+    source.query(new QueryRequestImpl(getPagedQuery(1)));
+    doThrow(new ProcessingFault())
+        .when(submitQueryRequest)
+        .complete_DAG_results(any(DAGListHolder.class));
+    source.query(new QueryRequestImpl(getPagedQuery(1 + PAGE_SIZE)));
+
+    verify(pagingCatalogMgr).delete_request(submitQueryRequest);
+  }
+
+  @Test
+  public void testEmptyPageDeletesServerRequest() throws Exception {
+    CatalogMgr pagingCatalogMgr = mock(CatalogMgr.class);
+    SubmitQueryRequest submitQueryRequest = getPagingMockSubmitQueryRequest(pagingCatalogMgr);
+    source.setCatalogMgr(pagingCatalogMgr);
+    source.setEnablePaging(true);
+
+    source.query(new QueryRequestImpl(getPagedQuery(1)));
+    doAnswer(
+            invocationOnMock -> {
+              ((DAGListHolder) invocationOnMock.getArguments()[0]).value = new DAG[0];
+              return State.COMPLETED;
+            })
+        .when(submitQueryRequest)
+        .complete_DAG_results(any(DAGListHolder.class));
+    source.query(new QueryRequestImpl(getPagedQuery(1 + PAGE_SIZE)));
+
+    verify(pagingCatalogMgr).delete_request(submitQueryRequest);
+  }
+
+  @Test
+  public void testQueryWithoutPagingRequestsMaxHitCount() throws Exception {
+    CatalogMgr pagingCatalogMgr = mock(CatalogMgr.class);
+    SubmitQueryRequest submitQueryRequest = getPagingMockSubmitQueryRequest(pagingCatalogMgr);
+    source.setCatalogMgr(pagingCatalogMgr);
+
+    source.query(new QueryRequestImpl(getPagedQuery(1 + PAGE_SIZE)));
+
+    verify(submitQueryRequest).set_number_of_hits(MAX_HIT_COUNT);
+  }
+
+  @Test
+  public void testRepeatedQueryServedFromResultCache() throws Exception {
+    source.setEnableResultCache(true);
+
+    QueryImpl query =
+        new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+    source.query(new QueryRequestImpl(query));
+    SourceResponse cachedResponse = source.query(new QueryRequestImpl(query));
+
+    verify(catalogMgr, times(1))
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+    assertThat(cachedResponse.getHits(), is(LONG));
+    assertThat(cachedResponse.getProperties(), hasKey(NsiliSource.RESULT_CACHE_HIT_PROPERTY));
+    assertThat(source.getResultCacheHitCount(), is(1L));
+    assertThat(source.getResultCacheMissCount(), is(1L));
+  }
+
+  @Test
+  public void testDifferentQueriesAreNotServedFromResultCache() throws Exception {
+    source.setEnableResultCache(true);
+
+    source.query(
+        new QueryRequestImpl(
+            new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI))));
+    source.query(
+        new QueryRequestImpl(
+            new QueryImpl(builder.attribute(Metacard.ANY_TEXT).is().like().text("%"))));
+
+    verify(catalogMgr, times(2))
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+    assertThat(source.getResultCacheHitCount(), is(0L));
+  }
+
+  @Test
+  public void testRepeatedQueryWithoutResultCache() throws Exception {
+    QueryImpl query =
+        new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+    source.query(new QueryRequestImpl(query));
+    source.query(new QueryRequestImpl(query));
+
+    verify(catalogMgr, times(2))
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+  }
+
+  @Test
+  public void testResponseMissingThumbnailsIsNotCached() throws Exception {
+    CountDownLatch thumbnailReleased = new CountDownLatch(1);
+    ResourceReader resourceReader = mock(ResourceReader.class);
+    when(resourceReader.retrieveResource(any(URI.class), anyMap()))
+        .thenAnswer(
+            invocationOnMock -> {
+              thumbnailReleased.await(10, TimeUnit.SECONDS);
+              return null;
+            });
+    CatalogMgr thumbnailCatalogMgr = mock(CatalogMgr.class);
+    getOrderedMockSubmitQueryRequest(
+        thumbnailCatalogMgr, new DAG[] {getCardDAG(CARD_ID_PREFIX + 0, THUMBNAIL_URL)});
+    source.setCatalogMgr(thumbnailCatalogMgr);
+    source.setNsiliMetacardType(MetacardImpl.BASIC_METACARD);
+    source.setResourceReader(resourceReader);
+    source.setThumbnailTimeout(0);
+    source.setEnableResultCache(true);
+
+    try {
+      QueryImpl query =
+          new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+      source.query(new QueryRequestImpl(query));
+      source.query(new QueryRequestImpl(query));
+    } finally {
+      thumbnailReleased.countDown();
+    }
+
+    // The thumbnail is still being retrieved, so the first response must not be reused
+    verify(thumbnailCatalogMgr, times(2))
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+    assertThat(source.getResultCacheHitCount(), is(0L));
+  }
+
+  @Test
+  public void testParallelQueriesRunConcurrently() throws Exception {
+    CountDownLatch allSubmitted = new CountDownLatch(PARALLEL_QUERIES);
+    AtomicInteger submitting = new AtomicInteger();
+    AtomicInteger maxSubmitting = new AtomicInteger();
+    source.setMaxConcurrentQueries(PARALLEL_QUERIES);
+    source.setCatalogMgr(
+        getBlockingMockCatalogMgr(
+            allSubmitted, TimeUnit.SECONDS.toMillis(10), submitting, maxSubmitting));
+
+    runParallelQueries();
+
+    // Every query waits in submit_query until all of them are in it
+    assertThat(maxSubmitting.get(), is(PARALLEL_QUERIES));
+  }
+
+  @Test
+  public void testParallelQueriesHonorConcurrencyLimit() throws Exception {
+    CountDownLatch allSubmitted = new CountDownLatch(PARALLEL_QUERIES);
+    AtomicInteger submitting = new AtomicInteger();
+    AtomicInteger maxSubmitting = new AtomicInteger();
+    source.setMaxConcurrentQueries(1);
+    source.setCatalogMgr(
+        getBlockingMockCatalogMgr(allSubmitted, SUBMIT_WAIT_MSEC, submitting, maxSubmitting));
+
+    runParallelQueries();
+
+    assertThat(maxSubmitting.get(), is(1));
+  }
+
+  @Test
+  public void testMultipleSourcesQueryTheirOwnLibraries() throws Exception {
+    CountDownLatch allSubmitted = new CountDownLatch(PARALLEL_QUERIES);
+    AtomicInteger submitting = new AtomicInteger();
+    AtomicInteger maxSubmitting = new AtomicInteger();
+    List<NsiliSource> sources = new ArrayList<>();
+    List<CatalogMgr> catalogMgrs = new ArrayList<>();
+    for (int i = 0; i < PARALLEL_QUERIES; i++) {
+      NsiliSource nsiliSource = buildSource();
+      nsiliSource.setId(ID + i);
+      nsiliSource.setMaxConcurrentQueries(1);
+      CatalogMgr sourceCatalogMgr =
+          getBlockingMockCatalogMgr(
+              allSubmitted, TimeUnit.SECONDS.toMillis(10), submitting, maxSubmitting);
+      nsiliSource.setCatalogMgr(sourceCatalogMgr);
+      sources.add(nsiliSource);
+      catalogMgrs.add(sourceCatalogMgr);
+    }
+
+    ExecutorService queryExecutor = Executors.newFixedThreadPool(PARALLEL_QUERIES);
+    try {
+      List<Future<SourceResponse>> responses = new ArrayList<>();
+      for (NsiliSource nsiliSource : sources) {
+        QueryImpl query =
+            new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+        responses.add(
+            queryExecutor.submit(() -> nsiliSource.query(new QueryRequestImpl(query))));
+      }
+      for (Future<SourceResponse> response : responses) {
+        assertThat(response.get(10, TimeUnit.SECONDS).getHits(), is(LONG));
+      }
+      // Each source allows one query, so they only meet in submit_query if they don't share one
+      assertThat(maxSubmitting.get(), is(PARALLEL_QUERIES));
+    } finally {
+      queryExecutor.shutdownNow();
+    }
+
+    for (CatalogMgr sourceCatalogMgr : catalogMgrs) {
+      verify(sourceCatalogMgr, times(1))
+          .submit_query(
+              any(Query.class),
+              any(String[].class),
+              any(SortAttribute[].class),
+              any(NameValue[].class));
+    }
+  }
+
+  @Test
+  public void testQueryResultsKeepServerOrder() throws Exception {
+    int numResults = 25;
+    CatalogMgr orderedCatalogMgr = mock(CatalogMgr.class);
+    getOrderedMockSubmitQueryRequest(orderedCatalogMgr, numResults);
+    source.setCatalogMgr(orderedCatalogMgr);
+    source.setNsiliMetacardType(MetacardImpl.BASIC_METACARD);
+
+    QueryImpl query =
+        new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+    SourceResponse sourceResponse = source.query(new QueryRequestImpl(query));
+
+    List<String> ids =
+        sourceResponse
+            .getResults()
+            .stream()
+            .map(result -> result.getMetacard().getId())
+            .collect(Collectors.toList());
+    List<String> expectedIds = new ArrayList<>();
+    for (int i = 0; i < numResults; i++) {
+      expectedIds.add(CARD_ID_PREFIX + i);
+    }
+    assertThat(ids, is(expectedIds));
+  }
+
+  @Test
+  public void testConversionsPastTheQueryTimeoutAreDropped() throws Exception {
+    CountDownLatch conversionReleased = new CountDownLatch(1);
+    ResourceReader resourceReader = mock(ResourceReader.class);
+    ResourceResponse resourceResponse = mock(ResourceResponse.class);
+    Resource resource = mock(Resource.class);
+    when(resource.getByteArray()).thenReturn(THUMBNAIL);
+    when(resourceResponse.getResource()).thenReturn(resource);
+    when(resourceReader.retrieveResource(any(URI.class), anyMap())).thenReturn(resourceResponse);
+
+    // The third card converts until it is interrupted at the query deadline
+    Any slowIdentifier = mock(Any.class);
+    when(slowIdentifier.type()).thenReturn(orb.get_primitive_tc(TCKind.tk_string));
+    when(slowIdentifier.extract_string())
+        .thenAnswer(
+            invocationOnMock -> {
+              try {
+                conversionReleased.await(10, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              return CARD_ID_PREFIX + 2;
+            });
+    DAG slowDAG = getCardDAG(CARD_ID_PREFIX + 2, LATE_THUMBNAIL_URL);
+    for (Node node : slowDAG.nodes) {
+      if (NsiliConstants.IDENTIFIER.equals(node.attribute_name)) {
+        node.value = slowIdentifier;
+      }
+    }
+    CatalogMgr slowCatalogMgr = mock(CatalogMgr.class);
+    getOrderedMockSubmitQueryRequest(
+        slowCatalogMgr,
+        new DAG[] {
+          getCardDAG(CARD_ID_PREFIX + 0),
+          getCardDAG(CARD_ID_PREFIX + 1),
+          slowDAG,
+          getCardDAG(CARD_ID_PREFIX + 3)
+        });
+    source.setCatalogMgr(slowCatalogMgr);
+    source.setNsiliMetacardType(MetacardImpl.BASIC_METACARD);
+    // One conversion thread and one fetch thread, so the next query runs after the late chunk
+    source.setNumberWorkerThreads(1);
+    source.setThumbnailFetchThreads(1);
+    source.setMaxThumbnailFetchesPerHost(1);
+    source.setResourceReader(resourceReader);
+
+    SourceResponse sourceResponse;
+    try {
+      QueryImpl query =
+          new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+      query.setTimeoutMillis(QUERY_TIMEOUT_MSEC);
+      sourceResponse = source.query(new QueryRequestImpl(query));
+    } finally {
+      conversionReleased.countDown();
+    }
+
+    List<String> ids =
+        sourceResponse
+            .getResults()
+            .stream()
+            .map(result -> result.getMetacard().getId())
+            .collect(Collectors.toList());
+    assertThat(ids, is(Arrays.asList(CARD_ID_PREFIX + 0, CARD_ID_PREFIX + 1)));
+
+    // The next thumbnail queues behind any fetch the late chunk started, so it arrives last
+    CatalogMgr nextCatalogMgr = mock(CatalogMgr.class);
+    getOrderedMockSubmitQueryRequest(
+        nextCatalogMgr, new DAG[] {getCardDAG(CARD_ID_PREFIX + 4, THUMBNAIL_URL)});
+    source.setCatalogMgr(nextCatalogMgr);
+    source.setThumbnailTimeout((int) TimeUnit.SECONDS.toMillis(10));
+    SourceResponse nextResponse =
+        source.query(
+            new QueryRequestImpl(
+                new QueryImpl(
+                    builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI))));
+
+    assertThat(nextResponse.getResults().get(0).getMetacard().getThumbnail(), is(THUMBNAIL));
+    verify(resourceReader, never()).retrieveResource(eq(new URI(LATE_THUMBNAIL_URL)), anyMap());
+  }
+
+  @Test
+  public void testRefreshMaxConcurrentQueries() throws Exception {
+    NsiliSource source = buildSource();
+    HashMap<String, Object> configuration = new HashMap<>();
+    configuration.put(NsiliSource.MAX_CONCURRENT_QUERIES, 8);
+
+    source.refresh(configuration);
+    assertThat(source.getMaxConcurrentQueries(), is(8));
+  }
+
   @Test
   public void testRefreshWithNullConfiguration() throws Exception {
     NsiliSource source = buildSource();
@@ -346,7 +932,7 @@ public class NsiliSourceTest {
 
   private NsiliSource buildSource() throws Exception {
     NsiliSource source;
-    Nsili nsili = mock(Nsili.class);
+    nsili = mock(Nsili.class);
     Response clientResponse = mock(Response.class);
     when(clientResponse.getEntity()).thenReturn("");
     InputStream mockInputStream = mock(InputStream.class);
@@ -384,6 +970,33 @@ public class NsiliSourceTest {
     return source;
   }
 
+  private void returnIor(String ior) throws Exception {
+    when(nsili.getIorFile())
+        .thenAnswer(
+            invocationOnMock -> new ByteArrayInputStream(ior.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private Library getMockLibrary(boolean nonExistent) throws Exception {
+    Library library = mock(Library.class);
+    doReturn(nonExistent).when(library)._non_existent();
+    doReturn(new LibraryDescription("localhost", "Test Library", "NSILI|1.0"))
+        .when(library)
+        .get_library_description();
+    doReturn(mock(CatalogMgr.class))
+        .when(library)
+        .get_manager(eq("CatalogMgr"), any(AccessCriteria.class));
+    doReturn(mock(OrderMgr.class))
+        .when(library)
+        .get_manager(eq("OrderMgr"), any(AccessCriteria.class));
+    doReturn(mock(ProductMgr.class))
+        .when(library)
+        .get_manager(eq("ProductMgr"), any(AccessCriteria.class));
+    doReturn(getMockDataModelMgr())
+        .when(library)
+        .get_manager(eq("DataModelMgr"), any(AccessCriteria.class));
+    return library;
+  }
+
   private SecureCxfClientFactory getMockFactory(Nsili client) {
     SecureCxfClientFactory factory = mock(SecureCxfClientFactory.class);
     doReturn(client).when(factory).getClient();
@@ -427,6 +1040,188 @@ public class NsiliSourceTest {
     return catalogMgr;
   }
 
+  private void runParallelQueries() throws Exception {
+    ExecutorService queryExecutor = Executors.newFixedThreadPool(PARALLEL_QUERIES);
+    try {
+      List<Future<SourceResponse>> responses = new ArrayList<>();
+      for (int i = 0; i < PARALLEL_QUERIES; i++) {
+        QueryImpl query =
+            new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+        responses.add(queryExecutor.submit(() -> source.query(new QueryRequestImpl(query))));
+      }
+      for (Future<SourceResponse> response : responses) {
+        assertThat(response.get(10, TimeUnit.SECONDS).getHits(), is(LONG));
+      }
+    } finally {
+      queryExecutor.shutdownNow();
+    }
+  }
+
+  private QueryImpl getPagedQuery(int startIndex) {
+    QueryImpl query =
+        new QueryImpl(builder.attribute(Metacard.CONTENT_TYPE).is().equalTo().text(GMTI));
+    query.setStartIndex(startIndex);
+    query.setPageSize(PAGE_SIZE);
+    return query;
+  }
+
+  private SubmitQueryRequest getPagingMockSubmitQueryRequest(CatalogMgr pagingCatalogMgr)
+      throws Exception {
+    SubmitQueryRequest submitQueryRequest = mock(SubmitQueryRequest.class);
+    HitCountRequest hitCountRequest = mock(HitCountRequest.class);
+
+    when(hitCountRequest.complete(any(IntHolder.class)))
+        .thenAnswer(
+            (InvocationOnMock invocationOnMock) -> {
+              IntHolder intHolder = (IntHolder) invocationOnMock.getArguments()[0];
+              intHolder.value = 12;
+              return State.COMPLETED;
+            });
+
+    when(submitQueryRequest.complete_DAG_results(any(DAGListHolder.class)))
+        .thenAnswer(
+            (InvocationOnMock invocationOnMock) -> {
+              DAGListHolder dagListHolder = (DAGListHolder) invocationOnMock.getArguments()[0];
+              DAG[] dags = new DAG[PAGE_SIZE];
+              for (int i = 0; i < dags.length; i++) {
+                dags[i] = new DAG(new Node[0], new Edge[0]);
+              }
+              dagListHolder.value = dags;
+              return State.COMPLETED;
+            });
+
+    doReturn(submitQueryRequest)
+        .when(pagingCatalogMgr)
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+    doReturn(hitCountRequest)
+        .when(pagingCatalogMgr)
+        .hit_count(any(Query.class), any(NameValue[].class));
+    return submitQueryRequest;
+  }
+
+  private void getOrderedMockSubmitQueryRequest(CatalogMgr orderedCatalogMgr, int numResults)
+      throws Exception {
+    DAG[] dags = new DAG[numResults];
+    for (int i = 0; i < numResults; i++) {
+      dags[i] = getCardDAG(CARD_ID_PREFIX + i);
+    }
+    getOrderedMockSubmitQueryRequest(orderedCatalogMgr, dags);
+  }
+
+  private void getOrderedMockSubmitQueryRequest(CatalogMgr orderedCatalogMgr, DAG[] dags)
+      throws Exception {
+    SubmitQueryRequest submitQueryRequest = mock(SubmitQueryRequest.class);
+    when(submitQueryRequest.complete_DAG_results(any(DAGListHolder.class)))
+        .thenAnswer(
+            (InvocationOnMock invocationOnMock) -> {
+              DAGListHolder dagListHolder = (DAGListHolder) invocationOnMock.getArguments()[0];
+              dagListHolder.value = dags;
+              return State.COMPLETED;
+            });
+
+    doReturn(submitQueryRequest)
+        .when(orderedCatalogMgr)
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+    HitCountRequest hitCountRequest = mock(HitCountRequest.class);
+    doReturn(State.COMPLETED).when(hitCountRequest).complete(any(IntHolder.class));
+    doReturn(hitCountRequest)
+        .when(orderedCatalogMgr)
+        .hit_count(any(Query.class), any(NameValue[].class));
+  }
+
+  private DAG getCardDAG(String cardId) {
+    return getCardDAG(cardId, null);
+  }
+
+  private DAG getCardDAG(String cardId, String thumbnailUrl) {
+    DirectedAcyclicGraph<Node, Edge> graph = new DirectedAcyclicGraph<>(Edge.class);
+    Node productNode =
+        new Node(0, NodeType.ROOT_NODE, NsiliConstants.NSIL_PRODUCT, orb.create_any());
+    graph.addVertex(productNode);
+    Node cardNode = new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_CARD, orb.create_any());
+    graph.addVertex(cardNode);
+    graph.addEdge(productNode, cardNode);
+    ResultDAGConverter.addStringAttribute(graph, cardNode, NsiliConstants.IDENTIFIER, cardId, orb);
+
+    if (thumbnailUrl != null) {
+      Node relatedFileNode =
+          new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_RELATED_FILE, orb.create_any());
+      graph.addVertex(relatedFileNode);
+      graph.addEdge(productNode, relatedFileNode);
+      ResultDAGConverter.addStringAttribute(
+          graph, relatedFileNode, NsiliConstants.FILE_TYPE, NsiliConstants.THUMBNAIL_TYPE, orb);
+      ResultDAGConverter.addStringAttribute(
+          graph, relatedFileNode, NsiliConstants.URL, thumbnailUrl, orb);
+    }
+
+    NsiliCommonUtils.setUCOEdgeIds(graph);
+    NsiliCommonUtils.setUCOEdges(productNode, graph);
+    return new DAG(
+        NsiliCommonUtils.getNodeArrayFromGraph(graph),
+        NsiliCommonUtils.getEdgeArrayFromGraph(graph));
+  }
+
+  /**
+   * Returns a catalog manager whose submit_query counts down the latch and then waits up to
+   * waitMsec for it to reach zero, while tracking how many queries are in submit_query at once.
+   */
+  private CatalogMgr getBlockingMockCatalogMgr(
+      CountDownLatch allSubmitted,
+      long waitMsec,
+      AtomicInteger submitting,
+      AtomicInteger maxSubmitting)
+      throws Exception {
+    CatalogMgr blockingCatalogMgr = mock(CatalogMgr.class);
+    SubmitQueryRequest submitQueryRequest = mock(SubmitQueryRequest.class);
+    HitCountRequest hitCountRequest = mock(HitCountRequest.class);
+
+    when(hitCountRequest.complete(any(IntHolder.class)))
+        .thenAnswer(
+            (InvocationOnMock invocationOnMock) -> {
+              IntHolder intHolder = (IntHolder) invocationOnMock.getArguments()[0];
+              intHolder.value = 12;
+              return State.COMPLETED;
+            });
+
+    when(submitQueryRequest.complete_DAG_results(any(DAGListHolder.class)))
+        .thenAnswer(
+            (InvocationOnMock invocationOnMock) -> {
+              DAGListHolder dagListHolder = (DAGListHolder) invocationOnMock.getArguments()[0];
+              dagListHolder.value = getMockDAGArray();
+              return State.COMPLETED;
+            });
+
+    doAnswer(
+            invocationOnMock -> {
+              maxSubmitting.accumulateAndGet(submitting.incrementAndGet(), Math::max);
+              try {
+                allSubmitted.countDown();
+                allSubmitted.await(waitMsec, TimeUnit.MILLISECONDS);
+              } finally {
+                submitting.decrementAndGet();
+              }
+              return submitQueryRequest;
+            })
+        .when(blockingCatalogMgr)
+        .submit_query(
+            any(Query.class),
+            any(String[].class),
+            any(SortAttribute[].class),
+            any(NameValue[].class));
+    doReturn(hitCountRequest)
+        .when(blockingCatalogMgr)
+        .hit_count(any(Query.class), any(NameValue[].class));
+    return blockingCatalogMgr;
+  }
+
   private DataModelMgr getMockDataModelMgr() throws Exception {
     DataModelMgr dataModelMgr = mock(DataModelMgr.class);
     View[] views = new View[0];
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.source;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import ddf.catalog.operation.ResourceResponse;
+import ddf.catalog.resource.Resource;
+import ddf.catalog.resource.ResourceReader;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThumbnailFetcherTest {
+
+  private static final String THUMBNAIL_URL = "http://localhost:20002/thumbnail/1.jpg";
+
+  private static final byte[] THUMBNAIL = "THUMBNAIL".getBytes();
+
+  private static final long FETCH_DELAY_MSEC = 200;
+
+  private ResourceReader resourceReader;
+
+  private ThumbnailFetcher thumbnailFetcher;
+
+  @Before
+  public void setUp() throws Exception {
+    resourceReader = mock(ResourceReader.class);
+    ResourceResponse resourceResponse = getResourceResponse();
+    doReturn(resourceResponse).when(resourceReader).retrieveResource(any(URI.class), anyMap());
+  }
+
+  @After
+  public void tearDown() {
+    if (thumbnailFetcher != null) {
+      thumbnailFetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testCachedThumbnailIsNotRetrievedAgain() throws Exception {
+    thumbnailFetcher = new ThumbnailFetcher(resourceReader, 2, 2, 10);
+
+    assertThat(thumbnailFetcher.fetch(THUMBNAIL_URL).get(5, TimeUnit.SECONDS), is(THUMBNAIL));
+    Future<byte[]> cachedThumbnail = thumbnailFetcher.fetch(THUMBNAIL_URL);
+
+    assertThat(cachedThumbnail.isDone(), is(true));
+    assertThat(cachedThumbnail.get(), is(THUMBNAIL));
+    verify(resourceReader, times(1)).retrieveResource(any(URI.class), anyMap());
+  }
+
+  @Test
+  public void testFailedThumbnailIsNotCached() throws Exception {
+    doThrow(new IOException("unavailable"))
+        .when(resourceReader)
+        .retrieveResource(any(URI.class), anyMap());
+    thumbnailFetcher = new ThumbnailFetcher(resourceReader, 2, 2, 10);
+
+    assertThat(thumbnailFetcher.fetch(THUMBNAIL_URL).get(5, TimeUnit.SECONDS), nullValue());
+    assertThat(thumbnailFetcher.fetch(THUMBNAIL_URL).get(5, TimeUnit.SECONDS), nullValue());
+
+    verify(resourceReader, times(2)).retrieveResource(any(URI.class), anyMap());
+  }
+
+  @Test
+  public void testFetchesPerHostAreLimited() throws Exception {
+    int maxFetchesPerHost = 2;
+    AtomicInteger activeFetches = new AtomicInteger();
+    AtomicInteger maxActiveFetches = new AtomicInteger();
+    ResourceResponse resourceResponse = getResourceResponse();
+    doAnswer(
+            invocation -> {
+              maxActiveFetches.accumulateAndGet(activeFetches.incrementAndGet(), Math::max);
+              Thread.sleep(FETCH_DELAY_MSEC);
+              activeFetches.decrementAndGet();
+              return resourceResponse;
+            })
+        .when(resourceReader)
+        .retrieveResource(any(URI.class), anyMap());
+    thumbnailFetcher = new ThumbnailFetcher(resourceReader, 8, maxFetchesPerHost, 10);
+
+    List<Future<byte[]>> thumbnails = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      thumbnails.add(thumbnailFetcher.fetch("http://localhost:20002/thumbnail/" + i + ".jpg"));
+    }
+    for (Future<byte[]> thumbnail : thumbnails) {
+      assertThat(thumbnail.get(5, TimeUnit.SECONDS), is(THUMBNAIL));
+    }
+
+    assertThat(maxActiveFetches.get(), is(maxFetchesPerHost));
+  }
+
+  @Test
+  public void testSlowHostDoesNotHoldFetchThreads() throws Exception {
+    CountDownLatch slowHostLatch = new CountDownLatch(1);
+    ResourceResponse resourceResponse = getResourceResponse();
+    doAnswer(
+            invocation -> {
+              URI uri = (URI) invocation.getArguments()[0];
+              if ("slowhost".equals(uri.getHost())) {
+                slowHostLatch.await(5, TimeUnit.SECONDS);
+              }
+              return resourceResponse;
+            })
+        .when(resourceReader)
+        .retrieveResource(any(URI.class), anyMap());
+    thumbnailFetcher = new ThumbnailFetcher(resourceReader, 2, 1, 10);
+
+    List<Future<byte[]>> slowThumbnails = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      slowThumbnails.add(thumbnailFetcher.fetch("http://slowhost:20002/thumbnail/" + i + ".jpg"));
+    }
+    Future<byte[]> fastThumbnail = thumbnailFetcher.fetch(THUMBNAIL_URL);
+
+    try {
+      assertThat(fastThumbnail.get(2, TimeUnit.SECONDS), is(THUMBNAIL));
+      assertThat(slowThumbnails.get(0).isDone(), is(false));
+    } finally {
+      slowHostLatch.countDown();
+    }
+    for (Future<byte[]> thumbnail : slowThumbnails) {
+      assertThat(thumbnail.get(5, TimeUnit.SECONDS), is(THUMBNAIL));
+    }
+  }
+
+  private static ResourceResponse getResourceResponse() {
+    Resource resource = mock(Resource.class);
+    ResourceResponse resourceResponse = mock(ResourceResponse.class);
+    doReturn(THUMBNAIL).when(resource).getByteArray();
+    doReturn(resource).when(resourceResponse).getResource();
+    return resourceResponse;
+  }
+}
@@ -13,9 +13,6 @@
  */
 package org.codice.alliance.nsili.transformer;
 
-import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.converters.basic.NullConverter;
-import com.thoughtworks.xstream.converters.collections.ArrayConverter;
 import ddf.catalog.data.Attribute;
 import ddf.catalog.data.AttributeDescriptor;
 import ddf.catalog.data.Metacard;
@@ -90,7 +87,9 @@ public class DAGConverter {
 
   private String relatedFileUrl;
 
-  private XStream xstream;
+  private boolean deferThumbnailRetrieval = false;
+
+  private String thumbnailUrl;
 
   private MetacardType nsiliMetacardType;
 
@@ -129,17 +128,36 @@ public class DAGConverter {
     this.nsiliMetacardType = nsiliMetacardType;
   }
 
+  /**
+   * When enabled, thumbnails are not retrieved during conversion. The thumbnail URL of the last
+   * converted DAG is made available through {@link #getThumbnailUrl()} so the caller can retrieve
+   * it separately.
+   *
+   * @param deferThumbnailRetrieval - whether to skip retrieving thumbnails during conversion
+   */
+  public void setDeferThumbnailRetrieval(boolean deferThumbnailRetrieval) {
+    this.deferThumbnailRetrieval = deferThumbnailRetrieval;
+  }
+
+  /**
+   * @return the thumbnail URL found in the last converted DAG when thumbnail retrieval is
+   *     deferred, otherwise null
+   */
+  public String getThumbnailUrl() {
+    return thumbnailUrl;
+  }
+
   public MetacardImpl convertDAG(DAG dag, boolean swapCoordinates, String logSourceId) {
     MetacardImpl metacard = null;
     sourceId = logSourceId;
+    relatedFileType = "";
+    relatedFileUrl = "";
+    thumbnailUrl = null;
     String metadata;
 
     // Need to have at least 2 nodes and an edge for anything useful
     if (dag.nodes != null && dag.edges != null) {
-      Map<Integer, Node> nodeMap = ResultDAGConverter.createNodeMap(dag.nodes);
-      DirectedAcyclicGraph<Node, Edge> graph = getNodeEdgeDirectedAcyclicGraph(dag, nodeMap);
-
-      metacard = parseGraph(graph, swapCoordinates);
+      metacard = parseGraph(DAGTraversal.of(dag), swapCoordinates);
       metacard.setSourceId(sourceId);
 
       metadata = dagToXML(dag);
@@ -149,32 +167,31 @@ public class DAGConverter {
     return metacard;
   }
 
-  private MetacardImpl parseGraph(DirectedAcyclicGraph<Node, Edge> graph, boolean swapCoordinates) {
+  private MetacardImpl parseGraph(DAGTraversal traversal, boolean swapCoordinates) {
     MetacardImpl metacard = new MetacardImpl(nsiliMetacardType);
 
     List<Serializable> associatedCards = new ArrayList<>();
 
     // Traverse the graph
-    DepthFirstIterator<Node, Edge> depthFirstIterator = new DepthFirstIterator<>(graph);
     Node parentEntity = null;
-    Node assocNode = null;
+    int assocIndex = -1;
 
-    while (depthFirstIterator.hasNext()) {
-      Node node = depthFirstIterator.next();
+    while (traversal.hasNext()) {
+      Node node = traversal.next();
 
       if (node.node_type == NodeType.ROOT_NODE
           && node.attribute_name.equals(NsiliConstants.NSIL_PRODUCT)) {
         // Nothing to process from root node
       } else if (node.node_type == NodeType.ENTITY_NODE) {
         parentEntity = node;
-        assocNode = getAssocNode(graph, assocNode, node);
+        assocIndex = getAssocNodeIndex(traversal, assocIndex, node);
       } else if (node.node_type == NodeType.RECORD_NODE) {
         // Nothing to process from record node
       } else if (parentEntity != null
           && node.node_type == NodeType.ATTRIBUTE_NODE
           && node.value != null) {
         addNsiliAttribute(
-            swapCoordinates, metacard, associatedCards, parentEntity, assocNode, node);
+            swapCoordinates, metacard, associatedCards, parentEntity, assocIndex >= 0, node);
       }
     }
 
@@ -201,11 +218,11 @@ public class DAGConverter {
       MetacardImpl metacard,
       List<Serializable> associatedCards,
       Node parentEntity,
-      Node assocNode,
+      boolean inAssociation,
       Node node) {
     switch (parentEntity.attribute_name) {
       case NsiliConstants.NSIL_CARD:
-        if (assocNode != null) {
+        if (inAssociation) {
           addNsilAssociation(associatedCards, node);
         } else {
           addNsilCardAttribute(metacard, node);
@@ -264,42 +281,29 @@ public class DAGConverter {
     }
   }
 
-  private Node getAssocNode(DirectedAcyclicGraph<Node, Edge> graph, Node assocNode, Node node) {
+  /**
+   * Tracks the association entity that the traversal is currently inside of.
+   *
+   * @param traversal - the traversal positioned on the entity node
+   * @param assocIndex - index of the current association node, or -1 if there is none
+   * @param node - the entity node being visited
+   * @return the index of the association node that applies to the entity, or -1 if there is none
+   */
+  private int getAssocNodeIndex(DAGTraversal traversal, int assocIndex, Node node) {
     switch (node.attribute_name) {
       case NsiliConstants.NSIL_ASSOCIATION:
-        return node;
+        return traversal.currentIndex();
       case NsiliConstants.NSIL_RELATED_FILE:
         relatedFileType = "";
         relatedFileUrl = "";
         break;
       default:
-        if (assocNode != null && !isNodeChildOfStart(graph, assocNode, node)) {
-          return null;
+        if (assocIndex >= 0 && !traversal.isCurrentDescendantOf(assocIndex)) {
+          return -1;
         }
         break;
     }
-    return assocNode;
-  }
-
-  /**
-   * Determines if the end node is a child of the start node.
-   *
-   * @param graph - The complete graph.
-   * @param start - Starting node.
-   * @param end - Child node to check
-   * @return true if the end node is a child of the start node in the provided graph.
-   */
-  private static boolean isNodeChildOfStart(
-      DirectedAcyclicGraph<Node, Edge> graph, Node start, Node end) {
-    boolean endNodeInTree = false;
-    DepthFirstIterator<Node, Edge> depthFirstIterator = new DepthFirstIterator<>(graph, start);
-    while (depthFirstIterator.hasNext()) {
-      Node currNode = depthFirstIterator.next();
-      if (currNode.id == end.id) {
-        endNodeInTree = true;
-      }
-    }
-    return endNodeInTree;
+    return assocIndex;
   }
 
   private void addNsilCardAttribute(MetacardImpl metacard, Node node) {
@@ -707,18 +711,23 @@ public class DAGConverter {
   private String addNsilRelatedFile(MetacardImpl metacard, Node node) {
     if (node.attribute_name.equals(NsiliConstants.FILE_TYPE)) {
       relatedFileType = getString(node.value);
-      if (NsiliConstants.THUMBNAIL_TYPE.equalsIgnoreCase(relatedFileType)
-          && StringUtils.isNotBlank(relatedFileUrl)) {
-        metacard.setThumbnail(getThumbnail(relatedFileUrl));
-      }
+      setThumbnail(metacard);
     } else if (node.attribute_name.equals(NsiliConstants.URL)) {
       relatedFileUrl = getString(node.value);
-      if (NsiliConstants.THUMBNAIL_TYPE.equalsIgnoreCase(relatedFileType)
-          && StringUtils.isNotBlank(relatedFileUrl)) {
+      setThumbnail(metacard);
+    }
+    return relatedFileType;
+  }
+
+  private void setThumbnail(MetacardImpl metacard) {
+    if (NsiliConstants.THUMBNAIL_TYPE.equalsIgnoreCase(relatedFileType)
+        && StringUtils.isNotBlank(relatedFileUrl)) {
+      if (deferThumbnailRetrieval) {
+        thumbnailUrl = relatedFileUrl;
+      } else {
         metacard.setThumbnail(getThumbnail(relatedFileUrl));
       }
     }
-    return relatedFileType;
   }
 
   private void addNsilCbrnAttribute(MetacardImpl metacard, Node node) {
@@ -1045,24 +1054,6 @@ public class DAGConverter {
   }
 
   private String dagToXML(DAG dag) {
-    final String cleanupStr = " class=\"com.sun.corba.se.impl.corba.AnyImpl\"";
-
-    xstream = new XStream();
-
-    xstream.alias("dag", DAG.class);
-    xstream.alias("node", Node.class);
-
-    xstream.registerConverter(new NullConverter());
-    xstream.registerConverter(new ArrayConverter(xstream.getMapper()));
-    xstream.registerConverter(new AnyConverter());
-
-    xstream.omitField(DAG.class, "edges");
-    xstream.omitField(Node.class, "id");
-    xstream.omitField(Node.class, "node_type");
-
-    String xmlDAG = xstream.toXML(dag);
-    xmlDAG = xmlDAG.replaceAll(cleanupStr, "");
-
-    return xmlDAG;
+    return DAGXmlWriter.toXml(dag);
   }
 }
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.transformer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.codice.alliance.nsili.common.UCO.DAG;
+import org.codice.alliance.nsili.common.UCO.Edge;
+import org.codice.alliance.nsili.common.UCO.Node;
+
+/**
+ * Depth first traversal over the raw {@link DAG} node and edge arrays.
+ *
+ * <p>Nodes are visited in the same order as a jgrapht {@code DepthFirstIterator} over the {@code
+ * DirectedAcyclicGraph} built from the same DAG, including traversal across disconnected
+ * components. Nodes that are on the path from the component root to the current node are tracked
+ * as the traversal runs, so ancestry checks do not require another walk of the graph.
+ */
+final class DAGTraversal {
+
+  private static final int UNSEEN = 0;
+
+  private static final int WAITING = 1;
+
+  private static final int ON_PATH = 2;
+
+  private static final int FINISHED = 3;
+
+  private static final int FINISH_MARKER = -1;
+
+  private final Node[] vertices;
+
+  private final int[] childOffsets;
+
+  private final int[] children;
+
+  private final int[] state;
+
+  private int[] stack;
+
+  private int stackSize = 0;
+
+  private int nextRoot = 0;
+
+  private int current = -1;
+
+  private DAGTraversal(Node[] vertices, int[] childOffsets, int[] children) {
+    this.vertices = vertices;
+    this.childOffsets = childOffsets;
+    this.children = children;
+    this.state = new int[vertices.length];
+    this.stack = new int[Math.max(16, vertices.length * 2)];
+  }
+
+  /**
+   * Builds a traversal for the DAG. Edges are resolved through the node ids, edges that reference
+   * unknown nodes are ignored, as are repeated edges between the same nodes.
+   *
+   * @throws IllegalArgumentException if an edge starts and ends at the same node
+   */
+  static DAGTraversal of(DAG dag) {
+    Map<Node, Integer> vertexIndexes = new IdentityHashMap<>(dag.nodes.length * 2);
+    Map<Integer, Integer> idIndexes = new HashMap<>(dag.nodes.length * 2);
+    Node[] vertices = new Node[dag.nodes.length];
+    int vertexCount = 0;
+    for (Node node : dag.nodes) {
+      Integer index = vertexIndexes.get(node);
+      if (index == null) {
+        index = vertexCount;
+        vertices[vertexCount++] = node;
+        vertexIndexes.put(node, index);
+      }
+      idIndexes.put(node.id, index);
+    }
+    if (vertexCount < vertices.length) {
+      vertices = Arrays.copyOf(vertices, vertexCount);
+    }
+
+    int[] edgeStarts = new int[dag.edges.length];
+    int[] edgeEnds = new int[dag.edges.length];
+    int[] childCounts = new int[vertexCount + 1];
+    Set<Long> seenEdges = new HashSet<>(dag.edges.length * 2);
+    int edgeCount = 0;
+    for (Edge edge : dag.edges) {
+      Integer start = idIndexes.get(edge.start_node);
+      Integer end = idIndexes.get(edge.end_node);
+      if (start == null || end == null) {
+        continue;
+      }
+      if (start.equals(end)) {
+        throw new IllegalArgumentException("DAG contains a loop on node " + edge.start_node);
+      }
+      if (seenEdges.add(((long) start << 32) | end)) {
+        edgeStarts[edgeCount] = start;
+        edgeEnds[edgeCount] = end;
+        childCounts[start + 1]++;
+        edgeCount++;
+      }
+    }
+
+    int[] childOffsets = new int[vertexCount + 1];
+    for (int i = 0; i < vertexCount; i++) {
+      childOffsets[i + 1] = childOffsets[i] + childCounts[i + 1];
+    }
+    int[] fill = Arrays.copyOf(childOffsets, vertexCount);
+    int[] children = new int[edgeCount];
+    for (int i = 0; i < edgeCount; i++) {
+      children[fill[edgeStarts[i]]++] = edgeEnds[i];
+    }
+
+    return new DAGTraversal(vertices, childOffsets, children);
+  }
+
+  boolean hasNext() {
+    if (!isComponentExhausted()) {
+      return true;
+    }
+    while (nextRoot < vertices.length && state[nextRoot] != UNSEEN) {
+      nextRoot++;
+    }
+    if (nextRoot < vertices.length) {
+      state[nextRoot] = WAITING;
+      push(nextRoot);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the next node in depth first order.
+   *
+   * @throws IllegalArgumentException if the DAG contains a cycle
+   */
+  Node next() {
+    if (!hasNext()) {
+      throw new IllegalStateException("No more nodes in DAG");
+    }
+
+    int vertex;
+    for (; ; ) {
+      int top = stack[--stackSize];
+      if (top == FINISH_MARKER) {
+        state[stack[--stackSize]] = FINISHED;
+      } else {
+        vertex = top;
+        break;
+      }
+    }
+    push(vertex);
+    push(FINISH_MARKER);
+    state[vertex] = ON_PATH;
+    current = vertex;
+
+    for (int i = childOffsets[vertex]; i < childOffsets[vertex + 1]; i++) {
+      int child = children[i];
+      switch (state[child]) {
+        case UNSEEN:
+          state[child] = WAITING;
+          push(child);
+          break;
+        case WAITING:
+          moveToTop(child);
+          break;
+        case ON_PATH:
+          throw new IllegalArgumentException(
+              "DAG contains a cycle through node " + vertices[child].id);
+        default:
+          break;
+      }
+    }
+
+    return vertices[vertex];
+  }
+
+  /** @return the index of the node most recently returned by {@link #next()} */
+  int currentIndex() {
+    return current;
+  }
+
+  /**
+   * Determines if the current node is the given node or one of its descendants.
+   *
+   * @param ancestor - index of a node that has already been visited
+   * @return true if the current node was reached from the ancestor node
+   */
+  boolean isCurrentDescendantOf(int ancestor) {
+    return ancestor >= 0 && state[ancestor] == ON_PATH;
+  }
+
+  private boolean isComponentExhausted() {
+    for (; ; ) {
+      if (stackSize == 0) {
+        return true;
+      }
+      if (stack[stackSize - 1] != FINISH_MARKER) {
+        return false;
+      }
+      stackSize--;
+      state[stack[--stackSize]] = FINISHED;
+    }
+  }
+
+  private void push(int value) {
+    if (stackSize == stack.length) {
+      stack = Arrays.copyOf(stack, stack.length * 2);
+    }
+    stack[stackSize++] = value;
+  }
+
+  private void moveToTop(int vertex) {
+    for (int i = stackSize - 1; i >= 0; i--) {
+      if (stack[i] == vertex) {
+        System.arraycopy(stack, i + 1, stack, i, stackSize - i - 1);
+        stack[stackSize - 1] = vertex;
+        return;
+      }
+    }
+  }
+}
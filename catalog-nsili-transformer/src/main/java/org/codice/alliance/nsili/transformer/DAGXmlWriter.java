@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * <p>This is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * Lesser General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or any later version.
+ *
+ * <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public
+ * License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package org.codice.alliance.nsili.transformer;
+
+import org.codice.alliance.nsili.common.CorbaUtils;
+import org.codice.alliance.nsili.common.UCO.DAG;
+import org.codice.alliance.nsili.common.UCO.Node;
+import org.omg.CORBA.Any;
+
+/**
+ * Writes the metadata XML for a {@link DAG} in a single pass. The output matches what XStream
+ * produced for a DAG with the {@code edges}, {@code id} and {@code node_type} fields omitted and
+ * {@link Any} values written through {@link AnyConverter}, so existing metadata is unchanged.
+ */
+final class DAGXmlWriter {
+
+  private static final String NEW_LINE = "\n";
+
+  private static final String NODE_INDENT = NEW_LINE + "    ";
+
+  private static final String FIELD_INDENT = NEW_LINE + "      ";
+
+  private static final int ESTIMATED_NODE_LENGTH = 96;
+
+  private DAGXmlWriter() {}
+
+  static String toXml(DAG dag) {
+    if (dag.nodes == null) {
+      return "<dag/>";
+    }
+
+    StringBuilder xml = new StringBuilder(32 + dag.nodes.length * ESTIMATED_NODE_LENGTH);
+    xml.append("<dag>").append(NEW_LINE).append("  ");
+    if (dag.nodes.length == 0) {
+      xml.append("<nodes/>");
+    } else {
+      xml.append("<nodes>");
+      for (Node node : dag.nodes) {
+        xml.append(NODE_INDENT);
+        writeNode(xml, node);
+      }
+      xml.append(NEW_LINE).append("  </nodes>");
+    }
+    xml.append(NEW_LINE).append("</dag>");
+    return xml.toString();
+  }
+
+  private static void writeNode(StringBuilder xml, Node node) {
+    if (node == null) {
+      xml.append("<null/>");
+      return;
+    }
+
+    if (node.attribute_name == null && node.value == null) {
+      xml.append("<node/>");
+      return;
+    }
+
+    xml.append("<node>");
+    if (node.attribute_name != null) {
+      xml.append(FIELD_INDENT).append("<attribute__name>");
+      writeText(xml, node.attribute_name);
+      xml.append("</attribute__name>");
+    }
+    if (node.value != null) {
+      String value = CorbaUtils.getNodeValue(node.value);
+      xml.append(FIELD_INDENT).append("<value>");
+      writeText(xml, value != null ? value : "null");
+      xml.append("</value>");
+    }
+    xml.append(NODE_INDENT).append("</node>");
+  }
+
+  /** Escapes text the same way as XStream's PrettyPrintWriter in its default (quirks) mode. */
+  private static void writeText(StringBuilder xml, String text) {
+    int length = text.length();
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '\0':
+          xml.append("&#x0;");
+          break;
+        case '&':
+          xml.append("&amp;");
+          break;
+        case '<':
+          xml.append("&lt;");
+          break;
+        case '>':
+          xml.append("&gt;");
+          break;
+        case '"':
+          xml.append("&quot;");
+          break;
+        case '\'':
+          xml.append("&apos;");
+          break;
+        case '\r':
+          xml.append("&#xd;");
+          break;
+        case '\t':
+        case '\n':
+          xml.append(c);
+          break;
+        default:
+          if (Character.isDefined(c) && !Character.isISOControl(c)) {
+            xml.append(c);
+          } else {
+            xml.append("&#x").append(Integer.toHexString(c)).append(';');
+          }
+          break;
+      }
+    }
+  }
+}
@@ -22,7 +22,12 @@ import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.basic.NullConverter;
+import com.thoughtworks.xstream.converters.collections.ArrayConverter;
 import ddf.catalog.data.Attribute;
 import ddf.catalog.data.AttributeDescriptor;
 import ddf.catalog.data.Metacard;
@@ -58,6 +63,7 @@ import org.codice.alliance.catalog.core.api.impl.types.SecurityAttributes;
 import org.codice.alliance.catalog.core.api.types.Isr;
 import org.codice.alliance.catalog.core.api.types.Security;
 import org.codice.alliance.nsili.common.CorbaUtils;
+import org.codice.alliance.nsili.common.DAGUtils;
 import org.codice.alliance.nsili.common.NsiliApprovalStatus;
 import org.codice.alliance.nsili.common.NsiliCommonUtils;
 import org.codice.alliance.nsili.common.NsiliConstants;
@@ -390,6 +396,180 @@ public class DAGConverterTest {
     DAGConverter.logMetacard(metacard, "123");
   }
 
+  @Test
+  public void testDeferredThumbnailRetrieval() throws Exception {
+    DAG imageryDAG = new DAG();
+    DirectedAcyclicGraph<Node, Edge> graph = new DirectedAcyclicGraph<>(Edge.class);
+
+    Node productNode = createRootNode();
+    graph.addVertex(productNode);
+
+    addCardNode(graph, productNode);
+    addFileNode(graph, productNode);
+    addImageryPart(graph, productNode);
+    addRelatedFile(graph, productNode);
+
+    NsiliCommonUtils.setUCOEdgeIds(graph);
+    NsiliCommonUtils.setUCOEdges(productNode, graph);
+    imageryDAG.edges = NsiliCommonUtils.getEdgeArrayFromGraph(graph);
+    imageryDAG.nodes = NsiliCommonUtils.getNodeArrayFromGraph(graph);
+
+    dagConverter.setDeferThumbnailRetrieval(true);
+    MetacardImpl metacard = dagConverter.convertDAG(imageryDAG, false, SOURCE_ID);
+
+    assertThat(metacard.getThumbnail(), nullValue());
+    assertThat(dagConverter.getThumbnailUrl(), is(FILE_PRODUCT_URL));
+    verify(mockResourceReader, never()).retrieveResource(anyObject(), anyMap());
+  }
+
+  @Test
+  public void testMetadataMatchesXStreamOutput() {
+    DAG imageryDAG = new DAG();
+    DirectedAcyclicGraph<Node, Edge> graph = new DirectedAcyclicGraph<>(Edge.class);
+
+    Node productNode = createRootNode();
+    graph.addVertex(productNode);
+
+    addCardNode(graph, productNode);
+    addFileNode(graph, productNode);
+    addMetadataSecurity(graph, productNode);
+    addSecurityNode(graph, productNode);
+    addImageryPart(graph, productNode);
+    addAssocationNode(graph, productNode);
+    addApprovalNode(graph, productNode);
+    addRelatedFile(graph, productNode);
+
+    NsiliCommonUtils.setUCOEdgeIds(graph);
+    NsiliCommonUtils.setUCOEdges(productNode, graph);
+    imageryDAG.edges = NsiliCommonUtils.getEdgeArrayFromGraph(graph);
+    imageryDAG.nodes = NsiliCommonUtils.getNodeArrayFromGraph(graph);
+
+    MetacardImpl metacard = dagConverter.convertDAG(imageryDAG, false, SOURCE_ID);
+
+    assertThat(metacard.getMetadata(), is(xstreamDagToXml(imageryDAG)));
+  }
+
+  @Test
+  public void testMetadataEscapingMatchesXStreamOutput() {
+    Any specialCharsAny = orb.create_any();
+    specialCharsAny.insert_string("<a href=\"x\">Tom & Jerry's</a>\r\n\t\u0001\u0085");
+    Any emptyAny = orb.create_any();
+
+    DAG dag = new DAG();
+    dag.edges = new Edge[0];
+    dag.nodes =
+        new Node[] {
+          createRootNode(),
+          new Node(1, NodeType.ATTRIBUTE_NODE, "title_with_underscores", specialCharsAny),
+          new Node(2, NodeType.ATTRIBUTE_NODE, "", emptyAny),
+          new Node(3, NodeType.ATTRIBUTE_NODE, NsiliConstants.IDENTIFIER, null),
+          new Node(4, NodeType.ATTRIBUTE_NODE, null, null),
+          null
+        };
+
+    assertThat(DAGXmlWriter.toXml(dag), is(xstreamDagToXml(dag)));
+  }
+
+  @Test
+  public void testEmptyMetadataMatchesXStreamOutput() {
+    DAG dag = new DAG();
+    assertThat(DAGXmlWriter.toXml(dag), is(xstreamDagToXml(dag)));
+
+    dag.nodes = new Node[0];
+    assertThat(DAGXmlWriter.toXml(dag), is(xstreamDagToXml(dag)));
+  }
+
+  /** The XStream serialization previously used to build metacard metadata. */
+  private static String xstreamDagToXml(DAG dag) {
+    XStream xstream = new XStream();
+
+    xstream.alias("dag", DAG.class);
+    xstream.alias("node", Node.class);
+
+    xstream.registerConverter(new NullConverter());
+    xstream.registerConverter(new ArrayConverter(xstream.getMapper()));
+    xstream.registerConverter(new AnyConverter());
+
+    xstream.omitField(DAG.class, "edges");
+    xstream.omitField(Node.class, "id");
+    xstream.omitField(Node.class, "node_type");
+
+    return xstream.toXML(dag).replaceAll(" class=\"com.sun.corba.se.impl.corba.AnyImpl\"", "");
+  }
+
+  @Test
+  public void testTraversalMatchesGraphDepthFirstOrder() {
+    DAG dag = new DAG();
+    DirectedAcyclicGraph<Node, Edge> graph = new DirectedAcyclicGraph<>(Edge.class);
+
+    Node productNode = createRootNode();
+    graph.addVertex(productNode);
+
+    addCardNode(graph, productNode);
+    addFileNode(graph, productNode);
+    addSecurityNode(graph, productNode);
+    addImageryPart(graph, productNode);
+    addAssocationNode(graph, productNode);
+    addRelatedFile(graph, productNode);
+
+    NsiliCommonUtils.setUCOEdgeIds(graph);
+    NsiliCommonUtils.setUCOEdges(productNode, graph);
+    dag.edges = NsiliCommonUtils.getEdgeArrayFromGraph(graph);
+    dag.nodes = NsiliCommonUtils.getNodeArrayFromGraph(graph);
+
+    DirectedAcyclicGraph<Node, Edge> dagGraph =
+        DAGUtils.getNodeEdgeDirectedAcyclicGraph(dag, ResultDAGConverter.createNodeMap(dag.nodes));
+    List<Node> expected = new ArrayList<>();
+    new DepthFirstIterator<>(dagGraph).forEachRemaining(expected::add);
+
+    List<Node> actual = new ArrayList<>();
+    DAGTraversal traversal = DAGTraversal.of(dag);
+    while (traversal.hasNext()) {
+      actual.add(traversal.next());
+    }
+
+    assertThat(actual, is(expected));
+  }
+
+  @Test
+  public void testLargeAssociationDAGConversion() {
+    int numAssociations = 2000;
+    DAG dag = new DAG();
+    DirectedAcyclicGraph<Node, Edge> graph = new DirectedAcyclicGraph<>(Edge.class);
+
+    Node productNode = createRootNode();
+    graph.addVertex(productNode);
+
+    addCardNode(graph, productNode);
+    addAssocationNode(graph, productNode, numAssociations);
+    addFileNode(graph, productNode);
+
+    NsiliCommonUtils.setUCOEdgeIds(graph);
+    NsiliCommonUtils.setUCOEdges(productNode, graph);
+    dag.edges = NsiliCommonUtils.getEdgeArrayFromGraph(graph);
+    dag.nodes = NsiliCommonUtils.getNodeArrayFromGraph(graph);
+
+    MetacardImpl metacard = dagConverter.convertDAG(dag, false, SOURCE_ID);
+
+    assertThat(metacard.getId(), is(CARD_ID));
+    assertThat(
+        metacard.getAttribute(Associations.RELATED).getValues().size(), is(numAssociations));
+    assertThat(
+        metacard.getAttribute(Core.RESOURCE_URI).getValue().toString(), is(FILE_PRODUCT_URL));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCyclicDAG() {
+    Node rootNode = createRootNode();
+    Node cardNode =
+        new Node(1, NodeType.ENTITY_NODE, NsiliConstants.NSIL_CARD, orb.create_any());
+    DAG dag = new DAG();
+    dag.nodes = new Node[] {rootNode, cardNode};
+    dag.edges = new Edge[] {new Edge(0, 1, ""), new Edge(1, 0, "")};
+
+    dagConverter.convertDAG(dag, false, SOURCE_ID);
+  }
+
   @Test
   public void testSwapCoordinates() {
     String swapWktLocation = "POLYGON ((1 1, 1 5, 5 5, 5 1, 1 1))";
@@ -1657,6 +1837,11 @@ public class DAGConverterTest {
   }
 
   private void addAssocationNode(DirectedAcyclicGraph<Node, Edge> graph, Node productNode) {
+    addAssocationNode(graph, productNode, NUM_ASSOCIATIONS);
+  }
+
+  private void addAssocationNode(
+      DirectedAcyclicGraph<Node, Edge> graph, Node productNode, int numAssociations) {
     // First we create the NSIL_ASSOCATION
     Any assocAny = orb.create_any();
     Node associationNode =
@@ -1665,7 +1850,7 @@ public class DAGConverterTest {
     graph.addEdge(productNode, associationNode);
 
     // Next create the NSIL_DESTINATION -- 1 per associated card
-    for (int i = 0; i < NUM_ASSOCIATIONS; i++) {
+    for (int i = 0; i < numAssociations; i++) {
       Any destAny = orb.create_any();
       Node destinationNode =
           new Node(0, NodeType.ENTITY_NODE, NsiliConstants.NSIL_DESTINATION, destAny);